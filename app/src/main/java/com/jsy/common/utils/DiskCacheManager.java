@@ -0,0 +1,490 @@
+/**
+ * Wire
+ * Copyright (C) 2018 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jsy.common.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journaled LRU index of the files kept by {@link DiskCacheUtils}.
+ * <p>Entries are stored in files named by the SHA-1 digest of their key. Every change is appended to a journal:</p>
+ * <pre>
+ *     PUT &lt;digest&gt; &lt;size&gt;
+ *     READ &lt;digest&gt;
+ *     REMOVE &lt;digest&gt;
+ * </pre>
+ * <p>Replaying the journal restores the usage order, so the least recently used entry is always the first one
+ * of {@link #entries} and eviction doesn't scan anything. Values are written to a temp file and renamed,
+ * the journal is compacted once most of its lines are redundant. Values are read and written outside of the lock,
+ * only renames, deletes and the journal are serialized.</p>
+ * <p>After a crash, entries without a matching file and files without a journal entry are dropped on open.</p>
+ */
+final class DiskCacheManager {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String MAGIC = "com.jsy.common.utils.DiskCache";
+    static final String VERSION = "1";
+
+    static final int COMPACT_THRESHOLD = 2000;
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File cacheDir;
+    private final File journalFile;
+    private final File journalFileTemp;
+    private final File journalFileBackup;
+    private final long sizeLimit;
+    private final int countLimit;
+
+    // digest -> file size, in access order: least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private long size;
+    private int journalLines;
+    private Writer journalWriter;
+    private final AtomicLong tempFiles = new AtomicLong();
+
+    private final Thread mThread;
+
+    DiskCacheManager(final File cacheDir, final long sizeLimit, final int countLimit) {
+        this.cacheDir = cacheDir;
+        this.journalFile = new File(cacheDir, JOURNAL_FILE);
+        this.journalFileTemp = new File(cacheDir, JOURNAL_FILE_TEMP);
+        this.journalFileBackup = new File(cacheDir, JOURNAL_FILE_BACKUP);
+        this.sizeLimit = sizeLimit;
+        this.countLimit = countLimit;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DiskCacheManager.this) {
+                    open();
+                }
+            }
+        });
+        mThread.start();
+    }
+
+    long getCacheSize() {
+        awaitOpen();
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    int getCacheCount() {
+        awaitOpen();
+        synchronized (this) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Stores the value, replacing the previous one atomically.
+     *
+     * @return {@code true}: success<br>{@code false}: fail
+     */
+    boolean put(final String key, final byte[] value) {
+        final String digest = digest(key);
+        awaitOpen();
+        // concurrent puts of the same key each write their own temp file, the last rename wins
+        final File temp = new File(cacheDir, digest + '.' + tempFiles.incrementAndGet() + TEMP_SUFFIX);
+        if (!writeFile(temp, value)) {
+            temp.delete();
+            return false;
+        }
+        synchronized (this) {
+            if (!temp.renameTo(entryFile(digest))) {
+                temp.delete();
+                return false;
+            }
+            final Long previous = entries.put(digest, (long) value.length);
+            if (previous != null) size -= previous;
+            size += value.length;
+            journal(PUT + ' ' + digest + ' ' + value.length);
+            trimToSize();
+            compactIfNeeded();
+            return true;
+        }
+    }
+
+    /**
+     * Returns the value and marks it as recently used.
+     *
+     * @return the value or null if there is no entry for the key
+     */
+    byte[] get(final String key) {
+        final String digest = digest(key);
+        awaitOpen();
+        synchronized (this) {
+            if (!entries.containsKey(digest)) return null;
+        }
+        // entry files are only ever replaced by rename, so this never sees a partially written value
+        final byte[] data = readFile(entryFile(digest));
+        synchronized (this) {
+            if (data == null) {
+                // drop the entry if its file is gone, unless a concurrent put replaced it in the meantime
+                if (!entryFile(digest).isFile()) {
+                    final Long fileSize = entries.remove(digest);
+                    if (fileSize != null) remove(digest, fileSize);
+                }
+                return null;
+            }
+            if (entries.get(digest) != null) {
+                journal(READ + ' ' + digest);
+                compactIfNeeded();
+            }
+            return data;
+        }
+    }
+
+    boolean remove(final String key) {
+        final String digest = digest(key);
+        awaitOpen();
+        synchronized (this) {
+            final Long fileSize = entries.remove(digest);
+            return fileSize == null || remove(digest, fileSize);
+        }
+    }
+
+    boolean clear() {
+        awaitOpen();
+        synchronized (this) {
+            boolean flag = true;
+            final File[] files = cacheDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!isJournal(file) && !file.delete()) flag = false;
+                }
+            }
+            entries.clear();
+            size = 0;
+            rewriteJournal();
+            return flag;
+        }
+    }
+
+    void close() {
+        awaitOpen();
+        synchronized (this) {
+            closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+    }
+
+    private void awaitOpen() {
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void open() {
+        if (journalFileBackup.exists()) {
+            // crashed while compacting, the backup is only valid if the new journal wasn't moved in yet
+            if (journalFile.exists()) journalFileBackup.delete();
+            else journalFileBackup.renameTo(journalFile);
+        }
+
+        boolean rewrite = !journalFile.exists();
+        if (!rewrite) {
+            try {
+                rewrite = readJournal();
+            } catch (IOException e) {
+                e.printStackTrace();
+                entries.clear();
+                rewrite = true;
+            }
+        }
+        rewrite |= verifyEntries();
+        deleteUntracked();
+
+        if (rewrite) rewriteJournal();
+        else journalWriter = openJournalWriter();
+        trimToSize();
+    }
+
+    /**
+     * Replays the journal into {@link #entries}.
+     *
+     * @return true if the journal has to be rewritten, its last line was not complete
+     */
+    private boolean readJournal() throws IOException {
+        final boolean truncated = !endsWithNewLine(journalFile);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), ASCII));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+            int lines = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if (next == null && truncated) break;
+                if (!applyJournalLine(line)) return true;
+                lines++;
+                line = next;
+            }
+            journalLines = lines;
+            return truncated;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private boolean applyJournalLine(final String line) {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2 || !isDigest(parts[1])) return false;
+        final String digest = parts[1];
+        if (PUT.equals(parts[0]) && parts.length == 3) {
+            final long fileSize;
+            try {
+                fileSize = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            final Long previous = entries.put(digest, fileSize);
+            if (previous != null) size -= previous;
+            size += fileSize;
+        } else if (READ.equals(parts[0])) {
+            entries.get(digest);
+        } else if (REMOVE.equals(parts[0])) {
+            final Long previous = entries.remove(digest);
+            if (previous != null) size -= previous;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops entries whose file is missing or doesn't have the size from journal.
+     *
+     * @return true if any entry was dropped
+     */
+    private boolean verifyEntries() {
+        boolean changed = false;
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            final File file = entryFile(entry.getKey());
+            if (file.length() != entry.getValue() || !file.isFile()) {
+                file.delete();
+                size -= entry.getValue();
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Deletes temp files and files which are not in the journal, like files of interrupted edits.
+     */
+    private void deleteUntracked() {
+        final File[] files = cacheDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!isJournal(file) && !entries.containsKey(file.getName())) file.delete();
+        }
+    }
+
+    private void trimToSize() {
+        while (!entries.isEmpty() && (size > sizeLimit || entries.size() > countLimit)) {
+            final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            final Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private boolean remove(final String digest, final long fileSize) {
+        size -= fileSize;
+        journal(REMOVE + ' ' + digest);
+        final File file = entryFile(digest);
+        return file.delete() || !file.exists();
+    }
+
+    private void compactIfNeeded() {
+        final int redundant = journalLines - entries.size();
+        if (redundant >= COMPACT_THRESHOLD && redundant >= entries.size()) rewriteJournal();
+    }
+
+    /**
+     * Writes a journal with a single PUT per entry (in usage order) and swaps it in through a backup file.
+     */
+    private void rewriteJournal() {
+        closeQuietly(journalWriter);
+        journalWriter = null;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(journalFileTemp, false);
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(out, ASCII));
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+            writer.close();
+            out = null;
+
+            if (journalFile.exists() && !journalFile.renameTo(journalFileBackup)) {
+                throw new IOException("can't backup journal");
+            }
+            if (!journalFileTemp.renameTo(journalFile)) throw new IOException("can't replace journal");
+            journalFileBackup.delete();
+            journalLines = entries.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(out);
+            journalFileTemp.delete();
+            if (!journalFile.exists()) journalFileBackup.renameTo(journalFile);
+        }
+        journalWriter = openJournalWriter();
+    }
+
+    private Writer openJournalWriter() {
+        try {
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), ASCII));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void journal(final String line) {
+        if (journalWriter == null) return;
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            journalWriter.flush();
+            journalLines++;
+        } catch (IOException e) {
+            // keep working from memory, entries not in journal will be dropped on next open
+            e.printStackTrace();
+            closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+    }
+
+    private File entryFile(final String digest) {
+        return new File(cacheDir, digest);
+    }
+
+    private boolean isJournal(final File file) {
+        return file.equals(journalFile) || file.equals(journalFileTemp) || file.equals(journalFileBackup);
+    }
+
+    static String digest(final String key) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(Charset.forName("UTF-8")));
+            final char[] chars = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                chars[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+                chars[i * 2 + 1] = HEX[hash[i] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean isDigest(final String s) {
+        if (s.length() != 40) return false;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    private static boolean endsWithNewLine(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() == 0) return true;
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static boolean writeFile(final File file, final byte[] bytes) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, false);
+            out.write(bytes);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static byte[] readFile(final File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } catch (FileNotFoundException e) {
+            return null; // evicted or removed concurrently
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -31,12 +31,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Locale;
 
 public final class DiskCacheUtils {
 
@@ -174,10 +169,7 @@ public final class DiskCacheUtils {
     public void put(@NonNull final String key, byte[] value, final int saveTime) {
         if (value == null || value.length <= 0) return;
         if (saveTime >= 0) value = DiskCacheHelper.newByteArrayWithTime(saveTime, value);
-        File file = mDiskCacheManager.getFileBeforePut(key);
-        DiskCacheHelper.writeFileFromBytes(file, value);
-        mDiskCacheManager.updateModify(file);
-        mDiskCacheManager.put(file);
+        mDiskCacheManager.put(key, value);
     }
 
     /**
@@ -198,14 +190,12 @@ public final class DiskCacheUtils {
      * @return the bytes if cache exists or defaultValue otherwise
      */
     public byte[] getBytes(@NonNull final String key, final byte[] defaultValue) {
-        final File file = mDiskCacheManager.getFileIfExists(key);
-        if (file == null) return defaultValue;
-        byte[] data = DiskCacheHelper.readFile2Bytes(file);
+        byte[] data = mDiskCacheManager.get(key);
+        if (data == null) return defaultValue;
         if (DiskCacheHelper.isDue(data)) {
-            mDiskCacheManager.removeByKey(key);
+            mDiskCacheManager.remove(key);
             return defaultValue;
         }
-        mDiskCacheManager.updateModify(file);
         return DiskCacheHelper.getDataWithoutDueTime(data);
     }
 
@@ -533,7 +523,7 @@ public final class DiskCacheUtils {
      * @return {@code true}: success<br>{@code false}: fail
      */
     public boolean remove(@NonNull final String key) {
-        return mDiskCacheManager.removeByKey(key);
+        return mDiskCacheManager.remove(key);
     }
 
     /**
@@ -545,150 +535,6 @@ public final class DiskCacheUtils {
         return mDiskCacheManager.clear();
     }
 
-    private static final class DiskCacheManager {
-        private final AtomicLong cacheSize;
-        private final AtomicInteger cacheCount;
-        private final long sizeLimit;
-        private final int countLimit;
-        private final Map<File, Long> lastUsageDates
-                = Collections.synchronizedMap(new HashMap<File, Long>());
-        private final File cacheDir;
-        private final Thread mThread;
-
-        private DiskCacheManager(final File cacheDir, final long sizeLimit, final int countLimit) {
-            this.cacheDir = cacheDir;
-            this.sizeLimit = sizeLimit;
-            this.countLimit = countLimit;
-            cacheSize = new AtomicLong();
-            cacheCount = new AtomicInteger();
-            mThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    int size = 0;
-                    int count = 0;
-                    final File[] cachedFiles = cacheDir.listFiles();
-                    if (cachedFiles != null) {
-                        for (File cachedFile : cachedFiles) {
-                            size += cachedFile.length();
-                            count += 1;
-                            lastUsageDates.put(cachedFile, cachedFile.lastModified());
-                        }
-                        cacheSize.getAndAdd(size);
-                        cacheCount.getAndAdd(count);
-                    }
-                }
-            });
-            mThread.start();
-        }
-
-        private long getCacheSize() {
-            try {
-                mThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            return cacheSize.get();
-        }
-
-        private int getCacheCount() {
-            try {
-                mThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            return cacheCount.get();
-        }
-
-        private File getFileBeforePut(final String key) {
-            File file = new File(cacheDir, String.valueOf(key.hashCode()));
-            if (file.exists()) {
-                cacheCount.addAndGet(-1);
-                cacheSize.addAndGet(-file.length());
-            }
-            return file;
-        }
-
-        private File getFileIfExists(final String key) {
-            File file = new File(cacheDir, String.valueOf(key.hashCode()));
-            if (!file.exists()) return null;
-            return file;
-        }
-
-        private void put(final File file) {
-            cacheCount.addAndGet(1);
-            cacheSize.addAndGet(file.length());
-            while (cacheCount.get() > countLimit || cacheSize.get() > sizeLimit) {
-                cacheSize.addAndGet(-removeOldest());
-                cacheCount.addAndGet(-1);
-            }
-        }
-
-        private void updateModify(final File file) {
-            Long millis = System.currentTimeMillis();
-            file.setLastModified(millis);
-            lastUsageDates.put(file, millis);
-        }
-
-        private boolean removeByKey(final String key) {
-            File file = getFileIfExists(key);
-            if (file == null) return true;
-            if (!file.delete()) return false;
-            cacheSize.addAndGet(-file.length());
-            cacheCount.addAndGet(-1);
-            lastUsageDates.remove(file);
-            return true;
-        }
-
-        private boolean clear() {
-            File[] files = cacheDir.listFiles();
-            if (files == null || files.length <= 0) return true;
-            boolean flag = true;
-            for (File file : files) {
-                if (!file.delete()) {
-                    flag = false;
-                    continue;
-                }
-                cacheSize.addAndGet(-file.length());
-                cacheCount.addAndGet(-1);
-                lastUsageDates.remove(file);
-            }
-            if (flag) {
-                lastUsageDates.clear();
-                cacheSize.set(0);
-                cacheCount.set(0);
-            }
-            return flag;
-        }
-
-        /**
-         * Remove the oldest files.
-         *
-         * @return the size of oldest files, in bytes
-         */
-        private long removeOldest() {
-            if (lastUsageDates.isEmpty()) return 0;
-            Long oldestUsage = Long.MAX_VALUE;
-            File oldestFile = null;
-            Set<Map.Entry<File, Long>> entries = lastUsageDates.entrySet();
-            synchronized (lastUsageDates) {
-                for (Map.Entry<File, Long> entry : entries) {
-                    Long lastValueUsage = entry.getValue();
-                    if (lastValueUsage < oldestUsage) {
-                        oldestUsage = lastValueUsage;
-                        oldestFile = entry.getKey();
-                    }
-                }
-            }
-            if (oldestFile == null) return 0;
-            long fileSize = oldestFile.length();
-            if (oldestFile.delete()) {
-                lastUsageDates.remove(oldestFile);
-                return fileSize;
-            }
-            return 0;
-        }
-    }
-
     private static byte[] string2Bytes(final String string) {
         if (string == null) return null;
         return string.getBytes();
@@ -879,47 +725,5 @@ public final class DiskCacheUtils {
                     && data[12] == '$'
                     && data[13] == '_';
         }
-
-        private static void writeFileFromBytes(final File file, final byte[] bytes) {
-            FileChannel fc = null;
-            try {
-                fc = new FileOutputStream(file, false).getChannel();
-                fc.write(ByteBuffer.wrap(bytes));
-                fc.force(true);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (fc != null) {
-                        fc.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        private static byte[] readFile2Bytes(final File file) {
-            FileChannel fc = null;
-            try {
-                fc = new RandomAccessFile(file, "r").getChannel();
-                int size = (int) fc.size();
-                MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
-                byte[] data = new byte[size];
-                mbb.get(data, 0, size);
-                return data;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            } finally {
-                try {
-                    if (fc != null) {
-                        fc.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
     }
 }
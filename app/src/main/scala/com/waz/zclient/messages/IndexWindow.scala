@@ -18,7 +18,7 @@
 
 package com.waz.zclient.messages
 
-import com.waz.content.MessagesCursor
+import com.waz.content.{ConvTimeIndex, MessagesCursor}
 import com.waz.content.MessagesCursor.Entry
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
 import com.waz.model.MessageData
@@ -50,6 +50,7 @@ class IndexWindow(cursor: RecyclerCursor, notifier: RecyclerNotifier, size: Int
   private var totalCount = 0
 
   private var offset = 0
+  private var current = Option.empty[MessagesCursor]
 
   def shouldReload(position: Int): Boolean = offset > math.max(0, position - 25) || offset + data.length < math.min(cursor.count, position + 25)
 
@@ -82,6 +83,43 @@ class IndexWindow(cursor: RecyclerCursor, notifier: RecyclerNotifier, size: Int
         verbose(l"no need to notify about changes outside of window")
     }
 
+  /**
+    * Called when cursor is reloaded due to some data change, notifies recycler about it.
+    */
+  def cursorChanged(c: MessagesCursor): Unit = {
+    val changes = current.flatMap(c.changesSince)
+    current = Some(c)
+    changes match {
+      case Some(diffs) if diffs.size <= MaxIncrementalChanges && addsUp(diffs, c.size) => applyChanges(c, diffs)
+      case _ => diffWindow(c)
+    }
+  }
+
+  private def addsUp(diffs: Seq[ConvTimeIndex.IndexDiff], size: Int) =
+    diffs.foldLeft(totalCount) {
+      case (count, ConvTimeIndex.Inserted(_, n)) => count + n
+      case (count, ConvTimeIndex.Removed(_, n))  => count - n
+      case (count, _)                            => count
+    } == size
+
+  /**
+    * Cursors backed by the in-memory conversation index report exact position changes, no need to guess them.
+    */
+  private def applyChanges(c: MessagesCursor, diffs: Seq[ConvTimeIndex.IndexDiff]): Unit = {
+    diffs foreach {
+      case ConvTimeIndex.Inserted(index, count) => notifier.notifyItemRangeInserted(index, count)
+      case ConvTimeIndex.Removed(index, count)  => notifier.notifyItemRangeRemoved(index, count)
+      case ConvTimeIndex.Moved(from, to)        => notifier.notifyItemRangeChanged(math.min(from, to), math.abs(from - to) + 1)
+    }
+    totalCount = c.size
+    data =
+      if (c.size == 0) IndexedSeq.empty
+      else {
+        offset = math.min(offset, c.size - 1)
+        c.getEntries(offset, math.min(c.size - offset, 100)).toIndexedSeq
+      }
+  }
+
   /**
     * Reloads index and notifies recycler about data changes.
     * This is called when cursor is reloaded due to some data change.
@@ -97,7 +135,7 @@ class IndexWindow(cursor: RecyclerCursor, notifier: RecyclerNotifier, size: Int
     * We might want to improve that, although we rarely move messages, only in case of race conditions,
     * there is no intended use case for moving of message.
     */
-  def cursorChanged(c: MessagesCursor) = {
+  private def diffWindow(c: MessagesCursor): Unit = {
     val items = if (cursor.count > 0) c.getEntries(offset, math.min(cursor.count - offset, 100)).toIndexedSeq else IndexedSeq.empty
     val prevCount = totalCount
     val change = diff(data, items).result
@@ -133,6 +171,9 @@ class IndexWindow(cursor: RecyclerCursor, notifier: RecyclerNotifier, size: Int
 
 object IndexWindow {
 
+  // with more changes than that it's cheaper to just reload the whole list
+  val MaxIncrementalChanges = 10
+
   sealed trait Change {
     val index: Int
     val count: Int
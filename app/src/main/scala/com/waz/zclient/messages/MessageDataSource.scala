@@ -43,17 +43,21 @@ import com.waz.model.MessageData.MessageDataDao
 import com.waz.model.{MessageData, MessageId, RemoteInstant}
 import com.waz.service.messages.MessageAndLikes
 import com.waz.threading.Threading.Implicits.Background
+import com.waz.utils.PrefetchingPageLoader
 import com.waz.utils.events.{EventContext, Signal}
 import com.waz.utils.wrappers.DBCursor
 import com.waz.zclient.log.LogUI._
-import com.waz.zclient.messages.MessageDataSource.{MessageEntry, MessageEntryReader}
+import com.waz.zclient.messages.MessageDataSource.{MessageEntry, MessageEntryReader, PageSize}
 import com.waz.zclient.{Injectable, Injector}
 
 import scala.collection.JavaConverters._
-import scala.concurrent.duration._
-import scala.concurrent.{Await, Future}
+import scala.concurrent.Future
 import scala.util.{Failure, Success}
 
+/**
+  * Pages are loaded asynchronously by a [[PrefetchingPageLoader]], the paging callbacks are completed once they're
+  * ready, nothing here blocks the calling thread.
+  */
 class MessageDataSource(val cursor: Option[DBCursor])(implicit inj: Injector, ec: EventContext, cxt: Context)
   extends PositionalDataSource[MessageAndLikes]
     with Injectable
@@ -61,71 +65,59 @@ class MessageDataSource(val cursor: Option[DBCursor])(implicit inj: Injector, ec
 
   private val messageAndLikesStorage = inject[Signal[MessageAndLikesStorage]]
 
-  private def load(start: Int, count: Int): Future[Seq[MessageAndLikes]] = cursor match {
+  private val pages = new PrefetchingPageLoader[MessageAndLikes]("MessageDataSource", PageSize, totalCount, loadPage)
+
+  // called on the page loader's queue, the cursor is still shared with `positionForMessage`
+  private def loadPage(start: Int, count: Int): Future[Seq[MessageAndLikes]] = cursor match {
     case Some(c) if !c.isClosed =>
-      var msgData: Seq[MessageData] = Nil
-      synchronized {
+      val msgData = synchronized {
         val totalCount = c.getCount
-        val end = if (start + count < totalCount) start + count else totalCount
-        verbose(l"load case Some(c) suc start:$start,count:$count,end:$end,totalCount:$totalCount")
-        if (start >= end || totalCount <= 0) {
-          msgData
-        } else {
-          msgData = (start until end).flatMap { pos =>
-            if (pos < totalCount && c.moveToPosition(pos)) {
-              List(MessageEntry(c))
-            }
-            else
-              Nil
-          }
+        val end = math.min(start + count, totalCount)
+        verbose(l"loadPage start:$start,count:$count,end:$end,totalCount:$totalCount")
+        (start until end).flatMap { pos =>
+          if (c.moveToPosition(pos)) List(MessageEntry(c)) else Nil
         }
       }
       messageAndLikesStorage.head.flatMap(_.combineWithLikes(msgData))
     case _ =>
-      verbose(l"load case Some(c) fail start:$start,count:$count ")
+      verbose(l"loadPage on closed cursor start:$start,count:$count")
       Future.successful(Nil)
   }
 
+  /**
+    * Scroll velocity reported by the list, in items per second towards higher positions.
+    */
+  def reportScrollVelocity(itemsPerSecond: Float): Unit = pages.reportVelocity(itemsPerSecond)
+
   override def loadInitial(params: PositionalDataSource.LoadInitialParams, callback: PositionalDataSource.LoadInitialCallback[MessageAndLikes]): Unit = {
     verbose(l"loadInitial requestedStartPosition:${params.requestedStartPosition},requestedLoadSize:${params.requestedLoadSize},pageSize:${params.pageSize},placeholdersEnabled:${params.placeholdersEnabled}")
-    var total = totalCount
-    var start = PositionalDataSource.computeInitialLoadPosition(params, total)
-    var size = PositionalDataSource.computeInitialLoadSize(params, start, total)
-    val placeholdersEnabled = params.placeholdersEnabled
-    var listSize = 0
-    try {
-      val data = Await.result(load(start, size), 5.seconds)
-      listSize = if(null == data) 0 else data.size
-      verbose(l"loadInitial Await.result() total:$total,start:$start,size:$size, listSize:$listSize")
-      if (placeholdersEnabled) {
-        callback.onResult(data.asJava, start, total)
-      } else {
-        callback.onResult(data.asJava, start)
-      }
-    } catch {
-      case _: Throwable =>
-        verbose(l"loadInitial Throwable total:$total,start:$start,size:$size, listSize:$listSize")
-        total = totalCount
-        if (total > 0) {
-          val mPageSize = params.pageSize
-          if (start < 0) start = 0
-          if (listSize + start > total) size = total - start
-          if (start + listSize != total && listSize % mPageSize != 0) size = listSize + (mPageSize - listSize % mPageSize)
-          load(start, size).foreach {
-            data =>
-              if (placeholdersEnabled) {
-                callback.onResult(data.asJava, start, total)
-              } else {
-                callback.onResult(data.asJava, start)
-              }
-
-          }
-        }
+    val total = totalCount
+    val start = PositionalDataSource.computeInitialLoadPosition(params, total)
+    val size = PositionalDataSource.computeInitialLoadSize(params, start, total)
+
+    def deliver(data: Seq[MessageAndLikes]) =
+      if (params.placeholdersEnabled) callback.onResult(data.asJava, start, total)
+      else callback.onResult(data.asJava, start)
+
+    // paging accepts the initial result asynchronously, the list stays empty until it arrives
+    pages(start, size).recoverWith { case e =>
+      warn(l"loadInitial failed, retrying once", e)
+      pages(start, size)
+    }.onComplete {
+      case Success(data) if data.size == size || start + data.size == total =>
+        deliver(data)
+      case Success(data) =>
+        // some rows couldn't be loaded, paging requires a multiple of the page size, the rest comes with later ranges
+        warn(l"loadInitial got ${data.size} items, expected $size")
+        deliver(data.take(data.size - data.size % params.pageSize))
+      case Failure(e) =>
+        error(l"loadInitial error:", e)
+        deliver(Nil)
     }
   }
 
   override def loadRange(params: PositionalDataSource.LoadRangeParams, callback: PositionalDataSource.LoadRangeCallback[MessageAndLikes]): Unit = {
-    load(params.startPosition, params.loadSize).onComplete {
+    pages(params.startPosition, params.loadSize).onComplete {
       case Success(data) =>
         callback.onResult(data.asJava)
       case Failure(e) =>
@@ -156,6 +148,8 @@ class MessageDataSource(val cursor: Option[DBCursor])(implicit inj: Injector, ec
 }
 
 object MessageDataSource {
+  val PageSize = 50
+
   object MessageEntry {
     def apply(cursor: DBCursor): MessageData = MessageDataDao(cursor)
   }
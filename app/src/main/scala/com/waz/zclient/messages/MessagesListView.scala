@@ -94,6 +94,7 @@ class MessagesListView(context: Context, attrs: AttributeSet, style: Int)
   setAdapter(adapter)
 
   private var prevConv = Option.empty[ConvId]
+  private var dataSource = Option.empty[MessageDataSource]
   messagePagedListController.pagedListData.onUi { case (data, PagedListWrapper(pl), messageToReveal) =>
     val itemCount = adapter.getItemCount
     val isButtom = if (itemCount <= 0) true else !this.canScrollVertically(1)
@@ -102,6 +103,7 @@ class MessagesListView(context: Context, attrs: AttributeSet, style: Int)
     adapter.submitList(pl)
 
     val dataSource = pl.getDataSource.asInstanceOf[MessageDataSource]
+    this.dataSource = Some(dataSource)
     val unread = dataSource.positionForMessage(data.lastRead).filter(_ >= 0)
     val toReveal = messageToReveal.flatMap(mtr => dataSource.positionForMessage(mtr).filter(_ >= 0))
 
@@ -153,6 +155,7 @@ class MessagesListView(context: Context, attrs: AttributeSet, style: Int)
   addOnScrollListener(new OnScrollListener {
     override def onScrollStateChanged(recyclerView: RecyclerView, newState: Int): Unit = newState match {
       case RecyclerView.SCROLL_STATE_IDLE =>
+        reportScrollVelocity(0)
         val page = inject[INavigationController].getCurrentPage
         if (page == Page.MESSAGE_STREAM) {
           messagesController.scrolledToBottom ! (layoutManager.findLastCompletelyVisibleItemPosition() == 0)
@@ -188,6 +191,18 @@ class MessagesListView(context: Context, attrs: AttributeSet, style: Int)
 
   def scrollToBottom(): Unit = scrollController.onScrollToBottomRequested ! true
 
+  override def fling(velocityX: Int, velocityY: Int): Boolean = {
+    reportScrollVelocity(velocityY)
+    super.fling(velocityX, velocityY)
+  }
+
+  // lets the data source prefetch further ahead when the list is flung
+  private def reportScrollVelocity(pixelsPerSecond: Int): Unit = dataSource foreach { ds =>
+    val itemHeight = math.max(1, getHeight / math.max(1, getChildCount))
+    val itemsPerSecond = pixelsPerSecond.toFloat / itemHeight
+    ds.reportScrollVelocity(if (layoutManager.getReverseLayout) -itemsPerSecond else itemsPerSecond)
+  }
+
 
   private var slidingView:MessageView=null
   private var replyButtonProgress = 0.0f
@@ -104,6 +104,23 @@ class MessageNotificationsController(bundleEnabled: Boolean = Build.VERSION.SDK_
     } yield {}
   }
 
+  // bundled notifications are posted per conversation, so only the changed ones have to be rebuilt, the ones of
+  // changed conversations that aren't posted again are cancelled, and the summary too once nothing is left to show
+  override def onConversationNotificationsChanged(accountId: UserId, convs: Set[ConvId], nots: Set[NotificationData], all: => Set[NotificationData]): Future[Unit] =
+    if (bundleEnabled) {
+      val toShow = nots.filter(_.isShowNotify)
+      val posted = toShow.map { n =>
+        if (n.ephemeral) toEphemeralNotificationConvId(accountId, n.conv) else toNotificationConvId(accountId, n.conv)
+      }
+      val stale = convs.flatMap(c => Set(toNotificationConvId(accountId, c), toEphemeralNotificationConvId(accountId, c))) -- posted
+      for {
+        _ <- if (stale.nonEmpty) Threading.Ui(notificationManager.cancelNotifications(stale)).future else Future.successful({})
+        _ <- if (toShow.nonEmpty) onNotificationsChanged(accountId, toShow)
+             else if (all.exists(_.isShowNotify)) Future.successful({})
+             else onNotificationsChanged(accountId, Set.empty)
+      } yield {}
+    } else super.onConversationNotificationsChanged(accountId, convs, nots, all)
+
   def showAppNotification(title: ResString, body: ResString): Future[Unit] = {
     val contentTitle = SpannableWrapper(title, List(Span(Span.StyleSpanBold, Span.HeaderRange)))
     val contentText = SpannableWrapper(
@@ -0,0 +1,302 @@
+/**
+ * Wire
+ * Copyright (C) 2018 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jsy.common.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheManagerTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("disk_cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void keysWithSameHashCodeDontOverwriteEachOther() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        cache.put("Aa", bytes("first"));
+        cache.put("BB", bytes("second"));
+
+        assertArrayEquals(bytes("first"), cache.get("Aa"));
+        assertArrayEquals(bytes("second"), cache.get("BB"));
+        assertEquals(2, cache.getCacheCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntry() {
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, 3);
+        cache.put("a", bytes("a"));
+        cache.put("b", bytes("b"));
+        cache.put("c", bytes("c"));
+        cache.get("a");
+        cache.put("d", bytes("d"));
+
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.getCacheCount());
+        assertFalse(new File(dir, DiskCacheManager.digest("b")).exists());
+    }
+
+    @Test
+    public void evictsUntilSizeFitsLimit() {
+        DiskCacheManager cache = new DiskCacheManager(dir, 10, Integer.MAX_VALUE);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        cache.put("a", new byte[2]);
+        cache.put("c", new byte[5]);
+
+        assertNull(cache.get("b"));
+        assertEquals(7, cache.getCacheSize());
+        assertEquals(2, cache.getCacheCount());
+    }
+
+    @Test
+    public void restoresEntriesAndUsageOrderFromJournal() {
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, 4);
+        cache.put("a", bytes("a"));
+        cache.put("b", bytes("bb"));
+        cache.put("c", bytes("ccc"));
+        cache.put("x", bytes("x"));
+        cache.remove("x");
+        cache.get("a");
+        cache.close();
+
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, 3);
+        assertEquals(3, cache.getCacheCount());
+        assertEquals(6, cache.getCacheSize());
+        cache.put("d", bytes("d"));
+        assertNull(cache.get("b"));
+        assertArrayEquals(bytes("a"), cache.get("a"));
+        assertArrayEquals(bytes("ccc"), cache.get("c"));
+    }
+
+    @Test
+    public void ignoresIncompleteJournalLineAfterCrash() throws IOException {
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        cache.put("a", bytes("a"));
+        cache.put("b", bytes("b"));
+        // no close, process died while appending to journal
+        append(new File(dir, DiskCacheManager.JOURNAL_FILE), "REMOVE " + DiskCacheManager.digest("a").substring(0, 10));
+
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertArrayEquals(bytes("a"), cache.get("a"));
+        cache.put("c", bytes("c"));
+        cache.close();
+
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(3, cache.getCacheCount());
+        assertArrayEquals(bytes("c"), cache.get("c"));
+    }
+
+    @Test
+    public void dropsInterruptedEditsAndMissingFiles() throws IOException {
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        cache.put("a", bytes("a"));
+        cache.put("b", bytes("b"));
+        cache.put("c", bytes("c"));
+        cache.close();
+
+        String digest = DiskCacheManager.digest("d");
+        write(new File(dir, digest + ".tmp"), "partial");       // crashed while writing
+        write(new File(dir, digest), "renamed, not in journal"); // crashed before journaling
+        write(new File(dir, DiskCacheManager.digest("b")), "truncated");
+        assertTrue(new File(dir, DiskCacheManager.digest("c")).delete());
+
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(1, cache.getCacheCount());
+        assertArrayEquals(bytes("a"), cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNull(cache.get("d"));
+        assertFalse(new File(dir, digest).exists());
+        assertFalse(new File(dir, digest + ".tmp").exists());
+    }
+
+    @Test
+    public void restoresBackupJournalWhenCompactionWasInterrupted() {
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        cache.put("a", bytes("a"));
+        cache.close();
+        File journal = new File(dir, DiskCacheManager.JOURNAL_FILE);
+        assertTrue(journal.renameTo(new File(dir, DiskCacheManager.JOURNAL_FILE_BACKUP)));
+
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertArrayEquals(bytes("a"), cache.get("a"));
+        assertTrue(journal.exists());
+        assertFalse(new File(dir, DiskCacheManager.JOURNAL_FILE_BACKUP).exists());
+    }
+
+    @Test
+    public void compactsRedundantJournal() {
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        cache.put("a", bytes("a"));
+        cache.put("b", bytes("b"));
+        for (int i = 0; i < DiskCacheManager.COMPACT_THRESHOLD * 2; i++) {
+            cache.get(i % 2 == 0 ? "a" : "b");
+        }
+        cache.get("a");
+        assertTrue(new File(dir, DiskCacheManager.JOURNAL_FILE).length() < DiskCacheManager.COMPACT_THRESHOLD * 46);
+        cache.close();
+
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, 2);
+        cache.put("c", bytes("c"));
+        assertNull(cache.get("b"));
+        assertArrayEquals(bytes("a"), cache.get("a"));
+    }
+
+    @Test
+    public void clearRemovesAllEntries() {
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        cache.put("a", bytes("a"));
+        cache.put("b", bytes("b"));
+        assertTrue(cache.clear());
+        assertEquals(0, cache.getCacheCount());
+        assertEquals(0, cache.getCacheSize());
+        cache.close();
+
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(0, cache.getCacheCount());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void concurrentPutsAndGetsKeepIndexConsistent() throws InterruptedException {
+        final DiskCacheManager cache = new DiskCacheManager(dir, 64 * 100, Integer.MAX_VALUE);
+        final byte[][] values = new byte[4][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new byte[64];
+            Arrays.fill(values[i], (byte) i);
+        }
+        final AtomicBoolean torn = new AtomicBoolean();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        String key = "key" + ((i * 31 + seed) % 150);
+                        if (i % 3 == 0) {
+                            byte[] value = cache.get(key);
+                            if (value != null && !isOneOf(value, values)) torn.set(true);
+                        } else {
+                            cache.put(key, values[(i + seed) % values.length]);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertFalse(torn.get());
+        assertEquals(100, cache.getCacheCount());
+        assertEquals(64 * 100, cache.getCacheSize());
+        cache.close();
+
+        DiskCacheManager reopened = new DiskCacheManager(dir, 64 * 100, Integer.MAX_VALUE);
+        assertEquals(100, reopened.getCacheCount());
+        assertEquals(101, dir.listFiles().length); // entries and the journal, no temp files left
+    }
+
+    @Test
+    public void benchmarkFiftyThousandEntries() {
+        int count = 50000;
+        int limit = 40000;
+        byte[] value = new byte[64];
+        DiskCacheManager cache = new DiskCacheManager(dir, Long.MAX_VALUE, limit);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) cache.put("key" + i, value);
+        long puts = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = count - 1; i >= 0; i--) cache.get("key" + i);
+        long gets = System.nanoTime() - start;
+        cache.close();
+
+        start = System.nanoTime();
+        cache = new DiskCacheManager(dir, Long.MAX_VALUE, limit);
+        assertEquals(limit, cache.getCacheCount());
+        long open = System.nanoTime() - start;
+
+        assertNull(cache.get("key0"));
+        assertArrayEquals(value, cache.get("key" + (count - 1)));
+        System.out.println(String.format("%d entries, put: %d us/op, get: %d us/op, open: %d ms",
+                count, puts / count / 1000, gets / count / 1000, open / 1000000));
+    }
+
+    private static boolean isOneOf(byte[] value, byte[][] values) {
+        for (byte[] v : values) {
+            if (Arrays.equals(v, value)) return true;
+        }
+        return false;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, false);
+        try {
+            out.write(bytes(content));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void append(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes(content));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) deleteRecursively(f);
+        }
+        file.delete();
+    }
+}
@@ -1,13 +1,5 @@
 TOP_DIR := $(call my-dir)
 LOCAL_PATH := $(call my-dir)
-include $(CLEAR_VARS)
-
-LOCAL_MODULE       := lzw-decoder
-LOCAL_SRC_FILES    := LzwDecoder.cpp
-LOCAL_LDLIBS       := -llog
-LOCAL_CFLAGS       := -O2 -Wall -pedantic -Wno-variadic-macros -fstack-protector-all
-include $(BUILD_SHARED_LIBRARY)
-
 include $(CLEAR_VARS)
 LOCAL_MODULE    := randombytes
 LOCAL_SRC_FILES := randombytes.c
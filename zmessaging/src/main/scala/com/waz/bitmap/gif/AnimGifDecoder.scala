@@ -26,19 +26,31 @@ import scala.concurrent.duration.Duration
 /**
  * Decodes gif animation frames.
  *
- * TODO: consider keeping pixels data in native buffer (especially for swap pixels)
- * TODO: maybe image decoder could save pixels directly to current image (line bye line), would not need pixels buffer
+ * Frames are composed on a pure JVM `GifCanvas`. When `cacheKey` is set, composed frames are shared through
+ * `frameCache` with other decoders showing the same gif, a cached frame is only copied to `currentImage`.
+ * Gifs which don't fit in the cache as a whole are not cached at all.
+ * On a cache miss the canvas is brought back in sync by replaying frames since the start of the loop.
+ *
  * @param gif
+ * @param cacheKey identifies the gif in frame cache, frames are not cached if None
  */
-class AnimGifDecoder(gif: Gif) extends DerivedLogTag {
+class AnimGifDecoder(gif: Gif, cacheKey: Option[String] = None, frameCache: GifFrameCache = GifFrameCache.shared) extends DerivedLogTag {
   val framesCount = gif.frames.length
   var frameIndex = -1
   var loopCounter = 0
   var frameDirty = false
 
-  var currentImage: Bitmap = _
+  lazy val currentImage: Bitmap = Bitmap.createBitmap(gif.width, gif.height, Bitmap.Config.ARGB_8888)
+
+  val canvas = new GifCanvas(gif)
 
-  val decoder = new LzwDecoder(gif)
+  // index of last frame drawn and disposed on canvas, canvas is ready to draw the next one
+  private var composed = -1
+  // frame drawn on canvas but not disposed yet, it has to be shown first
+  private var pending = -1
+  private var pixels: Array[Int] = canvas.pixels
+
+  private val frameCacheKey = cacheKey.filter(_ => frameCache.canHold(gif.width, gif.height, framesCount))
 
   /**
    * Returns a delay to wait before displaying next frame.
@@ -66,24 +78,52 @@ class AnimGifDecoder(gif: Gif) extends DerivedLogTag {
   def advanceNextFrame(): Unit = {
     if (frameDirty) warn(l"should call getCurrentFrame before advancing to next frame")
     if (!frameDirty && advance()) {
-      val frame = gif.frames(frameIndex)
-      if (frameIndex == 0) decoder.clear()
-      decoder.decode(frame)
+      pixels = frameCacheKey.flatMap(frameCache.get(_, frameIndex)) match {
+        case Some(cached) => cached
+        case None =>
+          render(frameIndex)
+          frameCacheKey.foreach(frameCache.put(_, frameIndex, canvas.pixels))
+          canvas.pixels
+      }
       frameDirty = true
     }
   }
 
+  private def render(index: Int): Unit = {
+    if (composed != index - 1 || index == 0) {
+      canvas.clear()
+      var i = 0
+      while (i < index) {
+        val frame = gif.frames(i)
+        canvas.decode(frame)
+        canvas.dispose(frame)
+        i += 1
+      }
+    }
+    canvas.decode(gif.frames(index))
+    pending = index
+  }
+
   /**
    * Returns current frame image.
    * @return Bitmap representation of frame
    */
   def getCurrentFrame: Bitmap = {
     if (frameDirty) {
-      currentImage = decoder.updateImage(gif.frames(frameIndex))
+      currentImage.setPixels(pixels, 0, gif.width, 0, 0, gif.width, gif.height)
+      if (pending == frameIndex) {
+        canvas.dispose(gif.frames(frameIndex))
+        composed = frameIndex
+        pending = -1
+      }
       frameDirty = false
     }
     currentImage
   }
 
-  def destroy() = decoder.destroy()
+  def destroy() = {
+    pixels = canvas.pixels
+    composed = -1
+    pending = -1
+  }
 }
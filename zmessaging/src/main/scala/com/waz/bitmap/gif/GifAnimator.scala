@@ -25,7 +25,7 @@ import com.waz.threading.{CancellableFuture, Threading}
 import scala.concurrent.Promise
 import scala.concurrent.duration.{FiniteDuration, _}
 
-class GifAnimator(gif: Gif, reserveFrameMemory: () => Unit, frameCallback: Bitmap => Unit) {
+class GifAnimator(gif: Gif, reserveFrameMemory: () => Unit, frameCallback: Bitmap => Unit, cacheKey: Option[String] = None) {
   private implicit val dispatcher = GifAnimator.dispatcher
 
   def run(): CancellableFuture[Unit] = {
@@ -33,7 +33,7 @@ class GifAnimator(gif: Gif, reserveFrameMemory: () => Unit, frameCallback: Bitma
     var frameFuture = CancellableFuture.successful({})
 
     dispatcher {
-      nextFrame(new AnimGifDecoder(gif))
+      nextFrame(new AnimGifDecoder(gif, cacheKey))
     }
 
     def done(decoder: AnimGifDecoder) = {
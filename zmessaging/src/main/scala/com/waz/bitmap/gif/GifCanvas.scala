@@ -0,0 +1,113 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.bitmap.gif
+
+import com.waz.bitmap.gif.Gif.{Bounds, Disposal, Frame}
+
+/**
+  * Composes gif frames on a full size canvas of ARGB pixels, without any native or Android code.
+  *
+  * `decode` draws the next frame over the current canvas, `dispose` then prepares the canvas for the frame after it.
+  * All buffers are allocated once, per gif.
+  */
+class GifCanvas(gif: Gif) {
+  import GifCanvas._
+
+  val width = gif.width
+  val height = gif.height
+
+  val pixels = new Array[Int](width * height)
+
+  val bgColor = if (gif.gct.isEmpty) Transparent else gif.gct(gif.bgIndex)
+
+  private val lzw = new JvmLzwDecoder(width * height)
+  private val colors = new Array[Int](256)
+
+  // canvas before the current frame, only used when its disposal is set to PREVIOUS
+  private lazy val previous = new Array[Int](width * height)
+
+  def clear(): Unit = fill(Bounds(0, 0, width, height), bgColor)
+
+  def decode(frame: Frame): Unit = {
+    val table = if (frame.lct.isEmpty) gif.gct else frame.lct
+    System.arraycopy(table, 0, colors, 0, math.min(table.length, colors.length))
+    if (table.length < colors.length) java.util.Arrays.fill(colors, table.length, colors.length, Transparent)
+
+    if (frame.dispose == Disposal.Previous) System.arraycopy(pixels, 0, previous, 0, pixels.length)
+
+    val b = frame.bounds
+    val decoded = lzw.decode(gif.data(frame), b.w * b.h)
+    draw(frame, decoded)
+  }
+
+  def dispose(frame: Frame): Unit = frame.dispose match {
+    case Disposal.Previous   => System.arraycopy(previous, 0, pixels, 0, pixels.length)
+    case Disposal.Background => fill(frame.bounds, if (frame.transparency) Transparent else bgColor)
+    case _                   => // leave the canvas as it is
+  }
+
+  private def draw(frame: Frame, decoded: Int): Unit = {
+    val b = frame.bounds
+    val indices = lzw.indices
+    val transIndex = if (frame.transparency) frame.transIndex else -1
+
+    var pass = 1
+    var inc = 8
+    var iline = 0
+    var i = 0
+    while (i < b.h && i * b.w < decoded) {
+      var line = i
+      if (frame.interlace) {
+        while (iline >= b.h && pass < 4) {
+          pass += 1
+          pass match {
+            case 2 => iline = 4
+            case 3 => iline = 2; inc = 4
+            case _ => iline = 1; inc = 2
+          }
+        }
+        line = iline
+        iline += inc
+      }
+
+      var src = i * b.w
+      val end = math.min(src + b.w, decoded)
+      var dst = (b.y + line) * width + b.x
+      while (src < end) {
+        val index = indices(src) & 0xff
+        if (index != transIndex) pixels(dst) = colors(index)
+        src += 1
+        dst += 1
+      }
+      i += 1
+    }
+  }
+
+  private def fill(b: Bounds, color: Int): Unit = {
+    var y = b.y
+    while (y < b.y + b.h) {
+      val start = y * width + b.x
+      java.util.Arrays.fill(pixels, start, start + b.w, color)
+      y += 1
+    }
+  }
+}
+
+object GifCanvas {
+  val Transparent = 0
+}
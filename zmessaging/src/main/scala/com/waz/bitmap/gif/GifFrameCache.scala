@@ -0,0 +1,99 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.bitmap.gif
+
+import java.util.{LinkedHashMap => JLinkedHashMap}
+
+/**
+  * Memory bounded LRU cache of composed gif frames (ARGB pixels), keyed by gif and frame index.
+  *
+  * Views showing the same gif share decoded frames through `GifFrameCache.shared`, so only the first
+  * animator decodes a frame, the others just copy it to their bitmaps.
+  *
+  * @param maxBytes memory budget, each frame costs width * height * 4 bytes
+  */
+class GifFrameCache(val maxBytes: Long) {
+  import GifFrameCache._
+
+  private val frames = new JLinkedHashMap[Key, Array[Int]](16, .75f, true)
+  private var bytes = 0L
+
+  /**
+    * Animators go through frames in a loop, so with LRU eviction a gif whose frames don't all fit in the budget
+    * would never get a hit, it would only pay for copying every frame and evict everything else.
+    */
+  def canHold(width: Int, height: Int, frames: Int): Boolean =
+    width.toLong * height * 4 * frames <= maxBytes
+
+  def get(gif: String, frame: Int): Option[Array[Int]] = synchronized {
+    Option(frames.get(Key(gif, frame)))
+  }
+
+  /**
+    * Stores a copy of given pixels, frames bigger than the whole budget are not cached.
+    */
+  def put(gif: String, frame: Int, pixels: Array[Int]): Unit = {
+    val size = sizeOf(pixels)
+    if (size <= maxBytes) {
+      val copy = pixels.clone()
+      synchronized {
+        Option(frames.put(Key(gif, frame), copy)) foreach { prev => bytes -= sizeOf(prev) }
+        bytes += size
+        evict()
+      }
+    }
+  }
+
+  def remove(gif: String): Unit = synchronized {
+    val it = frames.entrySet().iterator()
+    while (it.hasNext) {
+      val e = it.next()
+      if (e.getKey.gif == gif) {
+        bytes -= sizeOf(e.getValue)
+        it.remove()
+      }
+    }
+  }
+
+  def clear(): Unit = synchronized {
+    frames.clear()
+    bytes = 0
+  }
+
+  def size: Int = synchronized(frames.size)
+
+  def usedBytes: Long = synchronized(bytes)
+
+  private def evict(): Unit = {
+    val it = frames.values().iterator()
+    while (bytes > maxBytes && it.hasNext) {
+      bytes -= sizeOf(it.next())
+      it.remove()
+    }
+  }
+}
+
+object GifFrameCache {
+  val MaxSharedBytes = 16L * 1024 * 1024
+
+  private case class Key(gif: String, frame: Int)
+
+  private def sizeOf(pixels: Array[Int]) = pixels.length * 4L
+
+  lazy val shared = new GifFrameCache(math.min(Runtime.getRuntime.maxMemory() / 16, MaxSharedBytes))
+}
@@ -0,0 +1,153 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.bitmap.gif
+
+import java.io.IOException
+import java.nio.BufferUnderflowException
+
+/**
+  * Pure JVM LZW decoder for gif image data.
+  *
+  * All tables are allocated once and reused for every frame, decoding a frame doesn't allocate. Decoded color indices
+  * are stored in `indices`, row by row as they appear in the data (interlaced rows are not reordered here).
+  *
+  * @param maxPixels size of the largest frame which will be decoded
+  */
+final class JvmLzwDecoder(maxPixels: Int) {
+  import JvmLzwDecoder._
+
+  val indices = new Array[Byte](maxPixels)
+
+  private val prefix = new Array[Short](MaxCodes)
+  private val suffix = new Array[Byte](MaxCodes)
+  private val stack  = new Array[Byte](MaxCodes + 1)
+
+  /**
+    * Decodes image data of a frame: the minimum code size followed by data sub-blocks.
+    *
+    * @return number of decoded pixels, less than `count` if the data is truncated or corrupt
+    */
+  def decode(data: DataSource, count: Int): Int = {
+    val npix = math.min(count, maxPixels)
+    val minCodeSize = data.read()
+    if (minCodeSize < 1 || minCodeSize > MaxCodeBits - 1) return 0
+
+    val clear = 1 << minCodeSize
+    val eoi = clear + 1
+    var available = clear + 2
+    var codeSize = minCodeSize + 1
+    var codeMask = (1 << codeSize) - 1
+    var oldCode = -1
+    var first = 0
+
+    var code = 0
+    while (code < clear) {
+      prefix(code) = 0
+      suffix(code) = code.toByte
+      code += 1
+    }
+
+    val block = data.block
+    var blockLen = 0
+    var bi = 0
+    var datum = 0
+    var bits = 0
+    var top = 0
+    var pi = 0
+    var done = false
+
+    try {
+      while (!done && pi < npix) {
+        if (bits < codeSize) {
+          if (bi == blockLen) {
+            blockLen = data.readBlock()
+            bi = 0
+          }
+          if (blockLen <= 0) done = true
+          else {
+            datum |= (block(bi) & 0xff) << bits
+            bits += 8
+            bi += 1
+          }
+        } else {
+          code = datum & codeMask
+          datum >>>= codeSize
+          bits -= codeSize
+
+          if (code == clear) {
+            codeSize = minCodeSize + 1
+            codeMask = (1 << codeSize) - 1
+            available = clear + 2
+            oldCode = -1
+          } else if (code == eoi || code > available) {
+            done = true
+          } else if (oldCode == -1) {
+            if (code >= clear) done = true
+            else {
+              indices(pi) = suffix(code)
+              pi += 1
+              oldCode = code
+              first = code
+            }
+          } else {
+            var c = code
+            if (code == available) { // the code being defined by this very step: old string plus its first byte
+              stack(top) = first.toByte
+              top += 1
+              c = oldCode
+            }
+            while (c >= clear) {
+              stack(top) = suffix(c)
+              top += 1
+              c = prefix(c)
+            }
+            first = suffix(c) & 0xff
+            indices(pi) = first.toByte
+            pi += 1
+            while (top > 0 && pi < npix) {
+              top -= 1
+              indices(pi) = stack(top)
+              pi += 1
+            }
+            top = 0
+
+            if (available < MaxCodes) {
+              prefix(available) = oldCode.toShort
+              suffix(available) = first.toByte
+              available += 1
+              if ((available & codeMask) == 0 && available < MaxCodes) {
+                codeSize += 1
+                codeMask += available
+              }
+            }
+            oldCode = code
+          }
+        }
+      }
+    } catch {
+      // truncated data, keep what was decoded so far
+      case _: BufferUnderflowException | _: IOException =>
+    }
+    pi
+  }
+}
+
+object JvmLzwDecoder {
+  val MaxCodeBits = 12
+  val MaxCodes = 1 << MaxCodeBits
+}
@@ -27,7 +27,8 @@ import com.waz.model._
 import com.waz.service.tracking.TrackingService
 import com.waz.threading.{CancellableFuture, SerialDispatchQueue}
 import com.waz.utils._
-import com.waz.utils.events.{EventStream, RefreshingSignal, Signal, SourceSignal}
+import com.waz.db.CursorIterator
+import com.waz.utils.events._
 
 import scala.collection.mutable
 import scala.concurrent.Future
@@ -75,7 +76,40 @@ class ConvMessagesIndex(convId: ConvId, messages: MessagesStorageImpl, selfUserI
       unread <- Signal.future(messages.countUnread(convId, time))
     } yield unread
 
-    val messagesCursor: Signal[MessagesCursor] = new RefreshingSignal(loadCursor, indexChanged.filter(_.orderChanged))
+    val messagesCursor: Signal[MessagesCursor] =
+      if (filter.isDefined) new RefreshingSignal(loadCursor, indexChanged.filter(_.orderChanged))
+      else indexedCursor
+  }
+
+  // in-memory time index backing the unfiltered cursor, only maintained while that cursor is observed
+  // all of this state is accessed on the dispatcher only
+  private lazy val indexedCursor = new IndexedCursorSignal
+  private var timeIndex = Option.empty[ConvTimeIndex]
+  private var lastCursor = Option.empty[MessagesCursor]
+  private var loadingId = 0
+  private var loading = Option.empty[Vector[Change]] // changes received while the index is being loaded
+
+  private class IndexedCursorSignal extends SourceSignal[MessagesCursor] {
+    private var subscription = Option.empty[Subscription]
+
+    override protected def onWire(): Unit = {
+      super.onWire()
+      Future {
+        subscription = Some(indexChanged.on(dispatcher)(onIndexChanged)(EventContext.Global))
+        reloadTimeIndex()
+      }
+    }
+
+    override protected def onUnwire(): Unit = {
+      super.onUnwire()
+      Future {
+        subscription.foreach(_.unsubscribe())
+        subscription = None
+        timeIndex = None
+        lastCursor = None
+        loading = None
+      }
+    }
   }
 
   import sources._
@@ -109,21 +143,93 @@ class ConvMessagesIndex(convId: ConvId, messages: MessagesStorageImpl, selfUserI
   private[waz] def loadCursor = CancellableFuture.lift(init.flatMap { _ =>
     verbose(l"loadCursor for $convId")
     storage.read { implicit db =>
-      val (cursor, order) = filter match {
+      val (entries, order) = filter match {
         //TODO: this ignores other filter types if the content query is on. they should all be considered...
-        case Some(MessageFilter(_, Some(query), _)) => (MessageContentIndexDao.findContent(query, Some(convId)), MessagesCursor.Descending)
-        case Some(MessageFilter(Some(types), _, limit)) => (MessageDataDao.msgIndexCursorFiltered(convId, types, limit), MessagesCursor.Descending)
-        case _ => (MessageDataDao.msgIndexCursor(convId), MessagesCursor.Ascending)
+        case Some(MessageFilter(_, Some(query), _)) =>
+          val hits = MessageContentIndexDao.findRanked(query, Some(convId), MessageContentIndex.MaxSearchResults)
+          (new MessagesCursor.RankedEntries(hits.map(h => MessagesCursor.Entry(h.messageId, h.time)).toVector), MessagesCursor.Descending)
+        case Some(MessageFilter(Some(types), _, limit)) =>
+          (new MessagesCursor.CursorEntries(MessageDataDao.msgIndexCursorFiltered(convId, types, limit)), MessagesCursor.Descending)
+        case _ =>
+          (new MessagesCursor.CursorEntries(MessageDataDao.msgIndexCursor(convId)), MessagesCursor.Ascending)
       }
       val time = lastReadTime.currentValue.getOrElse(RemoteInstant.Epoch)
       val readMessagesCount = MessageDataDao.countAtLeastAsOld(convId, time).toInt
       verbose(l"index of $time = $readMessagesCount")
-      (cursor, order, time, math.max(0, readMessagesCount - 1))
-    }.map { case (cursor, order, time, lastReadIndex) =>
-      new MessagesCursor(cursor, lastReadIndex, time, msgAndLikes, tracking)(order)
+      (entries, order, time, math.max(0, readMessagesCount - 1))
+    }.map { case (entries, order, time, lastReadIndex) =>
+      new MessagesCursor(entries, lastReadIndex, time, msgAndLikes, tracking, new MessagesCursor.Caches)(order)
     }
   })
 
+  private def reloadTimeIndex(): Unit = {
+    loadingId += 1
+    val id = loadingId
+    loading = Some(Vector.empty)
+    timeIndex = None
+
+    init.flatMap { _ =>
+      storage.read { implicit db =>
+        logTime(l"Loading time index for: $convId") {
+          val cursor = MessageDataDao.msgIndexCursor(convId)
+          try ConvTimeIndex(new CursorIterator(cursor)(MessagesCursor.Entry.EntryReader), cursor.getCount) finally cursor.close()
+        }
+      }
+    }.map { index =>
+      if (id == loadingId) loading foreach { buffered =>
+        loading = None
+        // the index may or may not include the buffered changes already, applying them again is harmless
+        if (buffered forall (applyChange(index, _))) {
+          timeIndex = Some(index)
+          publishCursor(index)
+        } else reloadTimeIndex()
+      }
+    }.recoverWithLog()
+  }
+
+  private def onIndexChanged(change: Change): Unit =
+    if (change.orderChanged) loading match {
+      case Some(buffered) => loading = Some(buffered :+ change)
+      case None =>
+        timeIndex foreach { index =>
+          if (!applyChange(index, change)) reloadTimeIndex()
+          else if (index.hasChanges) publishCursor(index)
+        }
+    }
+
+  /**
+    * Patches the index, returns false if the change can not be applied incrementally.
+    */
+  private def applyChange(index: ConvTimeIndex, change: Change): Boolean = change match {
+    case Added(msgs) =>
+      msgs foreach { m => index.insert(m.id, m.time) }
+      true
+    case Removed(msg) =>
+      index.remove(msg.id, msg.time)
+      true
+    case RemovedOlder(upTo) =>
+      index.removeUpTo(upTo)
+      true
+    case Updated(updates) =>
+      updates foreach { case (prev, updated) => index.move(updated.id, prev.time, updated.time) }
+      true
+    case RemovedContentType(_) =>
+      false
+  }
+
+  private def publishCursor(index: ConvTimeIndex): Unit = {
+    val snapshot = index.snapshot()
+    val time = lastReadTime.currentValue.getOrElse(RemoteInstant.Epoch)
+    val lastReadIndex = math.max(0, snapshot.countUpTo(time) - 1)
+    val cursor = lastCursor.fold {
+      new MessagesCursor(snapshot, lastReadIndex, time, msgAndLikes, tracking, new MessagesCursor.Caches)(MessagesCursor.Ascending)
+    } {
+      _.withEntries(snapshot, lastReadIndex, time)
+    }
+    lastCursor = Some(cursor)
+    indexedCursor ! cursor
+  }
+
   def getLastMessage = init.map { _ => signals.lastMessage.currentValue.flatten }
 
   def getLastSentMessage = init.map { _ => signals.lastSentMessage.currentValue.flatten }
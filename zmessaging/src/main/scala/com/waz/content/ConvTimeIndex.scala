@@ -0,0 +1,229 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.content
+
+import java.util.Arrays
+
+import com.waz.content.ConvTimeIndex._
+import com.waz.content.MessagesCursor.Entry
+import com.waz.model.{MessageId, RemoteInstant}
+
+import scala.collection.mutable
+
+/**
+  * Time ordered index of all messages in a single conversation, kept as parallel primitive arrays.
+  *
+  * The index is patched in place as messages are added, removed or re-timed, and every change is recorded as an
+  * [[IndexDiff]] against the previous snapshot. Snapshots are immutable and safe to hand over to other threads: the
+  * backing arrays are shared until a mutation would touch a slot visible to a published snapshot, at which point they
+  * are copied. Appending the newest message - by far the most common change - never copies.
+  *
+  * The index itself is not thread safe, it's meant to be owned by a single serial dispatch queue.
+  */
+final class ConvTimeIndex(initialCapacity: Int = 64) {
+  private var times = new Array[Long](math.max(initialCapacity, 16))
+  private var ids = new Array[String](math.max(initialCapacity, 16))
+  private var count = 0
+  private var shared = false // slots [0, count) are visible to a published snapshot
+
+  private var version = 0L
+  private val pending = new mutable.ArrayBuffer[IndexDiff]
+
+  def size: Int = count
+
+  /**
+    * Inserts given message, returns its position or -1 if it was already indexed.
+    */
+  def insert(id: MessageId, time: RemoteInstant): Int = {
+    val millis = time.toEpochMilli
+    val pos = search(millis, id.str)
+    if (pos >= 0) -1
+    else {
+      val at = -pos - 1
+      if (at < count) unshare()
+      ensureCapacity(count + 1)
+      if (at < count) {
+        System.arraycopy(times, at, times, at + 1, count - at)
+        System.arraycopy(ids, at, ids, at + 1, count - at)
+      }
+      times(at) = millis
+      ids(at) = id.str
+      count += 1
+      record(Inserted(at, 1))
+      at
+    }
+  }
+
+  /**
+    * Removes given message, returns its previous position or -1 if it wasn't indexed.
+    * Falls back to a linear scan if the message isn't found at given time, in case the caller had a stale copy.
+    */
+  def remove(id: MessageId, time: RemoteInstant): Int = {
+    val pos = search(time.toEpochMilli, id.str) match {
+      case p if p >= 0 => p
+      case _ => linearIndexOf(id.str)
+    }
+    if (pos < 0) -1
+    else {
+      unshare()
+      System.arraycopy(times, pos + 1, times, pos, count - pos - 1)
+      System.arraycopy(ids, pos + 1, ids, pos, count - pos - 1)
+      count -= 1
+      ids(count) = null
+      record(Removed(pos, 1))
+      pos
+    }
+  }
+
+  /**
+    * Changes the time of given message, recording a single move instead of a remove and insert.
+    */
+  def move(id: MessageId, from: RemoteInstant, to: RemoteInstant): Unit =
+    if (from != to) {
+      val prev = remove(id, from)
+      val next = insert(id, to)
+      if (prev >= 0 && next >= 0) {
+        pending.remove(pending.size - 2, 2)
+        if (prev != next) pending += Moved(prev, next)
+      }
+    }
+
+  /**
+    * Removes all messages not newer than given time, returns number of removed entries.
+    */
+  def removeUpTo(time: RemoteInstant): Int = {
+    val removed = upperBound(time.toEpochMilli)
+    if (removed > 0) {
+      unshare()
+      System.arraycopy(times, removed, times, 0, count - removed)
+      System.arraycopy(ids, removed, ids, 0, count - removed)
+      Arrays.fill(ids.asInstanceOf[Array[AnyRef]], count - removed, count, null)
+      count -= removed
+      record(Removed(0, removed))
+    }
+    removed
+  }
+
+  def indexOf(id: MessageId, time: RemoteInstant): Int = math.max(-1, search(time.toEpochMilli, id.str))
+
+  def hasChanges: Boolean = pending.nonEmpty
+
+  /**
+    * Returns immutable view of current state, with all changes made since the previous snapshot.
+    */
+  def snapshot(): Snapshot = {
+    val changes = pending.toVector
+    pending.clear()
+    if (changes.nonEmpty || version == 0) version += 1
+    shared = true
+    new Snapshot(this, version, changes, times, ids, count)
+  }
+
+  private def record(diff: IndexDiff) = pending += diff
+
+  private def unshare(): Unit = if (shared) {
+    times = Arrays.copyOf(times, times.length)
+    ids = Arrays.copyOf(ids, ids.length)
+    shared = false
+  }
+
+  private def ensureCapacity(required: Int): Unit = if (required > times.length) {
+    val capacity = math.max(required, times.length + (times.length >> 1))
+    times = Arrays.copyOf(times, capacity)
+    ids = Arrays.copyOf(ids, capacity)
+    shared = false
+  }
+
+  private def linearIndexOf(id: String): Int = {
+    var i = count - 1 // recent messages are the likely ones
+    while (i >= 0 && ids(i) != id) i -= 1
+    i
+  }
+
+  private def search(millis: Long, id: String): Int = ConvTimeIndex.search(times, ids, count, millis, id)
+
+  private def upperBound(millis: Long): Int = ConvTimeIndex.upperBound(times, count, millis)
+}
+
+object ConvTimeIndex {
+
+  sealed trait IndexDiff
+  case class Inserted(index: Int, count: Int) extends IndexDiff
+  case class Removed(index: Int, count: Int) extends IndexDiff
+  case class Moved(from: Int, to: Int) extends IndexDiff
+
+  def apply(entries: TraversableOnce[Entry], sizeHint: Int = 64): ConvTimeIndex = {
+    val index = new ConvTimeIndex(sizeHint)
+    entries foreach { e => index.insert(e.id, e.time) }
+    index.pending.clear()
+    index
+  }
+
+  class Snapshot private[ConvTimeIndex] (private[content] val owner: ConvTimeIndex,
+                                         val version: Long,
+                                         val changes: IndexedSeq[IndexDiff],
+                                         times: Array[Long],
+                                         ids: Array[String],
+                                         override val size: Int) extends MessagesCursor.Entries {
+
+    override def entry(pos: Int): Entry = Entry(MessageId(ids(pos)), RemoteInstant.ofEpochMilli(times(pos)))
+
+    override def time(pos: Int): RemoteInstant = RemoteInstant.ofEpochMilli(times(pos))
+
+    override def isInMemory: Boolean = true
+
+    override def close(): Unit = ()
+
+    /**
+      * Number of messages not newer than given time.
+      */
+    def countUpTo(time: RemoteInstant): Int = upperBound(times, size, time.toEpochMilli)
+
+    /**
+      * Returns changes leading from `prev` to this snapshot, if `prev` is its direct predecessor.
+      */
+    def changesSince(prev: Snapshot): Option[IndexedSeq[IndexDiff]] =
+      if ((prev.owner eq owner) && prev.version + 1 == version) Some(changes)
+      else if ((prev.owner eq owner) && prev.version == version) Some(IndexedSeq.empty)
+      else None
+  }
+
+  // entries are ordered by time and then by id, same as MessagesCursor.Entry.Order
+  private def search(times: Array[Long], ids: Array[String], count: Int, millis: Long, id: String): Int = {
+    var lo = 0
+    var hi = count - 1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      val c = if (times(mid) == millis) ids(mid).compareTo(id) else java.lang.Long.compare(times(mid), millis)
+      if (c < 0) lo = mid + 1
+      else if (c > 0) hi = mid - 1
+      else return mid
+    }
+    -(lo + 1)
+  }
+
+  private def upperBound(times: Array[Long], count: Int, millis: Long): Int = {
+    var lo = 0
+    var hi = count
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (times(mid) <= millis) lo = mid + 1 else hi = mid
+    }
+    lo
+  }
+}
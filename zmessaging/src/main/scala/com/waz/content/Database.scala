@@ -17,9 +17,11 @@
  */
 package com.waz.content
 
-import com.waz.db.{DaoDB, inReadTransaction, inTransaction}
+import android.database.sqlite.SQLiteDatabase
+import com.waz.db.{ConnectionPool, DaoDB, inReadTransaction, inTransaction}
 import com.waz.log.BasicLogging.LogTag
 import com.waz.threading._
+import com.waz.utils.returning
 import com.waz.utils.wrappers.DB
 
 import scala.concurrent.Future
@@ -36,14 +38,36 @@ trait Database {
     inTransaction(f(db))
   } (LogTag("Database_" + logTag.value))
 
+  /**
+    * Separate connections used by `read`, None means reads share the writable connection.
+    * Called once, on the first read, opening the pool opens the database.
+    */
+  protected def openReadPool(): Option[ConnectionPool[SQLiteDatabase]] = None
+
+  @volatile private var readPoolOpened = false
+
+  private lazy val readPool = returning(openReadPool())(_ => readPoolOpened = true)
+
   def withTransaction[A](f: DB => A)(implicit logTag: LogTag = LogTag("")): CancellableFuture[A] = apply(f)
 
   def read[A](f: DB => A): Future[A] = Future {
-    implicit val db:DB = dbHelper.getWritableDatabase
-    inReadTransaction(f(db))
+    readPool match {
+      case Some(pool) =>
+        pool.withConnection { conn =>
+          implicit val db: DB = conn
+          inReadTransaction(f(db))
+        }
+      case None =>
+        implicit val db:DB = dbHelper.getWritableDatabase
+        inReadTransaction(f(db))
+    }
   } (readExecutionContext)
 
+  // stats and close don't open the pool if no read did
+  def readPoolStats: Option[ConnectionPool.PoolStats] = if (readPoolOpened) readPool.map(_.stats) else None
+
   def close() = dispatcher {
+    if (readPoolOpened) readPool.foreach(_.close())
     dbHelper.close()
   }
 
@@ -49,7 +49,7 @@ class ForbidsStorageImpl(context: Context, storage: Database)
   import ForbidsStorageImpl._
   import EventContext.Implicits.global
 
-  private implicit val dispatcher = new SerialDispatchQueue()
+  private implicit val dispatcher = new SerialDispatchQueue(name = "ForbidsStorage")
 
   private val forbidsCache = new TrimmingLruCache[MessageId, Map[ForbidData.Types, (UserId, Option[String], ForbidData.Action)]](context, Fixed(1024))
   private val maxTime = returning(new AggregatingSignal[RemoteInstant, RemoteInstant](onChanged.map(_.maxBy(_.timestamp).timestamp), storage.read(ForbidDao.findMaxTime(_)), _ max _))(_.disableAutowiring())
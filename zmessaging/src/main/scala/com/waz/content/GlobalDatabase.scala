@@ -18,7 +18,7 @@
 package com.waz.content
 
 import android.content.Context
-import com.waz.db.ZGlobalDB
+import com.waz.db.{ReadConnectionPool, ZGlobalDB}
 import com.waz.service.tracking.TrackingService
 import com.waz.threading.{SerialDispatchQueue, Threading}
 
@@ -26,4 +26,6 @@ class GlobalDatabase(context: Context, dbNameSuffix: String = "", tracking: Trac
 
   override implicit val dispatcher: SerialDispatchQueue = new SerialDispatchQueue(executor = Threading.IOThreadPool, name = "GlobalDatabase")
   val dbHelper = new ZGlobalDB(context, dbNameSuffix, tracking)
+
+  override protected def openReadPool() = ReadConnectionPool(dbHelper)
 }
@@ -21,62 +21,76 @@ import java.util.concurrent.TimeUnit
 
 import android.content.Context
 import com.waz.api.ContentSearchQuery
-import com.waz.db.{CursorIterator, Reader}
+import com.waz.db.Reader
 import com.waz.log.BasicLogging.LogTag
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
 import com.waz.model._
 import com.waz.service.tracking.TrackingService
 import com.waz.threading.SerialDispatchQueue
+import com.waz.utils.CachedStorageImpl.WriteBehind
 import com.waz.utils.TrimmingLruCache.Fixed
-import com.waz.utils.wrappers.DBCursor
+import com.waz.utils.wrappers.{DB, DBCursor}
 import com.waz.utils.{CachedStorageImpl, TrimmingLruCache}
 import com.waz.utils._
 
 import scala.concurrent.Future
-import scala.concurrent.duration.FiniteDuration
+import scala.concurrent.duration._
 
 class MessageIndexStorage(context: Context, storage: ZmsDatabase, messagesStorage: MessagesStorage, loader: MessageAndLikesStorage, tracking: TrackingService, conversationStorage: ConversationStorage)
-    extends CachedStorageImpl[MessageId, MessageContentIndexEntry](new TrimmingLruCache(context, Fixed(MessageContentIndex.MaxSearchResults)), storage)(MessageContentIndexDao, LogTag("MessageIndexStorage_Cached"))
+    extends CachedStorageImpl[MessageId, MessageContentIndexEntry](new TrimmingLruCache(context, Fixed(MessageContentIndex.MaxSearchResults)), storage, Some(WriteBehind(maxPending = 256, maxDelay = 250.millis)))(MessageContentIndexDao, LogTag("MessageIndexStorage_Cached"))
     with DerivedLogTag {
 
   import MessageIndexStorage._
-  import MessageContentIndex.TextMessageTypes
+  import MessageContentIndex.isIndexed
   import com.waz.utils.events.EventContext.Implicits.global
 
   private implicit val dispatcher = new SerialDispatchQueue(name = "MessageIndexStorage")
 
-  private def entry(m: MessageData) = {
-    //MessageContentIndexEntry(m.id, m.convId, ContentSearchQuery.transliterated(m.contentString), m.time)
-    MessageContentIndexEntry(m.id, m.convId, m.contentString, m.time)
-  }
+  // changes are buffered and written in one transaction per batch, the dao replaces previous rows of updated messages
+  override protected def save(values: Seq[MessageContentIndexEntry])(implicit db: DB): Unit =
+    MessageContentIndexDao.replaceAll(values)
+
+  override protected def delete(keys: Iterable[MessageId])(implicit db: DB): Unit =
+    MessageContentIndexDao.deleteAllIds(keys)
 
   messagesStorage.onAdded { added =>
-    insertAll(added.filter(m => TextMessageTypes.contains(m.msgType) && !m.isEphemeral).map(entry))
+    insertAll(added.filter(isIndexed).map(MessageContentIndexEntry(_)))
   }
 
   messagesStorage.onUpdated { updated =>
-    val entries = updated.collect { case (_, m) if TextMessageTypes.contains(m.msgType) && !m.isEphemeral => entry(m) }
-    //FTS tables ignore UNIQUE or PKEY constraints so we have to force the replace
-    removeAll(entries.map(_.messageId))
-    insertAll(entries)
+    insertAll(updated.collect { case (_, m) if isIndexed(m) => MessageContentIndexEntry(m) })
   }
 
   messagesStorage.onDeleted { removed =>
     if (removed.nonEmpty) removeAll(removed)
   }
 
+  /**
+    * Best matches first, see `searchRanked`.
+    */
   def searchText(contentSearchQuery: ContentSearchQuery, convId: Option[ConvId]): Future[MessagesCursor] =
     for {
-      cursor <- storage.read(MessageContentIndexDao.findContent(contentSearchQuery, convId)(_)) // find messages
-      _ <- getAll(CursorIterator.list[MessageId](cursor, close = false)(MsgIdReader)) // prefetch index entries to ensure following get calls are fast
+      hits <- searchRanked(contentSearchQuery, convId, MessageContentIndex.MaxSearchResults)
       lastRead <- convId.fold2(Future.successful(None), conversationStorage.get(_).map(_.map(_.lastRead)))
-    } yield
-      new MessagesCursor(cursor, 0, lastRead.getOrElse(RemoteInstant.Epoch), loader, tracking)(MessagesCursor.Descending)
+    } yield {
+      val entries = new MessagesCursor.RankedEntries(hits.map(h => MessagesCursor.Entry(h.messageId, h.time)).toVector)
+      new MessagesCursor(entries, 0, lastRead.getOrElse(RemoteInstant.Epoch), loader, tracking, new MessagesCursor.Caches)(MessagesCursor.Descending)
+    }
+
+  /**
+    * Best matches first (bm25), each one with a highlighted snippet of its content.
+    */
+  def searchRanked(contentSearchQuery: ContentSearchQuery, convId: Option[ConvId], limit: Int = RankedSearchLimit): Future[Seq[MessageSearchHit]] =
+    flush().flatMap(_ => storage.read(MessageContentIndexDao.findRanked(contentSearchQuery, convId, limit)(_)))
 
   def matchingMessages(contentSearchQuery: ContentSearchQuery, convId: Option[ConvId]): Future[Set[MessageId]] =
-    storage.read { implicit db =>
-      CursorIterator.list[MessageId](MessageContentIndexDao.findContent(contentSearchQuery, convId))(MsgIdReader).toSet
-    }
+    searchRanked(contentSearchQuery, convId, MessageContentIndex.MaxSearchResults).map(_.map(_.messageId).toSet)
+
+  def deleteUpTo(conv: ConvId, upTo: RemoteInstant): Future[Unit] =
+    deleteWhere(e => e.convId == conv && !e.time.isAfter(upTo))(MessageContentIndexDao.deleteUpTo(conv, upTo)(_))
+
+  def deleteForConv(conv: ConvId): Future[Unit] =
+    deleteWhere(_.convId == conv)(MessageContentIndexDao.deleteForConv(conv)(_))
 
   def getNormalizedContentForMessage(messageId: MessageId): Future[Option[String]] =
     get(messageId).map(_.map(_.content))
@@ -84,6 +98,7 @@ class MessageIndexStorage(context: Context, storage: ZmsDatabase, messagesStorag
 
 object MessageIndexStorage {
   val UpdateOldMessagesThrottle = FiniteDuration(1, TimeUnit.SECONDS)
+  val RankedSearchLimit = 100
 
   implicit object MsgIdReader extends Reader[MessageId] {
     override def apply(implicit c: DBCursor): MessageId = MessageId(c.getString(0))
@@ -43,25 +43,44 @@ trait MsgCursor {
   def close(): Unit
 }
 
-class MessagesCursor(cursor: DBCursor,
+class MessagesCursor(val entries: MessagesCursor.Entries,
                      override val lastReadIndex: Int,
                      val lastReadTime: RemoteInstant,
                      loader: MessageAndLikesStorage,
-                     tracking: TrackingService)(implicit ordering: Ordering[RemoteInstant]) extends MsgCursor with DerivedLogTag { self =>
+                     tracking: TrackingService,
+                     caches: MessagesCursor.Caches)(implicit ordering: Ordering[RemoteInstant]) extends MsgCursor with DerivedLogTag { self =>
   import MessagesCursor._
   import com.waz.utils.events.EventContext.Implicits.global
 
   import scala.concurrent.duration._
 
+  def this(cursor: DBCursor, lastReadIndex: Int, lastReadTime: RemoteInstant, loader: MessageAndLikesStorage, tracking: TrackingService)(implicit ordering: Ordering[RemoteInstant]) =
+    this(new MessagesCursor.CursorEntries(cursor), lastReadIndex, lastReadTime, loader, tracking, new MessagesCursor.Caches)
+
   private implicit val dispatcher = new SerialDispatchQueue(name = "MessagesCursor")
 
-  private val messages = new LruCache[MessageId, MessageAndLikes](WindowSize * 2)
-  private val quotes = new LruCache[MessageId, Seq[MessageId]](WindowSize * 2)
-  private val windowLoader = new WindowLoader(cursor)
+  private val messages = caches.messages
+  private val quotes = caches.quotes
+  private val windowLoader = new WindowLoader(entries)
 
   val createTime = LocalInstant.Now //used in UI
 
-  override def size = cursor.getCount
+  override def size = entries.size
+
+  /**
+    * Position changes leading from `prev` to this cursor, available when both are consecutive snapshots of the same
+    * in-memory conversation index.
+    */
+  def changesSince(prev: MessagesCursor): Option[IndexedSeq[ConvTimeIndex.IndexDiff]] = (prev.entries, entries) match {
+    case (p: ConvTimeIndex.Snapshot, c: ConvTimeIndex.Snapshot) => c.changesSince(p)
+    case _ => None
+  }
+
+  /**
+    * Creates a cursor over new entries sharing already loaded messages with this one.
+    */
+  private[content] def withEntries(entries: Entries, lastReadIndex: Int, lastReadTime: RemoteInstant) =
+    new MessagesCursor(entries, lastReadIndex, lastReadTime, loader, tracking, caches)
 
   val onUpdate = EventStream[(MessageAndLikes, MessageAndLikes)]()
 
@@ -85,10 +104,10 @@ class MessagesCursor(cursor: DBCursor,
   override def close(): Unit = {
     Threading.assertUiThread()
     subs foreach(_.destroy())
-    Future(if (! cursor.isClosed) cursor.close())
+    Future(entries.close())
   }
 
-  override def finalize(): Unit = Future(if (! cursor.isClosed) cursor.close())
+  override def finalize(): Unit = if (!entries.isInMemory) Future(entries.close())
 
   def prefetchById(id: MessageId): Future[Unit] = {
     verbose(l"prefetchById($id)")
@@ -115,12 +134,14 @@ class MessagesCursor(cursor: DBCursor,
     }
 
     def cursorSearchBounds(window: IndexWindow) =
-      if (window.msgs.isEmpty) (0, cursor.getCount - 1)
+      if (window.msgs.isEmpty) (0, entries.size - 1)
       else if (window.msgs.head.time >= time) (0, window.offset - 1)
-      else (window.offset + window.msgs.size, cursor.getCount - 1)
+      else (window.offset + window.msgs.size, entries.size - 1)
 
-    windowLoader.currentWindow.indexOf(time)(ordering) match {
+    if (!entries.isTimeOrdered) Future.successful((0 until entries.size).indexWhere(entries.time(_) == time))
+    else windowLoader.currentWindow.indexOf(time)(ordering) match {
       case index if index >= 0 => Future.successful(index)
+      case _ if entries.isInMemory => Future.successful(memorySearch(time, exact = binarySearch))
       case _ =>
         val (from, to) = cursorSearchBounds(windowLoader.currentWindow)
         if (to < from) Future.successful(-1) else cursorSearch(from, to)
@@ -196,6 +217,26 @@ class MessagesCursor(cursor: DBCursor,
     window.msgs.slice(offset - window.offset, end - window.offset)
   }
 
+  private def cursor = entries match {
+    case c: CursorEntries => c.cursor
+    case _ => throw new IllegalStateException("in-memory entries have no db cursor")
+  }
+
+  /**
+    * Index of first entry not before given time, or -1. With `exact` only entries with exactly that time are returned.
+    */
+  private def memorySearch(time: RemoteInstant, exact: Boolean): Int = {
+    var lo = 0
+    var hi = entries.size
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (ordering.compare(entries.time(mid), time) < 0) lo = mid + 1 else hi = mid
+    }
+    if (lo == entries.size) -1
+    else if (exact && ordering.compare(entries.time(lo), time) != 0) -1
+    else lo
+  }
+
   private def cursorLinearSearch(time: RemoteInstant, from: Int = 0, to: Int = cursor.getCount - 1): Int =
     if (from == 0) {
       new CursorIterator(cursor)(Entry.EntryReader).indexWhere(e => ordering.compare(e.time, time) >= 0)
@@ -241,6 +282,52 @@ object MessagesCursor {
     override def close(): Unit = ()
   }
 
+  /**
+    * Message ids backing a cursor, either a db cursor or an in-memory index snapshot. They are time ordered,
+    * except for search results, which come best match first.
+    */
+  trait Entries {
+    def size: Int
+    def entry(pos: Int): Entry
+    def time(pos: Int): RemoteInstant = entry(pos).time
+    def isInMemory: Boolean
+    def isTimeOrdered: Boolean = true
+    def close(): Unit
+  }
+
+  class CursorEntries(val cursor: DBCursor) extends Entries with DerivedLogTag {
+    override def size: Int = cursor.getCount
+
+    override def entry(pos: Int): Entry =
+      if (cursor.moveToPosition(pos)) Entry(cursor) else {
+        error(l"can not move cursor to position: $pos")
+        Entry.Empty
+      }
+
+    override def isInMemory: Boolean = false
+
+    override def close(): Unit = if (!cursor.isClosed) cursor.close()
+  }
+
+  /**
+    * Search results in relevance order, `indexOf` has to scan them.
+    */
+  class RankedEntries(entries: IndexedSeq[Entry]) extends Entries {
+    override def size: Int = entries.size
+    override def entry(pos: Int): Entry = entries(pos)
+    override def isInMemory: Boolean = true
+    override def isTimeOrdered: Boolean = false
+    override def close(): Unit = ()
+  }
+
+  /**
+    * Loaded messages, shared by consecutive cursors over the same conversation.
+    */
+  class Caches {
+    private[content] val messages = new LruCache[MessageId, MessageAndLikes](WindowSize * 2)
+    private[content] val quotes = new LruCache[MessageId, Seq[MessageId]](WindowSize * 2)
+  }
+
   case class Entry(id: MessageId, time: RemoteInstant) {
     def <(e: Entry) = Entry.Order.compare(this, e) < 0
   }
@@ -265,13 +352,13 @@ object MessagesCursor {
   }
 }
 
-class WindowLoader(cursor: DBCursor)(implicit dispatcher: SerialDispatchQueue) extends DerivedLogTag {
+class WindowLoader(entries: MessagesCursor.Entries)(implicit dispatcher: SerialDispatchQueue) extends DerivedLogTag {
   import MessagesCursor._
 
   @volatile private[this] var window = IndexWindow.Empty
   @volatile private[this] var windowLoading = Future.successful(window)
 
-  private val totalCount = cursor.getCount
+  private val totalCount = entries.size
 
   private def shouldRefresh(window: IndexWindow, index: Int, count: Int) =
     window == IndexWindow.Empty ||
@@ -281,24 +368,23 @@ class WindowLoader(cursor: DBCursor)(implicit dispatcher: SerialDispatchQueue) e
   private def fetchWindow(start: Int, end: Int) = {
     verbose(l"fetchWindow($start, $end)")
 
-    val items = (start until end) map { pos =>
-      if (cursor.moveToPosition(pos)) Entry(cursor) else {
-        error(l"can not move cursor to position: $pos, requested fetchWindow($start, $end)")
-        Entry.Empty
-      }
-    }
-    IndexWindow(start, items)
+    IndexWindow(start, (start until end) map entries.entry)
   }
 
-  private def loadWindow(index: Int, count: Int) = windowLoading .recover { case _ => window } .map {
-    case w if shouldRefresh(w, index, count) =>
-      val start = math.max(0, math.min(cursor.getCount - WindowSize, index + count / 2 - WindowSize / 2))
-      val end = math.min(cursor.getCount, start + MessagesCursor.WindowSize)
-      window = fetchWindow(start, end)
-      window
-    case w => w
+  private def refreshWindow(index: Int, count: Int) = {
+    val start = math.max(0, math.min(entries.size - WindowSize, index + count / 2 - WindowSize / 2))
+    val end = math.min(entries.size, start + MessagesCursor.WindowSize)
+    window = fetchWindow(start, end)
+    window
   }
 
+  private def loadWindow(index: Int, count: Int) =
+    if (entries.isInMemory) Future.successful(refreshWindow(index, count)) // cheap enough to do on the calling thread
+    else windowLoading .recover { case _ => window } .map {
+      case w if shouldRefresh(w, index, count) => refreshWindow(index, count)
+      case w => w
+    }
+
   /**
     * Loads window containing element at given index and at least `minCount` following elements.
     */
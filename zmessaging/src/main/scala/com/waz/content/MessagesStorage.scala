@@ -69,6 +69,7 @@ trait MessagesStorage extends CachedStorage[MessageId, MessageData] {
   def getLastSentMessage(conv: ConvId): Future[Option[MessageData]]
   def lastLocalMessage(conv: ConvId, tpe: Message.Type): Future[Option[MessageData]]
   def countLaterThan(conv: ConvId, time: RemoteInstant): Future[Long]
+  def countsLaterThan(convs: Set[ConvId], time: RemoteInstant): Future[Map[ConvId, Long]]
 
   def findMessagesByType(conv: ConvId, msgType: Message.Type): Future[IndexedSeq[MessageData]]
   def queryMessagesByType(conv: ConvId, msgType: Message.Type): Future[Seq[MessageData]]
@@ -93,6 +94,7 @@ class MessagesStorageImpl(context:     Context,
                           convs:       ConversationStorage,
                           users:       UsersStorage,
                           msgAndLikes: => MessageAndLikesStorage,
+                          msgIndex:    => MessageIndexStorage,
                           timeouts:    Timeouts,
                           tracking:    TrackingService)
   extends CachedStorageImpl[MessageId, MessageData](
@@ -224,6 +226,9 @@ class MessagesStorageImpl(context:     Context,
 
   def countLaterThan(conv: ConvId, time: RemoteInstant): Future[Long] = storage(MessageDataDao.countLaterThan(conv, time)(_))
 
+  def countsLaterThan(convs: Set[ConvId], time: RemoteInstant): Future[Map[ConvId, Long]] =
+    if (convs.isEmpty) Future.successful(Map.empty) else storage.read(MessageDataDao.countsLaterThan(convs, time)(_))
+
   override def getMessage(id: MessageId) = get(id)
 
   override def getMessages(ids: MessageId*) = getAll(ids)
@@ -306,7 +311,7 @@ class MessagesStorageImpl(context:     Context,
     verbose(l"clear($conv, $upTo)")
     for {
       _ <- storage { MessageDataDao.deleteUpTo(conv, upTo)(_) } .future
-      _ <- storage { MessageContentIndexDao.deleteUpTo(conv, upTo)(_) } .future
+      _ <- msgIndex.deleteUpTo(conv, upTo)
       _ <- deleteCached(m => m.convId == conv && ! m.time.isAfter(upTo))
       _ <- Future(msgsFilteredIndex(conv).foreach(_.delete(upTo)))
       _ <- msgsIndex(conv).flatMap(_.delete(upTo))
@@ -319,7 +324,7 @@ class MessagesStorageImpl(context:     Context,
     verbose(l"deleteAll($conv)")
     for {
       _ <- storage { MessageDataDao.deleteForConv(conv)(_) } .future
-      _ <- storage { MessageContentIndexDao.deleteForConv(conv)(_) } .future
+      _ <- msgIndex.deleteForConv(conv)
       _ <- deleteCached(_.convId == conv)
       _ <- Future(msgsFilteredIndex(conv).foreach(_.delete()))
       _ <- msgsIndex(conv).flatMap(_.delete())
@@ -18,7 +18,8 @@
 package com.waz.content
 
 import android.content.Context
-import com.waz.db.ZMessagingDB
+import com.waz.db.migrate.BackgroundMigration
+import com.waz.db.{ReadConnectionPool, ZMessagingDB}
 import com.waz.model.UserId
 import com.waz.service.tracking.TrackingService
 import com.waz.threading.{SerialDispatchQueue, Threading}
@@ -29,4 +30,8 @@ import com.waz.threading.{SerialDispatchQueue, Threading}
 class ZmsDatabase(user: UserId, context: Context, tracking: TrackingService) extends Database {
   override implicit val dispatcher: SerialDispatchQueue = new SerialDispatchQueue(executor = Threading.IOThreadPool, name = "ZmsDatabase_" + user.str.substring(24))
   val dbHelper = new ZMessagingDB(context, user.str, tracking)
+
+  override protected def openReadPool() = ReadConnectionPool(dbHelper)
+
+  BackgroundMigration.runPending(this, ZMessagingDB.backgroundMigrations)
 }
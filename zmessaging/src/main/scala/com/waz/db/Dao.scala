@@ -17,12 +17,15 @@
  */
 package com.waz.db
 
+import java.util.concurrent.ConcurrentHashMap
+
+import android.database.{Cursor, MergeCursor}
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
 import com.waz.log.LogSE._
 import com.waz.utils.wrappers.{DB, DBContentValues, DBCursor}
 import com.waz.utils.{Managed, returning}
 
-import scala.collection.{GenTraversableOnce, breakOut}
+import scala.collection.GenTraversableOnce
 import scala.language.implicitConversions
 
 trait Reader[A] {
@@ -42,7 +45,9 @@ abstract class Dao[T, A] extends DaoIdOps[T] {
 
   override def getAll(ids: Set[A])(implicit db: DB): Vector[T] =
     if (ids.isEmpty) Vector.empty
-    else list(db.query(table.name, null, s"${idCol.name} IN (${ids.map(idCol.col.sqlLiteral).mkString("'", "','", "'")})", null, null, null, null))
+    else inReadTransaction {
+      ids.grouped(MaxBoundVariables).flatMap(chunk => list(findInSet(idCol, chunk))).toVector
+    }
 }
 
 abstract class Dao2[T, A, B] extends DaoIdOps[T] {
@@ -73,11 +78,24 @@ abstract class DaoIdOps[T] extends BaseDao[T] {
   private lazy val builtIdCols = idColumnsQueryBuilder(idCol)
   protected def idColumnsQueryBuilder(id: IdCols): String = idColumns(id).map(c => s"${c.name} = ?").mkString(" AND ")
 
-  def getAll(ids: Set[IdVals])(implicit db: DB): Vector[T] = {
-    val builder = Vector.newBuilder[T]
-    ids foreach { getById(_) foreach { builder += _ } }
-    builder.result()
-  }
+  private lazy val idsPerQuery = math.max(1, MaxBoundVariables / idColumns(idCol).size)
+
+  /**
+    * Loads all ids with one query per chunk, selecting rows with `(a = ? AND b = ?) OR (a = ? AND b = ?) ...`.
+    * Chunks are sized to stay within SQLite's limit of bound variables, and are all read in the same transaction.
+    */
+  def getAll(ids: Set[IdVals])(implicit db: DB): Vector[T] =
+    if (ids.isEmpty) Vector.empty
+    else inReadTransaction {
+      val builder = Vector.newBuilder[T]
+      ids.grouped(idsPerQuery) foreach { chunk =>
+        val ids = padToStableSize(chunk.toSeq, idsPerQuery)
+        val selection = Iterator.fill(ids.size)(s"($builtIdCols)").mkString(" OR ")
+        val args = ids.iterator.flatMap(id => idValueSplitter(id).iterator).toArray
+        builder ++= list(db.query(table.name, null, selection, args, null, null, null))
+      }
+      builder.result()
+    }
 
   def getById(id: IdVals)(implicit db: DB) = single(findById(id))
 
@@ -129,7 +147,22 @@ abstract class BaseDao[T] extends Reader[T] with DerivedLogTag {
 
   def find[A](col: Column[A], value: A)(implicit db: DB): DBCursor = db.query(table.name, null, s"${col.name} = ?", Array(col(value)), null, null, null)
 
-  def findInSet[A](col: Column[A], values: Set[A])(implicit db: DB): DBCursor = db.query(table.name, null, s"${col.name} IN (${values.iterator.map(_ => "?").mkString(", ")})", values.map(col(_))(breakOut): Array[String], null, null, null)
+  def findInSet[A](col: Column[A], values: Set[A])(implicit db: DB): DBCursor =
+    if (values.size <= MaxBoundVariables) queryInSet(col, values.toSeq)
+    else new MergeCursor(values.toSeq.grouped(MaxBoundVariables).map(chunk => queryInSet(col, chunk): Cursor).toArray)
+
+  private def queryInSet[A](col: Column[A], values: Seq[A])(implicit db: DB): DBCursor = {
+    val args = padToStableSize(values.map(col(_))).toArray
+    db.query(table.name, null, s"${col.name} IN (${args.iterator.map(_ => "?").mkString(", ")})", args, null, null, null)
+  }
+
+  /**
+    * Pads `values` up to the next power of two (but no more than `max`) by repeating the last one. Queries taking
+    * a variable number of arguments then only come in a few shapes, so they keep hitting SQLite's statement cache.
+    */
+  protected def padToStableSize[A](values: Seq[A], max: Int = MaxBoundVariables): Seq[A] =
+    if (values.size <= 1 || values.size >= max) values
+    else values ++ Seq.fill(math.min(max, Integer.highestOneBit(values.size - 1) << 1) - values.size)(values.last)
 
   def delete[A](col: Column[A], value: A)(implicit db: DB): Int = db.delete(table.name, s"${col.name} = ?", Array(col(value)))
 
@@ -161,13 +194,38 @@ abstract class BaseDao[T] extends Reader[T] with DerivedLogTag {
   type Column[A] = ColBinder[A, T]
 
   final implicit def columnToValue[A](col: Column[A])(implicit cursor: DBCursor): A = {
-    val index = cursor.getColumnIndex(col.name)
+    val index = columnIndex(col, cursor)
     if (index < 0) {
       error(l"getColumnIndex returned $index for column: ${showString(col.name)}, cursor columns: ${showString(cursor.getColumnNames.mkString(","))}")
     }
     col.load(cursor, index)
   }
 
+  /**
+    * Column positions are looked up once per projection (the column names of a cursor, for all table columns at once)
+    * and then reused for every row of every cursor with the same columns. The last used projection is checked first,
+    * by reference, so reading rows of one cursor doesn't have to hash anything.
+    */
+  @volatile private var lastIndices = new ColumnIndices(Array.empty, Array.empty)
+  private val projections = new ConcurrentHashMap[Seq[String], Array[Int]]
+
+  private def columnIndex(col: Column[_], cursor: DBCursor): Int = {
+    val names = cursor.getColumnNames
+    var indices = lastIndices
+    if (indices.names ne names) {
+      var positions = projections.get(names.toSeq)
+      if (positions == null) {
+        positions = table.columns.map(c => cursor.getColumnIndex(c.name)).toArray
+        if (projections.size < ColumnIndices.MaxProjections) projections.putIfAbsent(names.toSeq, positions)
+      }
+      indices = new ColumnIndices(names, positions)
+      lastIndices = indices
+    }
+    // columns that are not part of the table (or belong to another one) are not cached
+    if (col.index < indices.positions.length && (table.columns(col.index) eq col)) indices.positions(col.index)
+    else cursor.getColumnIndex(col.name)
+  }
+
   def readerFor[A](col: Column[A]): Reader[A] = new Reader[A] {
     def apply(implicit c: DBCursor): A = col
   }
@@ -176,3 +234,10 @@ abstract class BaseDao[T] extends Reader[T] with DerivedLogTag {
     def apply(extractor: T => A): Column[A] = ColBinder[A, T](col, extractor)
   }
 }
+
+private final class ColumnIndices(val names: Array[String], val positions: Array[Int])
+
+private object ColumnIndices {
+  // daos are read with only a handful of projections, this just bounds the cache for ad hoc queries
+  val MaxProjections = 16
+}
@@ -38,6 +38,8 @@ class DaoDB(context:    Context,
   override def onConfigure(db: SQLiteDatabase): Unit = {
     super.onConfigure(db)
     db.enableWriteAheadLogging()
+    // prepared statements are cached per connection, keyed by their SQL - with bound arguments most of our queries fit
+    db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE)
     val c = db.rawQuery("PRAGMA secure_delete = true", null)
     Try {
       c.moveToNext()
@@ -18,6 +18,7 @@
 package com.waz.db
 
 import android.database.sqlite.SQLiteDatabase
+import com.waz.db.migrate.MigrationCheckpoints
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
 import com.waz.log.LogShow
 import com.waz.log.LogSE._
@@ -116,6 +117,7 @@ class Migrations(migrations: Migration*)(implicit val tracking: TrackingService)
   def fallback(storage: DaoDB, db: SQLiteDatabase): Unit = {
     warn(l"Dropping all data!!")
     storage.dropAllTables(db)
+    db.execSQL(s"DROP TABLE IF EXISTS ${MigrationCheckpoints.TableName}")
     storage.onCreate(db)
   }
 }
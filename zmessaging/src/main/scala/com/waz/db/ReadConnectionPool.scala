@@ -0,0 +1,167 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db
+
+import java.util.concurrent.{LinkedBlockingDeque, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import android.database.sqlite.SQLiteDatabase
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.log.LogSE._
+import com.waz.threading.Threading
+
+import scala.annotation.tailrec
+import scala.concurrent.duration._
+
+/**
+  * Fixed size pool of connections, leased to one thread at a time.
+  * Connections are opened lazily, so a pool that only ever sees one reader at a time holds one connection.
+  * Callers block in `withConnection` while all connections are leased; the time spent waiting is tracked in `stats`.
+  * Once the pool is closed, waiting callers fail, there are no connections left for them.
+  */
+class ConnectionPool[C](name: String, val size: Int, open: () => C, closeConnection: C => Unit) extends DerivedLogTag {
+  import ConnectionPool._
+
+  require(size > 0, s"pool size has to be positive, was: $size")
+
+  private val idle    = new LinkedBlockingDeque[C]()
+  private val opened  = new AtomicInteger(0)
+  @volatile private var closed = false
+
+  private val leases      = new AtomicLong(0)
+  private val contended   = new AtomicLong(0)
+  private val totalWaitNs = new AtomicLong(0)
+  private val maxWaitNs   = new AtomicLong(0)
+
+  def withConnection[A](f: C => A): A = {
+    val conn = lease()
+    try f(conn) finally release(conn)
+  }
+
+  def openConnections: Int = opened.get()
+
+  def stats = PoolStats(name, size, opened.get(), leases.get(), contended.get(), totalWaitNs.get().nanos, maxWaitNs.get().nanos)
+
+  /**
+    * Closes idle connections right away, leased ones as soon as they are returned.
+    */
+  def close(): Unit = {
+    closed = true
+    closeIdle()
+  }
+
+  private def lease(): C = {
+    if (closed) throw new IllegalStateException(s"$name pool is closed")
+    leases.incrementAndGet()
+    Option(idle.pollFirst()) match {
+      case Some(conn) => conn
+      case None if opened.incrementAndGet() <= size =>
+        try open()
+        catch { case e: Throwable => opened.decrementAndGet(); throw e }
+      case None =>
+        opened.decrementAndGet()
+        contended.incrementAndGet()
+        val start = System.nanoTime()
+        val conn = awaitIdle()
+        recordWait(System.nanoTime() - start)
+        conn
+    }
+  }
+
+  // nothing wakes up waiters when the pool is closed, so they check for it every `CloseCheckInterval`
+  @tailrec private def awaitIdle(): C = {
+    val conn = idle.pollFirst(CloseCheckInterval.toMillis, TimeUnit.MILLISECONDS)
+    if (closed) {
+      if (conn != null) release(conn)
+      throw new IllegalStateException(s"$name pool is closed")
+    }
+    else if (conn == null) awaitIdle()
+    else conn
+  }
+
+  private def release(conn: C): Unit = {
+    // most recently used connection goes first, it's the one most likely to have warm caches
+    idle.offerFirst(conn)
+    if (closed) closeIdle()
+  }
+
+  private def closeIdle(): Unit =
+    Iterator.continually(idle.pollFirst()).takeWhile(_ != null).foreach { conn =>
+      opened.decrementAndGet()
+      closeConnection(conn)
+    }
+
+  private def recordWait(nanos: Long): Unit = {
+    totalWaitNs.addAndGet(nanos)
+
+    @tailrec def updateMax(): Unit = {
+      val current = maxWaitNs.get()
+      if (nanos > current && !maxWaitNs.compareAndSet(current, nanos)) updateMax()
+    }
+    updateMax()
+
+    if (nanos > SlowWaitThreshold.toNanos)
+      verbose(l"Waited ${nanos.nanos.toMillis} ms for a connection from ${showString(name)} pool (size: $size)")
+  }
+}
+
+object ConnectionPool {
+
+  val SlowWaitThreshold = 50.millis
+
+  val CloseCheckInterval = 100.millis
+
+  case class PoolStats(pool: String, size: Int, open: Int, leases: Long, contended: Long, totalWait: FiniteDuration, maxWait: FiniteDuration) {
+
+    def averageWait: FiniteDuration = if (contended == 0) Duration.Zero else (totalWait.toNanos / contended).nanos
+
+    override def toString: String =
+      s"""PoolStats[$pool] - connections: $open/$size, leases: $leases, contended: $contended
+         |    wait total: ${totalWait.toMillis} ms, avg: ${averageWait.toMicros} µs, max: ${maxWait.toMicros} µs
+         |""".stripMargin
+  }
+}
+
+object ReadConnectionPool {
+
+  /**
+    * Read transactions are executed on the IO thread pool, there is no point in having more connections than its threads.
+    */
+  val DefaultSize = math.min(Threading.Cpus, 8)
+
+  /**
+    * Read-only connections to the database file of `helper`, so that `Database.read` doesn't compete for the single
+    * writable connection. With WAL every reader works on the last committed snapshot and never blocks the writer.
+    *
+    * Opening the writable database first makes sure the file exists and all migrations are done before any reader
+    * sees it. Returns None for in-memory databases or when WAL is not available.
+    */
+  def apply(helper: DaoDB, size: Int = DefaultSize): Option[ConnectionPool[SQLiteDatabase]] = {
+    val db = helper.getWritableDatabase
+    val path = db.getPath
+    if (!db.isWriteAheadLoggingEnabled || path == null || path == InMemoryPath) None
+    else Some(new ConnectionPool[SQLiteDatabase](
+      s"${helper.getDatabaseName}_read",
+      size,
+      () => SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY),
+      _.close()
+    ))
+  }
+
+  private val InMemoryPath = ":memory:"
+}
@@ -58,7 +58,7 @@ class ZMessagingDB(context: Context, dbName: String, tracking: TrackingService)
 
 object ZMessagingDB {
 
-  val DbVersion = 1
+  val DbVersion = 3
 
   lazy val daos = Seq(
     UserDataDao, SearchQueryCacheDao, AssetDataDao, ConversationDataDao,
@@ -71,5 +71,17 @@ object ZMessagingDB {
     AliasDataDao, ForbidDao,UserNoticeDao
   )
 
-  lazy val migrations = Seq()
+  lazy val migrations = Seq(
+    Migration(1, 2)(PushNotificationEventsMigration.v2),
+    Migration(2, 3)(MessageContentIndexMigration.v3)
+  )
+
+  /**
+    * Data rewrites scheduled by `migrations`, resumed every time the database is opened until they're done.
+    */
+  lazy val backgroundMigrations: Seq[BackgroundMigration] = Seq(
+    PushNotificationEventsMigration.ConvertEvents,
+    MessageContentIndexMigration.RebuildIndex,
+    MessageDataMigration.KnockProtos
+  )
 }
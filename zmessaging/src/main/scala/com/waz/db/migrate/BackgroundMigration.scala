@@ -0,0 +1,120 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db.migrate
+
+import com.waz.content.Database
+import com.waz.db.forEachRow
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.log.LogSE._
+import com.waz.utils._
+import com.waz.utils.wrappers.DB
+
+import scala.concurrent.Future
+
+/**
+  * Data rewrite which doesn't change the schema, and so doesn't have to block opening the database.
+  * Schema migrations only `schedule` it, it then runs after the database is open, in chunks of `chunkSize` rows,
+  * each chunk in its own transaction, so that regular storage operations can interleave with it.
+  */
+trait BackgroundMigration {
+  val name: String
+
+  def chunkSize: Int = 500
+
+  /**
+    * Processes up to `limit` rows following `afterRowId`.
+    * @return rowid of the last processed row, or None if there is nothing left to do
+    */
+  def migrate(afterRowId: Long, limit: Int)(implicit db: DB): Option[Long]
+
+  def schedule(implicit db: DB): Unit = MigrationCheckpoints.save(name, MigrationCheckpoints.Start)
+}
+
+object BackgroundMigration extends DerivedLogTag {
+
+  /**
+    * Runs (or resumes) all scheduled migrations one after another.
+    * Looking for scheduled migrations only needs a read connection, so opening a database with nothing to do stays cheap.
+    */
+  def runPending(storage: Database, migrations: Seq[BackgroundMigration]): Future[Unit] = {
+    import storage.dispatcher
+
+    def run(m: BackgroundMigration, afterRowId: Long, chunks: Int): Future[Int] =
+      storage.withTransaction { implicit db =>
+        val next = m.migrate(afterRowId, m.chunkSize)
+        next.fold(MigrationCheckpoints.clear(m.name))(MigrationCheckpoints.save(m.name, _))
+        next
+      }.future flatMap {
+        case Some(lastRowId) => run(m, lastRowId, chunks + 1)
+        case None            => Future.successful(chunks + 1)
+      }
+
+    val pending = storage.read { implicit db =>
+      val checkpoints = MigrationCheckpoints.all
+      migrations.collect { case m if checkpoints.contains(m.name) => (m, checkpoints(m.name)) }
+    }
+
+    returning(pending flatMap { ms =>
+      ms.foldLeft(Future.successful(())) { case (prev, (m, afterRowId)) =>
+        prev flatMap { _ =>
+          verbose(l"running background migration ${showString(m.name)}")
+          run(m, afterRowId, 0) map { chunks => verbose(l"background migration ${showString(m.name)} done, chunks: $chunks") }
+        }
+      }
+    }) { _.onFailure { case e => error(l"background migration failed", e) } }
+  }
+}
+
+/**
+  * Last processed rowid of unfinished chunked migrations, kept in the same database,
+  * so that it's always committed together with the chunk it describes.
+  * The table is only created once something is saved, so databases which never needed it don't get one.
+  */
+object MigrationCheckpoints {
+  val TableName = "MigrationCheckpoints"
+
+  /**
+    * Checkpoint of a migration which hasn't processed any rows yet.
+    */
+  val Start = Long.MinValue
+
+  private def exists(implicit db: DB) = TableMigration.tableExists(TableName)
+
+  def get(name: String)(implicit db: DB): Option[Long] =
+    if (!exists) None
+    else {
+      val c = db.rawQuery(s"SELECT last_row FROM $TableName WHERE name = ?", Array(name))
+      try { if (c.moveToFirst()) Some(c.getLong(0)) else None } finally c.close()
+    }
+
+  def all(implicit db: DB): Map[String, Long] =
+    if (!exists) Map.empty
+    else {
+      val builder = Map.newBuilder[String, Long]
+      forEachRow(db.rawQuery(s"SELECT name, last_row FROM $TableName", null)) { c => builder += c.getString(0) -> c.getLong(1) }
+      builder.result()
+    }
+
+  def save(name: String, lastRowId: Long)(implicit db: DB): Unit = {
+    db.execSQL(s"CREATE TABLE IF NOT EXISTS $TableName (name TEXT PRIMARY KEY, last_row INTEGER NOT NULL)")
+    db.execSQL(s"INSERT OR REPLACE INTO $TableName (name, last_row) VALUES (?, ?)", Array[AnyRef](name, java.lang.Long.valueOf(lastRowId)))
+  }
+
+  def clear(name: String)(implicit db: DB): Unit =
+    if (exists) db.execSQL(s"DELETE FROM $TableName WHERE name = ?", Array[AnyRef](name))
+}
@@ -67,7 +67,6 @@ object ConversationDataMigration {
       )
     }
 
-    db.execSQL("DROP TABLE IF EXISTS Conversations_tmp")
     moveConvs.migrate(db)
     db.execSQL("ALTER TABLE Conversations RENAME TO Conversations_old")
     db.execSQL("ALTER TABLE Conversations_tmp RENAME TO Conversations")
@@ -0,0 +1,44 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db.migrate
+
+import com.waz.model.MessageContentIndexDao
+import com.waz.utils.wrappers.DB
+
+object MessageContentIndexMigration {
+
+  /**
+    * Recreates the index with FTS5 (or FTS4) and prefix indexes. It's repopulated by `RebuildIndex` once the database
+    * is open, so that the upgrade doesn't have to go through every message.
+    */
+  lazy val v3: DB => Unit = { implicit db =>
+    db.execSQL(s"DROP TABLE IF EXISTS ${MessageContentIndexDao.table.name}")
+    MessageContentIndexDao.createTable
+    RebuildIndex.schedule
+  }
+
+  /**
+    * Indexes text messages, in rowid order, after the index was recreated.
+    */
+  object RebuildIndex extends BackgroundMigration {
+    override val name = "MessageContentIndex_v3_rebuild"
+
+    override def migrate(afterRowId: Long, limit: Int)(implicit db: DB): Option[Long] =
+      MessageContentIndexDao.indexMessages(afterRowId, limit)
+  }
+}
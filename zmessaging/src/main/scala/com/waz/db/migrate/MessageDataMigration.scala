@@ -40,20 +40,6 @@ object MessageDataMigration {
     val from = TableDesc("Messages", src.all)
     val to = TableDesc("Messages_tmp", dst.all)
 
-    def updateProtos() = {
-      withStatement("UPDATE Messages_tmp SET protos = ? WHERE _id = ?") { stmt =>
-        forEachRow(db.query("Messages", Array("_id", "hot"), "msg_type = 'Knock'", null, null, null, null)) { c =>
-          stmt.clearBindings()
-          val id = c.getString(0)
-          val protos = Seq(GenericMessage(Uid(id), Knock(false)))
-
-          dst.Protos.bind(protos, 1, stmt)
-          stmt.bindString(2, id)
-          stmt.execute()
-        }
-      }
-    }
-
     inTransaction { tr: Transaction =>
       db.execSQL("DROP TABLE IF EXISTS Messages_tmp")
       db.execSQL(to.createSql)
@@ -61,13 +47,40 @@ object MessageDataMigration {
       // copy all messages
       db.execSQL("INSERT INTO Messages_tmp SELECT _id, conv_id, source_seq, source_hex, msg_type, user_id, content, NULL, time, local_time, first_msg, members, recipient, email, name, msg_state, content_size FROM Messages")
 
-      // update protos field for knocks
-      updateProtos()
-
       db.execSQL("DROP TABLE Messages")
       db.execSQL("ALTER TABLE Messages_tmp RENAME TO Messages")
       db.execSQL(s"CREATE INDEX IF NOT EXISTS Messages_conv_source_idx on Messages ( conv_id, source_seq, source_hex )")
       db.execSQL(s"CREATE INDEX IF NOT EXISTS Messages_conv_time_source_idx on Messages ( conv_id, time, source_seq, source_hex )")
+
+      // protos field for knocks is not needed to open the app, it will be updated once db is open
+      KnockProtos.schedule
+    }
+  }
+
+  /**
+    * Generates protos for knocks migrated by v69, to preserve hot knock info.
+    */
+  object KnockProtos extends BackgroundMigration {
+    override val name = "MessageData_v69_knock_protos"
+
+    private val Selection = "msg_type = 'Knock' AND protos IS NULL"
+
+    override def migrate(afterRowId: Long, limit: Int)(implicit db: DB): Option[Long] = {
+      var lastRowId = afterRowId
+      var count = 0
+      withStatement("UPDATE Messages SET protos = ? WHERE rowid = ?") { stmt =>
+        forEachRow(db.rawQuery(s"SELECT rowid, _id FROM Messages WHERE rowid > ? AND $Selection ORDER BY rowid LIMIT $limit", Array(afterRowId.toString))) { c =>
+          stmt.clearBindings()
+          lastRowId = c.getLong(0)
+          val protos = Seq(GenericMessage(Uid(c.getString(1)), Knock(false)))
+
+          Columns.v69.Protos.bind(protos, 1, stmt)
+          stmt.bindLong(2, lastRowId)
+          stmt.execute()
+          count += 1
+        }
+      }
+      if (count < limit) None else Some(lastRowId)
     }
   }
 
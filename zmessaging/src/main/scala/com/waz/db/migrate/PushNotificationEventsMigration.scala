@@ -0,0 +1,69 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db.migrate
+
+import com.waz.db._
+import com.waz.model.PushNotificationEvents.PushNotificationEventsDao
+import com.waz.model.{PushNotificationEvent, Uid}
+import com.waz.utils.wrappers.DB
+import org.json.JSONObject
+
+import scala.util.Try
+
+object PushNotificationEventsMigration {
+
+  /**
+    * Adds the pre-extracted event type and binary otr envelope. Rows still waiting for processing are converted by
+    * `ConvertEvents` once the database is open, until then the dao reads them from their json.
+    */
+  lazy val v2: DB => Unit = { implicit db =>
+    val table = PushNotificationEventsDao.table.name
+    db.execSQL(s"ALTER TABLE $table ADD COLUMN ${PushNotificationEventsDao.EventType.name} TEXT DEFAULT ''")
+    db.execSQL(s"ALTER TABLE $table ADD COLUMN ${PushNotificationEventsDao.Envelope.name} BLOB DEFAULT NULL")
+    ConvertEvents.schedule
+  }
+
+  object ConvertEvents extends BackgroundMigration {
+    override val name = "PushNotificationEvents_v2_convert"
+
+    override def migrate(afterRowId: Long, limit: Int)(implicit db: DB): Option[Long] = {
+      val table = PushNotificationEventsDao.table.name
+      var lastRowId = afterRowId
+      var count = 0
+      withStatement(s"UPDATE $table SET event_type = ?, envelope = ?, event = ? WHERE rowid = ?") { stmt =>
+        forEachRow(db.rawQuery(s"SELECT rowid, pushId, event_index, event FROM $table WHERE rowid > ? AND event_type = '' ORDER BY rowid LIMIT $limit", Array(afterRowId.toString))) { c =>
+          lastRowId = c.getLong(0)
+          count += 1
+          for {
+            json <- Option(c.getString(3))
+            obj  <- Try(new JSONObject(json)).toOption
+          } {
+            val row = PushNotificationEvent.fromJson(Uid(c.getString(1)), c.getLong(2), obj, transient = false)
+            stmt.clearBindings()
+            stmt.bindString(1, row.eventType)
+            row.envelope.fold(stmt.bindNull(2))(stmt.bindBlob(2, _))
+            row.rawEvent.fold(stmt.bindNull(3))(stmt.bindString(3, _))
+            stmt.bindLong(4, lastRowId)
+            stmt.execute()
+          }
+        }
+      }
+      if (count < limit) None else Some(lastRowId)
+    }
+  }
+}
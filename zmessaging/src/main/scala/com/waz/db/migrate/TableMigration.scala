@@ -22,7 +22,17 @@ import com.waz.utils.wrappers.{DB, DBCursor, DBProgram}
 
 import scala.collection._
 
-abstract class TableMigration(from: TableDesc, to: TableDesc) { migration =>
+/**
+  * Copies all rows of `from` table to `to` table, converting them with `bindings`.
+  * Rows are copied in rowid order, `chunkSize` rows per transaction, and every chunk is committed together with
+  * a checkpoint, so if the copy is interrupted (app killed, crash), the next run continues after the last committed chunk.
+  *
+  * Note that this also holds within SQLiteOpenHelper#onUpgrade: `Transaction.flush` ends the helper's outer transaction,
+  * which commits everything done so far, including `user_version` of already finished migration steps (see `Migrations.migrate`).
+  * An interrupted upgrade is then restarted from the step that was running, so whatever the step does before
+  * the table copy has to be safe to repeat.
+  */
+abstract class TableMigration(from: TableDesc, to: TableDesc, chunkSize: Int = TableMigration.DefaultChunkSize) { migration =>
   import language.implicitConversions
 
   trait Binder {
@@ -51,22 +61,47 @@ abstract class TableMigration(from: TableDesc, to: TableDesc) { migration =>
 
   val bindings: Seq[Binder]
 
+  lazy val checkpointName = s"${from.name}->${to.name}"
+
   def migrate(implicit db: DB) = inTransaction { tr: Transaction =>
-    var count = 0
+    import TableMigration._
+
+    val checkpoint = MigrationCheckpoints.get(checkpointName).filter(_ => tableExists(to.name))
+    if (checkpoint.isEmpty) db.execSQL(s"DROP TABLE IF EXISTS ${to.name}") // leftovers of an unrelated, earlier attempt
     db.execSQL(to.createSql)
+
+    var lastRowId = checkpoint.getOrElse(MigrationCheckpoints.Start)
+    val rowIdIndex = from.columns.size // rowid goes last, so cursor indices of all `from` columns stay the same
+    val selectSql = s"SELECT ${from.colNames.mkString(", ")}, rowid FROM ${from.name} WHERE rowid > ? ORDER BY rowid LIMIT $chunkSize"
+
     withStatement(to.insertSql) { stmt =>
-      forEachRow(db.query(from.name, from.colNames, null, null, null, null, null)) { c =>
-        stmt.clearBindings()
-        bindings foreach { _.copy(c, stmt) }
-        stmt.execute()
-
-        count += 1
-        if (count > 10000) {
-          count = 0
-          tr.flush()
+      var count = chunkSize
+      while (count == chunkSize) {
+        count = 0
+        forEachRow(db.rawQuery(selectSql, Array(lastRowId.toString))) { c =>
+          stmt.clearBindings()
+          bindings foreach { _.copy(c, stmt) }
+          stmt.execute()
+          lastRowId = c.getLong(rowIdIndex)
+          count += 1
         }
+        MigrationCheckpoints.save(checkpointName, lastRowId)
+        tr.flush()
       }
     }
+    MigrationCheckpoints.clear(checkpointName)
+  }
+}
+
+object TableMigration {
+  val DefaultChunkSize = 5000
+
+  def tableExists(name: String)(implicit db: DB): Boolean =
+    queryLong("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?", name) > 0
+
+  private[migrate] def queryLong(sql: String, args: String*)(implicit db: DB): Long = {
+    val c = db.rawQuery(sql, args.toArray)
+    try { if (c.moveToFirst()) c.getLong(0) else 0L } finally c.close()
   }
 }
 
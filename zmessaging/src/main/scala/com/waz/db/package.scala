@@ -88,6 +88,9 @@ package object db {
     }
 
 
+  /** SQLITE_MAX_VARIABLE_NUMBER of the SQLite versions bundled with Android, queries binding more parameters fail. */
+  val MaxBoundVariables = 999
+
   def withStatement[A](sql: String)(body: DBStatement => A)(implicit db: DB): A = {
     val stmt = db.compileStatement(sql)
     try {
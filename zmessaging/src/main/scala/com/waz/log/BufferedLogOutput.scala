@@ -17,22 +17,44 @@
  */
 package com.waz.log
 
-import java.io.{BufferedWriter, File, FileWriter, IOException}
+import java.io.{File, FileInputStream, FileOutputStream, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+import java.util.zip.GZIPOutputStream
 
 import com.waz.log.BasicLogging.LogTag
 import com.waz.log.InternalLog.{LogLevel, dateTag, stackTrace}
-import com.waz.threading.{SerialDispatchQueue, Threading}
+import com.waz.threading.{CancellableFuture, SerialDispatchQueue, Threading}
 import com.waz.utils.crypto.ZSecureRandom
-import com.waz.utils.returning
+import com.waz.utils.{IoUtils, returning}
 
-import scala.annotation.tailrec
 import scala.collection.JavaConversions._
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+import scala.util.control.NonFatal
 
+/**
+  * Writes logs to rolling files in `baseDir`.
+  *
+  * Logging threads only format the record and put it into a lock-free ring buffer, they never wait for each other or
+  * for the disk. A single writer, on its own serial queue, drains the buffer and appends the records to the current
+  * file through a `FileChannel`, up to `maxBufferSize` bytes per write, and syncs the file at most every `syncInterval`.
+  * When the buffer is full, records are dropped and counted, the writer notes how many were lost in the file.
+  *
+  * Once the current file would exceed `maxFileSize` a new one is started, the previous one is gzipped if
+  * `compressRolled` is set, and the oldest files are deleted so that at most `maxRollFiles` are kept.
+  */
 class BufferedLogOutput(baseDir: String,
                         override val showSafeOnly: Boolean = false,
                         maxBufferSize: Long = BufferedLogOutput.DefMaxBufferSize,
                         maxFileSize: Long = BufferedLogOutput.DefMaxFileSize,
-                        maxRollFiles: Int = BufferedLogOutput.DefMaxRollFiles) extends LogOutput {
+                        maxRollFiles: Int = BufferedLogOutput.DefMaxRollFiles,
+                        compressRolled: Boolean = false,
+                        capacity: Int = BufferedLogOutput.DefCapacity,
+                        syncInterval: FiniteDuration = BufferedLogOutput.DefSyncInterval) extends LogOutput {
+  import BufferedLogOutput._
 
   assert(maxBufferSize < maxFileSize)
   assert(maxRollFiles > 0)
@@ -41,81 +63,219 @@ class BufferedLogOutput(baseDir: String,
 
   private implicit val dispatcher: SerialDispatchQueue = new SerialDispatchQueue(Threading.IO, id)
 
-  private val buffer = StringBuilder.newBuilder
-  private val pathRegex = s"$baseDir/${BufferedLogOutput.DefFileName}([0-9]+).log".r
-  private var paths = this.synchronized {
+  private val ring        = new RecordRingBuffer(capacity)
+  private val scheduled   = new AtomicBoolean(false)
+  private val dropped     = new AtomicLong(0) // since the last note in the file
+  private val droppedAll  = new AtomicLong(0)
+  private val overflows   = new AtomicLong(0)
+  private val overflowing = new AtomicBoolean(false)
+
+  private val pathRegex = s"$baseDir/$DefFileName([0-9]+)\\.log(\\.gz)?".r
+
+  // youngest first, the head is the current file unless it's compressed
+  @volatile private var paths = this.synchronized {
     asScalaIterator(new File(baseDir).listFiles().iterator)
       .map(_.getAbsolutePath)
-      .collect { case path @ pathRegex(index) => (path, -index.toInt) }
+      .collect { case path @ pathRegex(index, _) => (path, -index.toInt) }
       .toList
       .sortBy(_._2)
       .map(_._1)
   }
 
-  private def newPath = s"$baseDir/${BufferedLogOutput.DefFileName}${paths.size}.log"
+  // writer state, only used on the dispatcher
+  private val out           = ByteBuffer.allocateDirect(maxBufferSize.toInt)
+  private var channel       = Option.empty[FileChannel]
+  private var fileSize      = 0L
+  private var unsynced      = false
+  private var syncScheduled = false
+
+  private def newPath = s"$baseDir/$DefFileName${paths.headOption.fold(0)(indexOf(_) + 1)}.log"
 
-  def currentPath: String = {
-    if (paths.isEmpty) paths = List(newPath)
-    while (new File(paths.head).length > maxFileSize) paths = newPath :: paths
-    paths.head
+  private def indexOf(path: String) = path match {
+    case pathRegex(index, _) => index.toInt
+    case _                   => -1
   }
 
+  def currentPath: String = paths.headOption.filterNot(_.endsWith(".gz")).getOrElse(newPath)
+
   //for tests
   def getMaxBufferSize: Long = maxBufferSize
 
   // internally the first path is the youngest one, but to the outside we want to show paths from the oldest to the youngest
   def getPaths: List[String] = paths.reverse
 
-  override def log(str: String, level: LogLevel, tag: LogTag, ex: Option[Throwable] = None): Unit = this.synchronized {
-    buffer.append(s"$dateTag/$level/${tag.value}: $str\n${ex.map(e => s"${stackTrace(e)}\n").getOrElse("")}")
-    if (size > maxBufferSize) flush()
+  def droppedRecords: Long = droppedAll.get
+
+  /**
+    * Number of times the buffer filled up, each of them may have dropped many records.
+    */
+  def overflowCount: Long = overflows.get
+
+  override def log(str: String, level: LogLevel, tag: LogTag, ex: Option[Throwable] = None): Unit = {
+    val record = s"$dateTag/$level/${tag.value}: $str\n${ex.map(e => s"${stackTrace(e)}\n").getOrElse("")}"
+    if (ring.offer(record)) {
+      if (overflowing.get) overflowing.set(false)
+    } else {
+      dropped.incrementAndGet()
+      droppedAll.incrementAndGet()
+      if (overflowing.compareAndSet(false, true)) overflows.incrementAndGet()
+    }
+    scheduleDrain()
   }
 
-  override def close(): Unit = flush()
+  override def close(): Unit = await {
+    drain()
+    closeChannel()
+  }
 
-  def empty: Boolean = buffer.isEmpty
+  def empty: Boolean = ring.size == 0
 
-  def size: Int = buffer.length
+  /**
+    * Number of records waiting to be written.
+    */
+  def size: Int = ring.size
 
-  // TODO: In this implementation we risk that writing to the file fails and we lose the contents.
-  // But if we wait for the result of writeToFile, we risk that meanwhile someone will add something
-  // to the buffer and we will lose that.
-  override def flush(): Unit = this.synchronized {
-    if (!empty) {
-      val path = currentPath
-      val contents = buffer.toString
-      buffer.clear()
-      writeToFile(path, contents)
-      while (paths.size > maxRollFiles)
-        paths = BufferedLogOutput.roll(paths.reverse)
-    }
+  /**
+    * Blocks until everything logged so far is written and synced to the disk, or `FlushTimeout` passes.
+    */
+  override def flush(): Unit = await {
+    drain()
+    sync()
   }
 
-  override def clear(): Unit = {
-    flush()
+  override def clear(): Unit = await {
+    drain()
+    closeChannel()
     paths foreach { path => new File(path).delete() }
+    paths = Nil
   }
 
-  private def writeToFile(fileName: String, contents: String): Unit = this.synchronized {
+  private def await(f: => Unit): Unit =
+    try Await.result(Future(f), FlushTimeout)
+    catch {
+      case NonFatal(ex) => ex.printStackTrace()
+    }
+
+  private def scheduleDrain(): Unit =
+    if (scheduled.compareAndSet(false, true)) Future(drainScheduled())
+
+  // a producer which publishes its record while the drain is finishing either sees `scheduled` reset and schedules
+  // the next one itself, or its record is seen here
+  private def drainScheduled(): Unit =
     try {
-      val file = new File(fileName)
-      if (!file.exists) {
-        file.getParentFile.mkdirs()
-        file.createNewFile()
-        file.setReadable(true)
-        file.setWritable(true)
-      }
+      drain()
+      scheduleSync()
+    } finally {
+      scheduled.set(false)
+      if (ring.hasNext) scheduleDrain()
+    }
+
+  private def drain(): Unit = {
+    var record = ring.poll()
+    while (record != null) {
+      append(record.getBytes(UTF_8))
+      record = ring.poll()
+    }
+    val lost = dropped.getAndSet(0)
+    if (lost > 0) append(s"$dateTag/${LogLevel.Warn}/$id: $lost log records dropped, the buffer was full\n".getBytes(UTF_8))
+    writeOut()
+  }
+
+  private def append(bytes: Array[Byte]): Unit = {
+    if (bytes.length > out.remaining) writeOut()
+    if (bytes.length > out.capacity) write(ByteBuffer.wrap(bytes))
+    else out.put(bytes)
+  }
+
+  private def writeOut(): Unit =
+    if (out.position > 0) {
+      out.flip()
+      try write(out)
+      finally out.clear()
+    }
 
-      returning(new BufferedWriter(new FileWriter(file, true))) { writer =>
-        writer.write(contents)
-        writer.flush()
-        writer.close()
+  private def write(bytes: ByteBuffer): Unit =
+    try {
+      openChannel()
+      if (fileSize > 0 && fileSize + bytes.remaining > maxFileSize) {
+        rotate()
+        openChannel()
+      }
+      channel foreach { ch =>
+        while (bytes.hasRemaining) fileSize += ch.write(bytes)
+        unsynced = true
       }
     } catch {
-      case ex: IOException => ex.printStackTrace()
+      case ex: IOException =>
+        ex.printStackTrace()
+        closeChannel()
+    }
+
+  private def openChannel(): Unit =
+    if (channel.isEmpty) {
+      val path = currentPath
+      if (!paths.headOption.contains(path)) paths = path :: paths
+      val file = new File(path)
+      file.getParentFile.mkdirs()
+      returning(new FileOutputStream(file, true).getChannel) { ch =>
+        fileSize = ch.size()
+        channel = Some(ch)
+      }
+    }
+
+  private def closeChannel(): Unit = {
+    channel foreach { ch =>
+      try {
+        if (unsynced) ch.force(false)
+        ch.close()
+      } catch {
+        case ex: IOException => ex.printStackTrace()
+      }
+    }
+    channel = None
+    unsynced = false
+  }
+
+  private def rotate(): Unit = {
+    closeChannel()
+    if (compressRolled) paths = paths.headOption.map(compress).toList ::: paths.drop(1)
+    paths = newPath :: paths
+    while (paths.size > maxRollFiles) {
+      new File(paths.last).delete()
+      paths = paths.init
     }
   }
 
+  private def compress(path: String): String =
+    try returning(s"$path.gz") { gz =>
+      IoUtils.copy(new FileInputStream(path), new GZIPOutputStream(new FileOutputStream(gz)))
+      new File(path).delete()
+    } catch {
+      case ex: IOException =>
+        ex.printStackTrace()
+        path
+    }
+
+  private def scheduleSync(): Unit =
+    if (unsynced && !syncScheduled) {
+      syncScheduled = true
+      CancellableFuture.delay(syncInterval).future.foreach { _ =>
+        syncScheduled = false
+        sync()
+      }
+    }
+
+  private def sync(): Unit =
+    if (unsynced) {
+      channel foreach { ch =>
+        try ch.force(false)
+        catch {
+          case ex: IOException => ex.printStackTrace()
+        }
+      }
+      unsynced = false
+    }
+
   // delete the old "internalLog.log" file, from before rolling was introduced - this code can be deleted after some time
   private def deleteOldInternalLog() = {
     val oldLog = new File(s"$baseDir/internalLog.log")
@@ -131,12 +291,11 @@ object BufferedLogOutput {
   val DefMaxRollFiles = 10
   val DefFileName = "internalLog"
 
-  @tailrec
-  private def roll(pathsSorted: List[String], newPaths: List[String] = Nil): List[String] = pathsSorted match {
-    case first :: second :: tail =>
-      new File(second).renameTo(new File(first))
-      roll(second :: tail, first :: newPaths)
-    case _ => newPaths
-  }
+  /**
+    * Records waiting for the writer, logging beyond that while the writer is behind drops records.
+    */
+  val DefCapacity = 8192
+  val DefSyncInterval = 5.seconds
 
+  val FlushTimeout = 2.seconds
 }
@@ -0,0 +1,74 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.log
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicReferenceArray}
+
+import scala.annotation.tailrec
+
+/**
+  * Bounded multi-producer, single-consumer queue of log records.
+  *
+  * Producers claim a slot with a single CAS on `tail` and publish the record into it, they never wait: when the buffer
+  * is full, `offer` returns false and the record is dropped. Only one thread at a time may `poll`, a claimed slot which
+  * isn't published yet ends the poll, the producer publishing it is expected to schedule the next one.
+  */
+private[log] final class RecordRingBuffer(val capacity: Int) {
+  require(capacity > 0 && Integer.bitCount(capacity) == 1, s"capacity has to be a power of two, was: $capacity")
+
+  private val mask  = capacity - 1
+  private val slots = new AtomicReferenceArray[String](capacity)
+  private val tail  = new AtomicLong(0)
+  @volatile private var head = 0L // written by the consumer only
+
+  def offer(record: String): Boolean = {
+    @tailrec def claim(): Long = {
+      val t = tail.get
+      if (t - head >= capacity) -1L
+      else if (tail.compareAndSet(t, t + 1)) t
+      else claim()
+    }
+
+    val t = claim()
+    if (t < 0) false
+    else {
+      slots.set((t & mask).toInt, record)
+      true
+    }
+  }
+
+  /**
+    * @return next published record, or null
+    */
+  def poll(): String = {
+    val i = (head & mask).toInt
+    val record = slots.get(i)
+    if (record != null) {
+      slots.lazySet(i, null)
+      head += 1
+    }
+    record
+  }
+
+  /**
+    * True if the next record is published and can be polled.
+    */
+  def hasNext: Boolean = slots.get((head & mask).toInt) != null
+
+  def size: Int = (tail.get - head).toInt
+}
@@ -17,17 +17,39 @@
  */
 package com.waz.model
 
+import java.nio.{ByteBuffer, ByteOrder}
+import java.util.PriorityQueue
+import java.util.concurrent.ConcurrentHashMap
+
 import com.waz.api.{ContentSearchQuery, Message}
 import com.waz.db.Col._
-import com.waz.db.Dao
+import com.waz.db.{Dao, forEachRow, inTransaction}
 import com.waz.log.BasicLogging.LogTag
+import com.waz.log.LogSE._
+import com.waz.model.MessageData.MessageDataDao
 import com.waz.utils.Identifiable
 import com.waz.utils.wrappers.{DB, DBCursor}
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
+
 case class MessageContentIndexEntry(messageId: MessageId, convId: ConvId, content: String, time: RemoteInstant) extends Identifiable[MessageId] {
   override val id: MessageId = messageId
 }
 
+object MessageContentIndexEntry {
+  def apply(m: MessageData): MessageContentIndexEntry =
+    //MessageContentIndexEntry(m.id, m.convId, ContentSearchQuery.transliterated(m.contentString), m.time)
+    MessageContentIndexEntry(m.id, m.convId, m.contentString, m.time)
+}
+
+/**
+  * A search result ranked by relevance, `rank` is higher for better matches. Matched terms in `snippet` are wrapped
+  * in `MessageContentIndex.SnippetStart` and `SnippetEnd`.
+  */
+case class MessageSearchHit(messageId: MessageId, convId: ConvId, time: RemoteInstant, snippet: String, rank: Double)
+
 object MessageContentIndexDao extends Dao[MessageContentIndexEntry, MessageId] {
   import MessageContentIndex._
   private implicit val tag: LogTag = LogTag("MessageContentIndex")
@@ -37,9 +59,8 @@ object MessageContentIndexDao extends Dao[MessageContentIndexEntry, MessageId] {
   val Content = text('content)(_.content)
   val Time = remoteTimestamp('time)(_.time)
 
-  override def onCreate(db: DB) = {
-    db.execSQL(table.createFtsSql)
-  }
+  override def onCreate(db: DB) = createTable(db)
+
   override val idCol = MessageId
   override val table = Table("MessageContentIndex", MessageId, Conv, Content, Time)
 
@@ -48,25 +69,107 @@ object MessageContentIndexDao extends Dao[MessageContentIndexEntry, MessageId] {
 
   private val IndexColumns = Array(MessageId.name, Time.name)
 
+  // the fts module only depends on the sqlite build, but tables created before it was updated keep the old one
+  private val modules = new ConcurrentHashMap[String, FtsModule]()
+
+  /**
+    * Creates the index with FTS5 if this sqlite build has it, and with FTS4 otherwise.
+    */
+  def createTable(implicit db: DB): FtsModule = {
+    val module = if (Try(db.execSQL(Fts5.createSql)).isSuccess) Fts5 else {
+      db.execSQL(Fts4.createSql)
+      Fts4
+    }
+    verbose(l"created message index using ${showString(module.name)}")
+    modules.put(db.getPath, module)
+    module
+  }
+
+  def ftsModule(implicit db: DB): FtsModule =
+    Option(modules.get(db.getPath)).getOrElse {
+      val c = db.rawQuery("SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ?", Array(table.name))
+      val module = try {
+        if (c.moveToFirst() && Option(c.getString(0)).exists(_.toLowerCase.contains("fts5"))) Fts5 else Fts4
+      } finally c.close()
+      modules.put(db.getPath, module)
+      module
+    }
+
   def findContent(contentSearchQuery: ContentSearchQuery, convId: Option[ConvId])(implicit db: DB): DBCursor ={
     if (UsingFTS) {
-      findContentFts(contentSearchQuery.toFtsQuery, convId)
+      findContentFts(ftsModule.matchQuery(contentSearchQuery), convId)
     } else {
       findContentSimple(contentSearchQuery.elements, convId)
     }
   }
 
+  /**
+    * Replaces the index entries for the given messages, fts tables ignore UNIQUE constraints so the previous rows
+    * have to be deleted first. Deletes are done with one statement per batch, as every one of them scans the table.
+    */
+  def replaceAll(entries: Seq[MessageContentIndexEntry])(implicit db: DB): Unit = inTransaction {
+    deleteAllIds(entries.map(_.messageId))
+    insertOrReplace(entries)
+  }
+
+  def deleteAllIds(ids: Iterable[MessageId])(implicit db: DB): Unit =
+    ids.grouped(MaxSqlParams) foreach { group =>
+      db.delete(table.name, s"${MessageId.name} IN (${group.map(_ => "?").mkString(",")})", group.map(_.str).toArray)
+    }
+
   def deleteForConv(id: ConvId)(implicit db: DB) = delete(Conv, id)
 
   def deleteUpTo(id: ConvId, upTo: RemoteInstant)(implicit db: DB) = db.delete(table.name, s"${Conv.name} = '${id.str}' AND ${Time.name} <= ${Time(upTo)}", null)
 
-  def findContentFts(queryText: String, convId: Option[ConvId])(implicit db: DB): DBCursor ={
-    convId match {
-      case Some(conv) =>
-        db.query(table.name, IndexColumns, s"${Conv.name} = '$conv' AND ${Content.name} MATCH '$queryText'", null, null, null, s"${Time.name} DESC", SearchLimit)
-      case _ =>
-        db.query(table.name, IndexColumns, s"${Content.name} MATCH '$queryText'", null, null, null, s"${Time.name} DESC", SearchLimit)
+  def findContentFts(queryText: String, convId: Option[ConvId])(implicit db: DB): DBCursor = {
+    val (where, args) = matchClause(queryText, convId)
+    db.query(table.name, IndexColumns, where, args, null, null, s"${Time.name} DESC", SearchLimit)
+  }
+
+  /**
+    * Returns the best matches first, with a highlighted snippet of the matching content. FTS5 ranks them with its
+    * built-in bm25(). FTS4 has no ranking function, so all matches are scored here from their matchinfo, keeping
+    * only the best `limit` ones, which are then read again with their snippets.
+    */
+  def findRanked(contentSearchQuery: ContentSearchQuery, convId: Option[ConvId], limit: Int)(implicit db: DB): Seq[MessageSearchHit] =
+    if (contentSearchQuery.isEmpty || limit <= 0) Nil
+    else {
+      val module = ftsModule
+      val (where, args) = matchClause(module.matchQuery(contentSearchQuery), convId)
+      val hits = ArrayBuffer.empty[MessageSearchHit]
+      module match {
+        case Fts5 =>
+          val sql =
+            s"SELECT ${MessageId.name}, ${Conv.name}, ${Time.name}, ${module.snippet}, rank FROM ${table.name} WHERE $where ORDER BY rank LIMIT $limit"
+          forEachRow(db.rawQuery(sql, args)) { c =>
+            hits += MessageSearchHit(MessageId.col.load(c, 0), Conv.col.load(c, 1), Time.col.load(c, 2), c.getString(3), -c.getDouble(4))
+          }
+          hits
+        case Fts4 =>
+          val best = new PriorityQueue[(Double, Long)](limit, Ordering.by[(Double, Long), Double](_._1)) // worst kept match on top
+          forEachRow(db.rawQuery(s"SELECT rowid, matchinfo(${table.name}, '$Bm25MatchInfo') FROM ${table.name} WHERE $where", args)) { c =>
+            val rank = bm25(c.getBlob(1))
+            if (best.size < limit) best.add((rank, c.getLong(0)))
+            else if (rank > best.peek()._1) {
+              best.poll()
+              best.add((rank, c.getLong(0)))
+            }
+          }
+          if (!best.isEmpty) {
+            val ranks = best.asScala.map { case (rank, rowId) => rowId -> rank }.toMap
+            val sql =
+              s"SELECT ${MessageId.name}, ${Conv.name}, ${Time.name}, ${module.snippet}, rowid FROM ${table.name} WHERE $where AND rowid IN (${ranks.keys.mkString(",")})"
+            forEachRow(db.rawQuery(sql, args)) { c =>
+              hits += MessageSearchHit(MessageId.col.load(c, 0), Conv.col.load(c, 1), Time.col.load(c, 2), c.getString(3), ranks(c.getLong(4)))
+            }
+          }
+          hits.sortBy(-_.rank)
+      }
     }
+
+  private def matchClause(queryText: String, convId: Option[ConvId]): (String, Array[String]) = convId match {
+    case Some(conv) => (s"${table.name} MATCH ? AND ${Conv.name} = ?", Array(queryText, conv.str))
+    case None       => (s"${table.name} MATCH ?", Array(queryText))
   }
 
   def findContentSimple(queries: Set[String], convId: Option[ConvId])(implicit db: DB): DBCursor ={
@@ -78,6 +181,25 @@ object MessageContentIndexDao extends Dao[MessageContentIndexEntry, MessageId] {
         db.query(table.name, IndexColumns, s"$likeQuery", null, null, null, s"${Time.name} DESC", SearchLimit)
     }
   }
+
+  /**
+    * Indexes up to `limit` text messages stored after `afterRowId`, returns the rowid to continue from,
+    * or None once all messages have been indexed.
+    */
+  def indexMessages(afterRowId: Long, limit: Int)(implicit db: DB): Option[Long] = {
+    val types = TextMessageTypes.map(t => s"'${MessageData.MessageTypeCodec.encode(t)}'").mkString(",")
+    val entries = ArrayBuffer.empty[MessageContentIndexEntry]
+    var lastRowId = afterRowId
+    var count = 0
+    forEachRow(db.rawQuery(s"SELECT rowid AS index_rowid, * FROM ${MessageDataDao.table.name} WHERE rowid > ? AND msg_type IN ($types) ORDER BY rowid LIMIT $limit", Array(afterRowId.toString))) { c =>
+      val msg = MessageDataDao(c)
+      if (!msg.isEphemeral) entries += MessageContentIndexEntry(msg)
+      lastRowId = c.getLong(0)
+      count += 1
+    }
+    replaceAll(entries)
+    if (count < limit) None else Some(lastRowId)
+  }
 }
 
 object MessageContentIndex {
@@ -85,4 +207,68 @@ object MessageContentIndex {
   val SearchLimit = MaxSearchResults.toString
   val UsingFTS = true
   val TextMessageTypes = Set(Message.Type.TEXT, Message.Type.TEXT_EMOJI_ONLY, Message.Type.RICH_MEDIA)
+
+  val SnippetStart = "\u0002"
+  val SnippetEnd = "\u0003"
+  val SnippetEllipsis = "…"
+  val SnippetTokens = 12
+
+  private[waz] val MaxSqlParams = 500
+  private[waz] val Bm25MatchInfo = "pcnalx"
+
+  def isIndexed(m: MessageData) = TextMessageTypes.contains(m.msgType) && !m.isEphemeral
+
+  sealed abstract class FtsModule(val name: String) {
+    def createSql: String
+    def snippet: String
+    def matchQuery(query: ContentSearchQuery): String
+  }
+
+  /**
+    * Only the content is tokenized, with prefix indexes for 2 and 3 characters so the short prefixes typed in the
+    * search box don't have to scan the whole term list.
+    */
+  case object Fts5 extends FtsModule("fts5") {
+    override val createSql = "CREATE VIRTUAL TABLE MessageContentIndex USING fts5(message_id UNINDEXED, conv_id UNINDEXED, content, time UNINDEXED, prefix='2 3')"
+    override val snippet = s"snippet(MessageContentIndex, 2, '$SnippetStart', '$SnippetEnd', '$SnippetEllipsis', $SnippetTokens)"
+    override def matchQuery(query: ContentSearchQuery) =
+      query.elements.map(e => "\"" + e.replace("\"", "\"\"") + "\"*").mkString(" ")
+  }
+
+  case object Fts4 extends FtsModule("fts4") {
+    override val createSql = "CREATE VIRTUAL TABLE MessageContentIndex USING fts4(message_id, conv_id, content, time, notindexed=message_id, notindexed=conv_id, notindexed=time, prefix=\"2,3\")"
+    override val snippet = s"snippet(MessageContentIndex, '$SnippetStart', '$SnippetEnd', '$SnippetEllipsis', 2, $SnippetTokens)"
+    override def matchQuery(query: ContentSearchQuery) =
+      query.elements.map(e => "\"" + e.replace("\"", "") + "*\"").mkString(" ")
+  }
+
+  private val K1 = 1.2
+  private val B = 0.75
+
+  /**
+    * Okapi BM25 over the `pcnalx` matchinfo of an FTS4 row, computed like the FTS5 built-in (including the idf floor
+    * for terms that are in more than half of the rows), but with the sign flipped so that higher is better.
+    */
+  def bm25(matchInfo: Array[Byte]): Double = {
+    val info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer()
+    val phrases = info.get(0)
+    val cols = info.get(1)
+    val rows = info.get(2).toDouble
+    val avgLength = 3
+    val length = 3 + cols
+    val hits = 3 + 2 * cols
+
+    var score = 0.0
+    for (p <- 0 until phrases; col <- 0 until cols) {
+      val x = hits + 3 * (p * cols + col)
+      val tf = info.get(x).toDouble
+      val avg = info.get(avgLength + col).toDouble
+      if (tf > 0 && avg > 0) {
+        val docs = info.get(x + 2).toDouble
+        val idf = math.max(1e-6, math.log((rows - docs + 0.5) / (docs + 0.5)))
+        score += idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * info.get(length + col) / avg))
+      }
+    }
+    score
+  }
 }
@@ -420,17 +420,17 @@ object MessageData
 
     def deleteForConv(id: ConvId)(implicit db: DB) = delete(Conv, id)
 
-    def deleteUpTo(id: ConvId, upTo: RemoteInstant)(implicit db: DB) = db.delete(table.name, s"${Conv.name} = '${id.str}' AND ${Time.name} <= ${Time(upTo)}", null)
+    def deleteUpTo(id: ConvId, upTo: RemoteInstant)(implicit db: DB) = db.delete(table.name, s"${Conv.name} = ? AND ${Time.name} <= ?", Array(Conv(id), Time(upTo)))
 
-    def first(conv: ConvId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = '$conv'", null, null, null, s"${Time.name} ASC", "1"))
+    def first(conv: ConvId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = ?", Array(Conv(conv)), null, null, s"${Time.name} ASC", "1"))
 
-    def last(conv: ConvId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = '$conv'", null, null, null, s"${Time.name} DESC", "1"))
+    def last(conv: ConvId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = ?", Array(Conv(conv)), null, null, s"${Time.name} DESC", "1"))
 
-    def lastSent(conv: ConvId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = '$conv' AND ${State.name} IN ('${Message.Status.SENT.name}', '${Message.Status.DELIVERED.name}')", null, null, null, s"${Time.name} DESC", "1"))
+    def lastSent(conv: ConvId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = ? AND ${State.name} IN ('${Message.Status.SENT.name}', '${Message.Status.DELIVERED.name}')", Array(Conv(conv)), null, null, s"${Time.name} DESC", "1"))
 
-    def lastFromSelf(conv: ConvId, selfUserId: UserId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = '${Conv(conv)}' AND ${User.name} = '${User(selfUserId)}' AND $userContentPredicate", null, null, null, s"${Time.name} DESC", "1"))
+    def lastFromSelf(conv: ConvId, selfUserId: UserId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = ? AND ${User.name} = ? AND $userContentPredicate", Array(Conv(conv), User(selfUserId)), null, null, s"${Time.name} DESC", "1"))
 
-    def lastFromOther(conv: ConvId, selfUserId: UserId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = '${Conv(conv)}' AND ${User.name} != '${User(selfUserId)}' AND $userContentPredicate", null, null, null, s"${Time.name} DESC", "1"))
+    def lastFromOther(conv: ConvId, selfUserId: UserId)(implicit db: DB) = single(db.query(table.name, null, s"${Conv.name} = ? AND ${User.name} != ? AND $userContentPredicate", Array(Conv(conv), User(selfUserId)), null, null, s"${Time.name} DESC", "1"))
 
     private val userContentPredicate = isUserContent.map(t => s"${Type.name} = '${Type(t)}'").mkString("(", " OR ", ")")
 
@@ -448,7 +448,7 @@ object MessageData
     )
 
     def deleteContentTypeMsgConv(id: ConvId, contentType: String)(implicit db: DB) = {
-      db.delete(table.name, s"${Conv.name} = '${id.toString}' AND ${ContentType.name} = '$contentType'", null)
+      db.delete(table.name, s"${Conv.name} = ? AND ${ContentType.name} = ?", Array(Conv(id), contentType))
     }
 
     private val MessageEntryColumns = Array(Id.name, User.name, Type.name, State.name, ContentSize.name)
@@ -460,62 +460,74 @@ object MessageData
       iteratingWithReader(MessageEntryReader)(db.query(table.name, MessageEntryColumns, s"${Conv.name} = ?", Array(convId.toString), null, null, null)).acquire(_ count p)
 
     def countNewer(convId: ConvId, time: RemoteInstant)(implicit db: DB) =
-      queryNumEntries(db, table.name, s"${Conv.name} = '${convId.str}' AND ${Time.name} > ${time.toEpochMilli}")
+      queryNumEntries(db, table.name, s"${Conv.name} = ? AND ${Time.name} > ?", Array(Conv(convId), Time(time)))
 
-    def countFailed(convId: ConvId)(implicit db: DB) = queryNumEntries(db, table.name, s"${Conv.name} = '${convId.str}' AND ${State.name} = '${Message.Status.FAILED}'")
+    def countFailed(convId: ConvId)(implicit db: DB) = queryNumEntries(db, table.name, s"${Conv.name} = ? AND ${State.name} = '${Message.Status.FAILED}'", Array(Conv(convId)))
 
-    def listLocalMessages(convId: ConvId)(implicit db: DB) = list(db.query(table.name, null, s"${Conv.name} = '$convId' AND ${State.name} in ('${Message.Status.DEFAULT}', '${Message.Status.PENDING}', '${Message.Status.FAILED}')", null, null, null, s"${Time.name} ASC"))
+    def listLocalMessages(convId: ConvId)(implicit db: DB) = list(db.query(table.name, null, s"${Conv.name} = ? AND ${State.name} in ('${Message.Status.DEFAULT}', '${Message.Status.PENDING}', '${Message.Status.FAILED}')", Array(Conv(convId)), null, null, s"${Time.name} ASC"))
 
     //TODO: use local instant?
     def findLocalFrom(convId: ConvId, time: RemoteInstant)(implicit db: DB) =
-      iterating(db.query(table.name, null, s"${Conv.name} = '$convId' AND ${State.name} in ('${Message.Status.DEFAULT}', '${Message.Status.PENDING}', '${Message.Status.FAILED}') AND ${Time.name} >= ${time.toEpochMilli}", null, null, null, s"${Time.name} ASC"))
+      iterating(db.query(table.name, null, s"${Conv.name} = ? AND ${State.name} in ('${Message.Status.DEFAULT}', '${Message.Status.PENDING}', '${Message.Status.FAILED}') AND ${Time.name} >= ?", Array(Conv(convId), Time(time)), null, null, s"${Time.name} ASC"))
 
     def findLatestUpTo(convId: ConvId, time: RemoteInstant)(implicit db: DB) =
-      single(db.query(table.name, null, s"${Conv.name} = '$convId' AND ${Time.name} < ${time.toEpochMilli}", null, null, null, s"${Time.name} DESC", "1"))
+      single(db.query(table.name, null, s"${Conv.name} = ? AND ${Time.name} < ?", Array(Conv(convId), Time(time)), null, null, s"${Time.name} DESC", "1"))
 
-    def findMessages(conv: ConvId)(implicit db: DB) = db.query(table.name, null, s"${Conv.name} = '$conv'", null, null, null, s"${Time.name} ASC")
+    def findMessages(conv: ConvId)(implicit db: DB) = db.query(table.name, null, s"${Conv.name} = ?", Array(Conv(conv)), null, null, s"${Time.name} ASC")
 
     def findMessagesFrom(conv: ConvId, time: RemoteInstant)(implicit db: DB) =
-      iterating(db.query(table.name, null, s"${Conv.name} = '$conv' and ${Time.name} >= ${time.toEpochMilli}", null, null, null, s"${Time.name} ASC"))
+      iterating(db.query(table.name, null, s"${Conv.name} = ? and ${Time.name} >= ?", Array(Conv(conv), Time(time)), null, null, s"${Time.name} ASC"))
 
     def findMessagesBetween(conv: ConvId, from: RemoteInstant, to: RemoteInstant)(implicit db: DB) =
-      iterating(db.query(table.name, null, s"${Conv.name} = '$conv' and ${Time.name} > ${from.toEpochMilli} and ${Time.name} <= ${to.toEpochMilli}", null, null, null, s"${Time.name} ASC"))
+      iterating(db.query(table.name, null, s"${Conv.name} = ? and ${Time.name} > ? and ${Time.name} <= ?", Array(Conv(conv), Time(from), Time(to)), null, null, s"${Time.name} ASC"))
 
     def findExpired(time: LocalInstant = LocalInstant.Now)(implicit db: DB) =
-      iterating(db.query(table.name, null, s"${ExpiryTime.name} IS NOT NULL and ${ExpiryTime.name} <= ${time.toEpochMilli}", null, null, null, s"${ExpiryTime.name} ASC"))
+      iterating(db.query(table.name, null, s"${ExpiryTime.name} IS NOT NULL and ${ExpiryTime.name} <= ?", Array(time.toEpochMilli.toString), null, null, s"${ExpiryTime.name} ASC"))
 
     def findExpiring()(implicit db: DB) =
       iterating(db.query(table.name, null, s"${ExpiryTime.name} IS NOT NULL AND ${Expired.name} = 0", null, null, null, s"${ExpiryTime.name} ASC"))
 
     def findEphemeral(conv: ConvId)(implicit db: DB) =
-      iterating(db.query(table.name, null, s"${Conv.name} = '${conv.str}' and ${Ephemeral.name} IS NOT NULL and ${ExpiryTime.name} IS NULL", null, null, null, s"${Time.name} ASC"))
+      iterating(db.query(table.name, null, s"${Conv.name} = ? and ${Ephemeral.name} IS NOT NULL and ${ExpiryTime.name} IS NULL", Array(Conv(conv)), null, null, s"${Time.name} ASC"))
 
     def findSystemMessage(conv: ConvId, serverTime: RemoteInstant, tpe: Message.Type, sender: UserId)(implicit db: DB) =
-      iterating(db.query(table.name, null, s"${Conv.name} = '${conv.str}' and ${Time.name} = ${Time(serverTime)} and ${Type.name} = '${Type(tpe)}' and ${User.name} = '${User(sender)}'", null, null, null, s"${Time.name} DESC"))
+      iterating(db.query(table.name, null, s"${Conv.name} = ? and ${Time.name} = ? and ${Type.name} = ? and ${User.name} = ?", Array(Conv(conv), Time(serverTime), Type(tpe), User(sender)), null, null, s"${Time.name} DESC"))
 
     private val IndexColumns = Array(Id.name, Time.name)
-    def msgIndexCursor(conv: ConvId)(implicit db: DB) = db.query(table.name, IndexColumns, s"${Conv.name} = '$conv'", null, null, null, s"${Time.name} ASC")
+    def msgIndexCursor(conv: ConvId)(implicit db: DB) = db.query(table.name, IndexColumns, s"${Conv.name} = ?", Array(Conv(conv)), null, null, s"${Time.name} ASC")
 
-    def msgCursor(conv: ConvId)(implicit db: DB) = db.query(table.name, null, s"${Conv.name} = '$conv'", null, null, null, s"${Time.name} DESC")
+    def msgCursor(conv: ConvId)(implicit db: DB) = db.query(table.name, null, s"${Conv.name} = ?", Array(Conv(conv)), null, null, s"${Time.name} DESC")
 
     def msgCursorNotMemberEvent(conv: ConvId,userId: UserId)(implicit db: DB) = db.query(table.name, null, s"${Conv.name} = ? AND ${Type.name} != ?  AND ((${Type.name} = ? AND ${User.name} = ?) OR ${Type.name} != ?)"
       , Array(conv.toString,MEMBER_LEAVE_TYPE,MEMBER_JOIN_TYPE,userId.str,MEMBER_JOIN_TYPE), null, null, s"${Time.name} DESC",s"${2000}")
 
     def countAtLeastAsOld(conv: ConvId, time: RemoteInstant)(implicit db: DB) =
-      queryNumEntries(db, table.name, s"""${Conv.name} = '${Conv(conv)}' AND ${Time.name} <= ${Time(time)}""")
+      queryNumEntries(db, table.name, s"${Conv.name} = ? AND ${Time.name} <= ?", Array(Conv(conv), Time(time)))
 
     def countLaterThan(conv: ConvId, time: RemoteInstant)(implicit db: DB) =
-      queryNumEntries(db, table.name, s"""${Conv.name} = '${Conv(conv)}' AND ${Time.name} > ${Time(time)}""")
-
-    def countSentByType(selfUserId: UserId, tpe: Message.Type)(implicit db: DB) = queryNumEntries(db, table.name, s"${User.name} = '${User(selfUserId)}' AND ${Type.name} = '${Type(tpe)}'")
+      queryNumEntries(db, table.name, s"${Conv.name} = ? AND ${Time.name} > ?", Array(Conv(conv), Time(time)))
+
+    /**
+      * Message counts per conversation in a single aggregate query for each chunk of conversations (sqlite limits the
+      * number of bound parameters), conversations without newer messages are left out.
+      */
+    def countsLaterThan(convs: Set[ConvId], time: RemoteInstant)(implicit db: DB): Map[ConvId, Long] =
+      convs.grouped(500).flatMap { group =>
+        val sql = s"SELECT ${Conv.name}, COUNT(*) FROM ${table.name} WHERE ${Conv.name} IN (${group.map(_ => "?").mkString(",")}) AND ${Time.name} > ? GROUP BY ${Conv.name}"
+        val c = db.rawQuery(sql, (group.toSeq.map(Conv(_)) :+ Time(time)).toArray)
+        try Iterator.continually(c.moveToNext()).takeWhile(identity).map(_ => ConvId(c.getString(0)) -> c.getLong(1)).toVector
+        finally c.close()
+      }.toMap
+
+    def countSentByType(selfUserId: UserId, tpe: Message.Type)(implicit db: DB) = queryNumEntries(db, table.name, s"${User.name} = ? AND ${Type.name} = ?", Array(User(selfUserId), Type(tpe)))
 
     def findByType(conv: ConvId, tpe: Message.Type)(implicit db: DB) =
-      iterating(db.query(table.name, null, s"${Conv.name} = '${Conv(conv)}' AND ${Type.name} = '${Type(tpe)}'", null, null, null, s"${Time.name} ASC"))
+      iterating(db.query(table.name, null, s"${Conv.name} = ? AND ${Type.name} = ?", Array(Conv(conv), Type(tpe)), null, null, s"${Time.name} ASC"))
 
     def queryByType(conv: ConvId, tpe: Message.Type)(implicit db: DB) =
-      list(db.query(table.name, null, s"${Conv.name} = '${Conv(conv)}' AND ${Type.name} = '${Type(tpe)}'", null, null, null, s"${Time.name} ASC"))
+      list(db.query(table.name, null, s"${Conv.name} = ? AND ${Type.name} = ?", Array(Conv(conv), Type(tpe)), null, null, s"${Time.name} ASC"))
 
-    def findQuotesOf(msgId: MessageId)(implicit db: DB) = list(db.query(table.name, null, s"${Quote.name} = '$msgId'", null, null, null, null))
+    def findQuotesOf(msgId: MessageId)(implicit db: DB) = list(db.query(table.name, null, s"${Quote.name} = ?", Array(msgId.str), null, null, null))
 
     def msgIndexCursorFiltered(conv: ConvId, types: Seq[TypeFilter], limit: Option[Int] = None)(implicit db: DB): DBCursor = {
       val builder = new SQLiteQueryBuilder()
@@ -17,27 +17,41 @@
  */
 package com.waz.model
 
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
+
 import com.waz.db.Dao
 import com.waz.db.Col._
-import com.waz.utils.Identifiable
+import com.waz.model.otr.ClientId
+import com.waz.utils.crypto.AESUtils
 import com.waz.utils.wrappers.{DB, DBCursor}
-import org.json
+import com.waz.utils.{Identifiable, JsonEncoder}
 import org.json.JSONObject
+import org.threeten.bp.Instant
+
+import scala.util.Try
 
 object PushNotificationEvents {
   implicit object PushNotificationEventsDao extends Dao[PushNotificationEvent, Uid] {
     private val PushId = id[Uid]('pushId).apply(_.pushId)
     private val Index = long('event_index)(_.index)
     private val Decrypted = bool('decrypted)(_.decrypted)
-    private val EventJson = text('event)(_.event.toString)
+    private val EventJson = opt(text('event))(_.rawEvent)
     private val Plain = opt(blob('plain))(_.plain)
     private val Transient = bool('transient)(_.transient)
+    private[waz] val EventType = text('event_type)(_.eventType)
+    private[waz] val Envelope = opt(blob('envelope))(_.envelope)
 
     override val idCol = PushId
-    override val table = Table("PushNotificationEvents", PushId, Index, Decrypted, EventJson, Plain, Transient)
+    override val table = Table("PushNotificationEvents", PushId, Index, Decrypted, EventJson, Plain, Transient, EventType, Envelope)
 
-    override def apply(implicit cursor: DBCursor): PushNotificationEvent =
-      PushNotificationEvent(PushId, Index, Decrypted, new json.JSONObject(cursor.getString(3)), Plain, Transient)
+    override def apply(implicit cursor: DBCursor): PushNotificationEvent = {
+      val row = PushNotificationEvent(PushId, Index, Decrypted, Option(EventType: String).getOrElse(""), EventJson, Envelope, Plain, Transient)
+      // rows stored before v2 get their type and envelope from json until the background conversion gets to them
+      if (row.eventType.nonEmpty || row.envelope.isDefined) row
+      else row.rawEvent.flatMap(json => Try(new JSONObject(json)).toOption).fold(row) { json =>
+        PushNotificationEvent.fromJson(row.pushId, row.index, json, row.transient).copy(decrypted = row.decrypted, plain = row.plain)
+      }
+    }
 
     override def onCreate(db: DB): Unit = {
       super.onCreate(db)
@@ -47,17 +61,128 @@ object PushNotificationEvents {
 
     def listDecrypted()(implicit db: DB) = list(db.query(table.name, null, s"${Decrypted.name} = 1", null, null, null, "event_index ASC"))
 
-    def listDecrypted(limit: Int)(implicit db: DB) = list(db.query(table.name, null, s"${Decrypted.name} = 1", null, null, null, "event_index ASC", s"$limit"))
+    def listDecrypted(limit: Int, exclude: Set[Uid] = Set.empty)(implicit db: DB) =
+      if (exclude.isEmpty) list(db.query(table.name, null, s"${Decrypted.name} = 1", null, null, null, "event_index ASC", s"$limit"))
+      else {
+        val ids = exclude.toSeq
+        list(db.query(table.name, null, s"${Decrypted.name} = 1 AND ${PushId.name} NOT IN (${ids.map(_ => "?").mkString(",")})", ids.map(_.str).toArray, null, null, "event_index ASC", s"$limit"))
+      }
 
     def listEncrypted()(implicit db: DB) = list(db.query(table.name, null, s"${Decrypted.name} = 0", null, null, null, "event_index ASC"))
   }
 }
 
+/**
+  * A stored push notification event.
+  *
+  * The event type is extracted once at ingest so that the push pipeline can route rows without parsing them. Otr
+  * messages, which make up nearly all of the traffic, are kept only as a binary [[OtrEnvelope]] holding the raw
+  * ciphertext; every other event keeps its original json in `rawEvent`, which is parsed on first access.
+  */
 case class PushNotificationEvent(pushId:    Uid,
                                  index:     Long,
                                  decrypted: Boolean = false,
-                                 event:     JSONObject,
+                                 eventType: String,
+                                 rawEvent:  Option[String],
+                                 envelope:  Option[Array[Byte]] = None,
                                  plain:     Option[Array[Byte]] = None,
                                  transient: Boolean) extends Identifiable[Uid] {
   override val id: Uid = pushId
+
+  lazy val otrEvent: Option[OtrMessageEvent] = envelope.flatMap(bytes => Try(OtrEnvelope.decode(bytes)).toOption)
+
+  lazy val event: JSONObject = rawEvent match {
+    case Some(json) => new JSONObject(json)
+    case None       => otrEvent.fold(new JSONObject())(OtrEnvelope.toJson)
+  }
+
+  def isOtrMessage: Boolean = eventType == PushNotificationEvent.OtrMessageAdd
+}
+
+object PushNotificationEvent {
+  val OtrMessageAdd = "conversation.otr-message-add"
+
+  def fromJson(pushId: Uid, index: Long, json: JSONObject, transient: Boolean): PushNotificationEvent = {
+    val eventType = json.optString("type")
+    val envelope =
+      if (eventType != OtrMessageAdd) None
+      else ConversationEvent.ConversationEventDecoder(json) match {
+        case ev: OtrMessageEvent => Some(OtrEnvelope.encode(ev))
+        case _                   => None
+      }
+    PushNotificationEvent(pushId, index, eventType = eventType, rawEvent = if (envelope.isDefined) None else Some(json.toString), envelope = envelope, transient = transient)
+  }
+}
+
+/**
+  * Compact binary encoding of an [[OtrMessageEvent]], so that decryption doesn't have to go through json, iso date
+  * parsing and base64 for every stored message.
+  */
+object OtrEnvelope {
+  val Version = 1
+
+  def encode(ev: OtrMessageEvent): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream(ev.ciphertext.length + ev.externalData.fold(0)(_.length) + 160)
+    val out = new DataOutputStream(bytes)
+    out.writeByte(Version)
+    out.writeUTF(ev.convId.str)
+    out.writeLong(ev.time.instant.getEpochSecond)
+    out.writeInt(ev.time.instant.getNano)
+    out.writeUTF(ev.from.str)
+    out.writeUTF(ev.sender.str)
+    out.writeUTF(ev.recipient.str)
+    out.writeInt(ev.ciphertext.length)
+    out.write(ev.ciphertext)
+    ev.externalData match {
+      case Some(data) =>
+        out.writeInt(data.length)
+        out.write(data)
+      case None =>
+        out.writeInt(-1)
+    }
+    out.flush()
+    bytes.toByteArray
+  }
+
+  def decode(bytes: Array[Byte]): OtrMessageEvent = {
+    val in = new DataInputStream(new ByteArrayInputStream(bytes))
+    val version = in.readByte()
+    if (version != Version) throw new IllegalArgumentException(s"Unsupported otr envelope version: $version")
+
+    def readBytes(length: Int) = {
+      val buffer = new Array[Byte](length)
+      in.readFully(buffer)
+      buffer
+    }
+
+    val convId    = RConvId(in.readUTF())
+    val time      = RemoteInstant(Instant.ofEpochSecond(in.readLong(), in.readInt()))
+    val from      = UserId(in.readUTF())
+    val sender    = ClientId(in.readUTF())
+    val recipient = ClientId(in.readUTF())
+    val text      = readBytes(in.readInt())
+    val data      = in.readInt() match {
+      case -1 => None
+      case n  => Some(readBytes(n))
+    }
+    OtrMessageEvent(convId, time, from, sender, recipient, text, data)
+  }
+
+  /**
+    * Rebuilds the backend representation, only used for rows that are accessed as json after all.
+    */
+  def toJson(ev: OtrMessageEvent): JSONObject = {
+    val data = new JSONObject()
+      .put("sender", ev.sender.str)
+      .put("recipient", ev.recipient.str)
+      .put("text", AESUtils.base64(ev.ciphertext))
+    ev.externalData.foreach(d => data.put("data", AESUtils.base64(d)))
+
+    new JSONObject()
+      .put("type", PushNotificationEvent.OtrMessageAdd)
+      .put("conversation", ev.convId.str)
+      .put("time", JsonEncoder.encodeISOInstant(ev.time.instant))
+      .put("from", ev.from.str)
+      .put("data", data)
+  }
 }
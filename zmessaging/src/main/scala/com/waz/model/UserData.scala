@@ -317,18 +317,19 @@ object UserData {
 
     def search(prefix: SearchKey, handleOnly: Boolean, teamId: Option[TeamId])(implicit db: DB): Set[UserData] = {
       val select = s"SELECT u.* FROM ${table.name} u WHERE "
-      val handleCondition =
+      val (handleCondition, handleArgs) =
         if (handleOnly){
-          s"""u.${Handle.name} LIKE '%${prefix.asciiRepresentation}%'""".stripMargin
+          (s"u.${Handle.name} LIKE ?", Seq(s"%${prefix.asciiRepresentation}%"))
         } else {
-          s"""(
-             |     u.${SKey.name} LIKE '${SKey(prefix)}%'
-             |     OR u.${SKey.name} LIKE '% ${SKey(prefix)}%'
-             |     OR u.${Handle.name} LIKE '%${prefix.asciiRepresentation}%')""".stripMargin
+          (s"""(
+             |     u.${SKey.name} LIKE ?
+             |     OR u.${SKey.name} LIKE ?
+             |     OR u.${Handle.name} LIKE ?)""".stripMargin,
+            Seq(s"${SKey(prefix)}%", s"% ${SKey(prefix)}%", s"%${prefix.asciiRepresentation}%"))
         }
-      val teamCondition = teamId.map(tId => s"AND u.${TeamId.name} = '$tId'")
+      val (teamCondition, teamArgs) = teamId.fold(("", Seq.empty[String]))(tId => (s" AND u.${TeamId.name} = ?", Seq(tId.str)))
 
-      list(db.rawQuery(select + " " + handleCondition + teamCondition.map(qu => s" $qu").getOrElse(""), null)).toSet
+      list(db.rawQuery(select + " " + handleCondition + teamCondition, (handleArgs ++ teamArgs).toArray)).toSet
     }
 
     def findForTeams(teams: Set[TeamId])(implicit db: DB) = iterating(findInSet(TeamId, teams.map(Option(_))))
@@ -33,6 +33,7 @@ import com.waz.service.AccountManager.ClientRegistrationState.{LimitReached, Pas
 import com.waz.service.UserService.UnsplashUrl
 import com.waz.service.assets.AssetService.RawAssetInput.UriInput
 import com.waz.service.backup.BackupManager
+import com.waz.service.backup.BackupManager.BackupProgress
 import com.waz.service.otr.OtrService.SessionId
 import com.waz.service.tracking.LoggedOutEvent
 import com.waz.sync.client.InvitationClient.ConfirmedTeamInvitation
@@ -62,7 +63,7 @@ class AccountManager(val userId:   UserId,
                      isLogin:     Option[Boolean]) extends DerivedLogTag {
   import AccountManager._
 
-  implicit val dispatcher = new SerialDispatchQueue()
+  implicit val dispatcher = new SerialDispatchQueue(name = "AccountManager")
   implicit val accountContext: AccountContext = new AccountContext(userId, accounts)
   verbose(l"Creating for: $userId, team: $teamId, initialSelf: $initialSelf, startJustAfterBackup: $startedJustAfterBackup, isLogin: $isLogin")
 
@@ -263,7 +264,7 @@ class AccountManager(val userId:   UserId,
     }
   }
 
-  def exportDatabase(password: Password, targetDir: Option[File] = None): Future[File] = {
+  def exportDatabase(password: Password, targetDir: Option[File] = None, progress: BackupProgress => Unit = BackupProgress.Ignore): Future[File] = {
     verbose(l"exportDatabase")
     val backup = for {
       zms <- zmessaging
@@ -275,7 +276,8 @@ class AccountManager(val userId:   UserId,
         userHandle = user.handle.map(_.string).getOrElse(""),
         databaseDir = context.getDatabasePath(userId.str).getParentFile,
         targetDir = targetDir.getOrElse(context.getExternalCacheDir),
-        backupPassword = password
+        backupPassword = password,
+        progress = progress
       )
       _      =  global.trackingService.historyBackedUp(backup.isSuccess)
     } yield backup.get
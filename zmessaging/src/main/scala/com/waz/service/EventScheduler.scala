@@ -17,6 +17,8 @@
  */
 package com.waz.service
 
+import java.util.BitSet
+
 import com.waz.log.BasicLogging.LogTag
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
 import com.waz.log.LogSE._
@@ -25,53 +27,31 @@ import com.waz.threading.Threading
 import com.waz.utils._
 
 import scala.collection.breakOut
+import scala.collection.immutable.VectorBuilder
+import scala.concurrent.Future
 import scala.concurrent.Future.{successful, traverse}
-import scala.concurrent.{Future, Promise}
 import scala.reflect.ClassTag
-
-class EventScheduler(layout: EventScheduler.Stage) extends DerivedLogTag {
+import scala.util.control.NonFatal
+
+/**
+  * Events are processed per conversation: events of one conversation are always processed in order, one schedule
+  * at a time, while different conversations are processed concurrently, up to `parallelism` at once.
+  * Conversations over the limit wait for a free slot, and `enqueue` only completes once all its events were processed.
+  */
+class EventScheduler(layout: EventScheduler.Stage, parallelism: Int = EventScheduler.DefaultParallelism) extends DerivedLogTag {
   import EventScheduler._
 
-  private val queue = new GroupedEventProcessingQueue[Event, RConvId](RConvEvent, (c, e) => executeSchedule(c, createSchedule(e)), "EventScheduler")
-
-  def enqueue(events: Traversable[Event]): Future[Unit] = queue.enqueue(events.to[Vector]).recoverWithLog()
-
-  def post[A](conv: RConvId)(task: => Future[A]) = queue.post(conv)(task) // TODO this is rather hacky; maybe it could be replaced with a kind of "internal" event, i.e. events caused by events
+  private val plan = Plan(layout)
 
-  def createSchedule(events: Traversable[Event]): Schedule = schedule(layout, events.toStream)
+  private val limiter = new ConcurrencyLimiter(parallelism)
 
-  private def schedule(stage: Stage, events: Stream[Event]): Schedule = {
-    val eligible = events.filter(stage.isEligible)
+  private val queue = new GroupedEventProcessingQueue[Event, RConvId](RConvEvent, (c, e) => limiter(executeSchedule(c, createSchedule(e))), "EventScheduler")
 
-    val logTag: LogTag = stage match {
-      case s: Stage.Atomic => s.eventTag
-      case Stage.Composite(strat: Strategy, _) => LogTag(strat.getClass.getSimpleName)
-    }
-    verbose(l"scheduling ${eligible.size} eligible events from total ${events.size}")(LogTag(s"${LogTag[Stage].value}[${logTag.value}]"))
-
-    if (eligible.isEmpty) NOP else stage match {
-      case s: Stage.Atomic =>
-        Leaf(s, eligible.toVector)
-
-      case Stage.Composite(strat: ExecutionStrategy, stages) =>
-        Branch(strat, stages.toStream.map(s => schedule(s, eligible)))
-
-      case Stage.Composite(Interleaved, stages) =>
-        def interleave(es: Stream[Event]): Stream[(Stage, Event)] = es match {
-          case Stream.Empty   => Stream.Empty
-          case event #:: tail => stages.to[Stream].filter(_.isEligible(event)).map(stage => (stage, event)) #::: interleave(tail)
-        }
+  def enqueue(events: Traversable[Event]): Future[Unit] = queue.enqueue(events.to[Vector]).recoverWithLog()
 
-        def compact(stagedEvents: Stream[(Stage, Event)]): Stream[Schedule] = stagedEvents match {
-          case Stream.Empty => Stream.Empty
-          case (staged @ (stage, event)) #:: tail =>
-            val (groupable, remaining) = tail.span(_._1 == stage)
-            schedule(stage, (staged #:: groupable).map(_._2)(breakOut)) #:: compact(remaining)
-        }
+  def post[A](conv: RConvId)(task: => Future[A]) = queue.post(conv)(task) // TODO this is rather hacky; maybe it could be replaced with a kind of "internal" event, i.e. events caused by events
 
-        Branch(Sequential, compact(interleave(eligible)))
-    }
-  }
+  def createSchedule(events: Traversable[Event]): Schedule = plan.schedule(events)
 }
 
 object EventScheduler {
@@ -83,6 +63,12 @@ object EventScheduler {
   case object Parallel extends SchedulingStrategy with ExecutionStrategy
   case object Interleaved extends SchedulingStrategy
 
+  /**
+    * Conversations processed at once. Stages mostly wait for storage, so this is about keeping all cores busy
+    * during catch-up, not about the stages themselves.
+    */
+  val DefaultParallelism = Threading.Cpus * 2
+
   sealed trait Stage {
     def isEligible(e: Event): Boolean
   }
@@ -119,38 +105,146 @@ object EventScheduler {
   }
 
   sealed trait Schedule
-  case class Branch(strategy: ExecutionStrategy, schedules: Stream[Schedule]) extends Schedule
+  case class Branch(strategy: ExecutionStrategy, schedules: Vector[Schedule]) extends Schedule
   case class Leaf(stage: Stage.Atomic, events: Vector[Event]) extends Schedule
   val NOP = Leaf(Stage[Event]((s, e) => successful(()), _ => false), Vector.empty)
 
+  /**
+    * Stage layout compiled once per scheduler. Atomic stages are numbered in depth-first order, so every composite
+    * stage covers a contiguous range of them. Eligibility of an event is then checked once per atomic stage and kept
+    * in a bit set, instead of re-evaluating `isEligible` of every composite on every level of the layout.
+    */
+  private[service] final class Plan private (root: Plan.Node, atoms: Array[Stage.Atomic]) {
+    import Plan._
+
+    def schedule(events: Traversable[Event]): Schedule = {
+      val staged: Vector[Staged] = events.map { e =>
+        val eligible = new BitSet(atoms.length)
+        var i = 0
+        while (i < atoms.length) {
+          if (atoms(i).isEligible(e)) eligible.set(i)
+          i += 1
+        }
+        Staged(e, eligible)
+      } (breakOut)
+      schedule(root, staged, staged.size)
+    }
+
+    private def schedule(node: Node, events: Vector[Staged], total: Int): Schedule = {
+      val eligible = events.filter(node.isEligible)
+      verbose(l"scheduling ${eligible.size} eligible events from total $total")(node.logTag)
+
+      if (eligible.isEmpty) NOP else node match {
+        case AtomicNode(stage, _) =>
+          Leaf(stage, eligible.map(_.event))
+
+        case CompositeNode(strategy: ExecutionStrategy, children, _, _) =>
+          Branch(strategy, children.map(schedule(_, eligible, eligible.size)))
+
+        case CompositeNode(_, children, _, _) => // interleaved
+          // consecutive runs of events eligible for the same child stage are scheduled together, in event order
+          val schedules = new VectorBuilder[Schedule]
+          var current = -1
+          var group = new VectorBuilder[Staged]
+
+          def flush(): Unit = if (current >= 0) {
+            val groupEvents = group.result()
+            schedules += schedule(children(current), groupEvents, groupEvents.size)
+            group = new VectorBuilder[Staged]
+          }
+
+          eligible foreach { e =>
+            var c = 0
+            while (c < children.length) {
+              if (children(c).isEligible(e)) {
+                if (c != current) {
+                  flush()
+                  current = c
+                }
+                group += e
+              }
+              c += 1
+            }
+          }
+          flush()
+          Branch(Sequential, schedules.result())
+      }
+    }
+  }
+
+  private[service] object Plan {
+
+    def apply(layout: Stage): Plan = {
+      val atoms = Vector.newBuilder[Stage.Atomic]
+      var count = 0
+
+      def compile(stage: Stage): Node = stage match {
+        case s: Stage.Atomic =>
+          atoms += s
+          count += 1
+          AtomicNode(s, count - 1)
+        case Stage.Composite(strategy, stages) =>
+          val from = count
+          val children = stages.map(compile)
+          CompositeNode(strategy, children, from, count)
+      }
+
+      val root = compile(layout)
+      new Plan(root, atoms.result().toArray)
+    }
+
+    case class Staged(event: Event, eligible: BitSet)
+
+    sealed trait Node {
+      def isEligible(e: Staged): Boolean
+      def logTag: LogTag
+    }
+
+    case class AtomicNode(stage: Stage.Atomic, index: Int) extends Node {
+      override def isEligible(e: Staged): Boolean = e.eligible.get(index)
+      override val logTag: LogTag = LogTag(s"${LogTag[Stage].value}[${stage.eventTag.value}]")
+    }
+
+    // covers atomic stages [from, until)
+    case class CompositeNode(strategy: SchedulingStrategy, children: Vector[Node], from: Int, until: Int) extends Node {
+      override def isEligible(e: Staged): Boolean = {
+        val next = e.eligible.nextSetBit(from)
+        next >= 0 && next < until
+      }
+      override val logTag: LogTag = LogTag(s"${LogTag[Stage].value}[${strategy.getClass.getSimpleName}]")
+    }
+  }
+
+  /**
+    * Failing stages don't stop the schedule, the remaining stages are executed anyway.
+    * Stages that complete synchronously are chained in a loop, without a round trip through the executor.
+    */
   def executeSchedule(conv: RConvId, schedule: Schedule): Future[Unit] = {
     import Threading.Implicits.Background
 
-    def dfs(s: Stream[Schedule]): Future[Unit] = s match {
-      case Stream.Empty =>
+    def execute(s: Schedule): Future[Unit] = s match {
+      case NOP =>
         successful(())
 
-      case NOP #:: remaining =>
-        dfs(remaining)
+      case Leaf(stage, events) =>
+        val f = try stage(conv, events) catch { case NonFatal(e) => Future.failed(e) }
+        if (f.isCompleted) successful(()) else f.map(_ => ()).recover { case _ => () }
 
-      case Leaf(stage, events) #:: remaining =>
-        val p = Promise[Unit]()
-        stage(conv, events).onComplete {
-          case _ => p.completeWith(dfs(remaining))
-        }
-        p.future
-
-      case Branch(Sequential, schedules) #:: remaining =>
-        dfs(schedules #::: remaining)
+      case Branch(Sequential, schedules) =>
+        sequentially(schedules, 0)
 
-      case Branch(Parallel, schedules) #:: remaining =>
-        val p = Promise[Unit]()
-        traverse(schedules)(s => dfs(Stream(s))).onComplete {
-          case _ => p.completeWith(dfs(remaining))
-        }
-        p.future
+      case Branch(Parallel, schedules) =>
+        traverse(schedules)(execute).map(_ => ())
     }
 
-    dfs(Stream(schedule))
+    def sequentially(schedules: Vector[Schedule], i: Int): Future[Unit] =
+      if (i >= schedules.size) successful(())
+      else {
+        val f = execute(schedules(i))
+        if (f.isCompleted) sequentially(schedules, i + 1)
+        else f.flatMap(_ => sequentially(schedules, i + 1))
+      }
+
+    execute(schedule)
   }
 }
@@ -19,6 +19,7 @@ package com.waz.service
 
 import java.io._
 import java.util.concurrent.CountDownLatch
+import java.util.zip.GZIPInputStream
 
 import android.content.Context
 import com.waz.log.LogSE._
@@ -160,7 +161,8 @@ class GlobalReportingService(context: Context, cache: CacheService, metadata: Me
         .map(new File(_))
         .filter(_.exists)
         .foreach { file =>
-          IoUtils.withResource(new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+          val in = if (file.getName.endsWith(".gz")) new GZIPInputStream(new FileInputStream(file)) else new FileInputStream(file)
+          IoUtils.withResource(new BufferedReader(new InputStreamReader(in))) {
             reader => Iterator.continually(reader.readLine()).takeWhile(_ != null).foreach(writer.println)
           }
         }
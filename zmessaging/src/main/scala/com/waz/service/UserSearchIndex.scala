@@ -0,0 +1,106 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.service
+
+import com.waz.model.{Handle, UserData, UserId}
+
+import scala.collection.immutable.SortedMap
+
+/**
+  * Persistent prefix index over the words of the users' transliterated names (their search keys) and their handles.
+  * Words and handles are kept in sorted maps, so a prefix query is one O(log n) seek followed by a walk over the
+  * matching keys only, the same lookup a trie would do. Updates return a new index sharing most of its structure.
+  *
+  * Lookups return a superset of the users accepted by `UserData.matchesFilter`, which is still used to check them:
+  * remarks match anywhere inside, so the (few) users having one are always checked.
+  */
+final class UserSearchIndex private (val users:                 Map[UserId, UserData],
+                                     private val words:      SortedMap[String, Set[UserId]],
+                                     private val handles:    SortedMap[String, Set[UserId]],
+                                     private val emails:     SortedMap[String, Set[UserId]],
+                                     private val withRemark: Set[UserId]) {
+  import UserSearchIndex._
+
+  def size: Int = users.size
+
+  def +(user: UserData): UserSearchIndex = {
+    val index = this - user.id
+    new UserSearchIndex(
+      index.users + (user.id -> user),
+      wordsOf(user).foldLeft(index.words)(add(_, _, user.id)),
+      user.handle.fold(index.handles)(h => add(index.handles, h.string, user.id)),
+      user.email.fold(index.emails)(e => add(index.emails, e.str.toLowerCase, user.id)),
+      if (user.remark.exists(_.nonEmpty)) index.withRemark + user.id else index.withRemark
+    )
+  }
+
+  def -(id: UserId): UserSearchIndex = users.get(id).fold(this) { user =>
+    new UserSearchIndex(
+      users - id,
+      wordsOf(user).foldLeft(words)(remove(_, _, id)),
+      user.handle.fold(handles)(h => remove(handles, h.string, id)),
+      user.email.fold(emails)(e => remove(emails, e.str.toLowerCase, id)),
+      withRemark - id
+    )
+  }
+
+  def ++(us: TraversableOnce[UserData]): UserSearchIndex = us.foldLeft(this)(_ + _)
+
+  def --(ids: TraversableOnce[UserId]): UserSearchIndex = ids.foldLeft(this)(_ - _)
+
+  /**
+    * Users matching the filter the same way as `UserData.matchesFilter`, an empty filter matches everyone.
+    */
+  def search(filter: String): Iterable[UserData] =
+    if (filter.trim.isEmpty) users.values
+    else {
+      val handleOnly = Handle.isHandle(filter)
+      candidates(filter, handleOnly).iterator.flatMap(users.get).filter(_.matchesFilter(filter, handleOnly)).toVector
+    }
+
+  private def candidates(filter: String, handleOnly: Boolean): Set[UserId] = {
+    val byHandle = withPrefix(handles, Handle.stripSymbol(filter).toLowerCase)
+    if (handleOnly) byHandle ++ withRemark
+    else {
+      val byName = SearchKey(filter).asciiRepresentation.split(' ').find(_.nonEmpty).fold(Set.empty[UserId])(withPrefix(words, _))
+      byHandle ++ byName ++ emails.getOrElse(filter.trim.toLowerCase, Set.empty) ++ withRemark
+    }
+  }
+}
+
+object UserSearchIndex {
+
+  val Empty = new UserSearchIndex(Map.empty, SortedMap.empty, SortedMap.empty, SortedMap.empty, Set.empty)
+
+  def apply(users: TraversableOnce[UserData]): UserSearchIndex = Empty ++ users
+
+  private def wordsOf(user: UserData): Set[String] =
+    user.searchKey.asciiRepresentation.split(' ').iterator.filter(_.nonEmpty).toSet
+
+  private def withPrefix(map: SortedMap[String, Set[UserId]], prefix: String): Set[UserId] =
+    map.iteratorFrom(prefix).takeWhile(_._1.startsWith(prefix)).foldLeft(Set.empty[UserId])(_ ++ _._2)
+
+  private def add(map: SortedMap[String, Set[UserId]], key: String, id: UserId): SortedMap[String, Set[UserId]] =
+    map + (key -> (map.getOrElse(key, Set.empty) + id))
+
+  private def remove(map: SortedMap[String, Set[UserId]], key: String, id: UserId): SortedMap[String, Set[UserId]] =
+    map.get(key).fold(map) { ids =>
+      val rest = ids - id
+      if (rest.isEmpty) map - key else map + (key -> rest)
+    }
+}
@@ -148,22 +148,43 @@ class UserSearchService(selfUserId: UserId,
       }._2
     }
 
-  private def searchLocal(filter: Filter, excluded: Set[UserId] = Set.empty, showBlockedUsers: Boolean = false, isHandle: Boolean = false): Signal[IndexedSeq[UserData]] = {
-    for {
-      connected <- userService.acceptedOrBlockedUsers.map(_.values)
-    } yield {
-      connected.filter { user =>
+  /**
+    * Prefix index over the users that can show up in local results, kept up to date from the storage events instead
+    * of filtering every connected user on each keystroke.
+    */
+  private lazy val localIndex: Signal[UserSearchIndex] = {
+    val changes = EventStream.union(
+      usersStorage.onChanged.map(_.map(Left(_))),
+      usersStorage.onDeleted.map(_.map(Right(_)))
+    )
+    new AggregatingSignal[Seq[Either[UserData, UserId]], UserSearchIndex](
+      changes,
+      usersStorage.listUsersByConnectionStatus(UserService.AcceptedOrBlocked).map(us => UserSearchIndex(us.values.filter(isSearchable))),
+      { (index, cs) =>
+        cs.foldLeft(index) {
+          case (idx, Left(user)) if isSearchable(user) => idx + user
+          case (idx, Left(user))                       => idx - user.id
+          case (idx, Right(id))                        => idx - id
+        }
+      }
+    )
+  }
+
+  private def isSearchable(user: UserData) =
+    UserService.AcceptedOrBlocked(user.connection) &&
+      selfUserId != user.id &&
+      !user.isRobotUser &&
+      !user.isWireBot &&
+      !user.deleted &&
+      user.expiresAt.isEmpty
+
+  private def searchLocal(filter: Filter, excluded: Set[UserId] = Set.empty, showBlockedUsers: Boolean = false, isHandle: Boolean = false): Signal[IndexedSeq[UserData]] =
+    localIndex.map { index =>
+      index.search(filter).filter { user =>
         !excluded.contains(user.id) &&
-          selfUserId != user.id &&
-          !user.isRobotUser &&
-          !user.isWireBot &&
-          !user.deleted &&
-          user.expiresAt.isEmpty &&
-          user.matchesFilter(filter) &&
           (showBlockedUsers || (user.connection != ConnectionStatus.Blocked))
       }.toIndexedSeq
     }
-  }
 
   private def sortUsers(results: IndexedSeq[UserData], filter: Filter, isHandle: Boolean, symbolStripped: Filter): IndexedSeq[UserData] = {
     def toLower(str: String) = Locales.transliteration.transliterate(str).trim.toLowerCase
@@ -179,14 +200,8 @@ class UserSearchService(selfUserId: UserId,
         if (userName == toLowerSymbolStripped) 0 else if (userName.startsWith(toLowerSymbolStripped)) 1 else 2
       }
 
-    results.sortWith { case (u1, u2) =>
-      val b1 = bucket(u1)
-      val b2 = bucket(u2)
-      if (b1 == b2)
-        u1.getDisplayName.compareTo(u2.getDisplayName) < 0
-      else
-        b1 < b2
-    }
+    // buckets transliterate the names, so they are computed once per user rather than once per comparison
+    results.map(u => (bucket(u), u.getDisplayName.str, u)).sortBy(e => (e._1, e._2)).map(_._3)
   }
 
 
@@ -294,14 +309,12 @@ class UserSearchService(selfUserId: UserId,
   }
 
   private def topPeople = {
-    def messageCount(u: UserData) = messages.countLaterThan(ConvId(u.id.str), LocalInstant.Now.toRemote(Duration.Zero) - topPeopleMessageInterval)
-
-    val loadTopUsers = (for {
-      conns <- usersStorage.find[UserData, Vector[UserData]](topPeoplePredicate, db => UserDataDao.topPeople(db), identity)
-      messageCounts <- Future.sequence(conns.map(messageCount))
-    } yield conns.zip(messageCounts)).map { counts =>
-      counts.filter(_._2 > 0).sortBy(_._2)(Ordering[Long].reverse).take(MaxTopPeople).map(_._1)
-    }
+    // one-to-one conversations share their id with the other user
+    val loadTopUsers = for {
+      conns  <- usersStorage.find[UserData, Vector[UserData]](topPeoplePredicate, db => UserDataDao.topPeople(db), identity)
+      counts <- messages.countsLaterThan(conns.map(u => ConvId(u.id.str)).toSet, LocalInstant.Now.toRemote(Duration.Zero) - topPeopleMessageInterval)
+    } yield
+      conns.map(u => u -> counts.getOrElse(ConvId(u.id.str), 0L)).filter(_._2 > 0).sortBy(_._2)(Ordering[Long].reverse).take(MaxTopPeople).map(_._1)
 
     Signal.future(loadTopUsers).map(_.toIndexedSeq)
   }
@@ -40,7 +40,7 @@ import scala.util.Try
 class PCMPlayer private (content: PCMContent, track: AudioTrack, totalSamples: Long, stream: FileInputStream, observer: Player.Observer) extends Player {
   import PCMPlayer._
 
-  private implicit val dispatcher = new SerialDispatchQueue(Threading.BlockingIO)
+  private implicit val dispatcher = new SerialDispatchQueue(Threading.BlockingIO, "PCMPlayer")
   private val buffer = ByteBuffer.allocateDirect(bufferSizeInShorts * SizeOf.SHORT).order(LITTLE_ENDIAN)
   private def channel = stream.getChannel
 
@@ -20,7 +20,7 @@ package com.waz.service.backup
 import java.io._
 import java.text.SimpleDateFormat
 import java.util.Locale
-import java.util.zip.{ZipFile, ZipOutputStream}
+import java.util.zip.{ZipFile, ZipInputStream, ZipOutputStream}
 
 import android.text.TextUtils
 import com.waz.db.ZMessagingDB
@@ -33,8 +33,9 @@ import com.waz.service.backup.BackupManager.InvalidBackup.{DbEntryNotFound, Meta
 import com.waz.service.backup.BackupManager._
 import com.waz.utils.IoUtils.withResource
 import com.waz.utils.Json.syntax._
-import com.waz.utils.crypto.LibSodiumUtils
+import com.waz.utils.crypto.{DecryptingInputStream, EncryptingOutputStream, LibSodiumUtils}
 import com.waz.utils.{IoUtils, JsonDecoder, JsonEncoder, RichTry, returning}
+import com.waz.znet2.ProgressInputStream
 import org.json.JSONObject
 import org.threeten.bp.Instant
 
@@ -46,12 +47,14 @@ trait BackupManager {
                      userHandle: String,
                      databaseDir: File,
                      targetDir: File,
-                     backupPassword: Password): Try[File]
+                     backupPassword: Password,
+                     progress: BackupProgress => Unit = BackupProgress.Ignore): Try[File]
   def importDatabase(userId: UserId,
                      exportFile: File,
                      targetDir: File,
                      backupPassword: Password,
-                     currentDbVersion: Int = BackupMetadata.currentDbVersion): Try[File]
+                     currentDbVersion: Int = BackupMetadata.currentDbVersion,
+                     progress: BackupProgress => Unit = BackupProgress.Ignore): Try[File]
 }
 
 object BackupManager {
@@ -111,6 +114,15 @@ object BackupManager {
                             creationTime: Instant = Instant.now(),
                             platform: String = BackupMetadata.currentPlatform)
 
+  /**
+    * Bytes of the database files zipped so far when exporting, bytes of the backup file read when importing.
+    */
+  case class BackupProgress(processed: Long, total: Long)
+
+  object BackupProgress {
+    val Ignore: BackupProgress => Unit = _ => ()
+  }
+
   def backupZipFileName(userHandle: String): String = {
     val timestamp = new SimpleDateFormat("yyyyMMddHHmm", Locale.getDefault()).format(Instant.now().getEpochSecond * 1000)
     s"Secret-$userHandle-Backup_$timestamp.android_wbu"
@@ -130,120 +142,200 @@ class BackupManagerImpl(libSodiumUtils: LibSodiumUtils) extends BackupManager wi
   // This way we save memory, but it means that it takes longer before we can release the lock.
   // If this becomes the problem, we might consider first copying the database file(s) to the
   // external storage directory, release the lock, and then safely proceed with zipping them.
+  // With a password the zip is encrypted on the fly, chunk by chunk, so memory use doesn't depend on database size.
   override def exportDatabase(userId:         UserId,
                               userHandle:     String,
                               databaseDir:    File,
                               targetDir:      File,
-                              backupPassword: Password): Try[File] = {
+                              backupPassword: Password,
+                              progress:       BackupProgress => Unit): Try[File] = {
     verbose(l"exportDatabase($userId, $userHandle, ${databaseDir.getAbsolutePath}, ${Option(backupPassword)}")
-    val backup = Try {
-      returning(new File(targetDir, backupZipFileName(userHandle))) { zipFile =>
-        zipFile.deleteOnExit()
+    val backupFile = new File(targetDir, backupZipFileName(userHandle))
 
-        withResource(new ZipOutputStream(new FileOutputStream(zipFile))) { zip =>
+    Try {
+      backupFile.deleteOnExit()
+
+      val metadata = BackupMetadata(userId).toJsonString.getBytes("utf8")
+      val dbFile = new File(databaseDir, getDbFileName(userId))
+      val walFile = new File(databaseDir, getDbWalFileName(userId))
+      verbose(l"file: $dbFile exists: ${dbFile.exists}, length: ${if (dbFile.exists) dbFile.length else 0}")
+      verbose(l"WAL file: $walFile exists: ${walFile.exists}, length: ${if (walFile.exists) walFile.length else 0}")
+
+      val files = (dbFile +: Seq(walFile).filter(_.exists)).map(f => f.getName -> f)
+      val listener = progressListener(metadata.length + files.map(_._2.length).sum, progress)
+      def counting(in: InputStream) = new ProgressInputStream(in, listener)
+
+      val out = new BufferedOutputStream(new FileOutputStream(backupFile))
+      // the zip stream closes the file once it's created, until then a failure has to close it here
+      val target =
+        try if (isEmpty(backupPassword)) out else encryptingStream(out, backupPassword, userId)
+        catch {
+          case e: Throwable =>
+            out.close()
+            throw e
+        }
 
-          withResource(new ByteArrayInputStream(BackupMetadata(userId).toJsonString.getBytes("utf8"))) {
-            IoUtils.writeZipEntry(_, zip, backupMetadataFileName)
+      withResource(new ZipOutputStream(target)) { zip =>
+        withResource(counting(new ByteArrayInputStream(metadata))) {
+          IoUtils.writeZipEntry(_, zip, backupMetadataFileName)
+        }
+        files foreach { case (name, file) =>
+          withResource(counting(new BufferedInputStream(new FileInputStream(file)))) {
+            IoUtils.writeZipEntry(_, zip, name)
           }
+        }
+      }
 
-          val dbFileName = getDbFileName(userId)
-          val dbFile = new File(databaseDir, dbFileName)
-          withResource(new BufferedInputStream(new FileInputStream(dbFile))) {
-            IoUtils.writeZipEntry(_, zip, dbFileName)
-          }
-          verbose(l"file: $dbFile exists: ${dbFile.exists}, length: ${if (dbFile.exists) dbFile.length else 0}")
+      verbose(l"database export finished: $backupFile. Data contains: ${backupFile.length} bytes")
+      backupFile
+    }.recoverWith {
+      case err =>
+        backupFile.delete()
+        Failure(err)
+    }.mapFailureIfNot[BackupError](UnknownBackupError.apply)
+  }
 
-          val walFileName = getDbWalFileName(userId)
-          val walFile = new File(databaseDir, walFileName)
-          verbose(l"WAL file: $walFile exists: ${walFile.exists}, length: ${if (walFile.exists) walFile.length else 0}")
+  private def isEmpty(password: Password) = null == password || TextUtils.isEmpty(password.str)
 
-          if (walFile.exists) withResource(new BufferedInputStream(new FileInputStream(walFile))) {
-            IoUtils.writeZipEntry(_, zip, walFileName)
-          }
-        }
+  // one listener per export or import, shared by all of its streams, so that their progress adds up
+  private def progressListener(total: Long, progress: BackupProgress => Unit) = new ProgressInputStream.Listener {
+    private var processed = 0L
 
-        verbose(l"database export finished: $zipFile. Data contains: ${zipFile.length} bytes")
+    override def progressUpdated(bytesRead: Long, bytesReadTotal: Long): Unit =
+      if (bytesRead > 0) {
+        processed += bytesRead
+        progress(BackupProgress(processed, total))
       }
-    }.mapFailureIfNot[BackupError](UnknownBackupError.apply)
-
-    for {
-      unencryptedFile <- backup
-      encryptedFile   <- encryptDatabase(unencryptedFile, backupPassword, userId)
-    } yield encryptedFile
   }
 
-  private def encryptDatabase(backup: File, password: Password, userId: UserId): Try[File] = {
-    if (null == password || TextUtils.isEmpty(password.str)) {
-      Try {
-        backup
-      }.mapFailureIfNot[BackupError](UnknownBackupError.apply)
-    } else {
-      val salt = libSodiumUtils.generateSalt()
-      val backupBytes = IoUtils.readFileBytes(backup)
-      (libSodiumUtils.encrypt(backupBytes, password, salt), getMetaDataBytes(password, salt, userId)) match {
-        case (Some(encryptedBytes), Some(meta)) =>
-          Try {
-            val encryptedBackup = returning(new File(backup.getPath + "_encrypted")) { encryptedDbFile =>
-              encryptedDbFile.deleteOnExit()
-              IoUtils.writeBytesToFile(encryptedDbFile, meta ++ encryptedBytes)
-            }
-            backup.delete()
-            encryptedBackup.renameTo(backup)
-            new File(backup.getPath)
-          }.mapFailureIfNot[BackupError](UnknownBackupError.apply)
-        case (_, None) =>
-          error(l"Failed to create metadata")
-          Failure(new Throwable("Failed to create metadata"))
-        case (None, _) =>
-          val msg = "Failed to encrypt backup"
-          error(l"$msg")
-          Failure(new Exception(msg))
-      }
+  private def encryptingStream(out: OutputStream, password: Password, userId: UserId): OutputStream = {
+    val salt = libSodiumUtils.generateSalt()
+    val meta = getMetaDataBytes(password, salt, userId).getOrElse(throw new IllegalStateException("Failed to create metadata"))
+    val (streamHeader, stream) = libSodiumUtils.streamEncryptor(password, salt).getOrElse {
+      error(l"Failed to init backup encryption")
+      throw new IllegalStateException("Failed to init backup encryption")
     }
+    out.write(meta)
+    out.write(streamHeader)
+    new EncryptingOutputStream(out, stream)
   }
 
   override def importDatabase(userId:           UserId,
                               exportFile:       File,
                               targetDir:        File,
                               backupPassword:   Password,
-                              currentDbVersion: Int = BackupMetadata.currentDbVersion): Try[File] = {
+                              currentDbVersion: Int = BackupMetadata.currentDbVersion,
+                              progress:         BackupProgress => Unit): Try[File] = {
     verbose(l"importDatabase($userId, ${exportFile.getAbsolutePath}, ${targetDir.getAbsolutePath}, ${Option(backupPassword)}, $currentDbVersion)")
-    if (null == backupPassword || TextUtils.isEmpty(backupPassword.str))
+    if (isEmpty(backupPassword))
       importUnencryptedDatabase(userId, exportFile, targetDir, currentDbVersion)
     else
-      importEncryptedDatabase(userId, exportFile, targetDir, currentDbVersion, backupPassword)
+      importEncryptedDatabase(userId, exportFile, targetDir, currentDbVersion, backupPassword, progress)
+  }
+
+  private def checkUserHash(userId: UserId, metadata: EncryptedBackupHeader): Try[Unit] =
+    libSodiumUtils.hash(userId.str, metadata.salt) match {
+      case Some(hash) if hash.sameElements(metadata.uuidHash) => Success(())
+      case Some(_) => Failure(new Throwable("Uuid hashes don't match"))
+      case None => Failure(new Throwable("Uuid hashing failed"))
+    }
+
+  private def decryptDatabase(exportFile: File, metadata: EncryptedBackupHeader, password: Password): Try[File] = {
+    val encryptedBackupBytes = IoUtils.readFileBytes(exportFile, EncryptedBackupHeader.totalHeaderLength)
+    libSodiumUtils.decrypt(encryptedBackupBytes, password, metadata.salt) match {
+      case Some(decryptedDbBytes) =>
+        val decryptedDbExport = File.createTempFile("secret_backup", ".zip")
+        decryptedDbExport.deleteOnExit()
+        IoUtils.writeBytesToFile(decryptedDbExport, decryptedDbBytes)
+        Success(decryptedDbExport)
+      case None =>
+        Failure(new Throwable("backup decryption failed"))
+    }
   }
 
-  private def decryptDatabase(exportFile: File, password: Password, userId: UserId): Try[File] = {
+  private def importEncryptedDatabase(userId: UserId, exportFile: File, targetDir: File,
+                                      currentDbVersion: Int = BackupMetadata.currentDbVersion,
+                                      password: Password,
+                                      progress: BackupProgress => Unit): Try[File] =
     EncryptedBackupHeader.readEncryptedMetadata(exportFile) match {
+      case Some(metadata) if metadata.version == EncryptedBackupHeader.legacyVersion =>
+        for {
+          _             <- checkUserHash(userId, metadata)
+          decryptedFile <- decryptDatabase(exportFile, metadata, password)
+          importedFile  <- importUnencryptedDatabase(userId, decryptedFile, targetDir, currentDbVersion)
+        } yield importedFile
       case Some(metadata) =>
-        libSodiumUtils.hash(userId.str, metadata.salt) match {
-          case Some(hash) if hash.sameElements(metadata.uuidHash) =>
-            val encryptedBackupBytes = IoUtils.readFileBytes(exportFile, EncryptedBackupHeader.totalHeaderLength)
-            libSodiumUtils.decrypt(encryptedBackupBytes, password, metadata.salt) match {
-              case Some(decryptedDbBytes) =>
-                val decryptedDbExport = File.createTempFile("secret_backup", ".zip")
-                decryptedDbExport.deleteOnExit()
-                IoUtils.writeBytesToFile(decryptedDbExport, decryptedDbBytes)
-                Success(decryptedDbExport)
-              case None =>
-                Failure(new Throwable("backup decryption failed"))
-            }
-          case Some(_) => Failure(new Throwable("Uuid hashes don't match"))
-          case None => Failure(new Throwable("Uuid hashing failed"))
-        }
+        checkUserHash(userId, metadata).flatMap(_ => importEncryptedStream(userId, exportFile, metadata, targetDir, currentDbVersion, password, progress))
       case None =>
         Failure(new Throwable("metadata could not be read"))
     }
+
+  /**
+    * Decrypts, verifies and unzips in one pass. Files are extracted next to their targets first and only moved in place
+    * once the whole backup was authenticated and its metadata checked, a corrupted backup leaves the target untouched.
+    */
+  private def importEncryptedStream(userId: UserId, exportFile: File, metadata: EncryptedBackupHeader, targetDir: File,
+                                    currentDbVersion: Int, password: Password, progress: BackupProgress => Unit): Try[File] =
+    Try {
+      val in = new ProgressInputStream(new BufferedInputStream(new FileInputStream(exportFile)), progressListener(exportFile.length(), progress))
+
+      withResource(in) { _ =>
+        val headers = Array.ofDim[Byte](EncryptedBackupHeader.totalHeaderLength + libSodiumUtils.streamHeaderLength)
+        if (!IoUtils.readFully(in, headers, 0, headers.length)) throw new IOException("Backup file truncated")
+        val streamHeader = headers.drop(EncryptedBackupHeader.totalHeaderLength)
+
+        val stream = libSodiumUtils.streamDecryptor(password, metadata.salt, streamHeader, metadata.opslimit, metadata.memlimit)
+          .getOrElse(throw new Throwable("backup decryption failed"))
+        val decrypted = new DecryptingInputStream(in, stream)
+
+        extractBackup(userId, new ZipInputStream(decrypted), targetDir, currentDbVersion)(decrypted.readToEnd())
+      }
+    }.mapFailureIfNot[BackupError](UnknownBackupError.apply)
+
+  private def extractBackup(userId: UserId, zip: ZipInputStream, targetDir: File, currentDbVersion: Int)(verify: => Unit): File = {
+    val dbFileName = getDbFileName(userId)
+    val walFileName = getDbWalFileName(userId)
+    val staged = Map(dbFileName -> new File(targetDir, dbFileName + ".import"), walFileName -> new File(targetDir, walFileName + ".import"))
+
+    try {
+      var metadataFound = false
+      Iterator.continually(zip.getNextEntry).takeWhile(_ != null).foreach { entry =>
+        entry.getName match {
+          case `backupMetadataFileName` =>
+            checkMetadata(userId, Source.fromInputStream(zip, "utf8").mkString, currentDbVersion)
+            metadataFound = true
+          case name if staged.contains(name) =>
+            withResource(new BufferedOutputStream(new FileOutputStream(staged(name)))) { IoUtils.write(zip, _) }
+          case name =>
+            verbose(l"Skipping unknown backup entry: ${showString(name)}")
+        }
+      }
+      verify
+
+      if (!metadataFound) throw MetadataEntryNotFound
+      if (!staged(dbFileName).exists()) throw DbEntryNotFound
+
+      Seq(walFileName, dbFileName).filter(staged(_).exists()).map { name =>
+        returning(new File(targetDir, name)) { file =>
+          if (file.exists()) file.delete()
+          if (!staged(name).renameTo(file)) throw new IOException(s"Failed to move $name in place")
+          verbose(l"Imported file: ${file.getAbsolutePath}, length: ${file.length()}")
+        }
+      }.last
+    } finally {
+      staged.values.foreach(_.delete())
+    }
   }
 
-  private def importEncryptedDatabase(userId: UserId, exportFile: File, targetDir: File,
-                                      currentDbVersion: Int = BackupMetadata.currentDbVersion,
-                                      password: Password): Try[File] =
-    for {
-      decryptedFile <- decryptDatabase(exportFile, password, userId)
-      importedFile  <- importUnencryptedDatabase(userId, decryptedFile, targetDir, currentDbVersion)
-    } yield importedFile
+  private def checkMetadata(userId: UserId, metadataStr: String, currentDbVersion: Int): Unit = {
+    val metadata = decode[BackupMetadata](metadataStr).recoverWith {
+      case err => Failure(InvalidMetadata.WrongFormat(err))
+    }.get
+
+    if (userId != metadata.userId) throw InvalidMetadata.UserId
+    if (BackupMetadata.currentPlatform != metadata.platform) throw InvalidMetadata.Platform
+    if (currentDbVersion < metadata.version) throw InvalidMetadata.DbVersion
+  }
 
   private def importUnencryptedDatabase(userId: UserId, exportFile: File, targetDir: File,
                                         currentDbVersion: Int = BackupMetadata.currentDbVersion): Try[File] =
@@ -252,13 +344,7 @@ class BackupManagerImpl(libSodiumUtils: LibSodiumUtils) extends BackupManager wi
         val metadataEntry = Option(zip.getEntry(backupMetadataFileName)).getOrElse { throw MetadataEntryNotFound }
 
         val metadataStr = withResource(zip.getInputStream(metadataEntry))(Source.fromInputStream(_).mkString)
-        val metadata = decode[BackupMetadata](metadataStr).recoverWith {
-          case err => Failure(InvalidMetadata.WrongFormat(err))
-        }.get
-
-        if (userId != metadata.userId) throw InvalidMetadata.UserId
-        if (BackupMetadata.currentPlatform != metadata.platform) throw InvalidMetadata.Platform
-        if (currentDbVersion < metadata.version) throw InvalidMetadata.DbVersion
+        checkMetadata(userId, metadataStr, currentDbVersion)
 
         val dbFileName = getDbFileName(userId)
         val dbEntry = Option(zip.getEntry(dbFileName)).getOrElse { throw DbEntryNotFound }
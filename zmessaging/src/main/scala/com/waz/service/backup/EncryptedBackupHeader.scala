@@ -26,7 +26,16 @@ import com.waz.utils.IoUtils.withResource
 
 object EncryptedBackupHeader extends DerivedLogTag {
   val androidMagicNumber: String = "WBUA"
-  val currentVersion: Short = 2
+  /**
+    * Whole backup encrypted as a single message, has to be decrypted in memory.
+    */
+  val legacyVersion: Short = 2
+  /**
+    * Backup encrypted in chunks, see `SecretStreams`.
+    */
+  val chunkedVersion: Short = 3
+  val currentVersion: Short = chunkedVersion
+  val supportedVersions: Set[Short] = Set(legacyVersion, chunkedVersion)
   val saltLength = 16
   val uuidHashLength = 32
 
@@ -43,14 +52,14 @@ object EncryptedBackupHeader extends DerivedLogTag {
       if(magicNumber.map(_.toChar).mkString.equals(androidMagicNumber)) {
         buffer.get() //skip null byte
         val version = buffer.getShort()
-        if(version == currentVersion) {
+        if(supportedVersions.contains(version)) {
           val salt = Array.ofDim[Byte](saltLength)
           val uuidHash = Array.ofDim[Byte](uuidHashLength)
           buffer.get(salt)
           buffer.get(uuidHash)
           val opslimit = buffer.getInt
           val memlimit = buffer.getInt
-          Some(EncryptedBackupHeader(currentVersion, salt, uuidHash, opslimit, memlimit))
+          Some(EncryptedBackupHeader(version, salt, uuidHash, opslimit, memlimit))
         } else {
           error(l"Unsupported backup version")
           None
@@ -241,7 +241,7 @@ object BitmapSignal {
         var etag = 0 // to make sure signal does not cache dispatched result
         def reserveFrameMemory() = imageLoader.memoryCache.reserve(asset.id, req, gif.width, gif.height * 2)
         def frameLoaded(frame: ABitmap) = signal publish BitmapLoaded(frame, {etag += 1; etag})
-        new GifAnimator(gif, reserveFrameMemory, frameLoaded).run()
+        new GifAnimator(gif, reserveFrameMemory, frameLoaded, Some(asset.id.str)).run()
       }
     }
   }
@@ -20,7 +20,7 @@ package com.waz.service.media
 import java.net.URLDecoder
 import java.util.regex.Pattern
 
-import android.util.Patterns
+import androidx.collection.LruCache
 import com.waz.api.Message
 import com.waz.api.Message.Part
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
@@ -30,6 +30,7 @@ import com.waz.sync.client.{SoundCloudClient, YouTubeClient}
 import com.waz.utils.SecretLinkify
 import com.waz.utils.wrappers.URI
 
+import scala.collection.mutable.ArrayBuilder
 import scala.util.Try
 import scala.util.control.NonFatal
 
@@ -37,79 +38,154 @@ object RichMediaContentParser extends DerivedLogTag {
 
   import Part.Type._
 
-  def findMatches(content: String, mentionsRanges: Seq[(Int, Int)] = Nil, weblinkEnabled: Boolean = false): Iterator[(Int, Int, Part.Type)] = {
+  private val KnownDomains = new DomainSuffixTrie[Part.Type](
+    YouTubeClient.DomainNames.map(_ -> YOUTUBE) ++
+    SoundCloudClient.domainNames.map(_ -> SOUNDCLOUD)
+  )
 
-    val knownDomains = (YouTubeClient.DomainNames.map(_ -> YOUTUBE) ++
-      SoundCloudClient.domainNames.map(_ -> SOUNDCLOUD)
-      ).toMap
+  private val UrlPattern = Pattern.compile("(https?|ftp|file)://[-A-Za-z+&@#/%?=~_|.]+[-A-Za-z0-9+&@#/%=~_|]")
+
+  private val IllegalEscapes = "%[^(0-9|a-f|A-F)]|%.[^(0-9|a-f|A-F)]".r
+
+  private case class SplitKey(content: String, mentions: Seq[Mention], offset: Int, weblinkEnabled: Boolean)
+
+  // the same content is split every time its message is rendered
+  private val splitCache = new LruCache[SplitKey, Seq[MessageContent]](512)
+
+  /**
+    * Result of a single pass over message content. Links can't contain whitespace and always contain a dot,
+    * so only the whitespace delimited tokens with a dot (`candidates`, as start and end pairs) need to be matched
+    * against the `WEB_URL` pattern.
+    */
+  private class Scan(val candidates: Array[Int], val blank: Boolean, val emojiOnly: Boolean)
+
+  private def scan(content: String): Scan = {
+    var candidates: ArrayBuilder.ofInt = null
+    var tokenStart = -1
+    var tokenHasDot = false
+    var blank = true
+    var emojiOnly = true
+    var emojiNext = 0
+
+    def endToken(end: Int): Unit = {
+      if (tokenHasDot) {
+        if (candidates == null) candidates = new ArrayBuilder.ofInt
+        candidates += tokenStart
+        candidates += end
+      }
+      tokenStart = -1
+      tokenHasDot = false
+    }
+
+    var i = 0
+    while (i < content.length) {
+      val c = content.charAt(i)
+      if (c <= ' ') endToken(i)
+      else {
+        blank = false
+        if (tokenStart < 0) tokenStart = i
+        if (c == '.') tokenHasDot = true
+      }
+      if (emojiOnly && i == emojiNext) {
+        val len = emojiLength(content, i)
+        if (len < 0) emojiOnly = false
+        else emojiNext = i + len
+      }
+      i += 1
+    }
+    endToken(content.length)
+
+    new Scan(if (candidates == null) Array.emptyIntArray else candidates.result(), blank, emojiOnly)
+  }
+
+  def findMatches(content: String, mentionsRanges: Seq[(Int, Int)] = Nil, weblinkEnabled: Boolean = false): Iterator[(Int, Int, Part.Type)] =
+    findMatches(content, scan(content), mentionsRanges, weblinkEnabled).iterator
+
+  private def findMatches(content: String, scan: Scan, mentionsRanges: Seq[(Int, Int)], weblinkEnabled: Boolean): Seq[(Int, Int, Part.Type)] = {
 
     def validate(content: String, uri: URI, tpe: Part.Type): Boolean = tpe match {
       case YOUTUBE     => youtubeVideoId(uri).isDefined
       case SOUNDCLOUD  => Option(uri.getPath).exists(_.nonEmpty)
-      case TWITTER     => uri.toString.matches(TwitterRegex.regex)
+      case TWITTER     => TwitterRegex.pattern.matcher(uri.toString).matches()
       case SPOTIFY     => SpotifyPathRegex.unapplySeq(uri.getPath).isDefined
       case WEB_LINK    => weblinkEnabled && ! WebLinkBlackList(content)
       case _           => false
     }
 
-    def matchDomain(host: String): Part.Type = knownDomains.find(entry => host.contains(entry._1)).getOrElse(host, {
-      val dot = host.indexOf('.')
-      if (dot >= 0) matchDomain(host.substring(dot + 1))
-      else WEB_LINK
-    })._2
-
-    def uriAndType(content: String): Option[Part.Type] = {
-      val patterns = Pattern.compile("(https?|ftp|file)://[-A-Za-z+&@#/%?=~_|.]+[-A-Za-z0-9+&@#/%=~_|]")
-      val isWebUrl = patterns.matcher(parseContent(content)).find()
-
-      if(isWebUrl){
+    def uriAndType(content: String): Option[Part.Type] =
+      if (UrlPattern.matcher(parseContent(content)).find()) {
         val uri = parseUriWithScheme(content)
 
-        Option(uri.getHost) map(_.toLowerCase) map matchDomain flatMap { tpe =>
+        Option(uri.getHost) map { host => KnownDomains.find(host).getOrElse(WEB_LINK) } flatMap { tpe =>
           if (validate(content, uri, tpe)) Some(tpe)
           else None
         }
-      }else None
-
-    }
-
-    val m = SecretLinkify.WEB_URL.matcher(content.replace("HTTP://", "http://")) // XXX: upper case HTTP is not matched by WEB_URL pattern
-    Iterator.continually(m.find()).takeWhile(identity).flatMap { _ =>
-      val start = m.start
-      val end = m.end
-      if (mentionsRanges.exists(r => r._1 <= start && r._2 >= end)) None // if the link is a part of a mention, we ignore it
-      else {
-        // if the link includes a mention, we cut the link short
-        val hardStart = mentionsRanges.find(r => r._1 < start && r._2 > start && r._2 < end).fold(start)(_._2)
-        val hardEnd = mentionsRanges.find(r => r._1 > start && r._1 < end).fold(end)(_._1)
-        if (hardStart < hardEnd && (hardStart == 0 || content(hardStart - 1) != '@'))
-          uriAndType(m.group()) map { tpe => (hardStart, hardEnd, tpe) }
-        else None
+      } else None
+
+    if (scan.candidates.isEmpty) Nil
+    else {
+      val res = Seq.newBuilder[(Int, Int, Part.Type)]
+      // XXX: upper case HTTP is not matched by WEB_URL pattern
+      val m = SecretLinkify.WEB_URL.matcher(if (content.contains("HTTP://")) content.replace("HTTP://", "http://") else content)
+      var c = 0
+      while (c < scan.candidates.length) {
+        m.region(scan.candidates(c), scan.candidates(c + 1))
+        while (m.find()) {
+          val start = m.start
+          val end = m.end
+          if (!mentionsRanges.exists(r => r._1 <= start && r._2 >= end)) { // if the link is a part of a mention, we ignore it
+            // if the link includes a mention, we cut the link short
+            val hardStart = mentionsRanges.find(r => r._1 < start && r._2 > start && r._2 < end).fold(start)(_._2)
+            val hardEnd = mentionsRanges.find(r => r._1 > start && r._1 < end).fold(end)(_._1)
+            if (hardStart < hardEnd && (hardStart == 0 || content(hardStart - 1) != '@'))
+              uriAndType(m.group()) foreach { tpe => res += ((hardStart, hardEnd, tpe)) }
+          }
+        }
+        c += 2
       }
+      res.result()
     }
   }
 
   def splitContent(content: String, mentions: Seq[Mention] = Nil, offset: Int = 0, weblinkEnabled: Boolean = false): Seq[MessageContent] = {
+    val key = SplitKey(content, mentions, offset, weblinkEnabled)
+    splitCache.get(key) match {
+      case null =>
+        val res = parse(content, mentions, offset, weblinkEnabled)
+        splitCache.put(key, res)
+        res
+      case res => res
+    }
+  }
+
+  private[media] def parse(content: String, mentions: Seq[Mention], offset: Int, weblinkEnabled: Boolean): Seq[MessageContent] = {
     val mentionsRanges = mentions.map(m => (m.start - offset, m.start + m.length - offset) -> m).toMap.filterKeys(_._1 >= 0)
 
     def mentionsBetween(from: Int, to: Int): Seq[Mention] =
       mentionsRanges.filterKeys(r => r._1 >= from && r._2 <= to).values.toSeq
 
     try {
-      val res = new MessageContentBuilder
-
-      val end = findMatches(content, mentionsRanges.keys.toSeq, weblinkEnabled).foldLeft(0) {
-        case (start, (matchStart, matchEnd, tpe)) =>
-          if (start < matchStart)
-            res += (content.substring(start, matchStart), mentionsBetween(start, matchStart))
-          res += (tpe, content.substring(matchStart, matchEnd))
-          matchEnd
-      }
+      val scanned = scan(content)
+
+      if (scanned.candidates.isEmpty) { // plain text, there is no need to split it or to look at it again
+        if (scanned.blank) Nil
+        else List(MessageContent(if (scanned.emojiOnly) TEXT_EMOJI_ONLY else TEXT, content, mentions = mentionsBetween(0, content.length)))
+      } else {
+        val res = new MessageContentBuilder
+
+        val end = findMatches(content, scanned, mentionsRanges.keys.toSeq, weblinkEnabled).foldLeft(0) {
+          case (start, (matchStart, matchEnd, tpe)) =>
+            if (start < matchStart)
+              res += (content.substring(start, matchStart), mentionsBetween(start, matchStart))
+            res += (tpe, content.substring(matchStart, matchEnd))
+            matchEnd
+        }
 
-      if (end < content.length)
-        res += (content.substring(end), mentionsBetween(end, content.length))
+        if (end < content.length)
+          res += (content.substring(end), mentionsBetween(end, content.length))
 
-      res.result()
+        res.result()
+      }
     } catch {
       case e: Throwable =>
         error(l"got error while parsing message content", e)
@@ -128,7 +204,7 @@ object RichMediaContentParser extends DerivedLogTag {
   val TwitterRegex = """(?i)(https?://)?(www\.)?twitter\.com/[0-9A-Za-z-_]+/status/\d*/?""".r
 
   def youtubeVideoId(youtubeUrl: String): Option[String] = decode(youtubeUrl)(youtubeVideoId)
-  private def youtubeVideoId(uri: URI): Option[String] = try {
+  private[media] def youtubeVideoId(uri: URI): Option[String] = try {
     Option(uri.getQueryParameter("v")).orElse {
       Option(uri.getLastPathSegment)
     }.filter(_.length > 10) // currently id is always 11 chars, this may change in future
@@ -152,36 +228,41 @@ object RichMediaContentParser extends DerivedLogTag {
   }
 
   def containsOnlyEmojis(part: String): Boolean = {
+    var i = 0
+    var len = 0
+    while (len >= 0 && i < part.length) {
+      len = emojiLength(part, i)
+      i += len
+    }
+    len >= 0
+  }
 
-    val iter = part.iterator
-
-    def emoji(hs: Char) = hs match {
-      case 0xa9 | 0xae | 0x303d | 0x3030 | 0x2b55 | 0x2b1c | 0x2b1b | 0x2b50 | 0x203c | 0x2049 => true
-      case _ if 0x2100 <= hs && hs <= 0x27ff => true
-      case _ if 0x2B05 <= hs && hs <= 0x2b07 => true
-      case _ if 0x2934 <= hs && hs <= 0x2935 => true
-      case _ if 0x3297 <= hs && hs <= 0x3299 => true
+  /**
+    * @return the number of chars taken by the whitespace or emoji at `i`, or -1 if it's neither
+    */
+  private def emojiLength(part: String, i: Int): Int = {
+    val hs = part.charAt(i)
+
+    def next(accept: Char => Boolean) = if (i + 1 < part.length && accept(part.charAt(i + 1))) 2 else -1
+
+    if (Character.isWhitespace(hs)) 1
+    else hs match {
+      case 0xa9 | 0xae | 0x303d | 0x3030 | 0x2b55 | 0x2b1c | 0x2b1b | 0x2b50 | 0x203c | 0x2049 => 1
+      case _ if 0x2100 <= hs && hs <= 0x27ff => 1
+      case _ if 0x2B05 <= hs && hs <= 0x2b07 => 1
+      case _ if 0x2934 <= hs && hs <= 0x2935 => 1
+      case _ if 0x3297 <= hs && hs <= 0x3299 => 1
       case _ if 0xd800 <= hs && hs <= 0xdbff => // surrogate pair
-        iter.hasNext && {
-          val ls = iter.next()
+        next { ls =>
           val uc = ((hs - 0xd800) * 0x400) + (ls - 0xdc00) + 0x10000
           0x1d000 <= uc && uc <= 0x1f9c0
         }
       case _ =>
-        iter.hasNext && {
-          iter.next() match {
-            case 0x20e3 | 0xfe0f | 0xd83c => true
-            case _ => false
-          }
+        next {
+          case 0x20e3 | 0xfe0f | 0xd83c => true
+          case _ => false
         }
     }
-
-    while (iter.hasNext) {
-      val hs = iter.next()
-      if (!Character.isWhitespace(hs) && !emoji(hs)) return false //TODO remove return
-    }
-
-    true
   }
 
   def parseContent(content: String, defaultScheme: String = "https") : String ={
@@ -201,8 +282,7 @@ object RichMediaContentParser extends DerivedLogTag {
   }
 
   def cleanInvalidEscapes(content: String) = {
-    val illegalEscapes = "%[^(0-9|a-f|A-F)]|%.[^(0-9|a-f|A-F)]".r
-    illegalEscapes.replaceAllIn(content, m => m.toString().replace("%", "%25"))
+    IllegalEscapes.replaceAllIn(content, m => m.toString().replace("%", "%25"))
   }
 }
 
@@ -220,4 +300,53 @@ class MessageContentBuilder {
   def ++=(ct: Seq[MessageContent]) = res ++= ct
 
   def result() = res.result()
-}
\ No newline at end of file
+}
+
+/**
+  * Maps domains to values, matching hosts that are either one of the domains or one of their subdomains.
+  * Domains are stored reversed in a character trie, so a lookup walks the host once from its end.
+  */
+private[media] class DomainSuffixTrie[A](domains: Iterable[(String, A)]) {
+
+  private class Node {
+    var keys = Array.emptyCharArray
+    var children = Array.empty[Node]
+    var value = Option.empty[A]
+
+    def child(c: Char): Node = {
+      var i = 0
+      while (i < keys.length && keys(i) != c) i += 1
+      if (i < keys.length) children(i) else null
+    }
+
+    def getOrAdd(c: Char): Node = child(c) match {
+      case null =>
+        val node = new Node
+        keys :+= c
+        children :+= node
+        node
+      case node => node
+    }
+  }
+
+  private val root = new Node
+
+  domains foreach { case (domain, value) =>
+    domain.toLowerCase.reverseIterator.foldLeft(root)(_ getOrAdd _).value = Some(value)
+  }
+
+  /**
+    * @return the value of the longest domain the host belongs to
+    */
+  def find(host: String): Option[A] = {
+    var res = Option.empty[A]
+    var node = root
+    var i = host.length - 1
+    while (node != null && i >= 0) {
+      node = node.child(Character.toLowerCase(host.charAt(i)))
+      i -= 1
+      if (node != null && node.value.isDefined && (i < 0 || host.charAt(i) == '.')) res = node.value
+    }
+    res
+  }
+}
@@ -38,7 +38,7 @@ import scala.util.Try
 
 class CryptoBoxService(context: Context, userId: UserId, metadata: MetaDataService, userPrefs: UserPreferences) extends DerivedLogTag {
   import CryptoBoxService._
-  private implicit val dispatcher = new SerialDispatchQueue(Threading.IO)
+  private implicit val dispatcher = new SerialDispatchQueue(Threading.IO, "CryptoBoxService")
 
   private[service] lazy val cryptoBoxDir = returning(new File(new File(context.getFilesDir, metadata.cryptoBoxDirName), userId.str))(_.mkdirs())
 
@@ -68,6 +68,7 @@ class CryptoBoxService(context: Context, userId: UserId, metadata: MetaDataServi
   }
 
   def deleteCryptoBox() = Future {
+    sessions.releaseSessions(save = false)
     _cryptoBox.foreach(_.close())
     _cryptoBox = None
     IoUtils.deleteRecursively(cryptoBoxDir)
@@ -75,6 +76,7 @@ class CryptoBoxService(context: Context, userId: UserId, metadata: MetaDataServi
   }
 
   def close() = Future {
+    sessions.releaseSessions(save = true)
     _cryptoBox.foreach(_.close())
     _cryptoBox = None
   }
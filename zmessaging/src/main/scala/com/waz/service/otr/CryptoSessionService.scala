@@ -29,38 +29,57 @@ import com.wire.cryptobox.{CryptoBox, CryptoSession, PreKey}
 
 import scala.concurrent.Future
 import scala.util.Try
+import scala.util.control.NonFatal
 
 class CryptoSessionService(cryptoBox: CryptoBoxService) extends DerivedLogTag {
+  import CryptoSessionService._
 
   implicit val dis = Threading.Background
 
   val onCreate = EventStream[SessionId]()
   val onCreateFromMessage = EventStream[SessionId]()
 
+  // open sessions, so that encrypting a message for many clients doesn't load every session from disk
+  private val cache = new SessionCache[SessionId, CryptoSession](CacheSize, _.save())
+
+  private def bind(cb: Option[CryptoBox]) = {
+    cb.foreach(cache.bindTo)
+    cb
+  }
+
   private def dispatch[A](id: SessionId)(f: Option[CryptoBox] => A) =
-    Serialized.future(id){cryptoBox.cryptoBox.map(f)}
+    Serialized.future(id){cryptoBox.cryptoBox.map(cb => f(bind(cb)))}
 
   private def dispatchFut[A](id: SessionId)(f: Option[CryptoBox] => Future[A]) =
-    Serialized.future(id){cryptoBox.cryptoBox.flatMap(f)}
+    Serialized.future(id){cryptoBox.cryptoBox.flatMap(cb => f(bind(cb)))}
 
   def getOrCreateSession(id: SessionId, key: PreKey) = dispatch(id) {
     case None => None
     case Some(cb) =>
       verbose(l"getOrCreateSession($id)")
-      def createSession() = returning(cb.initSessionFromPreKey(id.toString, key))(_ => onCreate ! id)
+      def createSession() = returning(cb.initSessionFromPreKey(id.toString, key)) { session =>
+        cache.put(id, session)
+        onCreate ! id
+      }
 
       loadSession(cb, id).getOrElse(createSession())
   }
 
   private def loadSession(cb: CryptoBox, id: SessionId): Option[CryptoSession] =
-    Try(Option(cb.tryGetSession(id.toString))).getOrElse {
-      error(l"session loading failed unexpectedly, will delete session file")
-      cb.deleteSession(id.toString)
-      None
+    cache.get(id).orElse {
+      Try(Option(cb.tryGetSession(id.toString))).getOrElse {
+        error(l"session loading failed unexpectedly, will delete session file")
+        cb.deleteSession(id.toString)
+        None
+      }.map { session =>
+        cache.put(id, session)
+        session
+      }
     }
 
   def deleteSession(id: SessionId) = dispatch(id) { cb =>
     verbose(l"deleteSession($id)")
+    cache.remove(id)
     cb foreach (_.deleteSession(id.toString))
   }
 
@@ -69,19 +88,72 @@ class CryptoSessionService(cryptoBox: CryptoBoxService) extends DerivedLogTag {
     cb.flatMap(loadSession(_, id))
   }
 
-  def withSession[A](id: SessionId)(f: CryptoSession => A): Future[Option[A]] = dispatch(id) { cb =>
+  /**
+    * @param deferSave when true, the session is only marked as modified and has to be saved with `saveSessions`,
+    *                  this allows encrypting for many clients with a single round of saves at the end
+    */
+  def withSession[A](id: SessionId, deferSave: Boolean = false)(f: CryptoSession => A): Future[Option[A]] = dispatch(id) { cb =>
     cb.flatMap(loadSession(_, id)) map { session =>
-      returning(f(session)) { _ => session.save() }
+      returning(f(session)) { _ =>
+        if (deferSave) cache.markDirty(id, session)
+        else saveUnlessHeld(id, session)
+      }
     }
   }
 
-  def decryptMessage(sessionId: SessionId, msg: Array[Byte], eventsWriter: PlainWriter): Future[Unit] = {
+  // a held session is only marked as modified, it's saved once its decrypted messages are persisted
+  private def saveUnlessHeld(id: SessionId, session: CryptoSession): Unit =
+    if (cache.isHeld(id)) cache.markDirty(id, session)
+    else {
+      session.save()
+      cache.markSaved(id, session)
+    }
+
+  /**
+    * Saves sessions modified with `withSession(deferSave = true)`, each one in its session's serialization context.
+    * Sessions still held by `decryptMessage(deferSave = true)` are skipped, they are saved once released.
+    */
+  def saveSessions(ids: Iterable[SessionId]): Future[Unit] =
+    Future.traverse(ids.toSet) { id =>
+      dispatch(id)(_ => cache.flush(id))
+    }.map(_ => ())
+
+  /**
+    * Releases one hold of `decryptMessage(deferSave = true)` for every message in `ids`, once its plain text is persisted.
+    */
+  def releaseHeld(ids: Seq[SessionId]): Unit = ids foreach cache.release
+
+  /**
+    * Drops sessions which decrypted messages whose plain text couldn't be persisted, they are reloaded from their last
+    * saved state, so those messages can be decrypted again.
+    */
+  def dropSessions(ids: Iterable[SessionId]): Future[Unit] =
+    Future.traverse(ids.toSet) { id =>
+      dispatch(id)(_ => cache.remove(id))
+    }.map(_ => ())
+
+  /**
+    * Has to be called before the crypto box is closed, open sessions become invalid with it.
+    */
+  private[otr] def releaseSessions(save: Boolean): Unit = cache.clear(save)
+
+  /**
+    * The session is saved once `eventsWriter` completes, so that its state never gets ahead of the persisted plain text,
+    * the writer must only complete once the plain text is persisted, not just buffered.
+    * If the writer fails, the session is dropped and reloaded from its last saved state on next use.
+    *
+    * @param deferSave when true, the writer may complete as soon as it buffered the plain text; the session is held
+    *                  instead, it's not saved until the caller persisted the plain text and called `releaseHeld`,
+    *                  or `dropSessions` if that failed
+    */
+  def decryptMessage(sessionId: SessionId, msg: Array[Byte], eventsWriter: PlainWriter, deferSave: Boolean = false): Future[Unit] = {
     def decrypt(arg: Option[CryptoBox]): (CryptoSession, Array[Byte]) = arg match {
       case None => throw new Exception("CryptoBox missing")
       case Some(cb) =>
         verbose(l"decryptMessage($sessionId. Message length: ${msg.length})")
         loadSession(cb, sessionId).fold {
           val sm = cb.initSessionFromMessage(sessionId.toString, msg)
+          cache.put(sessionId, sm.getSession)
           onCreate ! sessionId
           //onCreateFromMessage ! sessionId
           (sm.getSession, sm.getMessage)
@@ -92,9 +164,14 @@ class CryptoSessionService(cryptoBox: CryptoBoxService) extends DerivedLogTag {
 
     dispatchFut(sessionId) { opt =>
       val (session, plain) = decrypt(opt)
+      if (deferSave) cache.hold(sessionId, session)
       eventsWriter(plain).map { _ =>
-        session.save()
+        if (!deferSave) saveUnlessHeld(sessionId, session)
         verbose(l"decrypted data len: ${plain.length}")
+      }.recover {
+        case NonFatal(e) =>
+          cache.remove(sessionId)
+          throw e
       }
     }
   }
@@ -106,3 +183,10 @@ class CryptoSessionService(cryptoBox: CryptoBoxService) extends DerivedLogTag {
     new AggregatingSignal[Option[Array[Byte]], Option[Array[Byte]]](stream, fingerprint, (prev, next) => next)
   }
 }
+
+object CryptoSessionService {
+  /**
+    * A message to a large group is encrypted for a thousand or more clients, we want to keep all of them open.
+    */
+  val CacheSize = 1024
+}
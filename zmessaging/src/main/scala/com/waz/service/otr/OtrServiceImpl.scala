@@ -73,7 +73,10 @@ trait OtrService {
                        data:       Option[Array[Byte]],
                        encryption: Option[EncryptionAlgorithm]): Option[Array[Byte]]
 
-  def decryptStoredOtrEvent(ev: OtrEvent, eventWriter: PlainWriter): Future[Either[OtrError, Unit]]
+  /**
+    * @param deferSave see `CryptoSessionService.decryptMessage`
+    */
+  def decryptStoredOtrEvent(ev: OtrEvent, eventWriter: PlainWriter, deferSave: Boolean = false): Future[Either[OtrError, Unit]]
 
   def parseGenericMessage(msgEvent: OtrMessageEvent, msg: GenericMessage): Option[MessageEvent]
 
@@ -230,10 +233,10 @@ class OtrServiceImpl(selfUserId:     UserId,
       msg  <- Try(GenericMessage(plain)).toOption
     } yield msg
 
-  override def decryptStoredOtrEvent(ev: OtrEvent, eventWriter: PlainWriter)
+  override def decryptStoredOtrEvent(ev: OtrEvent, eventWriter: PlainWriter, deferSave: Boolean = false)
   : Future[Either[OtrError, Unit]] =
     clients.getOrCreateClient(ev.from, ev.sender) flatMap { _ =>
-      sessions.decryptMessage(SessionId(ev.from, ev.sender), ev.ciphertext, eventWriter)
+      sessions.decryptMessage(SessionId(ev.from, ev.sender), ev.ciphertext, eventWriter, deferSave)
         .map(Right(_))
         .recoverWith {
           case e: CryptoException =>
@@ -313,7 +316,7 @@ class OtrServiceImpl(selfUserId:     UserId,
           case Some(bytes) => Future successful Some(client.id -> bytes)
           case None =>
             verbose(l"encrypt for client: $client")
-            sessions.withSession(SessionId(user, client.id)) { session => client.id -> session.encrypt(msgData) }.recover {
+            sessions.withSession(SessionId(user, client.id), deferSave = true) { session => client.id -> session.encrypt(msgData) }.recover {
               case e: Throwable =>
                 tracking.exception(e, s"encryption failed")
                 if (useFakeOnError) Some(client.id -> EncryptionFailedMsg) else None
@@ -329,7 +332,12 @@ class OtrServiceImpl(selfUserId:     UserId,
       }
 
       targetClients.flatMap(encryptForClients(user, _, msgData, useFakeOnError, partialResult))
-    } map (res => EncryptedContent(res.toMap.filter(_._2.nonEmpty)))
+    } flatMap { res =>
+      // sessions are saved once all clients are encrypted for, but before the content is sent anywhere
+      val content = EncryptedContent(res.toMap.filter(_._2.nonEmpty))
+      val ids = for ((user, clients) <- content.content; client <- clients.keys) yield SessionId(user, client)
+      sessions.saveSessions(ids).map(_ => content)
+    }
   }
 
   def deleteClients(userMap: Map[UserId, Seq[ClientId]]): Future[Any] = Future.traverse(userMap) {
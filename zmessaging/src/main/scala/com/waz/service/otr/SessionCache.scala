@@ -0,0 +1,149 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.service.otr
+
+import java.util
+
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+/**
+  * Bounded LRU of open sessions with dirty tracking.
+  *
+  * A session whose state changed, but which wasn't saved yet, is marked dirty and is never evicted, it stays in the
+  * cache until `flush`ed, so no state is lost when a batch touches more sessions than the capacity.
+  * A session can also be held, once for every decrypted message whose plain text isn't persisted yet. A held session
+  * is dirty, but neither `flush` nor `clear` save it, as its state would get ahead of the stored events; it's saved by
+  * the first flush after its last hold is `release`d, or `remove`d if the plain text couldn't be stored.
+  * Sessions are only ever used from their key's serialization context, the cache itself doesn't serialize access to
+  * sessions, only to its own state.
+  *
+  * Entries belong to the `owner` they were loaded from (the crypto box), they are dropped once the owner changes.
+  */
+class SessionCache[K, S](capacity: Int, save: S => Unit) {
+  require(capacity > 0, s"capacity has to be positive, was: $capacity")
+
+  private final class Entry(val session: S) {
+    var dirty = false
+    var holds = 0
+  }
+
+  private val entries = new util.LinkedHashMap[K, Entry](16, 0.75f, true)
+  private var owner: AnyRef = _
+
+  def bindTo(newOwner: AnyRef): Unit = synchronized {
+    if (owner ne newOwner) {
+      entries.clear()
+      owner = newOwner
+    }
+  }
+
+  def get(key: K): Option[S] = synchronized {
+    Option(entries.get(key)).map(_.session)
+  }
+
+  def put(key: K, session: S): Unit = synchronized {
+    entries.put(key, new Entry(session))
+    trim()
+  }
+
+  /**
+    * The session may have been evicted while in use, it's put back then, otherwise its changes would be lost.
+    */
+  def markDirty(key: K, session: S): Unit = synchronized {
+    entry(key, session).dirty = true
+  }
+
+  def hold(key: K, session: S): Unit = synchronized {
+    val e = entry(key, session)
+    e.dirty = true
+    e.holds += 1
+  }
+
+  def release(key: K): Unit = synchronized {
+    Option(entries.get(key)).filter(_.holds > 0).foreach(_.holds -= 1)
+  }
+
+  def isHeld(key: K): Boolean = synchronized {
+    Option(entries.get(key)).exists(_.holds > 0)
+  }
+
+  def markSaved(key: K, session: S): Unit = synchronized {
+    Option(entries.get(key)).filter(_.session == session).foreach(_.dirty = false)
+    trim()
+  }
+
+  def remove(key: K): Unit = synchronized {
+    entries.remove(key)
+  }
+
+  def isDirty(key: K): Boolean = synchronized {
+    Option(entries.get(key)).exists(_.dirty)
+  }
+
+  def size: Int = synchronized(entries.size)
+
+  /**
+    * Saves the session if it's dirty and not held, has to be called from the key's serialization context.
+    */
+  def flush(key: K): Unit = {
+    val dirty = synchronized {
+      Option(entries.get(key)).filter(e => e.dirty && e.holds == 0).map { e =>
+        e.dirty = false
+        e.session
+      }
+    }
+    dirty foreach { session =>
+      try save(session)
+      catch {
+        case NonFatal(e) =>
+          markDirty(key, session)
+          throw e
+      }
+    }
+    synchronized(trim())
+  }
+
+  /**
+    * Drops all entries, saving the dirty ones first if requested, held ones are dropped unsaved.
+    */
+  def clear(saveDirty: Boolean): Unit = {
+    val dirty = synchronized {
+      val sessions = entries.values.asScala.filter(e => e.dirty && e.holds == 0).map(_.session).toVector
+      entries.clear()
+      sessions
+    }
+    if (saveDirty) dirty.foreach(save)
+  }
+
+  private def entry(key: K, session: S) =
+    Option(entries.get(key)).filter(_.session == session).getOrElse {
+      val e = new Entry(session)
+      entries.put(key, e)
+      e
+    }
+
+  // evicts least recently used clean entries, dirty ones wait for their flush
+  private def trim(): Unit =
+    if (entries.size > capacity) {
+      val it = entries.values.iterator()
+      while (entries.size > capacity && it.hasNext) {
+        if (!it.next().dirty) it.remove()
+      }
+    }
+}
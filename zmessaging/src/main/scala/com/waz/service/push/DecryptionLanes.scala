@@ -0,0 +1,150 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.service.push
+
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.log.LogSE._
+import com.waz.model.{OtrError, OtrErrorEvent, OtrMessageEvent}
+import com.waz.service.otr.OtrService.SessionId
+import com.waz.service.push.PushNotificationEventsStorage.{DecryptedRow, EventIndex, PlainWriter}
+import com.waz.threading.Threading
+import com.waz.utils.ConcurrencyLimiter
+
+import scala.collection.immutable.VectorBuilder
+import scala.collection.mutable
+import scala.concurrent.Future
+import scala.concurrent.Future.successful
+import scala.util.control.NonFatal
+
+/**
+  * Decrypts stored otr rows in lanes, one lane per sender session (user and client).
+  *
+  * A session's state moves with every message, so the rows of one lane are decrypted strictly in the order they were
+  * received, while independent lanes run concurrently, up to `parallelism` at once.
+  * Results aren't written back one by one, they are collected and `persist`ed in batches of `batchSize` rows. Sessions
+  * are decrypted with a deferred save, every decrypted row holds its session until the row is persisted, then it's
+  * released with `releaseHeld`, so that no one else saves the session meanwhile. Sessions are saved once their lane is
+  * done and all of its rows are persisted, so a saved session never gets ahead of the stored plain text. A lane which
+  * hits the batch limit waits for that batch.
+  *
+  * If a row fails unexpectedly (as opposed to a decryption error, which is stored as an error event) the rest of its
+  * lane is left encrypted for the next run. If persisting fails, no further batches are written and no sessions saved,
+  * the sessions held by unwritten rows are dropped, they already moved past those messages and have to be reloaded
+  * from their saved state for the next run to decrypt them again.
+  */
+class DecryptionLanes(decrypt:      (OtrMessageEvent, PlainWriter) => Future[Either[OtrError, Unit]],
+                      persist:      Seq[DecryptedRow] => Future[Unit],
+                      saveSessions: Set[SessionId] => Future[Unit],
+                      releaseHeld:  Seq[SessionId] => Unit,
+                      dropSessions: Set[SessionId] => Future[Unit],
+                      parallelism:  Int = DecryptionLanes.DefaultParallelism,
+                      batchSize:    Int = DecryptionLanes.DefaultBatchSize) extends DerivedLogTag {
+  import Threading.Implicits.Background
+
+  require(batchSize > 0, s"batchSize has to be positive, was: $batchSize")
+
+  def apply(rows: Seq[(EventIndex, OtrMessageEvent)]): Future[Unit] =
+    if (rows.isEmpty) successful(())
+    else {
+      val run = new Run
+      val limiter = new ConcurrencyLimiter(parallelism)
+      Future.traverse(DecryptionLanes.lanes(rows)) { case (session, events) =>
+        limiter(run.lane(session, events))
+      }.flatMap(_ => run.flush())
+    }
+
+  private final class Run {
+    private val buffer = new VectorBuilder[DecryptedRow]
+    private val held = new VectorBuilder[SessionId]
+    private var buffered = 0
+    private var done = Set.empty[SessionId]
+    private var lastFlush = successful(())
+
+    def lane(session: SessionId, events: Seq[(EventIndex, OtrMessageEvent)]): Future[Unit] =
+      events.foldLeft(successful(())) { case (prev, (index, event)) =>
+        prev.flatMap(_ => decryptRow(session, index, event))
+      }.recover {
+        case NonFatal(e) => error(l"decryption of lane $session stopped, remaining rows are retried later", e)
+      }.map { _ =>
+        synchronized(done += session)
+      }
+
+    def flush(): Future[Unit] = synchronized {
+      val batch = buffer.result()
+      val holds = held.result()
+      val sessions = done
+      buffer.clear()
+      held.clear()
+      buffered = 0
+      done = Set.empty
+      // once one batch failed, the later ones are never written, their sessions are dropped as well
+      val written = lastFlush.flatMap { _ =>
+        if (batch.isEmpty) successful(()) else persist(batch)
+      }.recoverWith {
+        case NonFatal(e) => dropSessions(holds.toSet).flatMap(_ => Future.failed(e))
+      }
+      lastFlush = written.flatMap { _ =>
+        releaseHeld(holds)
+        if (sessions.isEmpty) successful(()) else saveSessions(sessions)
+      }
+      lastFlush
+    }
+
+    // the writer only buffers, a full batch is waited for once the session is released by `decrypt`
+    private def decryptRow(session: SessionId, index: EventIndex, event: OtrMessageEvent): Future[Unit] =
+      decrypt(event, plain => successful(add(DecryptedRow(index, Right(plain)), Some(session)))).flatMap {
+        case Left(err) =>
+          val e = OtrErrorEvent(event.convId, event.time, event.from, err)
+          verbose(l"Got error when decrypting: $e")
+          add(DecryptedRow(index, Left(e)), None)
+          flushIfFull()
+        case Right(_) => flushIfFull()
+      }
+
+    private def add(row: DecryptedRow, holding: Option[SessionId]): Unit = synchronized {
+      buffer += row
+      held ++= holding
+      buffered += 1
+    }
+
+    private def flushIfFull(): Future[Unit] = synchronized {
+      if (buffered >= batchSize) flush() else successful(())
+    }
+  }
+}
+
+object DecryptionLanes {
+
+  /**
+    * Decryption is cpu bound, more lanes than cores only add contention on the storage.
+    */
+  val DefaultParallelism = Threading.Cpus
+
+  val DefaultBatchSize = 256
+
+  /**
+    * Groups rows by sender session, keeping their order within a session, lanes are ordered by their first row.
+    */
+  def lanes(rows: Seq[(EventIndex, OtrMessageEvent)]): Vector[(SessionId, Vector[(EventIndex, OtrMessageEvent)])] = {
+    val lanes = mutable.LinkedHashMap[SessionId, VectorBuilder[(EventIndex, OtrMessageEvent)]]()
+    rows foreach { case row @ (_, event) =>
+      lanes.getOrElseUpdate(SessionId(event.from, event.sender), new VectorBuilder) += row
+    }
+    lanes.iterator.map { case (session, events) => session -> events.result() }.toVector
+  }
+}
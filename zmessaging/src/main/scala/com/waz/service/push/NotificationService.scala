@@ -30,12 +30,13 @@ import com.waz.model.UserData.ConnectionStatus
 import com.waz.model._
 import com.waz.service.ZMessaging.accountTag
 import com.waz.service._
-import com.waz.threading.Threading
+import com.waz.threading.{CancellableFuture, SerialDispatchQueue, Threading}
 import com.waz.utils._
 import com.waz.utils.events.{EventContext, Signal}
 import org.threeten.bp.Clock
 
 import scala.concurrent.Future
+import scala.concurrent.duration._
 
 /**
   * A trait representing some controller responsible for displaying notifications in the UI. It is expected that this
@@ -51,6 +52,15 @@ trait NotificationUiController {
     */
   def onNotificationsChanged(accountId: UserId, ns: Set[NotificationData]): Future[Unit]
 
+  /**
+    * Incremental variant of `onNotificationsChanged`: `ns` holds all the notifications to display for the conversations
+    * in `convs`, a conversation without any in `ns` has nothing left to show. Every other conversation keeps showing what
+    * it showed before. Controllers that can't update single conversations can fall back to this default, which hands
+    * them `all` the notifications again.
+    */
+  def onConversationNotificationsChanged(accountId: UserId, convs: Set[ConvId], ns: Set[NotificationData], all: => Set[NotificationData]): Future[Unit] =
+    onNotificationsChanged(accountId, all)
+
   /**
     * To be called by the UI when any conversations in a given account are visible to the user. When visible, the user
     * should see in some way that they have notifications for that conversation, so we can automatically dismiss the
@@ -68,14 +78,55 @@ class NotificationService(selfUserId: UserId,
                           userService: UserService,
                           clock: Clock) {
 
+  import NotificationService._
   import Threading.Implicits.Background
 
   implicit lazy val logTag: LogTag = accountTag[NotificationService](selfUserId)
 
+  private val dispatcher = new SerialDispatchQueue(name = "NotificationService")
+
+  // pending notifications, loaded once and then only updated with the changes made here (guarded by dispatcher)
+  private var state = NotificationState.Empty
+  private lazy val loaded = storage.list().map { ns => state = NotificationState(ns) }(dispatcher)
+  private var writes = Future.successful({})
+
+  // conversations waiting to be posted again, and when they were last posted (guarded by dispatcher)
+  private var changedConvs = Set.empty[ConvId]
+  private var lastPosted = Map.empty[ConvId, Long]
+  private var postScheduled = false
+
 //  uiController.notificationsSourceVisible { sources =>
 //    sources.get(selfUserId).map(Some(_)).foreach(dismissNotifications)
 //  }(EventContext.Global) //TODO account event context
 
+  /**
+    * Runs `f` on the current state and replaces it with the result, the first call loads it from storage.
+    */
+  private def withState[A](f: NotificationState => (NotificationState, A)): Future[A] =
+    loaded.flatMap { _ =>
+      Future {
+        val (next, res) = f(state)
+        state = next
+        res
+      } (dispatcher)
+    } (dispatcher)
+
+  /**
+    * Applies the change to the state and queues the storage writes after the previous ones, so that they can't be
+    * reordered. Has to be called from withState. Returns the conversations that changed.
+    */
+  private def update(state: NotificationState, toShow: Iterable[NotificationData], toRemove: Set[NotId]): (NotificationState, (Set[ConvId], Future[Unit])) = {
+    val (next, changed) = state.update(toShow, toRemove)
+    if (changed.nonEmpty)
+      writes = writes.recover { case _ => () }.flatMap { _ =>
+        for {
+          _ <- if (toRemove.nonEmpty) storage.removeAll(toRemove) else Future.successful({})
+          _ <- if (toShow.nonEmpty) storage.insertAll(toShow) else Future.successful(Set.empty[NotificationData])
+        } yield {}
+      }
+    (next, (changed, writes))
+  }
+
   /**
     * Removes all notifications that are being displayed for the given set of input conversations and updates the UI
     * with all remaining notifications
@@ -85,13 +136,15 @@ class NotificationService(selfUserId: UserId,
   def dismissNotifications(forConvs: Option[Set[ConvId]] = None): Future[Unit] = {
     verbose(l"dismissNotifications: $forConvs")
     for {
-      nots <- storage.list().map(_.toSet)
-      toRemove = forConvs match {
-        case None => nots
-        case Some(convs) => nots.filter(n => convs.contains(n.conv))
+      (changed, written, remaining) <- withState { st =>
+        val toRemove = forConvs.fold(st.ids)(st.idsForConvs)
+        val (next, (changed, written)) = update(st, Nil, toRemove)
+        (next, (changed, written, next))
       }
-      _ <- if (toRemove.nonEmpty) storage.removeAll(toRemove.map(_.id)) else Future.successful({})
-      _ <- if (toRemove.nonEmpty) pushNotificationsToUi() else Future.successful({})
+      _ <- written
+      _ <- if (changed.nonEmpty)
+             uiController.onConversationNotificationsChanged(selfUserId, changed, Set.empty, remaining.all.filter(_.hasBeenDisplayed))
+           else Future.successful({})
     } yield {}
   }
 
@@ -102,21 +155,20 @@ class NotificationService(selfUserId: UserId,
         Some(conv) <- convs.getByRemoteId(c)
         (undoneLikes, likes) <- getReactionChanges(conv, events)
         (unForbid, forbid) <- getForbidChanges(conv, events)
-        currentNotifications <- storage.list().map(_.toSet)
         msgNotifications <- getMessageNotifications(c, conv, events)
-        (afterEditsApplied, beforeEditsApplied) = applyEdits(currentNotifications ++ msgNotifications, events)
-        deleted = events.collect {
-          case GenericMessageEvent(_, _, _, GenericMessage(_, MsgDeleted(_, msg)), name, asset) => NotId(msg)
-          case GenericMessageEvent(_, _, _, GenericMessage(_, MsgRecall(msg)), name, asset) => NotId(msg)
-        }.toSet
-        toShow = (afterEditsApplied ++ likes ++ forbid).filterNot(n => (undoneLikes ++ deleted ++ unForbid).contains(n.id))
-        toRemove = undoneLikes ++ beforeEditsApplied ++ deleted ++ unForbid
-        _ = verbose(l"notification pushNotificationsToUi toShow:${toShow.size}  toRemove:${toRemove.size}")
-        _ <- storage.removeAll(toRemove)
-        _ <- storage.insertAll(toShow)
-        _ = {
-          if (toRemove.nonEmpty || toShow.nonEmpty) pushNotificationsToUi()
+        (changed, written) <- withState { current =>
+          val (afterEditsApplied, beforeEditsApplied) = applyEdits(current, msgNotifications, events)
+          val deleted = events.collect {
+            case GenericMessageEvent(_, _, _, GenericMessage(_, MsgDeleted(_, msg)), name, asset) => NotId(msg)
+            case GenericMessageEvent(_, _, _, GenericMessage(_, MsgRecall(msg)), name, asset) => NotId(msg)
+          }.toSet
+          val toShow = (afterEditsApplied ++ likes ++ forbid).filterNot(n => (undoneLikes ++ deleted ++ unForbid).contains(n.id))
+          val toRemove = undoneLikes ++ beforeEditsApplied ++ deleted ++ unForbid
+          verbose(l"notification pushNotificationsToUi toShow:${toShow.size}  toRemove:${toRemove.size}")
+          update(current, toShow, toRemove)
         }
+        _ <- written
+        _ = if (changed.nonEmpty) markChanged(changed)
       } yield {}
     } else Future.successful({})
   })
@@ -134,14 +186,55 @@ class NotificationService(selfUserId: UserId,
       }
 
       if (toShow.nonEmpty) {
-        storage.insertAll(toShow).map(_ => pushNotificationsToUi())
+        for {
+          (changed, written) <- withState(update(_, toShow, Set.empty))
+          _ <- written
+        } yield if (changed.nonEmpty) markChanged(changed)
       } else {
         Future.successful({})
       }
     } else Future.successful({})
   })
 
-  private def pushNotificationsToUi(): Future[Unit] = {
+  /**
+    * Schedules the given conversations to be posted to the UI. A conversation is posted at most once per
+    * `MinPostInterval`, changes arriving in between are coalesced into the next post.
+    */
+  private def markChanged(convs: Set[ConvId]): Unit = Future {
+    changedConvs ++= convs
+    schedulePost()
+  } (dispatcher)
+
+  private def schedulePost(): Unit =
+    if (!postScheduled && changedConvs.nonEmpty) {
+      postScheduled = true
+      val now = System.nanoTime()
+      val due = changedConvs.iterator.map(nextPostTime).min
+      CancellableFuture.delay(math.max(0L, due - now).nanos).future.flatMap(_ => postChanged())(dispatcher)
+    }
+
+  private def nextPostTime(conv: ConvId) = lastPosted.get(conv).fold(0L)(_ + MinPostInterval.toNanos)
+
+  private def postChanged(): Future[Unit] = Future {
+    val now = System.nanoTime()
+    val ready = changedConvs.filter(nextPostTime(_) <= now)
+    changedConvs --= ready
+    lastPosted = lastPosted.filter { case (_, time) => now - time < MinPostInterval.toNanos } ++ ready.map(_ -> now)
+    postScheduled = false
+    (ready, state)
+  } (dispatcher).flatMap { case (ready, snapshot) =>
+    pushNotificationsToUi(ready, snapshot).recover { case e: Throwable => error(l"posting notifications failed", e) }
+  }.map(_ => schedulePost())(dispatcher)
+
+  // what the ui shows for the other conversations, ones that haven't been posted yet aren't known to be displayable
+  private def displayedElsewhere(snapshot: NotificationState, changed: Set[ConvId]) =
+    snapshot.all.filter(n => n.hasBeenDisplayed && !changed(n.conv))
+
+  /**
+    * Decides which of the notifications of the changed conversations to display, passes them on to the UI and then
+    * marks them as displayed. The ones that shouldn't be displayed are dropped.
+    */
+  private def pushNotificationsToUi(changed: Set[ConvId], snapshot: NotificationState): Future[Unit] = {
     def shouldShowNotification(self: UserData,
                                n: NotificationData,
                                conv: ConversationData,
@@ -170,23 +263,29 @@ class NotificationService(selfUserId: UserId,
       }
     }
 
-    verbose(l"notification pushNotificationsToUi")
+    verbose(l"notification pushNotificationsToUi for ${changed.size} conversations")
 
-    for {
+    if (changed.isEmpty) Future.successful({})
+    else for {
       Some(self) <- userService.getSelfUser
-      toShow <- storage.list()
+      toShow = snapshot.forConvs(changed)
       notificationSourceVisible <- uiController.notificationsSourceVisible.head
-      convs <- convs.getAll(toShow.map(_.conv).toSet)
+      convs <- convs.getAll(changed)
         .map(_.collect { case Some(c) => c.id -> c }.toMap)
-      (show, ignore) = toShow.partition { n =>
+      (show, ignore) = toShow.filter(n => convs.contains(n.conv)).partition { n =>
         shouldShowNotification(self, n, convs(n.conv), notificationSourceVisible)
       }
       _ = verbose(l"show: ${show.size}, ignore: ${ignore.size}")
-      _ <- if (show.nonEmpty) uiController.onNotificationsChanged(self.id, show.toSet) else Future.successful({})
-      _ <- storage.insertAll(show.map(_.copy(hasBeenDisplayed = true)))
-      _ <- storage.removeAll(ignore.map(_.id))
+      // also when there is nothing left to show, the ui has to take down what it showed for those conversations
+      _ <- uiController.onConversationNotificationsChanged(self.id, changed, show, displayedElsewhere(snapshot, changed) ++ show)
+      (_, written) <- withState { current =>
+        // only the notifications that weren't changed in the meantime
+        val displayed = show.filter(n => current.get(n.id).contains(n)).map(_.copy(hasBeenDisplayed = true))
+        val (next, (_, written)) = update(current, displayed, ignore.map(_.id))
+        (next, (displayed, written))
+      }
+      _ <- written
     } yield {}
-
   }
 
   def isShowNotify(conv: ConversationData, msg: MessageData): Boolean = {
@@ -259,14 +358,19 @@ class NotificationService(selfUserId: UserId,
     } else Future.successful(Set.empty[NotificationData])
   }
 
-  private def applyEdits(currentNotifications: Set[NotificationData], events: Vector[Event]) = {
+  /**
+    * Applies the message edits in `events` to the new and the current notifications. Returns the new and edited
+    * notifications, and the ids of the ones replaced by an edit.
+    */
+  private def applyEdits(current: NotificationState, newNotifications: Set[NotificationData], events: Vector[Event]) = {
     val edits = events
       .collect { case GenericMessageEvent(_, _, _, GenericMessage(newId, MsgEdit(id, Text(msg, _, _, _))), name, asset) => (id, (newId, msg)) }
       .toMap
 
-    val (afterEditsApplied, beforeEditsApplied) = edits.foldLeft((currentNotifications.map(n => (n.id, n)).toMap, Set.empty[NotId])) {
+    val (afterEditsApplied, beforeEditsApplied) = edits.foldLeft((newNotifications.map(n => (n.id, n)).toMap, Set.empty[NotId])) {
       case ((edited, toRemove), (oldId, (newId, newContent))) =>
-        edited.get(NotId(oldId.str)) match {
+        val id = NotId(oldId.str)
+        edited.get(id).orElse(if (toRemove(id)) None else current.get(id)) match {
           case Some(toBeEdited) =>
             val newNotId = NotId(newId.str)
             val updated = toBeEdited.copy(id = newNotId, msg = newContent)
@@ -366,3 +470,59 @@ class NotificationService(selfUserId: UserId,
     }
   }
 }
+
+object NotificationService {
+
+  val MinPostInterval = 1.second
+
+  /**
+    * Pending notifications grouped by conversation. Immutable, so that it can be handed to the UI while it's updated.
+    */
+  case class NotificationState(byConv: Map[ConvId, Map[NotId, NotificationData]], convOf: Map[NotId, ConvId]) {
+
+    def size: Int = convOf.size
+
+    def ids: Set[NotId] = convOf.keySet
+
+    def get(id: NotId): Option[NotificationData] = convOf.get(id).flatMap(byConv(_).get(id))
+
+    def idsForConvs(convs: Set[ConvId]): Set[NotId] = convs.flatMap(c => byConv.get(c).fold(Set.empty[NotId])(_.keySet))
+
+    def forConvs(convs: Set[ConvId]): Set[NotificationData] = convs.flatMap(c => byConv.get(c).fold(Set.empty[NotificationData])(_.values.toSet))
+
+    def all: Set[NotificationData] = byConv.valuesIterator.flatMap(_.valuesIterator).toSet
+
+    /**
+      * Removes and then adds the given notifications, returns the new state and the conversations that changed.
+      */
+    def update(toShow: Iterable[NotificationData], toRemove: Iterable[NotId]): (NotificationState, Set[ConvId]) = {
+      var byConv = this.byConv
+      var convOf = this.convOf
+      var changed = Set.empty[ConvId]
+
+      def remove(id: NotId) = convOf.get(id) foreach { conv =>
+        val rest = byConv(conv) - id
+        byConv = if (rest.isEmpty) byConv - conv else byConv + (conv -> rest)
+        convOf -= id
+        changed += conv
+      }
+
+      toRemove foreach remove
+      toShow foreach { n =>
+        if (!convOf.get(n.id).flatMap(byConv(_).get(n.id)).contains(n)) {
+          remove(n.id)
+          byConv += n.conv -> (byConv.getOrElse(n.conv, Map.empty) + (n.id -> n))
+          convOf += n.id -> n.conv
+          changed += n.conv
+        }
+      }
+      (NotificationState(byConv, convOf), changed)
+    }
+  }
+
+  object NotificationState {
+    val Empty = NotificationState(Map.empty, Map.empty)
+
+    def apply(ns: Iterable[NotificationData]): NotificationState = Empty.update(ns, Nil)._1
+  }
+}
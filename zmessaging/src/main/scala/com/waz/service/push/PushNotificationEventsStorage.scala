@@ -27,108 +27,139 @@ import com.waz.log.LogSE._
 import com.waz.model.PushNotificationEvents.PushNotificationEventsDao
 import com.waz.model._
 import com.waz.model.otr.ClientId
-import com.waz.service.push.PushNotificationEventsStorage.{EventHandler, EventIndex, PlainWriter}
+import com.waz.service.push.PushNotificationEventsStorage.{DecryptedRow, EventHandler, EventIndex}
 import com.waz.sync.client.PushNotificationEncoded
 import com.waz.threading.SerialDispatchQueue
+import com.waz.utils.CachedStorageImpl.WriteBehind
 import com.waz.utils.TrimmingLruCache.Fixed
 import com.waz.utils.events.EventContext
 import com.waz.utils.{CachedStorage, CachedStorageImpl, TrimmingLruCache}
-import org.json.JSONObject
 
-import scala.collection.Iterable
+import scala.collection.{Iterable, breakOut}
 import scala.concurrent.Future
+import scala.concurrent.duration._
 import scala.util.Try
 
 
 object PushNotificationEventsStorage {
+  /**
+    * Stores the plain text of a decrypted message, see `CryptoSessionService.decryptMessage` for when it may complete.
+    */
   type PlainWriter = Array[Byte] => Future[Unit]
   type EventIndex = Uid
 
   type EventHandler = () => Future[Unit]
+
+  /**
+    * Outcome of decrypting a stored row: either the plain text, or the error event which replaces the row.
+    */
+  case class DecryptedRow(index: EventIndex, result: Either[OtrErrorEvent, Array[Byte]])
 }
 
+/**
+  * Row updates are written behind, the ones declared here complete only once they are persisted.
+  */
 trait PushNotificationEventsStorage extends CachedStorage[EventIndex, PushNotificationEvent] {
-  def setAsDecrypted(index: EventIndex): Future[Unit]
+  def setAsDecrypted(indexes: Iterable[EventIndex]): Future[Unit]
 
   def setAsEncrypted(index: EventIndex): Future[Unit]
 
-  def writeClosure(index: EventIndex): PlainWriter
-
-  def writeError(index: EventIndex, error: OtrErrorEvent): Future[Unit]
+  /**
+    * Writes a batch of decryption results in a single transaction, completes once they are persisted.
+    */
+  def writeDecrypted(rows: Seq[DecryptedRow]): Future[Unit]
 
   def saveAll(pushNotifications: Seq[PushNotificationEncoded],needFilterTyping : Boolean = false): Future[Set[PushNotificationEvent]]
 
-  def flush(): Future[Unit]
-
   def encryptedEvents: Future[Seq[PushNotificationEvent]]
 
   def removeRows(rows: Iterable[Uid]): Future[Unit]
 
   def registerEventHandler(handler: EventHandler)(implicit ec: EventContext): Future[Unit]
 
-  def getDecryptedRows(): Future[IndexedSeq[PushNotificationEvent]]
+  /**
+    * Reads the next batch of decrypted rows, skipping the `inFlight` ones that were already read but aren't removed yet.
+    */
+  def getDecryptedRows(inFlight: Set[EventIndex] = Set.empty): Future[IndexedSeq[PushNotificationEvent]]
 }
 
 class PushNotificationEventsStorageImpl(context: Context, storage: Database, clientId: ClientId)
-  extends CachedStorageImpl[EventIndex, PushNotificationEvent](new TrimmingLruCache(context, Fixed(1024 * 1024)), storage)(PushNotificationEventsDao, LogTag("PushNotificationEvents_Cached"))
+  extends CachedStorageImpl[EventIndex, PushNotificationEvent](
+    new TrimmingLruCache(context, Fixed(1024 * 1024)),
+    storage,
+    //decryption marks every row separately, buffer those so that a whole fetch is written back at once
+    Some(WriteBehind(maxPending = 512, maxDelay = 100.millis))
+  )(PushNotificationEventsDao, LogTag("PushNotificationEvents_Cached"))
     with PushNotificationEventsStorage
     with DerivedLogTag {
 
   private implicit val dispatcher = new SerialDispatchQueue(name = "PushNotificationEventsStorage")
 
-  override def setAsDecrypted(index: EventIndex): Future[Unit] = {
-    update(index, u => u.copy(decrypted = true)).map {
-      case None =>
-        ()
-      //throw new IllegalStateException(s"Failed to set event with index $index as decrypted")
-      case _ => ()
+  override def setAsDecrypted(indexes: Iterable[EventIndex]): Future[Unit] =
+    if (indexes.isEmpty) Future.successful(())
+    else {
+      val updaters: Map[EventIndex, PushNotificationEvent => PushNotificationEvent] =
+        indexes.map(_ -> ((u: PushNotificationEvent) => u.copy(decrypted = true)))(breakOut)
+      updateAll(updaters).flatMap(_ => super.flush())
     }
-  }
-
 
-  override def setAsEncrypted(index: EventIndex): Future[Unit] = {
-    update(index, u => u.copy(decrypted = false)).map {
-      case None =>
-        ()
-      //throw new IllegalStateException(s"Failed to set event with index $index as decrypted")
-      case _ => ()
+  override def setAsEncrypted(index: EventIndex): Future[Unit] =
+    update(index, u => u.copy(decrypted = false)).flatMap(_ => super.flush())
+
+  override def writeDecrypted(rows: Seq[DecryptedRow]): Future[Unit] =
+    if (rows.isEmpty) Future.successful(())
+    else {
+      val updaters: Map[EventIndex, PushNotificationEvent => PushNotificationEvent] = rows.map {
+        case DecryptedRow(index, Right(plain)) => index -> withPlain(plain) _
+        case DecryptedRow(index, Left(error))  => index -> withError(error) _
+      } (breakOut)
+      updateAll(updaters).flatMap(_ => super.flush())
     }
-  }
 
-  override def writeClosure(index: EventIndex): PlainWriter =
-    (plain: Array[Byte]) => update(index, _.copy(decrypted = true, plain = Some(plain))).map(_ => Unit)
+  private def withPlain(plain: Array[Byte])(row: PushNotificationEvent) =
+    row.copy(decrypted = true, plain = Some(plain))
 
-  override def writeError(index: EventIndex, error: OtrErrorEvent): Future[Unit] =
-    update(index, _.copy(decrypted = true, event = MessageEvent.MessageEventEncoder(error), plain = None))
-      .map(_ => Unit)
+  private def withError(error: OtrErrorEvent)(row: PushNotificationEvent) = {
+    val json = MessageEvent.MessageEventEncoder(error)
+    row.copy(decrypted = true, eventType = json.getString("type"), rawEvent = Some(json.toString), envelope = None, plain = None)
+  }
 
   override def saveAll(pushNotifications: Seq[PushNotificationEncoded],needFilterTyping : Boolean = false): Future[Set[PushNotificationEvent]] = {
     import com.waz.utils._
-    def isOtrEventForUs(obj: JSONObject): Boolean = {
-      returning(!obj.getString("type").startsWith("conversation.otr") || obj.getJSONObject("data").getString("recipient").equals(clientId.str)) { ret =>
+    def isOtrEventForUs(row: PushNotificationEvent): Boolean = {
+      val ret = row.otrEvent match {
+        case Some(otr) => otr.recipient == clientId
+        case None      => !row.eventType.startsWith("conversation.otr") || row.event.getJSONObject("data").getString("recipient").equals(clientId.str)
+      }
+      returning(ret) { ret =>
         if (!ret) {
-          verbose(l"Skipping otr event not intended for us: $obj")
+          verbose(l"Skipping otr event not intended for us: ${row.pushId}")
         }
       }
     }
 
-    def isTypingEvent(obj: JSONObject) = needFilterTyping && obj.optString("type").equalsIgnoreCase("conversation.typing")
+    def isTypingEvent(row: PushNotificationEvent) = needFilterTyping && row.eventType.equalsIgnoreCase("conversation.typing")
 
+    //type and otr payload are extracted here, once, so that processing the rows later never touches the json
     val eventsToSave = pushNotifications
       .flatMap { pn =>
-        pn.events.toVector.filter(isOtrEventForUs).filterNot(isTypingEvent).map { event =>
-          (pn.id, event, pn.transient)
+        pn.events.toVector.map { event =>
+          val index = Try(UUID.fromString(pn.id.str).timestamp()).toOption.fold {
+            System.nanoTime()
+          } { uid =>
+            uid
+          }
+          PushNotificationEvent.fromJson(pn.id, index, event, pn.transient)
         }
       }
+      .filter(isOtrEventForUs)
+      .filterNot(isTypingEvent)
 
-    insertAll(eventsToSave.map { case (id, event, transient) =>
-      val index = Try(UUID.fromString(id.str).timestamp()).toOption.fold {
-        System.nanoTime()
-      } { uid =>
-        uid
-      }
-      PushNotificationEvent(id, index, event = event, transient = transient)
-    })
+    //the caller moves the last notification id forward once this completes, so the events have to be persisted by then
+    for {
+      saved <- insertAll(eventsToSave)
+      _ <- super.flush()
+    } yield saved
 
     //    storage.withTransaction { implicit db =>
     ////      val curIndex = PushNotificationEventsDao.maxIndex()
@@ -141,17 +172,20 @@ class PushNotificationEventsStorageImpl(context: Context, storage: Database, cli
 
   }
 
-  def flush(): Future[Unit] = {
-    storage.flushWALToDatabase()
-  }
+  override def flush(): Future[Unit] =
+    super.flush().flatMap(_ => storage.flushWALToDatabase())
 
-  def encryptedEvents: Future[Seq[PushNotificationEvent]] = storage.read { implicit db =>
-    PushNotificationEventsDao.listEncrypted()
+  def encryptedEvents: Future[Seq[PushNotificationEvent]] = super.flush().flatMap { _ =>
+    storage.read { implicit db =>
+      PushNotificationEventsDao.listEncrypted()
+    }
   }
 
   //limit amount of decrypted events we read to avoid overwhelming older phones
-  def getDecryptedRows(): Future[IndexedSeq[PushNotificationEvent]] = storage.read { implicit db =>
-    PushNotificationEventsDao.listDecrypted(100)
+  def getDecryptedRows(inFlight: Set[EventIndex]): Future[IndexedSeq[PushNotificationEvent]] = super.flush().flatMap { _ =>
+    storage.read { implicit db =>
+      PushNotificationEventsDao.listDecrypted(100, inFlight)
+    }
   }
 
   def removeRows(rows: Iterable[Uid]): Future[Unit] = removeAll(rows)
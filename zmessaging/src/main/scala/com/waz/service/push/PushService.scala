@@ -151,37 +151,32 @@ class PushServiceImpl(selfUserId: UserId,
     }
   }
 
+  private lazy val decryption = new DecryptionLanes(
+    (event, writer) => otrService.decryptStoredOtrEvent(event, writer, deferSave = true),
+    notificationStorage.writeDecrypted,
+    otrService.sessions.saveSessions,
+    otrService.sessions.releaseHeld,
+    otrService.sessions.dropSessions,
+    batchSize = DecryptionBatchSize
+  )
+
   private def processEncryptedRows() =
     notificationStorage.encryptedEvents.flatMap { rows =>
       verbose(l"synctest encrypted rows ${rows.size}")
-      Future.sequence(rows.map { row =>
-        if (!isOtrEventJson(row.event)) notificationStorage.setAsDecrypted(row.pushId)
-        else {
-          ConversationEvent.ConversationEventDecoder(row.event) match {
-            case event: OtrEvent =>
-              val writer = notificationStorage.writeClosure(row.pushId)
-              otrService.decryptStoredOtrEvent(event, writer).flatMap {
-                case Left(error) =>
-                  val e = OtrErrorEvent(event.convId, event.time, event.from, error)
-                  verbose(l"Got error when decrypting: $e")
-                  notificationStorage.writeError(row.pushId, e)
-                case Right(_)    => Future.successful(())
-              }
-            case _               =>
-              Future.successful(())
-          }
-        }
-      })
+      val (plain, otrEvents) = splitEncrypted(rows)
+      for {
+        _ <- notificationStorage.setAsDecrypted(plain.map(_.pushId))
+        _ <- decryption(otrEvents)
+      } yield ()
     }
 
   private def processDecryptedRows(): Future[Unit] = {
     def decodeRow(event: PushNotificationEvent) = {
-      if (event.plain.isDefined && isOtrEventJson(event.event)) {
+      if (event.plain.isDefined && event.isOtrMessage) {
         verbose(l"decodeRow($event) for an otr event")
-        val msg = GenericMessage(event.plain.get)
-        val msgEvent = ConversationEvent.ConversationEventDecoder(event.event)
-        otrService.parseGenericMessage(msgEvent.asInstanceOf[OtrMessageEvent], msg)
-      } else if (isBgpOtrEventJson(event.event)) {
+        val (msgEvent, msg) = decryptedOtrMessage(event)
+        otrService.parseGenericMessage(msgEvent, msg)
+      } else if (isBgpOtrEvent(event)) {
         verbose(l"decodeRow($event) for an bgp event")
         val msgEvent = ConversationEvent.ConversationEventDecoder(event.event)
         val jSONObject: JSONObject = event.event
@@ -190,7 +185,7 @@ class PushServiceImpl(selfUserId: UserId,
         Try(GenericMessage(AESUtils.base64(text))).toOption.fold(Option(EventDecoder(event.event))) { message =>
           otrService.parseBgpGenericMessageFix(event.event, msgEvent, message)
         }
-      } else if(isUserNoticeEventJson(event.event)){
+      } else if(isUserNoticeEvent(event)){
         verbose(l"decodeRow($event) for an user notice event")
         val json=event.event
         val data=json.optJSONObject("data")
@@ -206,8 +201,8 @@ class PushServiceImpl(selfUserId: UserId,
         verbose(l"+++++++++++++++++++++getData:${msgType},${msgData.toString}")
         val userNoticeEvent=UserNoticeEvent(msgType,msgData)
         Some(userNoticeEvent)
-      } else if (isBasicNotificationOtrEventJson(event.event)) {
-        verbose(l"decodeRow isBasicNotificationOtrEventJson($event)")
+      } else if (isBasicNotificationOtrEvent(event)) {
+        verbose(l"decodeRow isBasicNotificationOtrEvent($event)")
         val msgEvent = ConversationEvent.ConversationEventDecoder(event.event).asInstanceOf[BasicNotificationMessageEvent]
         val msgId = msgEvent.eid.getOrElse(MessageId())
         val jsonContent = msgEvent.data.fold("{}")(_.toString())
@@ -220,28 +215,27 @@ class PushServiceImpl(selfUserId: UserId,
       }
     }
 
-    notificationStorage.getDecryptedRows().flatMap { rows =>
-      verbose(l"synctest Decrypted rows ${rows.size}")
-      //verbose(l"SYNC Decrypted rows ${rows.size}")
-      if (rows.nonEmpty) {
-        //val ids = rows.map(_.pushId).toSet
-        for {
-          //          _ <- Future.apply {
-          //            fcmService.markNotificationsWithState(ids, StartedPipeline)
-          //          }
-          _ <- Future.apply(pipeline(rows.flatMap(decodeRow)))
-          //_ = verbose(l"pipeline work finished")
-          _ <- notificationStorage.removeRows(rows.map(_.pushId))
-          //_ = verbose(l"rows removed from the notification storage ${rows.map(_.pushId).toList}")
-          //          _ <- Future.apply {
-          //            fcmService.markNotificationsWithState(ids, FinishedPipeline)
-          //          }
-         // _ = verbose(l"notifications marked")
-          _ <- processDecryptedRows()
-          //_ = verbose(l"decrypted rows processed")
-        } yield {}
-      } else Future.successful(())
-    }
+    def readBatch(inFlight: Set[Uid]): Future[(IndexedSeq[PushNotificationEvent], Seq[Event])] =
+      notificationStorage.getDecryptedRows(inFlight).flatMap { rows => Future(rows -> rows.flatMap(decodeRow)) }
+
+    //the next batch is read and decoded while the current one goes through the pipeline, so at most two batches are in flight
+    def processBatches(batch: Future[(IndexedSeq[PushNotificationEvent], Seq[Event])]): Future[Unit] =
+      batch.flatMap { case (rows, events) =>
+        verbose(l"synctest Decrypted rows ${rows.size}")
+        if (rows.nonEmpty) {
+          val ids = rows.map(_.pushId)
+          val next = readBatch(ids.toSet)
+          for {
+            _ <- pipeline(events).recover {
+              case ex => error(l"SYNC Pipeline failed for ${rows.size} rows: $ex")
+            }
+            _ <- notificationStorage.removeRows(ids)
+            _ <- processBatches(next)
+          } yield {}
+        } else Future.successful(())
+      }
+
+    processBatches(readBatch(Set.empty))
   }
 
   wsPushService.notifications() { notifications =>
@@ -308,18 +302,14 @@ class PushServiceImpl(selfUserId: UserId,
     }
 
 
-  private def isOtrEventJson(ev: JSONObject) =
-    ev.getString("type").equals("conversation.otr-message-add")
-
-  private def isBgpOtrEventJson(ev: JSONObject) =
-    ev.getString("type").equals("conversation.bgp-message-add")
+  private def isBgpOtrEvent(ev: PushNotificationEvent) =
+    ev.eventType == "conversation.bgp-message-add"
 
-  private def isUserNoticeEventJson(ev:JSONObject)=
-    ev.getString("type").equals("user.notice-message")
+  private def isUserNoticeEvent(ev: PushNotificationEvent) =
+    ev.eventType == "user.notice-message"
 
-  private def isBasicNotificationOtrEventJson(ev: JSONObject): Boolean = {
-    "conversation.json-message-add".equals(ev.optString("type"))
-  }
+  private def isBasicNotificationOtrEvent(ev: PushNotificationEvent): Boolean =
+    ev.eventType == "conversation.json-message-add"
 
   case class Results(notifications: Vector[PushNotificationEncoded], time: Option[Instant], firstSync: Boolean, historyLost: Boolean)
 
@@ -456,6 +446,30 @@ object PushService {
 
   var syncHistoryBackoff: Backoff = new ExponentialBackoff(3.second, 15.seconds)
 
+  //decrypted rows written back per transaction during catch-up
+  var DecryptionBatchSize: Int = DecryptionLanes.DefaultBatchSize
+
+  /**
+    * Encrypted stage: rows which are not otr messages only have to be marked as decrypted,
+    * otr messages go to decryption together with the id of the row their result is written to.
+    */
+  def splitEncrypted(rows: Seq[PushNotificationEvent]): (Seq[PushNotificationEvent], Seq[(Uid, OtrMessageEvent)]) = {
+    val (otr, plain) = rows.partition(_.isOtrMessage)
+    val otrEvents = otr.flatMap { row =>
+      row.otrEvent.orElse(Option(ConversationEvent.ConversationEventDecoder(row.event)).collect { case ev: OtrMessageEvent => ev })
+        .map(row.pushId -> _)
+    }
+    (plain, otrEvents)
+  }
+
+  /**
+    * Decrypted stage of an otr row: the event it was received with and its decrypted content.
+    */
+  def decryptedOtrMessage(row: PushNotificationEvent): (OtrMessageEvent, GenericMessage) = {
+    val msg = GenericMessage(row.plain.get)
+    (row.otrEvent.getOrElse(ConversationEvent.ConversationEventDecoder(row.event).asInstanceOf[OtrMessageEvent]), msg)
+  }
+
   val PROCESS_TIMEOUT = 15.second
 
   val MAX_SYNC_COUNT = 5
@@ -0,0 +1,100 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.sync.queue
+
+import com.waz.api.impl.ErrorResponse
+import com.waz.sync.SyncResult
+import com.waz.znet2.http.ResponseCode
+
+import scala.concurrent.duration._
+
+/**
+  * Limit on the number of sync requests running at once, adjusted with AIMD (additive increase, multiplicative decrease).
+  *
+  * Every finished request is reported with the time it was started. While requests come back quickly and without
+  * overload errors, the limit grows by one for every limit's worth of completions. A request which failed with a rate
+  * limiting or server error, or took much longer than the fastest one seen lately, cuts the limit in half - but only
+  * once per round: requests which were already running when the limit was last cut don't cut it again.
+  */
+class AdaptiveConcurrency(initial:     Int            = AdaptiveConcurrency.InitialLimit,
+                          min:         Int            = 1,
+                          max:         Int            = AdaptiveConcurrency.MaxLimit,
+                          slowLatency: FiniteDuration = AdaptiveConcurrency.SlowLatency,
+                          clock:       () => Long     = () => System.nanoTime()) {
+  import AdaptiveConcurrency._
+
+  require(min > 0 && min <= initial && initial <= max, s"invalid limits, min: $min, initial: $initial, max: $max")
+
+  private var _limit       = initial.toDouble
+  private var lastDecrease = Long.MinValue
+  private var fastest      = Long.MaxValue // fastest latency of the previous window, the no-load estimate
+  private var windowMin    = Long.MaxValue
+  private var samples      = 0
+
+  def limit: Int = synchronized(_limit.toInt)
+
+  /**
+    * @return the start time to report the request's result with
+    */
+  def started(): Long = clock()
+
+  def completed(startedAt: Long, result: SyncResult): Unit = completed(startedAt, isOverloaded(result))
+
+  def completed(startedAt: Long, overloaded: Boolean): Unit = synchronized {
+    val now = clock()
+    val latency = now - startedAt
+    val slow = latency > math.max(slowLatency.toNanos, if (fastest == Long.MaxValue) Long.MaxValue else fastest * LatencyTolerance)
+
+    if (overloaded || slow) {
+      if (startedAt >= lastDecrease) {
+        _limit = math.max(min, _limit * DecreaseFactor)
+        lastDecrease = now
+      }
+    } else _limit = math.min(max, _limit + 1 / _limit)
+
+    windowMin = math.min(windowMin, latency)
+    samples += 1
+    if (fastest == Long.MaxValue || samples % LatencyWindow == 0) {
+      fastest = windowMin
+      windowMin = Long.MaxValue
+    }
+  }
+}
+
+object AdaptiveConcurrency {
+  val InitialLimit = 4
+  val MaxLimit = 16
+
+  val DecreaseFactor = 0.5
+
+  // a request is slow if it took this many times longer than the fastest one, and at least `SlowLatency`
+  val LatencyTolerance = 4
+  val SlowLatency = 5.seconds
+  val LatencyWindow = 100
+
+  def isOverloaded(result: SyncResult): Boolean = result match {
+    case SyncResult.Retry(error)   => isOverloaded(error)
+    case SyncResult.Failure(error) => isOverloaded(error)
+    case _                         => false
+  }
+
+  def isOverloaded(error: ErrorResponse): Boolean = error.code match {
+    case ResponseCode.RateLimiting | ResponseCode.LoginRateLimiting | ErrorResponse.TimeoutCode => true
+    case code => code >= ResponseCode.InternalServerError && code < ErrorResponse.ExpiredCode // the codes above are local errors
+  }
+}
@@ -43,7 +43,8 @@ class SyncExecutor(account:     UserId,
                    content:     SyncContentUpdater,
                    network:     NetworkModeService,
                    handler: =>  SyncHandler,
-                   tracking:    TrackingService) extends DerivedLogTag {
+                   tracking:    TrackingService,
+                   concurrency: AdaptiveConcurrency = new AdaptiveConcurrency()) extends DerivedLogTag {
 
   import SyncExecutor._
   private implicit val dispatcher = new SerialDispatchQueue(name = "SyncExecutorQueue")
@@ -73,12 +74,16 @@ class SyncExecutor(account:     UserId,
       .flatMap {
         case None => Future.successful(SyncResult(ErrorResponse.internalError(s"Could not update job: $job")))
         case Some(updated) =>
+          val startedAt = concurrency.started()
           handler(account, updated.request)(RequestInfo(updated.attempts, Instant.ofEpochMilli(updated.startTime), network.networkMode.currentValue))
             .recover {
               case e: Throwable =>
                 SyncResult(ErrorResponse.internalError(s"syncHandler($updated) failed with unexpected error: ${e.getMessage}"))
             }
-            .flatMap(res => processSyncResult(updated, res))
+            .flatMap { res =>
+              concurrency.completed(startedAt, res)
+              processSyncResult(updated, res)
+            }
       }
 
     // this is only to check for any long running sync requests, which could mean very serious problem
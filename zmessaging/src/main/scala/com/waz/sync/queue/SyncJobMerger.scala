@@ -27,24 +27,34 @@ import scala.collection.{breakOut, mutable}
 
 /**
  * Maintains a list of sync jobs with matching merge key.
+ * Jobs are also kept ordered by timestamp, so that finding merge candidates doesn't sort all of them on every merge.
  */
 class SyncJobMerger(mergeKey: Any, storage: SyncStorage) {
   import SyncJobMerger._
 
   private[sync] val jobs = new mutable.HashMap[SyncId, SyncJob]
+  private val byTimestamp = new mutable.TreeSet[(Long, String)]
 
   def insert(job: SyncJob): Unit = {
     assert(job.mergeKey == mergeKey, s"Can only add jobs with matching merge key: $mergeKey, tried: $job")
-    jobs.get(job.id).fold(jobs(job.id) = job)(update(_, job))
+    jobs.get(job.id).fold(put(job))(update(_, job))
   }
 
-  def remove(id: SyncId): Unit = jobs.remove(id)
+  def remove(id: SyncId): Unit = jobs.remove(id) foreach { job => byTimestamp -= orderKey(job) }
+
+  private def put(job: SyncJob): Unit =
+    jobs.put(job.id, job) match {
+      case Some(prev) if prev.timestamp == job.timestamp =>
+      case prev =>
+        prev foreach { p => byTimestamp -= orderKey(p) }
+        byTimestamp += orderKey(job)
+    }
 
   def merge(job: SyncJob): MergeResult[SyncJob] = {
 
     def merge(job: SyncJob, js: List[SyncJob]): MergeResult[SyncJob] = js match {
       case Nil =>
-        jobs(job.id) = job
+        put(job)
         Updated(job)
       case h :: tail =>
         h.merge(job) match {
@@ -52,23 +62,23 @@ class SyncJobMerger(mergeKey: Any, storage: SyncStorage) {
           case Updated(u) => merge(u, tail)
           case Merged(m) =>
             val res = mergeDependent(m, tail)
-            jobs(m.id) = res
+            put(res)
             Merged(res)
         }
     }
 
-    jobs.remove(job.id) // remove if was already added
+    remove(job.id) // remove if was already added
     merge(job, listJobs)
   }
 
   private def update(prev: SyncJob, updated: SyncJob): SyncJob = {
     assert(prev.id == updated.id)
-    jobs(updated.id) = updated
+    put(updated)
 
     if (prev.state == SyncState.SYNCING && updated.state == SyncState.FAILED) {
-      val merged = mergeDependent(updated, listJobs.dropWhile(_.timestamp <= updated.timestamp))
+      val merged = mergeDependent(updated, listJobsAfter(updated.timestamp))
       if (merged != updated) {
-        jobs(updated.id) = merged
+        put(merged)
         storage.add(merged)
       }
       merged
@@ -118,11 +128,15 @@ class SyncJobMerger(mergeKey: Any, storage: SyncStorage) {
 
   def isEmpty = jobs.isEmpty
 
-  private def listJobs = jobs.values.toList.sortBy(_.timestamp)
+  private def listJobs = byTimestamp.iterator.map(k => jobs(SyncId(k._2))).toList
+
+  private def listJobsAfter(timestamp: Long) = byTimestamp.from((timestamp + 1, "")).iterator.map(k => jobs(SyncId(k._2))).toList
 }
 
 object SyncJobMerger {
 
+  private def orderKey(job: SyncJob) = (job.timestamp, job.id.str)
+
   sealed trait MergeResult[+A]
   case object Unchanged extends MergeResult[Nothing]
 
@@ -62,8 +62,9 @@ class SyncSchedulerImpl(accountId:   UserId,
 
   private implicit val dispatcher = new SerialDispatchQueue(name = "SyncSchedulerQueue")
 
-  private val queue                 = new SyncSerializer
-  private[sync] val executor        = new SyncExecutor(accountId, this, content, network, handler, tracking)
+  private val concurrency           = new AdaptiveConcurrency()
+  private val queue                 = new SyncSerializer(concurrency)
+  private[sync] val executor        = new SyncExecutor(accountId, this, content, network, handler, tracking, concurrency)
   private[sync] val executions      = new mutable.HashMap[SyncId, Future[SyncResult]]()
   private[sync] val executionsCount = Signal(0)
 
@@ -94,7 +95,7 @@ class SyncSchedulerImpl(accountId:   UserId,
   }
 
   override def reportString = Future {
-    s"SyncScheduler: executors: ${executions.size}, count: ${executionsCount.currentValue}, running: ${runningCount.currentValue}, waiting: ${waiting.currentValue}"
+    s"SyncScheduler: executors: ${executions.size}, count: ${executionsCount.currentValue}, running: ${runningCount.currentValue}, limit: ${concurrency.limit}, waiting: ${waiting.currentValue}"
   }
 
   override def report(pw: PrintWriter) = reportString.map(pw.println)
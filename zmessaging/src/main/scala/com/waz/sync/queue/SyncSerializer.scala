@@ -25,20 +25,28 @@ import com.waz.model.ConvId
 import com.waz.model.sync.SyncJob.Priority
 import com.waz.threading.SerialDispatchQueue
 
+import scala.annotation.tailrec
 import scala.collection.immutable.Queue
 import scala.collection.mutable
 import scala.concurrent.{Future, Promise}
 
-class SyncSerializer extends DerivedLogTag {
+/**
+  * Limits how many sync jobs run at once, and serializes jobs working on the same conversation.
+  *
+  * Lower priority jobs get fewer slots: the more jobs are running, relative to the current `concurrency` limit, the
+  * higher a job's priority has to be to start. Critical jobs always start.
+  * Conversation locks are granted in the order they were requested, each locked conversation keeps its own queue.
+  */
+class SyncSerializer(concurrency: AdaptiveConcurrency = new AdaptiveConcurrency()) extends DerivedLogTag {
   import SyncSerializer._
   private implicit val dispatcher = new SerialDispatchQueue(name = "SyncSerializer")
 
   private var runningJobs = 0
-  private val convs = new mutable.HashSet[ConvId]
-  private var convQueue = Queue[ConvHandle]()
+  private val convs = new mutable.HashMap[ConvId, Queue[ConvHandle]] // locked conversations with their waiters
   private val queue = new mutable.PriorityQueue[PriorityHandle]()(PriorityHandle.PriorityOrdering.reverse)
 
-  private[sync] def nextJobMinPriority = runningJobs match {
+  // the thresholds are for the initial limit, running jobs are scaled to the current one
+  private[sync] def nextJobMinPriority = runningJobs * AdaptiveConcurrency.InitialLimit / concurrency.limit match {
     case 0 => Priority.MinPriority
     case 1 => Priority.Low
     case 2 => Priority.Normal
@@ -77,28 +85,33 @@ class SyncSerializer extends DerivedLogTag {
     processQueue()
   }
 
-  private def processConvQueue(): Unit = {
-    convQueue = convQueue.filter(!_.isCompleted)
-    convQueue foreach { handle =>
-      if (!convs(handle.convId) && handle.promise.trySuccess(new ConvLock(handle.convId, this))) convs += handle.convId
-    }
-  }
-
   def acquire(res: ConvId): Future[ConvLock] = {
     verbose(l"acquire($res)")
     val handle = new ConvHandle(res)
     Future {
-      convQueue :+= handle
-      processConvQueue()
+      convs.get(res) match {
+        case Some(waiters) => convs(res) = waiters.enqueue(handle)
+        case None => if (handle.promise.trySuccess(new ConvLock(res, this))) convs(res) = Queue.empty
+      }
     }
     handle.future
   }
 
   def release(r: ConvId): Unit = Future {
     verbose(l"release($r)")
-    convs -= r
-    processConvQueue()
+    convs.get(r) foreach (grantNext(r, _))
   }
+
+  // a waiter whose handle was completed in the meantime doesn't get the lock, it goes to the next one
+  @tailrec private def grantNext(r: ConvId, waiters: Queue[ConvHandle]): Unit =
+    if (waiters.isEmpty) convs -= r
+    else {
+      val (next, rest) = waiters.dequeue
+      if (next.promise.trySuccess(new ConvLock(r, this))) convs(r) = rest
+      else grantNext(r, rest)
+    }
+
+  private[sync] def lockedConvs: Future[Int] = Future(convs.size)
 }
 
 object SyncSerializer {
@@ -17,8 +17,6 @@
  */
 package com.waz.threading
 
-import java.util.TimerTask
-
 import com.waz.log.BasicLogging.LogTag
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
 import com.waz.log.LogSE._
@@ -29,7 +27,7 @@ import scala.collection.generic.CanBuild
 import scala.concurrent._
 import scala.concurrent.duration.{Duration, FiniteDuration}
 import scala.ref.WeakReference
-import scala.util.control.NoStackTrace
+import scala.util.control.{NoStackTrace, NonFatal}
 import scala.util.{Failure, Success, Try}
 
 class CancellableFuture[+A](promise: Promise[A]) extends Awaitable[A] with DerivedLogTag { self =>
@@ -57,22 +55,11 @@ class CancellableFuture[+A](promise: Promise[A]) extends Awaitable[A] with Deriv
       case _: CancelException => body
     }
 
-  def map[B](f: A => B)(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[B] = {
-    val p = Promise[B]()
-    @volatile var cancelFunc = Option(self.cancel()(_: LogTag))
-    future.onComplete { v =>
-      cancelFunc = None
-      p.tryComplete(v.flatMap(res => Try(f(res))))
-    }
-    new CancellableFuture(p) {
-      override def cancel()(implicit tag: LogTag): Boolean = {
-        if (super.cancel()(tag)) {
-          Future(cancelFunc.foreach(_.apply(tag)))(CancellableFuture.internalExecutionContext)
-          true
-        } else false
-      }
+  def map[B](f: A => B)(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[B] =
+    future.value match {
+      case Some(_: Failure[_]) => this.asInstanceOf[CancellableFuture[B]] // nothing to map, the failure passes through
+      case _ => new MapNode[A, B](f, executor, tag).subscribe(this)
     }
-  }
 
   def filter(f: (A) => Boolean)(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[A] =
     flatMap { res =>
@@ -83,69 +70,21 @@ class CancellableFuture[+A](promise: Promise[A]) extends Awaitable[A] with Deriv
   final def withFilter(p: A => Boolean)(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[A] =
     filter(p)(executor)
 
-  def flatMap[B](f: A => CancellableFuture[B])(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[B] = {
-    val p = Promise[B]()
-    @volatile var cancelFunc = Option(self.cancel()(_: LogTag))
-
-    self.future onComplete { res =>
-      cancelFunc = None
-      if (!p.isCompleted) res match {
-        case f: Failure[_] => p tryComplete f.asInstanceOf[Failure[B]]
-        case Success(v) =>
-          Try(f(v)) match {
-            case Success(fut) =>
-              cancelFunc = Option(fut.cancel()(_: LogTag))
-              fut onComplete { res =>
-                cancelFunc = None
-                p tryComplete res
-              }
-              if (p.isCompleted) fut.cancel()(tag)
-            case Failure(t) =>
-              p tryFailure t
-          }
-      }
-    }
-
-    new CancellableFuture(p) {
-      override def cancel()(implicit tag: LogTag): Boolean = {
-        if (super.cancel()(tag)) {
-          Future(cancelFunc.foreach(_.apply(tag)))(CancellableFuture.internalExecutionContext)
-          true
-        } else false
-      }
+  def flatMap[B](f: A => CancellableFuture[B])(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[B] =
+    future.value match {
+      case Some(_: Failure[_]) => this.asInstanceOf[CancellableFuture[B]]
+      case _ => new FlatMapNode[A, B](f, executor, tag).subscribe(this)
     }
-  }
 
   def recover[U >: A](pf: PartialFunction[Throwable, U])(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag) =
     recoverWith(pf.andThen(CancellableFuture.successful))(executor, tag)
 
-  def recoverWith[U >: A](pf: PartialFunction[Throwable, CancellableFuture[U]])(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[U] = {
-    val p = Promise[U]()
-    @volatile var cancelFunc = Option(self.cancel()(_: LogTag))
-    future.onComplete { res =>
-      cancelFunc = None
-      if (!p.isCompleted) res match {
-        case Failure(t) if pf.isDefinedAt(t) =>
-          val fut = pf.applyOrElse(t, (_: Throwable) => this)
-          cancelFunc = Some(fut.cancel()(_: LogTag))
-          fut onComplete { res =>
-            cancelFunc = None
-            p tryComplete res
-          }
-          if (p.isCompleted) fut.cancel()(tag)
-        case other =>
-          p tryComplete other
-      }
-    }
-    new CancellableFuture(p) {
-      override def cancel()(implicit tag: LogTag): Boolean = {
-        if (super.cancel()(tag)) {
-          Future(cancelFunc.foreach(_.apply(tag)))(CancellableFuture.internalExecutionContext)
-          true
-        } else false
-      }
+  def recoverWith[U >: A](pf: PartialFunction[Throwable, CancellableFuture[U]])(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[U] =
+    future.value match {
+      case Some(Failure(t)) if !pf.isDefinedAt(t) => this
+      case Some(_: Success[_]) => this
+      case _ => new RecoverNode[A, U](pf, executor, tag).subscribe(this)
     }
-  }
 
   def flatten[B](implicit executor: ExecutionContext, evidence: A <:< CancellableFuture[B]): CancellableFuture[B] =
     flatMap(x => x)
@@ -165,9 +104,12 @@ class CancellableFuture[+A](promise: Promise[A]) extends Awaitable[A] with Deriv
 
   // TODO: timeout should generate different exception
   def withTimeout(timeout: FiniteDuration)(implicit tag: LogTag = DefaultLogTag): CancellableFuture[A] = {
-    implicit val ec = CancellableFuture.internalExecutionContext
-    val f = CancellableFuture.delayed(timeout)(this.fail(new TimeoutException(s"[$tag] timedOut($timeout)")))
-    onComplete(_ => f.cancel()(tag))
+    if (!future.isCompleted) {
+      val task = Threading.Wheel.schedule(new Runnable {
+        override def run(): Unit = fail(new TimeoutException(s"[$tag] timedOut($timeout)"))
+      }, timeout.toMillis)
+      future.onComplete(_ => task.cancel())(CancellableFuture.internalExecutionContext)
+    }
     this
   }
 
@@ -209,7 +151,11 @@ object CancellableFuture {
   
   def apply[A](body: => A)(implicit executor: ExecutionContext, tag: LogTag = DefaultLogTag): CancellableFuture[A] = {
     val runnable = new PromiseCompletingRunnable[A](body)
-    executor.execute(DispatchQueueStats(s"CancellableFuture_$tag", runnable))
+    executor match {
+      case _: DispatchQueue => executor.execute(runnable) // recorded by the queue
+      case _ if DispatchQueueStats.Enabled => executor.execute(DispatchQueueStats(s"CancellableFuture_$tag", runnable))
+      case _ => executor.execute(runnable)
+    }
     new CancellableFuture(runnable.promise)
   }
 
@@ -226,22 +172,9 @@ object CancellableFuture {
     }
   }
 
-  def delay(d: FiniteDuration): CancellableFuture[Unit] = {
+  def delay(d: FiniteDuration): CancellableFuture[Unit] =
     if (d <= Duration.Zero) successful(())
-    else {
-      val p = Promise[Unit]()
-      val task = new TimerTask {
-        override def run(): Unit = p.trySuccess(())
-      }
-      Threading.Timer.schedule(task, d.toMillis)
-      new CancellableFuture(p) {
-        override def cancel()(implicit tag: LogTag): Boolean = {
-          task.cancel()
-          super.cancel()(tag)
-        }
-      }
-    }
-  }
+    else new DelayedFuture(d.toMillis)
 
   def timeout(duration: Duration,
               interrupter: Option[CancellableFuture[_]] = None,
@@ -255,29 +188,28 @@ object CancellableFuture {
         interrupter.foreach(_.onComplete {
           case Success(_) =>
             doCleanup()
-            promise.success(())
+            promise.trySuccess(())
           case _ => //treat it like we should not interrupt
         })
 
         @volatile
-        private var currentTask: TimerTask = _
-        startNewTimeoutLoop()
+        private var currentTask: TimerWheel.Timeout = _
 
-        private def startNewTimeoutLoop(): Unit = {
-          currentTask = createTask
-          Threading.Timer.schedule(currentTask, duration.toMillis)
-        }
-
-        private def createTask: TimerTask = new TimerTask {
+        private val loopTask = new Runnable {
           override def run(): Unit = {
             if (shouldLoop()) startNewTimeoutLoop()
             else {
               doCleanup()
-              promise.success(())
+              promise.trySuccess(())
             }
           }
         }
 
+        startNewTimeoutLoop()
+
+        private def startNewTimeoutLoop(): Unit =
+          currentTask = Threading.Wheel.schedule(loopTask, duration.toMillis)
+
         private def doCleanup(): Unit = {
           interrupter.foreach(_.cancel()(tag)) //do not forget to cancel interrupter
           if (currentTask != null) currentTask.cancel() //do not forget to to cancel scheduled task
@@ -339,4 +271,110 @@ object CancellableFuture {
       }
     }
   }
+
+  private final class DelayedFuture(delayMillis: Long, p: Promise[Unit] = Promise[Unit]()) extends CancellableFuture[Unit](p) with Runnable {
+    private val task = Threading.Wheel.schedule(this, delayMillis)
+
+    override def run(): Unit = p.trySuccess(())
+
+    override def cancel()(implicit tag: LogTag): Boolean = {
+      task.cancel()
+      super.cancel()(tag)
+    }
+  }
+
+  /**
+    * Step of a `map`, `flatMap` or `recoverWith` chain. The node is at the same time the resulting future, the callback
+    * registered on its source and the link cancellation travels along, so a step only allocates the node and its promise.
+    * `upstream` is the source until it completes, and then the inner future of `flatMap` and `recoverWith`.
+    */
+  private[threading] abstract class ChainNode[A, B](p: Promise[B], executor: ExecutionContext, tag: LogTag)
+    extends CancellableFuture[B](p) with Function1[Try[A], Unit] with Runnable {
+
+    @volatile private[threading] var upstream: CancellableFuture[_] = _
+
+    protected def onSourceComplete(res: Try[A]): Unit
+
+    def subscribe(source: CancellableFuture[A]): CancellableFuture[B] = {
+      upstream = source
+      if (source.future.isCompleted) executor.execute(this) // no need to register a callback
+      else source.future.onComplete(this)(executor)
+      this
+    }
+
+    override def run(): Unit = apply(upstream.future.value.get.asInstanceOf[Try[A]])
+
+    override def apply(res: Try[A]): Unit = {
+      upstream = null
+      if (!p.isCompleted) onSourceComplete(res)
+    }
+
+    override def cancel()(implicit tag: LogTag): Boolean =
+      if (cancelLocally()(tag)) {
+        cancelChain(upstream)(tag)
+        true
+      } else false
+
+    private[threading] def cancelLocally()(implicit tag: LogTag): Boolean = super.cancel()(tag)
+
+    protected final def complete(res: Try[B]): Unit = p.tryComplete(res)
+
+    protected final def follow(inner: CancellableFuture[B]): Unit = inner.future.value match {
+      case Some(res) => p.tryComplete(res)
+      case None =>
+        upstream = inner
+        p.tryCompleteWith(inner.future)
+        if (p.isCompleted && !inner.future.isCompleted) inner.cancel()(tag)
+    }
+
+    override def toString: String = super[CancellableFuture].toString
+  }
+
+  private final class MapNode[A, B](f: A => B, executor: ExecutionContext, tag: LogTag)
+    extends ChainNode[A, B](Promise[B](), executor, tag) {
+
+    override protected def onSourceComplete(res: Try[A]): Unit = res match {
+      case Success(v) =>
+        complete(try Success(f(v)) catch { case NonFatal(e) => Failure(e) })
+      case failure =>
+        complete(failure.asInstanceOf[Failure[B]])
+    }
+  }
+
+  private final class FlatMapNode[A, B](f: A => CancellableFuture[B], executor: ExecutionContext, tag: LogTag)
+    extends ChainNode[A, B](Promise[B](), executor, tag) {
+
+    override protected def onSourceComplete(res: Try[A]): Unit = res match {
+      case Success(v) =>
+        follow(try f(v) catch { case NonFatal(e) => CancellableFuture.failed[B](e) })
+      case failure =>
+        complete(failure.asInstanceOf[Failure[B]])
+    }
+  }
+
+  private final class RecoverNode[A, U >: A](pf: PartialFunction[Throwable, CancellableFuture[U]], executor: ExecutionContext, tag: LogTag)
+    extends ChainNode[A, U](Promise[U](), executor, tag) {
+
+    override protected def onSourceComplete(res: Try[A]): Unit = res match {
+      case Failure(t) if pf.isDefinedAt(t) =>
+        follow(try pf(t) catch { case NonFatal(e) => CancellableFuture.failed[U](e) })
+      case other =>
+        complete(other)
+    }
+  }
+
+  /**
+    * Cancels `from` and, as long as it is a chain node, everything above it, iteratively so that deep `flatMap`
+    * recursions don't overflow the stack. Futures with custom cancel logic are still cancelled on the background
+    * queue, as that logic may block or call back into the caller.
+    */
+  private[threading] def cancelChain(from: CancellableFuture[_])(implicit tag: LogTag): Unit = {
+    var next = from
+    while (next ne null) next = next match {
+      case node: ChainNode[_, _] => if (node.cancelLocally()) node.upstream else null
+      case delayed: DelayedFuture => delayed.cancel(); null
+      case plain if plain.getClass eq classOf[CancellableFuture[_]] => plain.cancel(); null
+      case other => Future(other.cancel()(tag))(internalExecutionContext); null
+    }
+  }
 }
@@ -17,8 +17,9 @@
  */
 package com.waz.threading
 
-import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, ForkJoinPool, ForkJoinTask, ForkJoinWorkerThread}
 
 import android.os.{Handler, Looper}
 import com.waz.log.BasicLogging.LogTag
@@ -32,6 +33,8 @@ trait DispatchQueue extends ExecutionContext {
 
   private[threading] val name: String = "queue_" + ZSecureRandom.nextInt().toHexString
 
+  private[threading] lazy val statsName: String = DispatchQueueStats.category(name)
+
   /**
    * Executes a task on this queue.
    * @param task - operation to perform on this queue.
@@ -55,14 +58,14 @@ object DispatchQueue {
 }
 
 class UnlimitedDispatchQueue(executor: ExecutionContext = Threading.ThreadPool, override val name: String = "UnlimitedQueue") extends DispatchQueue {
-  override def execute(runnable: Runnable): Unit = executor.execute(DispatchQueueStats(name, runnable))
+  override def execute(runnable: Runnable): Unit = executor.execute(DispatchQueueStats(statsName, runnable))
 }
 
 class UiDispatchQueue() extends DispatchQueue {
   override private[threading] val name: String = "UiDispatchQueue"
   private val handler = new Handler(Looper.getMainLooper)
 
-  override def execute(runnable: Runnable): Unit = handler.post(DispatchQueueStats(name, runnable))
+  override def execute(runnable: Runnable): Unit = handler.post(DispatchQueueStats(statsName, runnable))
 }
 
 /**
@@ -76,13 +79,13 @@ class LimitedDispatchQueue(concurrencyLimit: Int = 1, parent: ExecutionContext =
 
   override def reportFailure(cause: Throwable): Unit = parent.reportFailure(cause)
 
-  private object Executor extends Runnable {
+  private object Executor extends DispatchQueueStats.Untracked {
 
     val queue = new ConcurrentLinkedQueue[Runnable]
     val runningCount = new AtomicInteger(0)
 
     def dispatch(runnable: Runnable): Unit = {
-      queue.add(DispatchQueueStats(name, runnable))
+      queue.add(DispatchQueueStats(statsName, runnable))
       dispatchExecutor()
     }
 
@@ -125,6 +128,60 @@ object LimitedDispatchQueue {
   val MaxBatchSize = 100
 }
 
+/**
+  * Work-stealing thread pool, each worker has its own task deque and idle workers steal from busy ones.
+  *
+  * Tasks dispatched from one of the pool's own threads are pushed to that worker's deque. This is the case for
+  * `LimitedDispatchQueue`/`SerialDispatchQueue` rescheduling itself after a batch, or for a future callback scheduled
+  * by a task, so a serial queue tends to stay on the same core while it's busy, and only moves once some other
+  * worker runs out of work.
+  */
+class WorkStealingDispatchQueue(parallelism: Int, override val name: String = "WorkStealingQueue") extends DispatchQueue {
+  require(parallelism > 0, "parallelism should be greater than 0")
+
+  private val threadFactory = new ForkJoinWorkerThreadFactory {
+    private val counter = new AtomicInteger(0)
+
+    override def newThread(pool: ForkJoinPool): ForkJoinWorkerThread = {
+      val thread = new ForkJoinWorkerThread(pool) {}
+      thread.setName(s"${WorkStealingDispatchQueue.this.name}_${counter.incrementAndGet()}")
+      thread
+    }
+  }
+
+  private val handler = new Thread.UncaughtExceptionHandler {
+    override def uncaughtException(t: Thread, e: Throwable): Unit = reportFailure(e)
+  }
+
+  // async mode - workers process their own deques in FIFO order, like the queues we replace
+  private val pool = new ForkJoinPool(parallelism, threadFactory, handler, true)
+
+  override def execute(runnable: Runnable): Unit = {
+    val task = new WorkStealingDispatchQueue.Task(DispatchQueueStats(statsName, runnable), this)
+    Thread.currentThread() match {
+      case worker: ForkJoinWorkerThread if worker.getPool eq pool => task.fork()
+      case _ => pool.execute(task)
+    }
+  }
+
+  override def hasRemainingTasks: Boolean = !pool.isQuiescent
+}
+
+object WorkStealingDispatchQueue {
+
+  private class Task(runnable: Runnable, queue: DispatchQueue) extends ForkJoinTask[Unit] {
+    override def getRawResult: Unit = ()
+    override def setRawResult(value: Unit): Unit = ()
+
+    // failures are reported right away, a forked task is never joined so they would be lost otherwise
+    override def exec(): Boolean = {
+      try runnable.run()
+      catch { case cause: Throwable => queue.reportFailure(cause) }
+      true
+    }
+  }
+}
+
 class SerialDispatchQueue(executor: ExecutionContext = Threading.ThreadPool, override val name: String = "serial_" + ZSecureRandom.nextInt().toHexString) extends LimitedDispatchQueue(1, executor)
 
 object SerialDispatchQueue {
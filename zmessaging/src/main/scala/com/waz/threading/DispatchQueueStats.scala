@@ -17,26 +17,60 @@
  */
 package com.waz.threading
 
-import com.waz.api.ZmsVersion
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
 
-import scala.collection.mutable
+import scala.annotation.tailrec
+import scala.collection.JavaConverters._
 import scala.concurrent.ExecutionContext
 
+/**
+  * Per queue wait and execution time statistics, always on, also in production builds, so that queue latencies can be
+  * read from any device. Recording a task costs two `nanoTime` calls and a handful of atomic increments, there is no
+  * locking involved. `Enabled` only switches it off for queues created, and tasks dispatched, afterwards.
+  *
+  * Each task is recorded once, by the first queue it's dispatched to. Stats are kept per queue category (queue name
+  * without its instance id), and for at most `MaxQueues` categories, so queues created per conversation, user or
+  * view don't make the stats grow for the whole process lifetime.
+  */
 object DispatchQueueStats {
 
-  val Debug = ZmsVersion.DEBUG
+  @volatile var Enabled = true
 
-  val stats = new mutable.HashMap[String, QueueStats]
+  val MaxQueues = 128
+  val Other = "other"
+
+  private val stats = new ConcurrentHashMap[String, QueueStats]
+
+  // a separator followed by a segment containing some id-like char: digit, bracket, etc.
+  private val InstanceId = "[_-][^_-]*[^A-Za-z.$_-]".r
+
+  /**
+    * Queue name without its instance suffix, e.g. `serial_1f2e3d` -> `serial`, `UserVideoView-Participant(..)` -> `UserVideoView`.
+    * Queues left with the default name end up in one category, so long lived ones should be named.
+    */
+  def category(queue: String): String =
+    InstanceId.findFirstMatchIn(queue).fold(queue)(m => queue.substring(0, m.start))
+
+  /**
+    * Marks runnables which only run other, already recorded tasks, like a limited queue's batch executor.
+    */
+  private[threading] trait Untracked extends Runnable
 
   def apply(queue: String, executor: ExecutionContext): ExecutionContext =
-    if (Debug) {
+    if (Enabled) {
+      val name = category(queue)
       new ExecutionContext {
         override def reportFailure(cause: Throwable): Unit = executor.reportFailure(cause)
-        override def execute(runnable: Runnable): Unit = executor.execute(DispatchQueueStats(queue, runnable))
+        override def execute(runnable: Runnable): Unit = executor.execute(DispatchQueueStats(name, runnable))
       }
     } else executor
 
-  def apply(queue: String, task: Runnable): Runnable = if (Debug) { new StatsRunnable(task, queue) } else task
+  def apply(queue: String, task: Runnable): Runnable = task match {
+    case _ if !Enabled => task
+    case _: StatsRunnable | _: Untracked => task
+    case _ => new StatsRunnable(task, queue)
+  }
 
   def debug[A](queue: String)(f: => A): A = {
     val start = System.nanoTime()
@@ -45,32 +79,41 @@ object DispatchQueueStats {
     res
   }
 
-  def reset() = synchronized { stats.clear() }
+  def reset() = stats.clear()
+
+  def add(queue: String, init: Long, start: Long, done: Long) = queueStats(queue).add(init, start, done)
 
-  def add(queue: String, init: Long, start: Long, done: Long) = DispatchQueueStats.synchronized {
-    stats.getOrElseUpdate(queue, QueueStats(queue)).add(init, start, done)
+  def queueStats(queue: String): QueueStats = stats.get(queue) match {
+    case null if stats.size >= MaxQueues && queue != Other => queueStats(Other)
+    case null =>
+      val qs = QueueStats(queue)
+      Option(stats.putIfAbsent(queue, qs)).getOrElse(qs)
+    case qs => qs
   }
 
   def printStats(minTasks: Int = 10) = report(minTasks) foreach println
 
   def report(minTasks: Int = 10) =
-    stats.values.toSeq.sortBy(_.totalExecution).reverse.filter(s => s.count > minTasks || s.total > 1000000).map(_.report)
+    stats.values.asScala.toSeq.map(_.report).sortBy(_.totalExecution).reverse.filter(s => s.count > minTasks || s.total > 1000000)
 
   case class QueueStats(queue: String) {
 
-    var count = 0
-    var total = 0L // total time in micro seconds
-    var totalWait = 0L
-    var totalExecution = 0L
+    // times in micro seconds
+    val waitTimes      = new LatencyHistogram
+    val executionTimes = new LatencyHistogram
 
     def add(initNanos: Long, startNanos: Long, doneNanos: Long): Unit = {
-      count += 1
-      total += (doneNanos - initNanos) / 1000
-      totalWait += (startNanos - initNanos) / 1000
-      totalExecution += (doneNanos - startNanos) / 1000
+      waitTimes.record((startNanos - initNanos) / 1000)
+      executionTimes.record((doneNanos - startNanos) / 1000)
     }
 
-    def report = QueueReport(queue, count, total, totalWait, totalExecution)
+    def count = executionTimes.count
+
+    def report = {
+      val wait = waitTimes.snapshot
+      val execution = executionTimes.snapshot
+      QueueReport(queue, execution.count.toInt, wait.total + execution.total, wait.total, execution.total, wait, execution)
+    }
   }
 
   class StatsRunnable(task: Runnable, queue: String) extends Runnable {
@@ -87,16 +130,111 @@ object DispatchQueueStats {
   }
 }
 
-case class QueueReport(queue: String, count: Int, total: Long, totalWait: Long, totalExecution: Long) {
+/**
+  * Concurrent histogram of non-negative values with bounded relative error, in the spirit of HdrHistogram.
+  * Values below `LinearRange` get a bucket each, above that every power of two is split into `SubBuckets` equal
+  * buckets, so a recorded value is off by at most 1/SubBuckets (12.5%).
+  */
+final class LatencyHistogram {
+  import LatencyHistogram._
+
+  private val counts   = new AtomicLongArray(BucketCount)
+  private val _count   = new AtomicLong(0)
+  private val _total   = new AtomicLong(0)
+  private val _max     = new AtomicLong(0)
+
+  def record(value: Long): Unit = {
+    val v = math.max(0L, value)
+    counts.incrementAndGet(bucketIndex(v))
+    _count.incrementAndGet()
+    _total.addAndGet(v)
+
+    @tailrec def updateMax(): Unit = {
+      val current = _max.get()
+      if (v > current && !_max.compareAndSet(current, v)) updateMax()
+    }
+    updateMax()
+  }
+
+  def count: Long = _count.get()
+
+  /**
+    * Reads are not atomic with respect to concurrent records, the snapshot may be off by the few tasks that completed
+    * while it was taken.
+    */
+  def snapshot: HistogramSnapshot = {
+    val cs = Array.tabulate(BucketCount)(counts.get)
+    HistogramSnapshot(cs.sum, _total.get(), _max.get(), cs)
+  }
+}
+
+object LatencyHistogram {
+  val SubBucketBits = 3
+  val SubBuckets    = 1 << SubBucketBits
+  val LinearRange   = 2 * SubBuckets
+  val MaxExponent   = 40 // in micro seconds that's almost two weeks, anything bigger goes to the last bucket
+
+  private val LinearBits = Integer.numberOfTrailingZeros(LinearRange)
+  val BucketCount = LinearRange + (MaxExponent - LinearBits + 1) * SubBuckets
+
+  def bucketIndex(value: Long): Int =
+    if (value < LinearRange) value.toInt
+    else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      if (exponent > MaxExponent) BucketCount - 1
+      else {
+        val sub = (value >>> (exponent - SubBucketBits)).toInt & (SubBuckets - 1)
+        LinearRange + (exponent - LinearBits) * SubBuckets + sub
+      }
+    }
+
+  /**
+    * Largest value that falls into the bucket.
+    */
+  def bucketUpperBound(index: Int): Long =
+    if (index < LinearRange) index.toLong
+    else {
+      val exponent = (index - LinearRange) / SubBuckets + LinearBits
+      val sub = (index - LinearRange) % SubBuckets
+      val width = 1L << (exponent - SubBucketBits)
+      (1L << exponent) + (sub + 1) * width - 1
+    }
+}
+
+case class HistogramSnapshot(count: Long, total: Long, max: Long, counts: Array[Long]) {
+
+  def mean: Long = if (count == 0) 0 else total / count
+
+  /**
+    * Upper bound of the bucket holding given percentile, never more than the max recorded value.
+    */
+  def percentile(p: Double): Long =
+    if (count == 0) 0
+    else {
+      val rank = math.max(1L, math.ceil(count * p / 100).toLong)
+      var seen = 0L
+      var i = 0
+      while (i < counts.length && seen + counts(i) < rank) {
+        seen += counts(i)
+        i += 1
+      }
+      math.min(LatencyHistogram.bucketUpperBound(math.min(i, counts.length - 1)), max)
+    }
+}
+
+case class QueueReport(queue: String, count: Int, total: Long, totalWait: Long, totalExecution: Long,
+                       wait: HistogramSnapshot, execution: HistogramSnapshot) {
 
   def time(us: Long) = f"${us / 1000000}'${us / 1000 % 1000}%03d'${us % 1000}%03d µs"
 
-  def stat(label: String, sum: Long) =  s"\t$label ${time(sum)} [${time(sum/count)}]"
+  def stat(label: String, sum: Long) =  s"\t$label ${time(sum)} [${time(if (count == 0) 0 else sum / count)}]"
+
+  def percentiles(h: HistogramSnapshot) = s"p50: ${time(h.percentile(50))}, p99: ${time(h.percentile(99))}, max: ${time(h.max)}"
 
   override def toString: String =
     s"""QueueStats[$queue] - tasks: $count
         |   ${stat("total:     ", total)}
-        |   ${stat("execution: ", totalExecution)}
-        |   ${stat("wait:      ", totalWait)}
+        |   ${stat("execution: ", totalExecution)}  ${percentiles(execution)}
+        |   ${stat("wait:      ", totalWait)}  ${percentiles(wait)}
         |""".stripMargin
 }
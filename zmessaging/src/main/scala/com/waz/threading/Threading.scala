@@ -52,8 +52,9 @@ object Threading {
 
   /**
    * Thread pool for non-blocking background tasks.
+   * Work-stealing, so that serial queues multiplexed on it keep running on the same worker while they have work.
    */
-  val ThreadPool: DispatchQueue = new LimitedDispatchQueue(Cpus, executionContext(Executors.newCachedThreadPool())(LogTag("CpuThreadPool")), "CpuThreadPool")
+  val ThreadPool: DispatchQueue = new WorkStealingDispatchQueue(Cpus, "CpuThreadPool")
 
   /**
    * Thread pool for blocking IO tasks.
@@ -99,6 +100,11 @@ object Threading {
 
   Timer.purge()
 
+  /**
+   * Shared timer for `CancellableFuture` delays and timeouts.
+   */
+  lazy val Wheel: TimerWheel = new TimerWheel("TimerWheel")
+
   lazy val BackgroundHandler: Future[Handler] = {
     val looper = Promise[Looper]
     val looperThread = new HandlerThread("BackgroundHandlerThread") {
@@ -0,0 +1,247 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.threading
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.log.LogSE._
+import com.waz.threading.TimerWheel._
+
+import scala.util.control.NonFatal
+
+/**
+  * Hashed timing wheel backing `CancellableFuture.delay`, `withTimeout` and `timeout`.
+  *
+  * Scheduling and cancelling are O(1) and allocate a single entry. All bookkeeping happens on one daemon thread,
+  * which sleeps until the tick of the earliest pending timeout (skipping empty ticks), and is only woken up early
+  * when a timeout due before that is scheduled. Long delays don't keep it ticking.
+  * Timeouts never fire early, but may fire up to one tick late. Tasks run on the wheel thread, so they should only
+  * complete promises or hand their work over to an execution context.
+  */
+final class TimerWheel(name: String, tickMillis: Long = 10, wheelSize: Int = 512) extends DerivedLogTag {
+  require(tickMillis > 0, "tickMillis must be positive")
+  require(wheelSize > 0 && (wheelSize & (wheelSize - 1)) == 0, "wheelSize must be a power of two")
+
+  private val tickNanos = tickMillis * 1000000L
+  private val mask = wheelSize - 1
+  private val buckets = Array.fill(wheelSize)(new Bucket)
+
+  private val added = new ConcurrentLinkedQueue[Entry]
+  private val cancelled = new ConcurrentLinkedQueue[Entry]
+  private val active = new AtomicInteger(0) // scheduled entries not yet expired or removed from the wheel
+  private val lock = new Object
+
+  // time the wheel thread is parked until, Long.MinValue while it's running
+  @volatile private var wakeAt = Long.MinValue
+
+  // number of times the wheel thread woke up with timeouts pending, only written by the wheel thread
+  @volatile private[threading] var wakeUps = 0L
+
+  // only accessed by the wheel thread
+  private var startTime = 0L
+  private var tick = 0L // next tick to process
+
+  private val thread = new Thread(name) {
+    override def run(): Unit = loop()
+  }
+  thread.setDaemon(true)
+  thread.start()
+
+  /**
+    * Runs `task` on the wheel thread once `delayMillis` have passed, unless the returned timeout is cancelled before.
+    */
+  def schedule(task: Runnable, delayMillis: Long): Timeout = {
+    val entry = new Entry(task, System.nanoTime() + math.max(delayMillis, 0L) * 1000000L)
+    if (active.getAndIncrement() == 0) {
+      added.add(entry)
+      lock.synchronized(lock.notifyAll())
+    } else {
+      added.add(entry)
+      if (entry.deadline < wakeAt) LockSupport.unpark(thread)
+    }
+    entry
+  }
+
+  /**
+    * Number of scheduled timeouts the wheel still keeps track of, including cancelled ones awaiting removal.
+    */
+  def pending: Int = active.get
+
+  private def loop(): Unit = while (true) {
+    if (active.get == 0) awaitWork()
+
+    removeCancelled()
+    transferAdded()
+    val due = nextDue()
+    if (due >= 0) {
+      val dueTime = startTime + (due + 1) * tickNanos
+      wakeAt = dueTime
+      // entries added after `transferAdded` see the new `wakeAt` and unpark the thread if they are due earlier
+      if (added.isEmpty) {
+        val now = System.nanoTime()
+        if (now < dueTime) LockSupport.parkNanos(this, dueTime - now)
+      }
+      wakeAt = Long.MinValue
+      wakeUps += 1
+
+      if (System.nanoTime() >= dueTime) {
+        removeCancelled()
+        expire(buckets((due & mask).toInt), due)
+        tick = due + 1
+      }
+    }
+  }
+
+  /**
+    * Earliest tick with an entry due, or -1 if there are no entries on the wheel. Entries in a bucket are due on its
+    * tick in the current revolution or in a later one, so once a bucket holds an entry due on its tick in this
+    * revolution, no entry is due before that.
+    */
+  private def nextDue(): Long = {
+    var min = Long.MaxValue
+    var i = 0
+    while (i < wheelSize) {
+      val t = tick + i
+      var entry = buckets((t & mask).toInt).head
+      while (entry ne null) {
+        if (entry.due < min) min = entry.due
+        entry = entry.next
+      }
+      if (min <= t) return min
+      i += 1
+    }
+    if (min == Long.MaxValue) -1 else min
+  }
+
+  private def awaitWork(): Unit = {
+    lock.synchronized {
+      while (active.get == 0) lock.wait()
+    }
+    // the wheel is empty, so it can be restarted from the current time
+    startTime = System.nanoTime()
+    tick = 0
+  }
+
+  private def removeCancelled(): Unit = {
+    var entry = cancelled.poll()
+    while (entry ne null) {
+      if (entry.bucket ne null) {
+        entry.bucket.remove(entry)
+        active.decrementAndGet()
+      }
+      entry = cancelled.poll()
+    }
+  }
+
+  private def transferAdded(): Unit = {
+    var entry = added.poll()
+    while (entry ne null) {
+      if (entry.isCancelled) active.decrementAndGet()
+      else {
+        // last tick that processes a time before the deadline, overdue entries are processed on the next one
+        entry.due = math.max((entry.deadline - startTime) / tickNanos, tick)
+        buckets((entry.due & mask).toInt).add(entry)
+      }
+      entry = added.poll()
+    }
+  }
+
+  private def expire(bucket: Bucket, tick: Long): Unit = {
+    var entry = bucket.head
+    while (entry ne null) {
+      val next = entry.next
+      if (entry.isCancelled) {
+        bucket.remove(entry)
+        active.decrementAndGet()
+      } else if (entry.due <= tick) {
+        bucket.remove(entry)
+        active.decrementAndGet()
+        entry.expire()
+      }
+      entry = next
+    }
+  }
+
+  private final class Entry(task: Runnable, val deadline: Long) extends AtomicInteger(Waiting) with Timeout {
+    // only accessed by the wheel thread
+    var due = 0L
+    var bucket: Bucket = _
+    var prev: Entry = _
+    var next: Entry = _
+
+    override def cancel(): Boolean =
+      if (compareAndSet(Waiting, Cancelled)) {
+        cancelled.add(this)
+        true
+      } else false
+
+    override def isCancelled: Boolean = get == Cancelled
+
+    override def isExpired: Boolean = get == Expired
+
+    def expire(): Unit =
+      if (compareAndSet(Waiting, Expired)) {
+        try task.run()
+        catch {
+          case NonFatal(e) => error(l"Timer task failed", e)
+        }
+      }
+  }
+
+  private final class Bucket {
+    var head: Entry = _
+    var tail: Entry = _
+
+    def add(entry: Entry): Unit = {
+      entry.bucket = this
+      if (head eq null) head = entry
+      else {
+        tail.next = entry
+        entry.prev = tail
+      }
+      tail = entry
+    }
+
+    def remove(entry: Entry): Unit = {
+      if (entry.prev ne null) entry.prev.next = entry.next else head = entry.next
+      if (entry.next ne null) entry.next.prev = entry.prev else tail = entry.prev
+      entry.prev = null
+      entry.next = null
+      entry.bucket = null
+    }
+  }
+}
+
+object TimerWheel {
+
+  private val Waiting   = 0
+  private val Cancelled = 1
+  private val Expired   = 2
+
+  trait Timeout {
+    /**
+      * @return true if the task was prevented from running, false if it already ran or was cancelled before
+      */
+    def cancel(): Boolean
+    def isCancelled: Boolean
+    def isExpired: Boolean
+  }
+}
@@ -22,7 +22,8 @@ import com.waz.content.Database
 import com.waz.db.DaoIdOps
 import com.waz.log.BasicLogging.LogTag
 import com.waz.model.errors.NotFoundLocal
-import com.waz.threading.{SerialDispatchQueue, Threading}
+import com.waz.threading.{CancellableFuture, SerialDispatchQueue, Threading}
+import com.waz.utils.CachedStorageImpl.WriteBehind
 import com.waz.utils.ContentChange.{Added, Removed, Updated}
 import com.waz.utils.events._
 import com.waz.utils.wrappers.DB
@@ -30,6 +31,7 @@ import com.waz.utils.wrappers.DB
 import scala.collection.JavaConverters._
 import scala.collection.generic._
 import scala.collection.{GenTraversableOnce, Seq, breakOut, mutable}
+import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
 
 trait Identifiable[K] {
@@ -253,9 +255,25 @@ trait CachedStorage[K, V <: Identifiable[K]] {
   def cacheIfNotPresent(key: K, value: V): Unit
 
   def contents: Signal[Map[K, V]]
+
+  /**
+    * Persists all writes buffered in write-behind mode. The returned future completes once they (and any flush
+    * already in progress) are committed, so it can be used as a durability barrier. No-op in write-through mode.
+    */
+  def flush(): Future[Unit]
 }
 
-class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]], db: Database)
+object CachedStorageImpl {
+
+  /**
+    * Write-behind configuration: instead of one transaction per write, dirty values are kept in memory (last write
+    * wins per key) and saved in a single `insertOrReplace` batch once `maxPending` keys are dirty, or `maxDelay`
+    * after the first buffered write. `onAdded`/`onUpdated` fire once per batch, after it's committed.
+    */
+  case class WriteBehind(maxPending: Int = 256, maxDelay: FiniteDuration = 250.millis)
+}
+
+class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]], db: Database, writeBehind: Option[WriteBehind] = None)
                                                 (implicit
                                                  val dao: StorageDao[K, V],
                                                  tag: LogTag = LogTag("CachedStorage")
@@ -277,17 +295,28 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
 
   protected def delete(keys: Iterable[K])(implicit db: DB): Unit = dao.deleteEvery(keys)
 
+  private val pending = new WriteBuffer
+  private var flushTask = Option.empty[CancellableFuture[Unit]]
+  private var lastFlush = Future.successful(())
+
   private def cachedOrElse(key: K, default: => Future[Option[V]]): Future[Option[V]] =
-    Option(cache.get(key)).fold(default)(Future.successful)
+    cachedOrPending(key).fold(default)(Future.successful)
+
+  // a dirty value may have been evicted from the cache before it was flushed, in which case the db is outdated
+  private def cachedOrPending(key: K): Option[Option[V]] =
+    Option(cache.get(key)).orElse(if (writeBehind.isEmpty) None else pending.synchronized(pending.get(key)).map(Some(_)))
+
+  private def afterPendingWrites[A](f: => Future[A]): Future[A] =
+    if (writeBehind.isEmpty) f else flush().flatMap(_ => f)
 
   private def loadFromDb(key: K) = db.read { load(key)(_) } map { value =>
-    Option(cache.get(key)).getOrElse {
+    cachedOrPending(key).getOrElse {
       cache.put(key, value)
       value
     }
   }
 
-  def find[A, B](predicate: V => Boolean, search: DB => Managed[TraversableOnce[V]], mapping: V => A)(implicit cb: CanBuild[A, B]): Future[B] = Future {
+  def find[A, B](predicate: V => Boolean, search: DB => Managed[TraversableOnce[V]], mapping: V => A)(implicit cb: CanBuild[A, B]): Future[B] = afterPendingWrites(Future {
     val matches = cb.apply()
     val snapshot = cache.snapshot.asScala
 
@@ -317,7 +346,7 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
     }
 
     results
-  }
+  })
 
   def filterCached(f: V => Boolean) = Future { cache.snapshot.values().asScala.filter(_.exists(f)).map(_.get).toVector }
 
@@ -332,6 +361,17 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
     cache.snapshot.asScala.collect { case (k, Some(v)) if predicate(v) => k } foreach { cache.remove }
   }
 
+  /**
+    * Bulk delete done directly on the db with `f` (e.g. all rows of a conversation), for values matching `predicate`.
+    * Matching values are dropped from the cache and from the write-behind buffer first, so that a later flush can't
+    * write them back. Batches already being flushed are committed before `f` runs, db transactions are serial.
+    */
+  def deleteWhere(predicate: V => Boolean)(f: DB => Unit): Future[Unit] = Future {
+    cache.snapshot.asScala.collect { case (k, Some(v)) if predicate(v) => k } foreach { cache.put(_, None) }
+    if (writeBehind.isDefined) pending.synchronized(pending.discardWhere(predicate))
+    db(f).future
+  } .flatten
+
   def onChanged(key: K): EventStream[V] = onChanged.map(_.view.filter(_.id == key).lastOption).collect { case Some(v) => v }
 
   def onRemoved(key: K): EventStream[K] = onDeleted.map(_.view.filter(_ == key).lastOption).collect { case Some(k) => k }
@@ -354,10 +394,10 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
     value.orElse(Option(cache.get(key)).flatten).fold(addInternal(key, creator))(Future.successful)
   }
 
-  def list() = db.read { dao.list(_) } // TODO: should we update cache?
+  def list() = afterPendingWrites(db.read { dao.list(_) }) // TODO: should we update cache?
 
   def getAll(keys: Traversable[K]): Future[Seq[Option[V]]] = {
-    val cachedEntries = keys.flatMap { key => Option(cache.get(key)) map { value => (key, value) } }.toMap
+    val cachedEntries = keys.flatMap { key => cachedOrPending(key) map { value => (key, value) } }.toMap
     val missingKeys = keys.toSet -- cachedEntries.keys
 
     db.read { db => load(missingKeys)(db) } map { loadedEntries =>
@@ -398,11 +438,7 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
         } .toVector
 
         if (updated.isEmpty) Future.successful(Vector.empty)
-        else
-          db(save(updated.map(_._2))(_)).future.map { _ =>
-            onUpdated ! updated
-            updated
-          }
+        else persist(updated.map(_._2), Vector.empty, updated).map(_ => updated)
       }
 
   def updateOrCreate(key: K, updater: V => V, creator: => V): Future[V] = get(key) flatMap { loaded =>
@@ -442,20 +478,13 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
         val addedResult = added.result
         val updatedResult = updated.result
 
-        db(save(toSave.result)(_)).future.map { _ =>
-          if (addedResult.nonEmpty) onAdded ! addedResult
-          if (updatedResult.nonEmpty) onUpdated ! updatedResult
-          result
-        }
+        persist(toSave.result, addedResult, updatedResult).map(_ => result)
       }
     }
 
   private def addInternal(key: K, value: V): Future[V] = {
     cache.put(key, Some(value))
-    db(save(Seq(value))(_)).future.map { _ =>
-      onAdded ! Seq(value)
-      value
-    }
+    persist(Seq(value), Seq(value), Seq.empty).map(_ => value)
   }
 
   protected def updateInternal(key: K, updater: V => V)(current: V): Future[Option[(V, V)]] = {
@@ -463,19 +492,53 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
     if (updated == current) Future.successful(Some((current, updated)))
     else {
       cache.put(key, Some(updated))
-      db(save(Seq(updated))(_)).future.map { _ =>
-        onUpdated ! Seq((current, updated))
-        Some((current, updated))
-      }
+      persist(Seq(updated), Seq.empty, Seq((current, updated))).map(_ => Some((current, updated)))
     }
   }
 
+  private def persist(toSave: Seq[V], added: Seq[V], updated: Seq[(V, V)]): Future[Unit] = writeBehind match {
+    case Some(WriteBehind(maxPending, maxDelay)) =>
+      val full = pending.synchronized {
+        added foreach pending.add
+        updated foreach { case (prev, next) => pending.update(prev, next) }
+        toSave foreach pending.put
+        if (flushTask.isEmpty && pending.size < maxPending)
+          flushTask = Some(returning(CancellableFuture.delay(maxDelay)) { _.onSuccess { case _ => flush() } })
+        pending.size >= maxPending
+      }
+      if (full) flush() else Future.successful(())
+    case None =>
+      db(save(toSave)(_)).future.map { _ =>
+        if (added.nonEmpty) onAdded ! added
+        if (updated.nonEmpty) onUpdated ! updated
+      }
+  }
+
+  def flush(): Future[Unit] =
+    if (writeBehind.isEmpty) Future.successful(())
+    else pending.synchronized {
+      flushTask.foreach(_.cancel())
+      flushTask = None
+      if (pending.size > 0) {
+        val (toSave, added, updated) = pending.drain()
+        lastFlush = db(save(toSave)(_)).future.map { _ =>
+          if (added.nonEmpty) onAdded ! added
+          if (updated.nonEmpty) onUpdated ! updated
+        }
+      }
+      lastFlush
+    }
+
+  private def discardPending(keys: Iterable[K]): Unit =
+    if (writeBehind.isDefined) pending.synchronized(pending.discard(keys))
+
   def put(key: K, value: V): Future[V] = updateOrCreate(key, _ => value, value)
 
   def getRawCached(key: K): Option[V] = cache.get(key)
 
   def remove(key: K): Future[Unit] = Future {
     cache.put(key, None)
+    discardPending(Seq(key))
     db(delete(Seq(key))(_)).future.map { _ =>
       onDeleted ! Seq(key)
     }
@@ -487,6 +550,7 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
 
   def removeAll(keys: Iterable[K]): Future[Unit] = Future {
     keys foreach { key => cache.put(key, None) }
+    discardPending(keys)
     db(delete(keys)(_)).future.map { _ =>
       onDeleted ! keys.toVector
     }
@@ -511,7 +575,7 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
     )
 
     def load = for {
-      values   <- db.read { dao.list(_) }
+      values   <- afterPendingWrites(db.read { dao.list(_) })
       valueMap = values.map { v => v.id -> v }.toMap
     } yield valueMap
 
@@ -532,4 +596,47 @@ class CachedStorageImpl[K, V <: Identifiable[K]](cache: LruCache[K, Option[V]],
       values -- removed ++ added
     }).disableAutowiring()
   }
+
+  /**
+    * Dirty values waiting for the next write-behind flush. Remembers which keys were added and the persisted value
+    * of updated keys, so that each key produces a single added or updated event per flush. Guarded by itself.
+    */
+  private class WriteBuffer {
+    private val values   = new mutable.LinkedHashMap[K, V]
+    private val added    = new mutable.HashSet[K]
+    private val previous = new mutable.HashMap[K, V]
+
+    def size: Int = values.size
+
+    def get(key: K): Option[V] = values.get(key)
+
+    def put(value: V): Unit = values += value.id -> value
+
+    def add(value: V): Unit = {
+      added += value.id
+      previous -= value.id
+    }
+
+    def update(prev: V, next: V): Unit =
+      if (!added(next.id) && !previous.contains(next.id)) previous += next.id -> prev
+
+    def discard(keys: Iterable[K]): Unit = {
+      values --= keys
+      added --= keys
+      previous --= keys
+    }
+
+    def discardWhere(predicate: V => Boolean): Unit =
+      discard(values.valuesIterator.filter(predicate).map(_.id).toVector)
+
+    def drain(): (Vector[V], Vector[V], Vector[(V, V)]) = {
+      val toSave = values.values.toVector
+      val addedValues = toSave.filter(v => added(v.id))
+      val updatedValues = toSave.collect { case v if previous.get(v.id).exists(_ != v) => previous(v.id) -> v }
+      values.clear()
+      added.clear()
+      previous.clear()
+      (toSave, addedValues, updatedValues)
+    }
+  }
 }
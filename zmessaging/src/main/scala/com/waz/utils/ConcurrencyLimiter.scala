@@ -0,0 +1,96 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils
+
+import java.util
+
+import com.waz.threading.Threading
+
+import scala.concurrent.{Future, Promise}
+import scala.util.control.NonFatal
+
+/**
+  * Limits the number of concurrently running asynchronous tasks.
+  * Tasks over the limit wait for a free slot in FIFO order, the returned future completes with the task's result,
+  * so callers waiting for it get back-pressure for free.
+  * The limit can be changed at any time, running tasks are never interrupted, lowering it just holds back new ones.
+  */
+class ConcurrencyLimiter(initialLimit: Int) {
+  import Threading.Implicits.Background
+
+  require(initialLimit > 0, s"limit has to be positive, was: $initialLimit")
+
+  private var _limit   = initialLimit
+  private var _running = 0
+  private val waiting  = new util.ArrayDeque[Promise[Unit]]()
+
+  def apply[A](task: => Future[A]): Future[A] =
+    acquire() match {
+      case None       => run(task)
+      case Some(slot) => slot.future.flatMap(_ => run(task))
+    }
+
+  def limit: Int = synchronized(_limit)
+
+  def limit_=(limit: Int): Unit = {
+    require(limit > 0, s"limit has to be positive, was: $limit")
+    val ready = synchronized {
+      _limit = limit
+      Iterator.continually(if (_running < _limit) waiting.poll() else null).takeWhile(_ != null).map { slot =>
+        _running += 1
+        slot
+      }.toVector
+    }
+    ready.foreach(_.success(()))
+  }
+
+  def running: Int = synchronized(_running)
+
+  def waitingCount: Int = synchronized(waiting.size)
+
+  private def acquire(): Option[Promise[Unit]] = synchronized {
+    if (_running < _limit) {
+      _running += 1
+      None
+    } else {
+      val slot = Promise[Unit]()
+      waiting.add(slot)
+      Some(slot)
+    }
+  }
+
+  private def release(): Unit = {
+    // the slot goes straight to the first waiting task, unless the limit was lowered meanwhile
+    val next = synchronized {
+      if (_running <= _limit) Option(waiting.poll()) match {
+        case None => _running -= 1; None
+        case some => some
+      } else {
+        _running -= 1
+        None
+      }
+    }
+    next.foreach(_.success(()))
+  }
+
+  private def run[A](task: => Future[A]): Future[A] = {
+    val future = try task catch { case NonFatal(e) => Future.failed(e) }
+    future.onComplete(_ => release())
+    future
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils
+
+import java.util
+
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.log.LogSE._
+import com.waz.threading.{SerialDispatchQueue, Threading}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.concurrent.{Future, Promise}
+import scala.util.Try
+import scala.util.control.NonFatal
+
+/**
+  * Loads a positional list in fixed size pages, on its own serial queue, and never blocks the caller.
+  *
+  * Requested pages are always loaded before prefetched ones. After every request the loader prefetches pages ahead
+  * of the current position, in the direction of scrolling. The prefetch distance follows the scroll velocity reported
+  * by the list: a slow drag prefetches a single page, a fast fling up to `maxPrefetchPages`, enough to cover
+  * `LookAhead` of scrolling at that speed. Queued prefetches which are no longer ahead of the list are dropped.
+  *
+  * `loadPage` is only ever called on the loader's queue, so it may use a non thread-safe source (like a db cursor),
+  * as long as nothing else touches it concurrently.
+  */
+class PrefetchingPageLoader[A](name:             String,
+                               pageSize:         Int,
+                               size:             => Int,
+                               loadPage:         (Int, Int) => Future[Seq[A]],
+                               maxPrefetchPages: Int = PrefetchingPageLoader.MaxPrefetchPages,
+                               maxCachedPages:   Int = PrefetchingPageLoader.MaxCachedPages) extends DerivedLogTag {
+  import PrefetchingPageLoader._
+  import Threading.Implicits.Background
+
+  require(pageSize > 0, s"page size has to be positive, was: $pageSize")
+
+  private val queue = new SerialDispatchQueue(name = name)
+
+  private class PageLoad(val page: Int, var prefetch: Boolean) {
+    val promise = Promise[IndexedSeq[A]]()
+    var started = false
+  }
+
+  // all guarded by `this`
+  private val pages      = new util.LinkedHashMap[Int, PageLoad](16, 0.75f, true) // access ordered, eldest first
+  private val demanded   = new util.ArrayDeque[PageLoad]()
+  private val prefetches = new util.ArrayDeque[PageLoad]()
+  private var draining   = false
+  private var lastPage   = 0
+
+  @volatile private var velocity = 0f
+
+  /**
+    * Scroll velocity in items per second, positive when moving towards higher positions.
+    */
+  def reportVelocity(itemsPerSecond: Float): Unit = velocity = itemsPerSecond
+
+  def prefetchDistance: Int =
+    if (maxPrefetchPages <= 0) 0
+    else math.min(maxPrefetchPages, 1 + (math.abs(velocity) * LookAhead.toMillis / 1000f / pageSize).toInt)
+
+  def cachedPages: Int = synchronized(pages.size)
+
+  /**
+    * Returns items in range [start, start + count), clipped to current size.
+    */
+  def apply(start: Int, count: Int): Future[IndexedSeq[A]] = {
+    val total = size
+    val end = math.min(start + count, total)
+    if (start < 0 || start >= end) Future.successful(IndexedSeq.empty)
+    else {
+      val first = start / pageSize
+      val last = (end - 1) / pageSize
+      val loads = synchronized {
+        returning((first to last).map(demand)) { _ => schedulePrefetch(first, last, total) }
+      }
+      drain()
+
+      if (loads.forall(_.promise.isCompleted)) Future.fromTry(Try(slice(loads, first, start, end)))
+      else Future.sequence(loads.map(_.promise.future)).map(_ => slice(loads, first, start, end))
+    }
+  }
+
+  private def slice(loads: Seq[PageLoad], first: Int, start: Int, end: Int): IndexedSeq[A] = {
+    val items = loads.iterator.flatMap(_.promise.future.value.get.get).toVector
+    items.slice(start - first * pageSize, end - first * pageSize)
+  }
+
+  private def demand(page: Int): PageLoad = Option(pages.get(page)) match {
+    case Some(load) =>
+      if (load.prefetch && !load.started) {
+        prefetches.remove(load)
+        demanded.add(load)
+      }
+      load.prefetch = false
+      load
+    case None =>
+      returning(new PageLoad(page, prefetch = false)) { load =>
+        pages.put(page, load)
+        demanded.add(load)
+      }
+  }
+
+  private def schedulePrefetch(first: Int, last: Int, total: Int): Unit = {
+    val maxPage = (total - 1) / pageSize
+    val forward =
+      if (velocity > 0) true
+      else if (velocity < 0) false
+      else first >= lastPage
+    lastPage = first
+
+    val distance = prefetchDistance
+    val (from, to) =
+      if (forward) (last + 1, math.min(maxPage, last + distance))
+      else (math.max(0, first - distance), first - 1)
+
+    // drop prefetches the list has moved away from, they would only delay the ones it needs now
+    prefetches.asScala.filter(l => l.page < from || l.page > to).toVector foreach { stale =>
+      prefetches.remove(stale)
+      pages.remove(stale.page)
+    }
+
+    val range = if (forward) from to to else to to from by -1
+    range foreach { page =>
+      if (!pages.containsKey(page)) {
+        val load = new PageLoad(page, prefetch = true)
+        pages.put(page, load)
+        prefetches.add(load)
+      }
+    }
+
+    trim(math.min(first, from), math.max(last, to))
+  }
+
+  private def trim(keepFrom: Int, keepTo: Int): Unit = if (pages.size > maxCachedPages) {
+    val it = pages.values().iterator()
+    while (pages.size > maxCachedPages && it.hasNext) {
+      val load = it.next()
+      if (load.promise.isCompleted && (load.page < keepFrom || load.page > keepTo)) it.remove()
+    }
+  }
+
+  private def drain(): Unit = {
+    val start = synchronized {
+      if (draining || (demanded.isEmpty && prefetches.isEmpty)) false
+      else {
+        draining = true
+        true
+      }
+    }
+    if (start) Future(loadNext())(queue)
+  }
+
+  private def loadNext(): Unit = {
+    val next = synchronized {
+      val load = Option(demanded.poll()).orElse(Option(prefetches.poll()))
+      load match {
+        case Some(l) => l.started = true
+        case None    => draining = false
+      }
+      load
+    }
+
+    next foreach { load =>
+      val offset = load.page * pageSize
+      val count = math.min(pageSize, size - offset)
+      val loaded =
+        if (count <= 0) Future.successful(Nil)
+        else try loadPage(offset, count) catch { case NonFatal(e) => Future.failed(e) }
+
+      loaded.onComplete { res =>
+        if (res.isFailure) {
+          warn(l"loading page ${load.page} failed")
+          synchronized { if (pages.get(load.page) eq load) pages.remove(load.page) } // retry on next request
+        }
+        load.promise.complete(res.map(_.toIndexedSeq))
+      }
+
+      // next page goes through the queue again, so other work on it is not starved by a long prefetch run
+      Future(loadNext())(queue)
+    }
+  }
+}
+
+object PrefetchingPageLoader {
+  val MaxPrefetchPages = 8
+  val MaxCachedPages = 32
+
+  /**
+    * How far ahead, in time of scrolling at current velocity, pages should be prefetched.
+    */
+  val LookAhead = 1.second
+}
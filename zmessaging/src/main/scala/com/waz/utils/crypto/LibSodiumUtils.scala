@@ -29,6 +29,30 @@ trait LibSodiumUtils {
   def generateSalt(): Array[Byte]
   def getOpsLimit: Int
   def getMemLimit: Int
+
+  def streamHeaderLength: Int
+  /**
+    * Starts a chunked encryption, returns the stream header which has to be stored before the first chunk.
+    */
+  def streamEncryptor(password: Password, salt: Array[Byte], opslimit: Int = getOpsLimit, memlimit: Int = getMemLimit): Option[(Array[Byte], SecretStream)]
+  def streamDecryptor(password: Password, salt: Array[Byte], header: Array[Byte], opslimit: Int = getOpsLimit, memlimit: Int = getMemLimit): Option[SecretStream]
+}
+
+/**
+  * State of an encryption or decryption of consecutive chunks, each chunk is authenticated separately and its nonce
+  * is derived from the stream state, so chunks can't be reordered, dropped or replayed.
+  * The last chunk is tagged as final, a stream which ends without it was truncated.
+  */
+trait SecretStream {
+  /**
+    * Encrypted chunk is this many bytes longer than the plain one.
+    */
+  def overhead: Int
+  def push(chunk: Array[Byte], length: Int, last: Boolean): Option[Array[Byte]]
+  /**
+    * Returns decrypted chunk, and whether it was the final one.
+    */
+  def pull(chunk: Array[Byte], length: Int): Option[(Array[Byte], Boolean)]
 }
 
 class LibSodiumUtilsImpl() extends LibSodiumUtils with DerivedLogTag {
@@ -37,7 +61,7 @@ class LibSodiumUtilsImpl() extends LibSodiumUtils with DerivedLogTag {
 
   private val _ = NaCl.sodium() // dynamically load the libsodium library
 
-  private val streamHeaderLength = Sodium.crypto_secretstream_xchacha20poly1305_headerbytes
+  override val streamHeaderLength = Sodium.crypto_secretstream_xchacha20poly1305_headerbytes
 
   override def encrypt(msg: Array[Byte], password: Password, salt: Array[Byte], opslimit: Int, memlimit: Int): Option[Array[Byte]] = {
     val cipherText = Array.ofDim[Byte](msg.length + Sodium.crypto_secretstream_xchacha20poly1305_abytes)
@@ -119,6 +143,58 @@ class LibSodiumUtilsImpl() extends LibSodiumUtils with DerivedLogTag {
 
   override def getMemLimit: Int = Sodium.crypto_pwhash_memlimit_interactive
 
+  override def streamEncryptor(password: Password, salt: Array[Byte], opslimit: Int, memlimit: Int): Option[(Array[Byte], SecretStream)] =
+    hash(password.str, salt, opslimit, memlimit) match {
+      case Some(key) =>
+        val header = Array.ofDim[Byte](streamHeaderLength)
+        initPush(key, header).map(state => (header, new SodiumSecretStream(state)))
+      case _ =>
+        error(l"Couldn't derive key from password")
+        None
+    }
+
+  override def streamDecryptor(password: Password, salt: Array[Byte], header: Array[Byte], opslimit: Int, memlimit: Int): Option[SecretStream] =
+    hash(password.str, salt, opslimit, memlimit) match {
+      case Some(key) => initPull(key, header).map(new SodiumSecretStream(_))
+      case _ =>
+        error(l"Couldn't derive key from password")
+        None
+    }
+
+  private class SodiumSecretStream(state: Array[Byte]) extends SecretStream {
+    private val TagMessage = Sodium.crypto_secretstream_xchacha20poly1305_tag_message().toShort
+    private val TagFinal = Sodium.crypto_secretstream_xchacha20poly1305_tag_final().toShort
+
+    override val overhead: Int = Sodium.crypto_secretstream_xchacha20poly1305_abytes
+
+    override def push(chunk: Array[Byte], length: Int, last: Boolean): Option[Array[Byte]] = {
+      val cipherText = Array.ofDim[Byte](length + overhead)
+      val ret = Sodium.crypto_secretstream_xchacha20poly1305_push(state, cipherText, Array.emptyIntArray,
+        chunk, length, Array.emptyByteArray, 0, if (last) TagFinal else TagMessage)
+
+      if (ret == 0) Some(cipherText)
+      else {
+        error(l"Failed to encrypt chunk, got code $ret")
+        None
+      }
+    }
+
+    override def pull(chunk: Array[Byte], length: Int): Option[(Array[Byte], Boolean)] =
+      if (length < overhead) None
+      else {
+        val decrypted = Array.ofDim[Byte](length - overhead)
+        val tag = Array.ofDim[Byte](1)
+        val ret = Sodium.crypto_secretstream_xchacha20poly1305_pull(state, decrypted, Array.emptyIntArray, tag,
+          chunk, length, Array.emptyByteArray, 0)
+
+        if (ret == 0) Some((decrypted, tag(0) == TagFinal.toByte))
+        else {
+          error(l"Failed to decrypt chunk, got code $ret")
+          None
+        }
+      }
+  }
+
   private def initPull(key: Array[Byte], header: Array[Byte]): Option[Array[Byte]] =
     initializeState(key, header, Sodium.crypto_secretstream_xchacha20poly1305_init_pull)
 
@@ -0,0 +1,148 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils.crypto
+
+import java.io._
+
+import com.waz.utils.IoUtils
+
+/**
+  * Chunked format written by `EncryptingOutputStream`: every chunk is stored as its encrypted length (4 bytes, big
+  * endian) followed by the encrypted bytes. Plain chunks are `chunkSize` bytes, except for the final one, which
+  * may be shorter or even empty. Only one chunk is held in memory at a time on both sides.
+  */
+object SecretStreams {
+  val DefaultChunkSize = 64 * 1024
+
+  /**
+    * Upper bound for chunks accepted when reading, so that a corrupted length can't make us allocate gigabytes.
+    */
+  val MaxChunkSize = 4 * 1024 * 1024
+}
+
+class EncryptingOutputStream(out: OutputStream, stream: SecretStream, chunkSize: Int = SecretStreams.DefaultChunkSize) extends OutputStream {
+  require(chunkSize > 0 && chunkSize <= SecretStreams.MaxChunkSize, s"invalid chunk size: $chunkSize")
+
+  private val data = new DataOutputStream(out)
+  private val buffer = Array.ofDim[Byte](chunkSize)
+  private var position = 0
+  private var closed = false
+
+  override def write(b: Int): Unit = {
+    // a full chunk is only written once more data arrives, the last one has to be marked as final
+    if (position == chunkSize) writeChunk(last = false)
+    buffer(position) = b.toByte
+    position += 1
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+    var offset = off
+    val end = off + len
+    while (offset < end) {
+      if (position == chunkSize) writeChunk(last = false)
+      val count = math.min(chunkSize - position, end - offset)
+      System.arraycopy(b, offset, buffer, position, count)
+      position += count
+      offset += count
+    }
+  }
+
+  override def flush(): Unit = data.flush()
+
+  /**
+    * Writes the final chunk, without it the stream can't be decrypted.
+    */
+  override def close(): Unit = if (!closed) {
+    closed = true
+    try writeChunk(last = true)
+    finally data.close()
+  }
+
+  private def writeChunk(last: Boolean): Unit = {
+    val encrypted = stream.push(buffer, position, last).getOrElse(throw new IOException("Chunk encryption failed"))
+    data.writeInt(encrypted.length)
+    data.write(encrypted)
+    position = 0
+  }
+}
+
+/**
+  * Every chunk is authenticated before any of its bytes are returned. Reaching the end of input before the final
+  * chunk, or any data after it, is reported as an IOException.
+  */
+class DecryptingInputStream(in: InputStream, stream: SecretStream) extends InputStream {
+
+  private val data = new DataInputStream(in)
+  private var chunk = Array.emptyByteArray
+  private var position = 0
+  private var finished = false
+
+  override def read(): Int =
+    if (!ensureAvailable()) -1
+    else {
+      val b = chunk(position) & 0xff
+      position += 1
+      b
+    }
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int =
+    if (len == 0) 0
+    else if (!ensureAvailable()) -1
+    else {
+      val count = math.min(len, chunk.length - position)
+      System.arraycopy(chunk, position, b, off, count)
+      position += count
+      count
+    }
+
+  override def available(): Int = chunk.length - position
+
+  /**
+    * Reads and authenticates all remaining chunks, to make sure the stream is complete.
+    */
+  def readToEnd(): Unit = {
+    position = chunk.length
+    while (ensureAvailable()) position = chunk.length
+  }
+
+  override def close(): Unit = data.close()
+
+  private def ensureAvailable(): Boolean = {
+    while (position == chunk.length && !finished) readChunk()
+    position < chunk.length
+  }
+
+  private def readChunk(): Unit = {
+    val length = try data.readInt() catch {
+      case _: EOFException => throw new IOException("Stream truncated, final chunk is missing")
+    }
+    if (length < stream.overhead || length > SecretStreams.MaxChunkSize + stream.overhead)
+      throw new IOException(s"Invalid chunk length: $length")
+
+    val encrypted = Array.ofDim[Byte](length)
+    if (!IoUtils.readFully(data, encrypted, 0, length)) throw new IOException("Stream truncated inside a chunk")
+
+    val (decrypted, last) = stream.pull(encrypted, length).getOrElse(throw new IOException("Chunk authentication failed"))
+    chunk = decrypted
+    position = 0
+    if (last) {
+      finished = true
+      if (data.read() != -1) throw new IOException("Unexpected data after the final chunk")
+    }
+  }
+}
@@ -76,6 +76,8 @@ trait EventContext {
     lock.synchronized(observers -= observer)
 
   def isContextStarted: Boolean = lock.synchronized(started && ! destroyed)
+
+  def isContextDestroyed: Boolean = lock.synchronized(destroyed)
 }
 
 object EventContext {
@@ -91,6 +93,7 @@ object EventContext {
     override def onContextStop(): Unit = ()
     override def onContextDestroy(): Unit = ()
     override def isContextStarted: Boolean = true
+    override def isContextDestroyed: Boolean = false
   }
 }
 
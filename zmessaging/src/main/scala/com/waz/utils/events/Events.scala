@@ -65,6 +65,7 @@ abstract class BaseSubscription(context: WeakReference[EventContext]) extends Su
   private var pauseWithContext = true
 
   context.get foreach (_.register(this))
+  if (EventsMonitor.enabled) EventsMonitor.subscribed(this, context)
 
   protected[events] def onSubscribe(): Unit
   protected[events] def onUnsubscribe(): Unit
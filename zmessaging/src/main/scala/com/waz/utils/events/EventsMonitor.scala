@@ -0,0 +1,168 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils.events
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+
+import com.waz.log.BasicLogging.LogTag
+import com.waz.log.LogSE._
+
+import scala.collection.JavaConverters._
+import scala.ref.WeakReference
+
+/**
+  * Opt-in registry of signal and subscription statistics, used to find expensive signals and leaked subscriptions.
+  *
+  * When `enabled`, derived signals count their recomputes (timing every `timingSampleInterval`th of them) and every new
+  * subscription remembers where it was created. A subscription is reported as leaked if it's still subscribed after its
+  * `EventContext` was destroyed or garbage collected. Subscriptions to `EventContext.Global` are never leaked by that
+  * definition, forgotten ones show up as the busiest subscription sites instead.
+  *
+  * Only observables and subscriptions created or wired while enabled are tracked, all of them weakly.
+  */
+object EventsMonitor {
+  private implicit val logTag: LogTag = LogTag("EventsMonitor")
+
+  @volatile var enabled = false
+  @volatile var timingSampleInterval = 8
+
+  final class Stats(owner: Observable[_]) {
+    val observable = WeakReference[Observable[_]](owner)
+    val name = owner.getClass.getName
+    val recomputes = new AtomicLong(0)
+    val sampledNanos = new AtomicLong(0)
+    val samples = new AtomicLong(0)
+    val wirings = new AtomicLong(0)
+
+    def estimatedNanos: Long = {
+      val n = samples.get
+      if (n == 0) 0 else sampledNanos.get * recomputes.get / n
+    }
+  }
+
+  final class SubscriptionInfo(subscription: BaseSubscription, context: WeakReference[EventContext], val site: String) {
+    val ref = WeakReference(subscription)
+    val contextName = context.get.fold("<collected>")(_.getClass.getName)
+
+    def isLeaked = ref.get.exists { sub =>
+      sub.subscribed && context.get.forall(_.isContextDestroyed)
+    }
+  }
+
+  case class SignalReport(name: String, recomputes: Long, recomputeMillis: Long, listeners: Int, depth: Int, wirings: Long)
+  case class SiteReport(site: String, context: String, count: Int)
+  case class Report(signals: Seq[SignalReport], leaks: Seq[SiteReport], sites: Seq[SiteReport])
+
+  private val stats = new ConcurrentLinkedQueue[Stats]
+  private val subscriptions = new ConcurrentLinkedQueue[SubscriptionInfo]
+
+  private[events] def statsFor(o: Observable[_]): Stats = o.stats match {
+    case null => o.synchronized {
+      if (o.stats == null) {
+        val s = new Stats(o)
+        stats.add(s)
+        o.stats = s
+      }
+      o.stats
+    }
+    case s => s
+  }
+
+  private[events] def wired(o: Observable[_]): Unit = statsFor(o).wirings.incrementAndGet()
+
+  private[events] def recompute[A](o: Observable[_])(body: => A): A = {
+    val s = statsFor(o)
+    val interval = timingSampleInterval
+    if (interval > 0 && s.recomputes.incrementAndGet() % interval == 0) {
+      val start = System.nanoTime()
+      try body
+      finally {
+        s.sampledNanos.addAndGet(System.nanoTime() - start)
+        s.samples.incrementAndGet()
+      }
+    } else body
+  }
+
+  private[events] def subscribed(sub: BaseSubscription, context: WeakReference[EventContext]): Unit =
+    subscriptions.add(new SubscriptionInfo(sub, context, creationSite()))
+
+  /**
+    * First stack frame outside of events framework and Scala library, that's usually the `foreach` we're looking for.
+    */
+  private def creationSite(): String =
+    new Throwable().getStackTrace
+      .find { f =>
+        val c = f.getClassName
+        !c.startsWith("com.waz.utils.events.") && !c.startsWith("scala.")
+      }
+      .fold("<unknown>")(f => s"${f.getClassName}.${f.getMethodName}(${f.getFileName}:${f.getLineNumber})")
+
+  private def prune[A](queue: ConcurrentLinkedQueue[A])(dead: A => Boolean): Unit = {
+    val it = queue.iterator()
+    while (it.hasNext) if (dead(it.next())) it.remove()
+  }
+
+  /**
+    * Length of the longest chain of signals recomputed from given one.
+    */
+  private def depth(o: Observable[_]): Int = o match {
+    case s: Signal[_] => Batch.topologicalOrder(Seq(s)).foldRight(Map.empty[Signal[_], Int]) { (node, depths) =>
+        val children = node.currentListeners.iterator.flatMap(Signal.dependent).map(depths.getOrElse(_, 0))
+        depths.updated(node, if (children.hasNext) children.max + 1 else 0)
+      }.getOrElse(s, 0)
+    case _ => 0
+  }
+
+  def report(top: Int = 20): Report = {
+    prune(stats)(_.observable.get.isEmpty)
+    prune(subscriptions)(_.ref.get.isEmpty)
+
+    val signals = stats.asScala.toVector.flatMap { s =>
+      s.observable.get map { o =>
+        SignalReport(s.name, s.recomputes.get, s.estimatedNanos / 1000000, o.currentListeners.size, depth(o), s.wirings.get)
+      }
+    }.sortBy(s => (-s.recomputeMillis, -s.recomputes)).take(top)
+
+    def bySite(infos: Iterable[SubscriptionInfo]) =
+      infos.groupBy(i => (i.site, i.contextName)).map { case ((site, ctx), is) => SiteReport(site, ctx, is.size) }
+        .toVector.sortBy(-_.count).take(top)
+
+    val live = subscriptions.asScala.filter(_.ref.get.exists(_.subscribed))
+    Report(signals, bySite(live.filter(_.isLeaked)), bySite(live))
+  }
+
+  /**
+    * Logs top offenders: signals by recompute time, leaked subscriptions and busiest subscription sites.
+    */
+  def dump(top: Int = 20): Report = {
+    val r = report(top)
+    r.leaks foreach { l => warn(l"leaked subscriptions: ${l.count} at ${showString(l.site)} in ${showString(l.context)}") }
+    r.signals foreach { s =>
+      verbose(l"signal ${showString(s.name)}: ${s.recomputes} recomputes, ~${s.recomputeMillis} ms, listeners: ${s.listeners}, depth: ${s.depth}, wirings: ${s.wirings}")
+    }
+    r.sites foreach { s => verbose(l"subscriptions: ${s.count} at ${showString(s.site)} in ${showString(s.context)}") }
+    r
+  }
+
+  def reset(): Unit = {
+    stats.asScala foreach { _.observable.get.foreach(_.stats = null) }
+    stats.clear()
+    subscriptions.clear()
+  }
+}
@@ -23,6 +23,7 @@ trait Observable[Listener] {
   private var autowiring = true
   @volatile private[events] var wired = false
   @volatile private var listeners = Set.empty[Listener]
+  @volatile private[events] var stats: EventsMonitor.Stats = null
 
   protected def onWire(): Unit
   protected def onUnwire(): Unit
@@ -31,6 +32,7 @@ trait Observable[Listener] {
     listeners += l
     if (!wired) {
       wired = true
+      if (EventsMonitor.enabled) EventsMonitor.wired(this)
       onWire()
     }
   }
@@ -47,6 +49,8 @@ trait Observable[Listener] {
 
   private[events] def hasSubscribers = listeners.nonEmpty
 
+  private[events] def currentListeners: Set[Listener] = listeners
+
   def unsubscribeAll() = listenersMonitor.synchronized {
     listeners = Set.empty
     if (wired && autowiring) {
@@ -26,6 +26,7 @@ import com.waz.threading.{CancellableFuture, SerialDispatchQueue, Threading}
 import com.waz.utils._
 import com.waz.utils.events.Events.Subscriber
 
+import scala.collection.mutable
 import scala.concurrent.duration.FiniteDuration
 import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.ref.WeakReference
@@ -73,6 +74,95 @@ object Signal {
     override protected def onWire(): Unit = subscription.enable()
     override protected def onUnwire(): Unit = subscription.disable()
   }
+
+  /**
+    * Runs `body` and propagates all signal changes it makes (on the calling thread) in one go, once it's done.
+    * Dependent signals are recomputed in topological order, each of them at most once, and subscribers are notified
+    * after the whole graph is updated, so they never see a combination of old and new values (e.g. in `Zip2Signal`).
+    *
+    * Source values are set immediately, but signals derived from them are only updated when the batch completes.
+    * Nested batches are merged into the outermost one.
+    */
+  def batch[A](body: => A): A = Batch.current.get match {
+    case null =>
+      val b = new Batch
+      Batch.current.set(b)
+      try body
+      finally b.commit()
+    case _ => body
+  }
+
+  /**
+    * Returns the signal which is recomputed by given listener, if any.
+    */
+  private[events] def dependent(l: SignalListener): Option[Signal[_]] = l match {
+    case s: Signal[_]         => Some(s)
+    case d: DependentListener => Some(d.dependent)
+    case _                    => None
+  }
+}
+
+/**
+  * Listener recomputing some other signal, lets `Signal.batch` order it with the signals.
+  */
+private[events] trait DependentListener extends SignalListener {
+  def dependent: Signal[_]
+}
+
+private[events] class Batch {
+  private val queued = new mutable.HashMap[Signal[_], mutable.LinkedHashMap[SignalListener, Option[ExecutionContext]]]
+  private val subscribers = new mutable.LinkedHashMap[SignalListener, Option[ExecutionContext]]
+
+  def changed(signal: Signal[_], currentContext: Option[ExecutionContext]): Unit =
+    signal.currentListeners foreach { l =>
+      Signal.dependent(l) match {
+        case Some(d) => queued.getOrElseUpdate(d, new mutable.LinkedHashMap).update(l, currentContext)
+        case None    => subscribers.update(l, currentContext)
+      }
+    }
+
+  def commit(): Unit = {
+    try {
+      // flatMap may wire new signals while propagating, they are handled in the next round
+      while (queued.nonEmpty) {
+        Batch.topologicalOrder(queued.keys.toVector) foreach { s =>
+          queued.remove(s) foreach { _ foreach { case (l, ec) => l.changed(ec) } }
+        }
+      }
+    } finally Batch.current.remove()
+
+    subscribers foreach { case (l, ec) => l.changed(ec) }
+  }
+}
+
+private[events] object Batch {
+  val current = new ThreadLocal[Batch]
+
+  /**
+    * Returns signals reachable from `roots` (including them), upstream signals first.
+    */
+  def topologicalOrder(roots: Seq[Signal[_]]): Seq[Signal[_]] = {
+    def children(s: Signal[_]) = s.currentListeners.iterator.flatMap(Signal.dependent)
+
+    val visited = new mutable.HashSet[Signal[_]]
+    val order = new mutable.ArrayBuffer[Signal[_]]
+    val stack = new mutable.ArrayStack[(Signal[_], Iterator[Signal[_]])]
+
+    roots foreach { root =>
+      if (visited.add(root)) stack.push((root, children(root)))
+      while (stack.nonEmpty) {
+        val (s, it) = stack.top
+        if (it.hasNext) {
+          val child = it.next()
+          if (visited.add(child)) stack.push((child, children(child)))
+        } else {
+          stack.pop()
+          order += s
+        }
+      }
+    }
+    order.reverse
+  }
 }
 
 class SourceSignal[A](v: Option[A] = None) extends Signal(v) {
@@ -108,7 +198,10 @@ class Signal[A](@volatile protected[events] var value: Option[A] = None) extends
     }
   }
 
-  private[events] def notifyListeners(currentContext: Option[ExecutionContext]): Unit = super.notifyListeners { _.changed(currentContext) }
+  private[events] def notifyListeners(currentContext: Option[ExecutionContext]): Unit = Batch.current.get match {
+    case null  => super.notifyListeners { _.changed(currentContext) }
+    case batch => batch.changed(this, currentContext)
+  }
 
   final def currentValue(implicit logTag: LogTag): Option[A] = {
     if (!wired) {
@@ -235,8 +328,14 @@ class FlatMapSignal[A, B](source: Signal[A], f: A => Signal[B]) extends Signal[B
   private var sourceValue: Option[A] = None
   private var mapped: Signal[B] = Empty
 
-  private val sourceListener = new SignalListener {
-    override def changed(currentContext: Option[ExecutionContext]): Unit = {
+  private val sourceListener = new DependentListener {
+    override def dependent = FlatMapSignal.this
+
+    override def changed(currentContext: Option[ExecutionContext]): Unit =
+      if (EventsMonitor.enabled) EventsMonitor.recompute(FlatMapSignal.this)(remap())
+      else remap()
+
+    private def remap(): Unit = {
       val changed = wiringMonitor synchronized { // XXX: is this synchronization needed, is it enough? What if we just got unwired ?
         val next = source.value
         if (sourceValue != next) {
@@ -282,7 +381,9 @@ abstract class ProxySignal[A](sources: Signal[_]*) extends Signal[A] with Signal
 
   override def onUnwire(): Unit = sources foreach (_.unsubscribe(this))
 
-  override def changed(ec: Option[ExecutionContext]): Unit = update(computeValue, ec)
+  override def changed(ec: Option[ExecutionContext]): Unit =
+    if (EventsMonitor.enabled) EventsMonitor.recompute(this)(update(computeValue, ec))
+    else update(computeValue, ec)
 
   protected def computeValue(current: Option[A]): Option[A]
 }
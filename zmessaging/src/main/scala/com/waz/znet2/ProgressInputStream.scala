@@ -31,6 +31,13 @@ class ProgressInputStream(val input: InputStream, val listener: Listener) extend
   private var totalNumBytesRead = 0L
   listener.progressUpdated(0, 0)
 
+  @throws[IOException]
+  override def read(): Int = {
+    val b = super.read()
+    if (b >= 0) updateProgress(1)
+    b
+  }
+
   @throws[IOException]
   override def read(b: Array[Byte], off: Int, len: Int): Int = {
     updateProgress(super.read(b, off, len)).toInt
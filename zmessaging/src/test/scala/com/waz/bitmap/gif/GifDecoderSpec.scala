@@ -0,0 +1,209 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.bitmap.gif
+
+import java.awt.image.{BufferedImage, IndexColorModel}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import javax.imageio.{IIOImage, ImageIO, ImageWriteParam}
+
+import scala.util.Random
+
+/**
+  * Reference gifs are encoded with javax.imageio and decoded frames are compared with source images,
+  * the native decoder can not be loaded in unit tests. ImageIO decoder is not used as a reference, it misplaces rows
+  * of small interlaced images.
+  */
+class GifDecoderSpec extends AndroidFreeSpec {
+
+  def palette(size: Int, rnd: Random) = {
+    val Seq(r, g, b) = Seq.fill(3)(Array.fill(size)(rnd.nextInt(256).toByte))
+    new IndexColorModel(8, size, r, g, b)
+  }
+
+  def image(w: Int, h: Int, colors: Int, seed: Int, noise: Boolean = false) = {
+    val rnd = new Random(seed)
+    val img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, palette(colors, rnd))
+    val raster = img.getRaster
+    for (x <- 0 until w; y <- 0 until h)
+      raster.setSample(x, y, 0, if (noise) rnd.nextInt(colors) else (x / 8 + y / 4 + seed) % colors)
+    img
+  }
+
+  def encode(images: Seq[BufferedImage], interlace: Boolean = false): Array[Byte] = {
+    val writer = ImageIO.getImageWritersByFormatName("gif").next()
+    val out = new ByteArrayOutputStream()
+    val ios = ImageIO.createImageOutputStream(out)
+    writer.setOutput(ios)
+    val param = writer.getDefaultWriteParam
+    param.setProgressiveMode(if (interlace) ImageWriteParam.MODE_DEFAULT else ImageWriteParam.MODE_DISABLED)
+    writer.prepareWriteSequence(null)
+    images foreach { img => writer.writeToSequence(new IIOImage(img, null, null), param) }
+    writer.endWriteSequence()
+    ios.close()
+    writer.dispose()
+    out.toByteArray
+  }
+
+  def pixels(img: BufferedImage) = img.getRGB(0, 0, img.getWidth, img.getHeight, null, 0, img.getWidth)
+
+  def readImageIO(bytes: Array[Byte]): Seq[Array[Int]] = {
+    val reader = ImageIO.getImageReadersByFormatName("gif").next()
+    reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(bytes)))
+    try (0 until reader.getNumImages(true)) map { i => pixels(reader.read(i)) }
+    finally reader.dispose()
+  }
+
+  def decode(bytes: Array[Byte]): Seq[Array[Int]] = {
+    val gif = GifReader(bytes).get
+    val canvas = new GifCanvas(gif)
+    canvas.clear()
+    gif.frames.toSeq map { frame =>
+      canvas.decode(frame)
+      val pixels = canvas.pixels.clone()
+      canvas.dispose(frame)
+      pixels
+    }
+  }
+
+  def assertConforms(images: Seq[BufferedImage], interlace: Boolean = false) = {
+    val expected = images map pixels
+    val decoded = decode(encode(images, interlace))
+    decoded should have size expected.size
+    decoded.zip(expected).zipWithIndex foreach { case ((actual, exp), i) =>
+      withClue(s"frame $i") { actual.toSeq shouldEqual exp.toSeq }
+    }
+  }
+
+  feature("Conformance") {
+
+    scenario("Decode gifs with different palette sizes") {
+      Seq(2, 3, 4, 16, 100, 256) foreach { colors =>
+        withClue(s"colors: $colors") { assertConforms(Seq(image(64, 48, colors, colors))) }
+      }
+    }
+
+    scenario("Decode gifs with odd dimensions") {
+      Seq((1, 1), (1, 17), (17, 1), (33, 7), (255, 3)) foreach { case (w, h) =>
+        withClue(s"size: ${w}x$h") { assertConforms(Seq(image(w, h, 16, w * h))) }
+      }
+    }
+
+    scenario("Decode interlaced gifs") {
+      Seq((16, 1), (16, 2), (255, 3), (16, 4), (16, 5), (16, 8), (40, 13), (64, 64)) foreach { case (w, h) =>
+        withClue(s"size: ${w}x$h") { assertConforms(Seq(image(w, h, 32, h, noise = true)), interlace = true) }
+      }
+    }
+
+    scenario("Decode noise filling up the whole code table") {
+      assertConforms(Seq(image(200, 150, 256, 1, noise = true)))
+      assertConforms(Seq(image(200, 150, 4, 2, noise = true)))
+    }
+
+    scenario("Decode animation frames with local color tables") {
+      assertConforms((1 to 5).map(i => image(80, 60, 64, i, noise = i % 2 == 0)))
+    }
+
+    scenario("Keep pixels decoded before truncated data") {
+      val bytes = encode(Seq(image(100, 100, 16, 3, noise = true)))
+      val gif = GifReader(bytes).get
+      val frame = gif.frames.head
+      val truncated = bytes.slice(frame.bufferFrameStart, frame.bufferFrameStart + frame.imageDataSize / 2)
+
+      val lzw = new JvmLzwDecoder(100 * 100)
+      val decoded = lzw.decode(new ByteArrayDataSource(truncated), 100 * 100)
+      decoded should be > 0
+      decoded should be < 100 * 100
+
+      val full = new JvmLzwDecoder(100 * 100)
+      full.decode(gif.data(frame), 100 * 100) shouldEqual 100 * 100
+      lzw.indices.take(decoded).toSeq shouldEqual full.indices.take(decoded).toSeq
+    }
+  }
+
+  feature("Frame cache") {
+
+    scenario("Frames are shared between decoders and evicted once over budget") {
+      val cache = new GifFrameCache(3 * 100 * 4)
+      val frame = Array.fill(100)(1)
+
+      cache.put("a", 0, frame)
+      frame(0) = 2
+      cache.get("a", 0).map(_.head) shouldEqual Some(1) // cache keeps its own copy
+
+      cache.put("a", 1, frame)
+      cache.put("b", 0, frame)
+      cache.get("a", 0) shouldBe defined // most recently used now
+      cache.put("b", 1, frame)
+
+      cache.get("a", 1) shouldEqual None
+      Seq(("a", 0), ("b", 0), ("b", 1)) foreach { case (g, i) => cache.get(g, i) shouldBe defined }
+      cache.usedBytes shouldEqual 3 * 100 * 4
+
+      cache.remove("b")
+      cache.size shouldEqual 1
+      cache.put("c", 0, new Array[Int](1000)) // larger than whole budget
+      cache.get("c", 0) shouldEqual None
+    }
+
+    scenario("Gifs which don't fit in the cache as a whole are not cached") {
+      val gif = GifReader(encode((1 to 4).map(i => image(10, 10, 16, i)))).get
+      val cache = new GifFrameCache(3 * 10 * 10 * 4)
+      cache.canHold(10, 10, 3) shouldEqual true
+      cache.canHold(10, 10, 4) shouldEqual false
+
+      new AnimGifDecoder(gif, Some("big"), cache).advanceNextFrame()
+      cache.size shouldEqual 0
+
+      val small = GifReader(encode((1 to 3).map(i => image(10, 10, 16, i)))).get
+      new AnimGifDecoder(small, Some("small"), cache).advanceNextFrame()
+      cache.get("small", 0) shouldBe defined
+    }
+  }
+
+  feature("Performance") {
+
+    scenario("Frames per second", Slow) {
+      val frames = 10
+      val bytes = encode((1 to frames).map(i => image(480, 360, 256, i, noise = i % 2 == 0)))
+      val gif = GifReader(bytes).get
+      val canvas = new GifCanvas(gif)
+
+      def run(loops: Int) = {
+        val start = System.nanoTime()
+        for (_ <- 1 to loops) {
+          canvas.clear()
+          gif.frames foreach { f => canvas.decode(f); canvas.dispose(f) }
+        }
+        loops * frames * 1e9 / (System.nanoTime() - start)
+      }
+
+      run(5) // warm up
+      val jvm = run(20)
+
+      val start = System.nanoTime()
+      for (_ <- 1 to 5) readImageIO(bytes)
+      val imageIO = 5 * frames * 1e9 / (System.nanoTime() - start)
+
+      println(f"JvmLzwDecoder: $jvm%.1f fps, ImageIO: $imageIO%.1f fps (480x360)")
+      jvm should be > 10.0
+    }
+  }
+}
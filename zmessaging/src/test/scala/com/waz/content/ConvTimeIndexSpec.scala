@@ -0,0 +1,153 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.content
+
+import com.waz.content.ConvTimeIndex._
+import com.waz.content.MessagesCursor.Entry
+import com.waz.model.{MessageId, RemoteInstant}
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+
+class ConvTimeIndexSpec extends AndroidFreeSpec {
+
+  def entry(id: String, time: Long) = Entry(MessageId(id), RemoteInstant.ofEpochMilli(time))
+
+  def ids(s: Snapshot) = (0 until s.size).map(s.entry(_).id.str)
+
+  def index(entries: Entry*) = ConvTimeIndex(entries)
+
+  feature("Maintaining the index") {
+
+    scenario("Entries are kept in time order, ties ordered by id") {
+      val idx = index(entry("c", 30), entry("a", 10), entry("b", 30), entry("d", 20))
+      ids(idx.snapshot()) shouldEqual Seq("a", "d", "b", "c")
+    }
+
+    scenario("Inserting reports position, duplicates are ignored") {
+      val idx = index(entry("a", 10), entry("c", 30))
+      idx.snapshot()
+
+      idx.insert(MessageId("b"), RemoteInstant.ofEpochMilli(20)) shouldEqual 1
+      idx.insert(MessageId("b"), RemoteInstant.ofEpochMilli(20)) shouldEqual -1
+
+      val s = idx.snapshot()
+      ids(s) shouldEqual Seq("a", "b", "c")
+      s.changes shouldEqual Seq(Inserted(1, 1))
+    }
+
+    scenario("Removing with stale time still finds the message") {
+      val idx = index(entry("a", 10), entry("b", 20), entry("c", 30))
+      idx.snapshot()
+
+      idx.remove(MessageId("b"), RemoteInstant.ofEpochMilli(25)) shouldEqual 1
+      idx.remove(MessageId("x"), RemoteInstant.ofEpochMilli(25)) shouldEqual -1
+
+      val s = idx.snapshot()
+      ids(s) shouldEqual Seq("a", "c")
+      s.changes shouldEqual Seq(Removed(1, 1))
+    }
+
+    scenario("Changing message time is reported as a move") {
+      val idx = index(entry("a", 10), entry("b", 20), entry("c", 30))
+      idx.snapshot()
+
+      idx.move(MessageId("a"), RemoteInstant.ofEpochMilli(10), RemoteInstant.ofEpochMilli(40))
+
+      val s = idx.snapshot()
+      ids(s) shouldEqual Seq("b", "c", "a")
+      s.changes shouldEqual Seq(Moved(0, 2))
+    }
+
+    scenario("Removing older messages") {
+      val idx = index(entry("a", 10), entry("b", 20), entry("c", 30))
+      idx.snapshot()
+
+      idx.removeUpTo(RemoteInstant.ofEpochMilli(20)) shouldEqual 2
+
+      val s = idx.snapshot()
+      ids(s) shouldEqual Seq("c")
+      s.changes shouldEqual Seq(Removed(0, 2))
+    }
+
+    scenario("Counting messages up to last read time") {
+      val s = index(entry("a", 10), entry("b", 20), entry("c", 20), entry("d", 30)).snapshot()
+      s.countUpTo(RemoteInstant.ofEpochMilli(5)) shouldEqual 0
+      s.countUpTo(RemoteInstant.ofEpochMilli(20)) shouldEqual 3
+      s.countUpTo(RemoteInstant.ofEpochMilli(50)) shouldEqual 4
+    }
+  }
+
+  feature("Snapshots") {
+
+    scenario("Published snapshots are not affected by later changes") {
+      val idx = index(entry("a", 10), entry("b", 20))
+      val first = idx.snapshot()
+
+      idx.insert(MessageId("c"), RemoteInstant.ofEpochMilli(30)) // append, shares arrays
+      val second = idx.snapshot()
+      idx.remove(MessageId("a"), RemoteInstant.ofEpochMilli(10)) // has to copy
+      idx.insert(MessageId("0"), RemoteInstant.ofEpochMilli(0))
+      val third = idx.snapshot()
+
+      ids(first) shouldEqual Seq("a", "b")
+      ids(second) shouldEqual Seq("a", "b", "c")
+      ids(third) shouldEqual Seq("0", "b", "c")
+    }
+
+    scenario("Changes are only available between consecutive snapshots of the same index") {
+      val idx = index(entry("a", 10))
+      val first = idx.snapshot()
+      idx.insert(MessageId("b"), RemoteInstant.ofEpochMilli(20))
+      val second = idx.snapshot()
+      idx.insert(MessageId("c"), RemoteInstant.ofEpochMilli(30))
+      val third = idx.snapshot()
+
+      third.changesSince(second) shouldEqual Some(Seq(Inserted(2, 1)))
+      third.changesSince(first) shouldEqual None
+      third.changesSince(index(entry("a", 10)).snapshot()) shouldEqual None
+      idx.snapshot().changesSince(third) shouldEqual Some(Seq.empty)
+    }
+  }
+
+  feature("Performance") {
+
+    scenario("Incoming messages in a large conversation", Slow) {
+      val size = 100000
+      val idx = ConvTimeIndex((0 until size).iterator.map(i => entry(s"m$i", i * 1000L)), size)
+      idx.snapshot()
+
+      val count = 10000
+      val start = System.nanoTime()
+      (0 until count) foreach { i =>
+        idx.insert(MessageId(s"n$i"), RemoteInstant.ofEpochMilli(size * 1000L + i))
+        idx.snapshot()
+      }
+      val appendNs = (System.nanoTime() - start) / count
+
+      val start2 = System.nanoTime()
+      (0 until 1000) foreach { i =>
+        idx.insert(MessageId(s"o$i"), RemoteInstant.ofEpochMilli(i * 1000L + 500))
+        idx.snapshot()
+      }
+      val insertNs = (System.nanoTime() - start2) / 1000
+
+      println(s"conversation with $size messages: append + snapshot ${appendNs}ns, out of order insert + snapshot ${insertNs}ns")
+      idx.size shouldEqual size + count + 1000
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db
+
+import com.waz.db.CompositeKeyTestItem.CompositeKeyTestItemDao
+import com.waz.model.UserId
+import com.waz.specs.AndroidFreeSpec
+import com.waz.utils.wrappers.{DB, DBCursor}
+import org.threeten.bp.Instant
+
+class CompositeKeyDaoSpec extends AndroidFreeSpec {
+
+  implicit val db = mock[DB]
+
+  private def emptyCursor = {
+    val cursor = mock[DBCursor]
+    (cursor.moveToFirst _).expects().returning(false)
+    (cursor.isClosed _).expects().anyNumberOfTimes().returning(false)
+    (cursor.isAfterLast _).expects().anyNumberOfTimes().returning(true)
+    (cursor.close _).expects()
+    cursor
+  }
+
+  feature("Batched lookups") {
+
+    scenario("Load no ids without touching the database") {
+      CompositeKeyTestItemDao.getAll(Set.empty) shouldEqual Vector.empty
+    }
+
+    scenario("Load all ids with one query per chunk of bound variables") {
+      val ids = (1 to 1000).map(i => (UserId(), Instant.ofEpochMilli(i), i)).toSet
+
+      (db.inTransaction _).expects().anyNumberOfTimes().returning(true)
+      (db.query _).expects(*, *, *, *, *, *, *, *).repeated(4).onCall {
+        (table: String, _: Array[String], selection: String, args: Array[String], _: String, _: String, _: String, _: String) =>
+          table shouldEqual "CompositeKeyItems"
+          args.length should be <= MaxBoundVariables
+          args.length shouldEqual selection.split(" OR ").length * 3
+          selection.split(" OR ").head shouldEqual "(user_id = ? AND timestamp = ? AND meep_index = ?)"
+          emptyCursor
+      }
+
+      CompositeKeyTestItemDao.getAll(ids) shouldEqual Vector.empty
+    }
+
+    scenario("Read all chunks in one transaction") {
+      val ids = (1 to 400).map(i => (UserId(), Instant.ofEpochMilli(i), i)).toSet
+
+      (db.inTransaction _).expects().once().returning(false)
+      (db.acquireReference _).expects().anyNumberOfTimes()
+      (db.getThreadSession _).expects().anyNumberOfTimes().returning(null)
+      (db.releaseReference _).expects().anyNumberOfTimes()
+      (db.beginTransactionNonExclusive _).expects().anyNumberOfTimes()
+      (db.query _).expects(*, *, *, *, *, *, *, *).twice().onCall { (_: String, _: Array[String], _: String, _: Array[String], _: String, _: String, _: String, _: String) => emptyCursor }
+      (db.setTransactionSuccessful _).expects().once()
+      (db.endTransaction _).expects().once()
+
+      CompositeKeyTestItemDao.getAll(ids) shouldEqual Vector.empty
+    }
+  }
+}
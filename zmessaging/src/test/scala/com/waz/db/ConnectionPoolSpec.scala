@@ -0,0 +1,156 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+import com.waz.specs.AndroidFreeSpec
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.concurrent.duration._
+
+class ConnectionPoolSpec extends AndroidFreeSpec {
+  import com.waz.threading.Threading.Implicits.Background
+
+  class Conn(val id: Int) {
+    @volatile var closed = false
+  }
+
+  class TestPool(size: Int) {
+    val ids = new AtomicInteger(0)
+    val all = new ConcurrentLinkedQueue[Conn]()
+    val pool = new ConnectionPool[Conn]("test", size, () => { val c = new Conn(ids.incrementAndGet()); all.add(c); c }, _.closed = true)
+  }
+
+  feature("Lease and return") {
+
+    scenario("Connections are opened lazily and reused") {
+      val p = new TestPool(4)
+      p.pool.openConnections shouldEqual 0
+
+      (1 to 10).map(_ => p.pool.withConnection(_.id)).toSet shouldEqual Set(1)
+      p.pool.openConnections shouldEqual 1
+      p.pool.stats.leases shouldEqual 10
+      p.pool.stats.contended shouldEqual 0
+    }
+
+    scenario("Concurrent readers get separate connections, up to the pool size") {
+      val p = new TestPool(3)
+      val entered = new CountDownLatch(3)
+      val proceed = new CountDownLatch(1)
+
+      val readers = (1 to 3).map { _ =>
+        Future(p.pool.withConnection { c =>
+          entered.countDown()
+          proceed.await(5, TimeUnit.SECONDS)
+          c.id
+        })
+      }
+
+      entered.await(5, TimeUnit.SECONDS) shouldEqual true
+      p.pool.openConnections shouldEqual 3
+      proceed.countDown()
+
+      result(Future.sequence(readers)).toSet shouldEqual Set(1, 2, 3)
+      p.pool.stats.contended shouldEqual 0
+    }
+
+    scenario("Readers wait for a returned connection when the pool is exhausted, wait time is recorded") {
+      val p = new TestPool(1)
+      val leased = new CountDownLatch(1)
+      val release = new CountDownLatch(1)
+
+      val first = Future(p.pool.withConnection { c => leased.countDown(); release.await(5, TimeUnit.SECONDS); c.id })
+      leased.await(5, TimeUnit.SECONDS) shouldEqual true
+
+      val second = Future(p.pool.withConnection(_.id))
+      Thread.sleep(100)
+      second.isCompleted shouldEqual false
+      release.countDown()
+
+      result(first) shouldEqual 1
+      result(second) shouldEqual 1
+      p.pool.openConnections shouldEqual 1
+
+      val stats = p.pool.stats
+      stats.leases shouldEqual 2
+      stats.contended shouldEqual 1
+      stats.maxWait should be >= 50.millis
+      stats.totalWait shouldEqual stats.maxWait
+    }
+
+    scenario("Connection is returned when the reader fails") {
+      val p = new TestPool(1)
+      an[IllegalArgumentException] should be thrownBy p.pool.withConnection(_ => throw new IllegalArgumentException)
+      p.pool.withConnection(_.id) shouldEqual 1
+    }
+
+    scenario("Failed open doesn't use up a pool slot") {
+      val attempts = new AtomicInteger(0)
+      val pool = new ConnectionPool[Conn]("failing", 1, () => if (attempts.incrementAndGet() == 1) throw new IllegalStateException else new Conn(2), _ => ())
+
+      an[IllegalStateException] should be thrownBy pool.withConnection(_.id)
+      pool.openConnections shouldEqual 0
+      pool.withConnection(_.id) shouldEqual 2
+    }
+  }
+
+  feature("Closing") {
+
+    scenario("Idle connections are closed right away, leased ones when returned") {
+      val p = new TestPool(2)
+      val leased = new CountDownLatch(2)
+      val release = new CountDownLatch(1)
+
+      val readers = (1 to 2).map(_ => Future(p.pool.withConnection { c => leased.countDown(); release.await(5, TimeUnit.SECONDS) }))
+      leased.await(5, TimeUnit.SECONDS) shouldEqual true
+
+      p.pool.close()
+      p.all.asScala.exists(_.closed) shouldEqual false
+
+      release.countDown()
+      result(Future.sequence(readers))
+      p.all.asScala.forall(_.closed) shouldEqual true
+      p.pool.openConnections shouldEqual 0
+
+      an[IllegalStateException] should be thrownBy p.pool.withConnection(_.id)
+    }
+
+    scenario("Readers waiting for a connection fail once the pool is closed") {
+      val p = new TestPool(1)
+      val leased = new CountDownLatch(1)
+      val release = new CountDownLatch(1)
+
+      val first = Future(p.pool.withConnection { c => leased.countDown(); release.await(5, TimeUnit.SECONDS); c.id })
+      leased.await(5, TimeUnit.SECONDS) shouldEqual true
+
+      val waiting = Future(p.pool.withConnection(_.id))
+      Thread.sleep(100)
+      p.pool.close()
+
+      an[IllegalStateException] should be thrownBy result(waiting)
+      first.isCompleted shouldEqual false
+
+      release.countDown()
+      result(first) shouldEqual 1
+      p.all.asScala.forall(_.closed) shouldEqual true
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db
+
+import com.waz.db.TestItem.TestItemDao
+import com.waz.model.Uid
+import com.waz.specs.AndroidFreeSpec
+import com.waz.utils.wrappers.{DB, DBCursor}
+
+class DaoSpec extends AndroidFreeSpec {
+
+  implicit val db = mock[DB]
+
+  private def emptyCursor = {
+    val cursor = mock[DBCursor]
+    (cursor.moveToFirst _).expects().returning(false)
+    (cursor.isClosed _).expects().anyNumberOfTimes().returning(false)
+    (cursor.isAfterLast _).expects().anyNumberOfTimes().returning(true)
+    (cursor.close _).expects()
+    cursor
+  }
+
+  feature("Queries with bound arguments") {
+
+    scenario("Ids are bound instead of being inlined in the query") {
+      val ids = Set(Uid("a'b"), Uid("c"))
+
+      (db.inTransaction _).expects().anyNumberOfTimes().returning(true)
+      (db.query _).expects("Items", null, "_id IN (?, ?)", *, null, null, null, *).once().onCall {
+        (_: String, _: Array[String], _: String, args: Array[String], _: String, _: String, _: String, _: String) =>
+          args.toSet shouldEqual ids.map(_.str)
+          emptyCursor
+      }
+
+      TestItemDao.getAll(ids) shouldEqual Vector.empty
+    }
+
+    scenario("The number of arguments is rounded up to the next power of two") {
+      val shapes = (1 to 20).map { n =>
+        var selection = ""
+        (db.inTransaction _).expects().anyNumberOfTimes().returning(true)
+        (db.query _).expects(*, *, *, *, *, *, *, *).once().onCall {
+          (_: String, _: Array[String], sel: String, args: Array[String], _: String, _: String, _: String, _: String) =>
+            selection = sel
+            args.toSet.size shouldEqual n
+            emptyCursor
+        }
+        TestItemDao.getAll((1 to n).map(_ => Uid()).toSet)
+        selection
+      }
+
+      shapes.distinct.map(_.count(_ == '?')) shouldEqual Seq(1, 2, 4, 8, 16, 32)
+    }
+  }
+}
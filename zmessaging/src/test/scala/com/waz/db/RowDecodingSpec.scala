@@ -0,0 +1,137 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db
+
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import com.waz.utils.wrappers.DBCursor
+
+class RowDecodingSpec extends AndroidFreeSpec {
+  import RowDecodingSpec._
+
+  feature("Column index caching") {
+
+    scenario("Column indices are resolved once per cursor") {
+      // extra column, so that the projection isn't shared with other scenarios
+      val cursor = new ArrayCursor(WideItemDao.table.columns.map(_.name).toArray :+ "rowid", rows(100).map(_ :+ "0"))
+
+      WideItemDao.list(cursor) should have size 100
+      cursor.columnLookups shouldEqual WideItemDao.table.columns.size
+    }
+
+    scenario("Cursors with the same projection share resolved indices") {
+      val columns = WideItemDao.table.columns.map(_.name).toArray
+      WideItemDao.list(new ArrayCursor(columns, rows(10))) should have size 10
+
+      val cursor = new ArrayCursor(columns.clone(), rows(10))
+      WideItemDao.list(cursor) should have size 10
+      cursor.columnLookups shouldEqual 0
+    }
+
+    scenario("A different projection is resolved again") {
+      val full = new ArrayCursor(WideItemDao.table.columns.map(_.name).toArray, rows(10))
+      WideItemDao.list(full).map(_.c0) shouldEqual (0 until 10).map(_.toString)
+
+      //same columns, in reverse order
+      val reversed = new ArrayCursor(full.columns.reverse, rows(10).map(_.reverse))
+      WideItemDao.list(reversed).map(_.c0) shouldEqual (0 until 10).map(_.toString)
+    }
+
+    scenario("Benchmark: decode 10k rows", Slow) {
+      val columns = WideItemDao.table.columns.map(_.name).toArray
+      val data = rows(10000)
+
+      def decode(reader: Reader[WideItem]): (Long, Int) = {
+        val cursor = new ArrayCursor(columns, data)
+        val start = System.nanoTime()
+        CursorIterator.list(cursor)(reader) should have size 10000
+        ((System.nanoTime() - start) / 1000, cursor.columnLookups)
+      }
+
+      //warm up
+      (1 to 5).foreach { _ => decode(UncachedReader); decode(WideItemDao) }
+
+      val (uncachedMicros, uncachedLookups) = decode(UncachedReader)
+      val (cachedMicros, cachedLookups) = decode(WideItemDao)
+
+      println(s"getColumnIndex per column and row: $uncachedLookups lookups, $uncachedMicros µs")
+      println(s"cached column indices:             $cachedLookups lookups, $cachedMicros µs")
+
+      uncachedLookups shouldEqual 10000 * columns.length
+      cachedLookups should be <= columns.length // resolved by the first decode of this projection
+    }
+  }
+}
+
+object RowDecodingSpec {
+
+  val ColumnCount = 30
+
+  case class WideItem(values: IndexedSeq[String]) {
+    def c0 = values.head
+  }
+
+  object WideItemDao extends Dao[WideItem, String] {
+    import Col._
+    val Columns = (0 until ColumnCount).map(i => text(Symbol(s"c$i"))(_.values(i)))
+
+    override val idCol = Columns.head
+    override val table = Table("WideItems", Columns: _*)
+
+    override def apply(implicit cursor: DBCursor): WideItem = WideItem(Columns.map(c => c: String))
+  }
+
+  /** What every reader used to do: look up each column by name, for every row. */
+  object UncachedReader extends Reader[WideItem] {
+    override def apply(implicit c: DBCursor): WideItem = WideItem(WideItemDao.Columns.map(col => col.load(c, c.getColumnIndex(col.name))))
+  }
+
+  def rows(count: Int): Array[Array[String]] =
+    Array.tabulate(count, ColumnCount)((row, col) => if (col == 0) row.toString else s"value $row:$col")
+
+  class ArrayCursor(val columns: Array[String], rows: Array[Array[String]]) extends DBCursor {
+    private var position = -1
+    var columnLookups = 0
+
+    override def getCount = rows.length
+    override def moveToPosition(p: Int) = { position = p; p >= 0 && p < rows.length }
+    override def moveToFirst() = moveToPosition(0)
+    override def moveToLast() = moveToPosition(rows.length - 1)
+    override def moveToNext() = moveToPosition(position + 1)
+    override def moveToPrevious() = moveToPosition(position - 1)
+    override def isFirst = position == 0
+    override def isLast = position == rows.length - 1
+    override def isBeforeFirst = position < 0
+    override def isAfterLast = position >= rows.length
+    override def getColumnIndex(columnName: String) = { columnLookups += 1; columns.indexOf(columnName) }
+    override def getColumnName(columnIndex: Int) = columns(columnIndex)
+    override def getColumnNames = columns
+    override def getColumnCount = columns.length
+    override def getBlob(columnIndex: Int) = getString(columnIndex).getBytes
+    override def getString(columnIndex: Int) = rows(position)(columnIndex)
+    override def getShort(columnIndex: Int) = getString(columnIndex).toShort
+    override def getInt(columnIndex: Int) = getString(columnIndex).toInt
+    override def getLong(columnIndex: Int) = getString(columnIndex).toLong
+    override def getFloat(columnIndex: Int) = getString(columnIndex).toFloat
+    override def getDouble(columnIndex: Int) = getString(columnIndex).toDouble
+    override def getType(columnIndex: Int) = 3 // Cursor.FIELD_TYPE_STRING
+    override def isNull(columnIndex: Int) = getString(columnIndex) == null
+    override def close() = position = rows.length
+    override def isClosed = false
+  }
+}
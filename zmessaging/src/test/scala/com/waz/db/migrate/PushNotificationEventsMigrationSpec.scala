@@ -0,0 +1,92 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db.migrate
+
+import com.waz.DisabledTrackingService
+import com.waz.content.Database
+import com.waz.db._
+import com.waz.model.EventSpec.{OtrMessageEvent => OtrMessageJson}
+import com.waz.model.PushNotificationEvent
+import com.waz.model.PushNotificationEvents.PushNotificationEventsDao
+import com.waz.threading.SerialDispatchQueue
+import com.waz.utils.wrappers.DB
+import org.json.JSONObject
+import org.robolectric.Robolectric
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers, RobolectricTests}
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+class PushNotificationEventsMigrationSpec extends FeatureSpec with Matchers with BeforeAndAfter with RobolectricTests {
+
+  implicit val tracking = DisabledTrackingService
+
+  var testDaoDb: DaoDB = _
+
+  implicit def db: DB = testDaoDb.getWritableDatabase
+
+  def storage = new Database {
+    override implicit val dispatcher: SerialDispatchQueue = new SerialDispatchQueue(name = "PushNotificationEventsMigrationSpec")
+    override val dbHelper: DaoDB = testDaoDb
+  }
+
+  val typingJson = """{"type": "conversation.typing", "conversation": "conv", "from": "user", "data": {"status": "started"}}"""
+
+  before {
+    testDaoDb = new DaoDB(Robolectric.application, "test_push_events", null, 1, Seq.empty[BaseDao[_]], Seq.empty[Migration], tracking)
+    // table as created by db version 1
+    db.execSQL("CREATE TABLE PushNotificationEvents (pushId TEXT PRIMARY KEY, event_index INTEGER, decrypted INTEGER, event TEXT, plain BLOB, transient INTEGER)")
+    db.execSQL("INSERT INTO PushNotificationEvents VALUES ('otr', 1, 0, ?, NULL, 0)", Array[AnyRef](OtrMessageJson))
+    db.execSQL("INSERT INTO PushNotificationEvents VALUES ('typing', 2, 0, ?, NULL, 0)", Array[AnyRef](typingJson))
+  }
+
+  after {
+    testDaoDb.close()
+    Robolectric.application.getDatabasePath(testDaoDb.getDatabaseName).delete()
+  }
+
+  def rows = PushNotificationEventsDao.listEncrypted().map(r => r.pushId.str -> r).toMap
+
+  feature("Migration to v2") {
+
+    scenario("Rows not converted yet are read from their json") {
+      PushNotificationEventsMigration.v2(db)
+
+      val stored = rows
+      stored("otr").isOtrMessage shouldEqual true
+      stored("otr").otrEvent shouldBe defined
+      stored("typing").eventType shouldEqual "conversation.typing"
+      MigrationCheckpoints.get(PushNotificationEventsMigration.ConvertEvents.name) shouldEqual Some(MigrationCheckpoints.Start)
+    }
+
+    scenario("Convert rows in the background") {
+      PushNotificationEventsMigration.v2(db)
+      Await.result(BackgroundMigration.runPending(storage, Seq(PushNotificationEventsMigration.ConvertEvents)), 10.seconds)
+
+      val c = db.rawQuery("SELECT pushId, event_type, envelope IS NOT NULL, event IS NULL FROM PushNotificationEvents ORDER BY event_index", null)
+      val converted = try Iterator.continually(c).takeWhile(_.moveToNext()).map(c => (c.getString(0), c.getString(1), c.getInt(2), c.getInt(3))).toVector finally c.close()
+      converted shouldEqual Vector(
+        ("otr", PushNotificationEvent.OtrMessageAdd, 1, 1),
+        ("typing", "conversation.typing", 0, 0)
+      )
+      val expected = PushNotificationEvent.fromJson(rows("otr").pushId, 1L, new JSONObject(OtrMessageJson), transient = false)
+      rows("otr").otrEvent.map(_.ciphertext.toSeq) shouldEqual expected.otrEvent.map(_.ciphertext.toSeq)
+      MigrationCheckpoints.all shouldBe empty
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.db.migrate
+
+import java.lang.management.{ManagementFactory, MemoryType}
+
+import com.waz.DisabledTrackingService
+import com.waz.content.Database
+import com.waz.db.Col._
+import com.waz.db._
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.testutils.Slow
+import com.waz.threading.SerialDispatchQueue
+import com.waz.utils.wrappers.{DB, DBCursor}
+import org.robolectric.Robolectric
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers, RobolectricTests}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+class TableMigrationSpec extends FeatureSpec with Matchers with BeforeAndAfter with RobolectricTests with DerivedLogTag {
+  import TableMigrationSpec._
+
+  implicit val tracking = DisabledTrackingService
+
+  lazy val testDaoDb = new DaoDB(Robolectric.application, "test", null, 1, Seq.empty[BaseDao[_]], Seq.empty[Migration], tracking)
+
+  implicit def db: DB = testDaoDb.getWritableDatabase
+
+  before {
+    db.execSQL("DROP TABLE IF EXISTS Src")
+    db.execSQL("DROP TABLE IF EXISTS Dst")
+    db.execSQL(s"DROP TABLE IF EXISTS ${MigrationCheckpoints.TableName}")
+  }
+
+  def createSource(rows: Int) = inTransaction {
+    db.execSQL(SrcTable.createSql)
+    withStatement(SrcTable.insertSql) { stmt =>
+      (0 until rows) foreach { i =>
+        stmt.clearBindings()
+        stmt.bindString(1, s"row_$i")
+        stmt.bindLong(2, i.toLong)
+        stmt.execute()
+      }
+    }
+  }
+
+  def migration(chunkSize: Int, failAt: Option[Long] = None) = new TableMigration(SrcTable, DstTable, chunkSize) {
+    override val bindings = Seq(
+      Dst.Id := Src.Id,
+      Dst.Doubled := { c: DBCursor =>
+        val value = Src.Value.load(c, 1)
+        if (failAt.contains(value)) throw new IllegalStateException(s"failed at $value")
+        value * 2
+      }
+    )
+  }
+
+  def count(table: String) = TableMigration.queryLong(s"SELECT COUNT(*) FROM $table")
+
+  def doubledValues = {
+    val c = db.rawQuery("SELECT doubled FROM Dst ORDER BY doubled", null)
+    try Iterator.continually(c).takeWhile(_.moveToNext()).map(_.getLong(0)).toVector finally c.close()
+  }
+
+  feature("Chunked table migration") {
+
+    scenario("Copy all rows in chunks") {
+      createSource(1005)
+      migration(chunkSize = 100).migrate
+
+      doubledValues shouldEqual (0 until 1005).map(_ * 2L)
+      MigrationCheckpoints.all shouldBe empty
+    }
+
+    scenario("Copy empty table") {
+      createSource(0)
+      migration(chunkSize = 100).migrate
+
+      count("Dst") shouldEqual 0
+      MigrationCheckpoints.all shouldBe empty
+    }
+
+    scenario("Resume interrupted migration from last committed chunk") {
+      createSource(1000)
+      an[IllegalStateException] should be thrownBy migration(chunkSize = 100, failAt = Some(450)).migrate
+
+      count("Dst") shouldEqual 400
+      MigrationCheckpoints.get("Src->Dst") shouldEqual Some(400L) // rowids start at 1
+
+      migration(chunkSize = 100).migrate
+      doubledValues shouldEqual (0 until 1000).map(_ * 2L)
+      MigrationCheckpoints.all shouldBe empty
+    }
+
+    scenario("Start from scratch if there is no checkpoint") {
+      createSource(10)
+      db.execSQL(DstTable.createSql)
+      db.execSQL("INSERT INTO Dst VALUES ('stale', -1)")
+
+      migration(chunkSize = 3).migrate
+      doubledValues shouldEqual (0 until 10).map(_ * 2L)
+    }
+  }
+
+  feature("Background migration") {
+
+    lazy val storage = new Database {
+      override implicit val dispatcher: SerialDispatchQueue = new SerialDispatchQueue(name = "TableMigrationSpec")
+      override val dbHelper: DaoDB = testDaoDb
+    }
+
+    scenario("Run scheduled migration in chunks, skip the other ones") {
+      createSource(95)
+      val doubling = new DoubleValues("doubling")
+      val notScheduled = new DoubleValues("not_scheduled")
+      doubling.schedule
+
+      Await.result(BackgroundMigration.runPending(storage, Seq(notScheduled, doubling)), 10.seconds)
+
+      doubling.chunks shouldEqual 10
+      notScheduled.chunks shouldEqual 0
+      TableMigration.queryLong("SELECT SUM(value) FROM Src") shouldEqual (0 until 95).map(_ * 2L).sum
+      MigrationCheckpoints.all shouldBe empty
+    }
+
+    scenario("Don't write anything if no migration is scheduled") {
+      createSource(10)
+      val doubling = new DoubleValues("doubling")
+
+      Await.result(BackgroundMigration.runPending(storage, Seq(doubling)), 10.seconds)
+
+      doubling.chunks shouldEqual 0
+      TableMigration.tableExists(MigrationCheckpoints.TableName) shouldEqual false
+    }
+
+    scenario("Resume from saved checkpoint") {
+      createSource(50)
+      MigrationCheckpoints.save("doubling", 20L) // rowids start at 1, so first 20 rows are already done
+      val doubling = new DoubleValues("doubling")
+
+      Await.result(BackgroundMigration.runPending(storage, Seq(doubling)), 10.seconds)
+
+      doubling.chunks shouldEqual 4
+      TableMigration.queryLong("SELECT SUM(value) FROM Src") shouldEqual (0 until 20).sum + (20 until 50).map(_ * 2L).sum
+    }
+  }
+
+  feature("Performance") {
+
+    scenario("Migrate 1M rows", Slow) {
+      val rows = 1000000
+      createSource(rows)
+
+      val heapPools = ManagementFactory.getMemoryPoolMXBeans.asScala.filter(_.getType == MemoryType.HEAP)
+      System.gc()
+      heapPools.foreach(_.resetPeakUsage())
+      val heapBefore = heapPools.map(_.getUsage.getUsed).sum
+
+      val start = System.nanoTime()
+      migration(chunkSize = TableMigration.DefaultChunkSize).migrate
+      val elapsedMs = (System.nanoTime() - start) / 1000000
+
+      val peakMb = (heapPools.map(_.getPeakUsage.getUsed).sum - heapBefore) / (1024 * 1024)
+      info(s"migrated $rows rows in $elapsedMs ms, peak heap growth: $peakMb MB")
+
+      count("Dst") shouldEqual rows
+      MigrationCheckpoints.all shouldBe empty
+    }
+  }
+}
+
+object TableMigrationSpec {
+
+  object Src {
+    val Id = text('_id, "PRIMARY KEY")
+    val Value = long('value)
+  }
+
+  object Dst {
+    val Id = text('_id, "PRIMARY KEY")
+    val Doubled = long('doubled)
+  }
+
+  val SrcTable = TableDesc("Src", Seq(Src.Id, Src.Value))
+  val DstTable = TableDesc("Dst", Seq(Dst.Id, Dst.Doubled))
+
+  class DoubleValues(override val name: String) extends BackgroundMigration {
+    @volatile var chunks = 0
+
+    override def chunkSize = 10
+
+    override def migrate(afterRowId: Long, limit: Int)(implicit db: DB): Option[Long] = {
+      chunks += 1
+      var lastRowId = afterRowId
+      var count = 0
+      forEachRow(db.rawQuery(s"SELECT rowid FROM Src WHERE rowid > ? ORDER BY rowid LIMIT $limit", Array(afterRowId.toString))) { c =>
+        lastRowId = c.getLong(0)
+        count += 1
+      }
+      db.execSQL("UPDATE Src SET value = value * 2 WHERE rowid > ? AND rowid <= ?", Array[AnyRef](java.lang.Long.valueOf(afterRowId), java.lang.Long.valueOf(lastRowId)))
+      if (count < limit) None else Some(lastRowId)
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.log
+
+import java.io.{File, FileInputStream}
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.zip.GZIPInputStream
+
+import com.waz.log.BasicLogging.LogTag
+import com.waz.log.InternalLog.LogLevel
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+
+import scala.io.Source
+
+class BufferedLogOutputSpec extends AndroidFreeSpec {
+
+  val tag = LogTag("BufferedLogOutputSpec")
+
+  def tempDir() = Files.createTempDirectory("logs").toFile
+
+  def read(path: String) = {
+    val in = if (path.endsWith(".gz")) new GZIPInputStream(new FileInputStream(path)) else new FileInputStream(path)
+    try Source.fromInputStream(in, "UTF-8").getLines().toList finally in.close()
+  }
+
+  feature("Ring buffer") {
+
+    scenario("Records are polled in order and dropped once the buffer is full") {
+      val ring = new RecordRingBuffer(4)
+      (1 to 4) foreach { i => ring.offer(i.toString) shouldEqual true }
+      ring.offer("5") shouldEqual false
+      ring.size shouldEqual 4
+
+      ring.poll() shouldEqual "1"
+      ring.offer("5") shouldEqual true
+      Iterator.continually(ring.poll()).takeWhile(_ != null).toList shouldEqual List("2", "3", "4", "5")
+      ring.hasNext shouldEqual false
+    }
+
+    scenario("Concurrent producers don't lose or reorder their records") {
+      val ring = new RecordRingBuffer(1024)
+      val producers = 4
+      val perProducer = 20000
+      val start = new CountDownLatch(1)
+      val threads = (0 until producers) map { p =>
+        startThread {
+          start.await()
+          (0 until perProducer) foreach { i =>
+            while (!ring.offer(s"$p:$i")) Thread.`yield`()
+          }
+        }
+      }
+
+      start.countDown()
+      val last = Array.fill(producers)(-1)
+      var received = 0
+      while (received < producers * perProducer) {
+        val record = ring.poll()
+        if (record == null) Thread.`yield`()
+        else {
+          val Array(p, i) = record.split(':').map(_.toInt)
+          i shouldEqual last(p) + 1
+          last(p) = i
+          received += 1
+        }
+      }
+      threads foreach (_.join())
+      ring.size shouldEqual 0
+    }
+  }
+
+  feature("Writing to files") {
+
+    scenario("Logged records are in the file after flush") {
+      val dir = tempDir()
+      val log = new BufferedLogOutput(dir.getAbsolutePath)
+      (1 to 100) foreach { i => log.log(s"record $i", LogLevel.Debug, tag) }
+      log.flush()
+
+      val lines = log.getPaths.flatMap(read)
+      lines.size shouldEqual 100
+      lines.last should endWith("record 100")
+      log.close()
+    }
+
+    scenario("Files roll over at the size limit and only the newest ones are kept") {
+      val dir = tempDir()
+      val log = new BufferedLogOutput(dir.getAbsolutePath, maxBufferSize = 256, maxFileSize = 1024, maxRollFiles = 3)
+      (1 to 200) foreach { i => log.log(s"record $i ${"x" * 40}", LogLevel.Debug, tag) }
+      log.flush()
+
+      log.getPaths.size shouldEqual 3
+      log.getPaths.forall(p => new File(p).length <= 1024) shouldEqual true
+      log.getPaths.flatMap(read).last should include("record 200 ")
+      dir.listFiles().length shouldEqual 3
+      log.close()
+    }
+
+    scenario("Rolled files are compressed") {
+      val dir = tempDir()
+      val log = new BufferedLogOutput(dir.getAbsolutePath, maxBufferSize = 256, maxFileSize = 1024, maxRollFiles = 20, compressRolled = true)
+      (1 to 100) foreach { i => log.log(s"record $i ${"x" * 40}", LogLevel.Debug, tag) }
+      log.flush()
+
+      val (rolled, current) = log.getPaths.partition(_.endsWith(".gz"))
+      current.size shouldEqual 1
+      rolled should not be empty
+      log.getPaths.flatMap(read).map(_.split(' ')(2).toInt) shouldEqual (1 to 100).toList
+      log.close()
+    }
+
+    scenario("Records over the capacity are dropped and counted") {
+      val dir = tempDir()
+      val log = new BufferedLogOutput(dir.getAbsolutePath, capacity = 16)
+      val producers = (0 until 4) map { p => startThread((0 until 5000) foreach { i => log.log(s"$p $i", LogLevel.Debug, tag) }) }
+      producers foreach (_.join())
+      log.flush()
+
+      val written = log.getPaths.flatMap(read)
+      val records = written.count(!_.contains("dropped"))
+      records + log.droppedRecords shouldEqual 20000
+      if (log.droppedRecords > 0) {
+        log.overflowCount should be > 0L
+        written.exists(_.contains("log records dropped")) shouldEqual true
+      }
+      log.close()
+    }
+
+    scenario("Logging from many threads", Slow) {
+      val dir = tempDir()
+      val log = new BufferedLogOutput(dir.getAbsolutePath, maxRollFiles = 100)
+      val threads = 8
+      val perThread = 50000
+      val start = System.nanoTime()
+      (0 until threads) map { p => startThread((0 until perThread) foreach { i => log.log(s"thread $p record $i", LogLevel.Verbose, tag) }) } foreach (_.join())
+      val logging = System.nanoTime() - start
+      log.flush()
+      val total = System.nanoTime() - start
+
+      println(s"${threads * perThread} records from $threads threads, logging: ${logging / 1000000} ms, " +
+        s"written: ${total / 1000000} ms, dropped: ${log.droppedRecords} in ${log.overflowCount} overflows")
+      log.close()
+    }
+  }
+
+  def startThread(body: => Unit): Thread = {
+    val t = new Thread(new Runnable {
+      override def run(): Unit = body
+    })
+    t.start()
+    t
+  }
+}
@@ -111,17 +111,24 @@ class AssetDataSpec extends AndroidFreeSpec with TableDrivenPropertyChecks with
         })
         (stmt.close _).expects()
 
+        // column positions are resolved once per projection, then only the column names are compared
+        val columnNames = Array("data", "asset_type", "_id")
         (db.query _).expects("Assets", null, null, null, null, null, null, null).returning(cursor)
         (cursor.moveToFirst _).expects()
-        values.foreach(v => {
+        values.zipWithIndex.foreach { case (v, i) =>
           (cursor.isClosed _).expects().returning(false)
           (cursor.isAfterLast _).expects().returning(false)
-          (cursor.getColumnIndex _).expects("asset_type").returning(1)
+          (cursor.getColumnNames _).expects().returning(columnNames)
+          if (i == 0) {
+            (cursor.getColumnIndex _).expects("_id").returning(2)
+            (cursor.getColumnIndex _).expects("asset_type").returning(1)
+            (cursor.getColumnIndex _).expects("data").returning(0)
+          }
           (cursor.getString _).expects(1).returning(v.getAsString("asset_type"))
-          (cursor.getColumnIndex _).expects("data").returning(0)
+          (cursor.getColumnNames _).expects().returning(columnNames)
           (cursor.getString _).expects(0).returning(v.getAsString("data"))
           (cursor.moveToNext _).expects().returning(true)
-        })
+        }
         (cursor.isClosed _).expects().returning(false)
         (cursor.isAfterLast _).expects().returning(true)
         (cursor.close _).expects()
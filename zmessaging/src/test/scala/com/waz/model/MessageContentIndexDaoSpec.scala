@@ -0,0 +1,124 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.model
+
+import com.waz.DisabledTrackingService
+import com.waz.api.{ContentSearchQuery, Message}
+import com.waz.content.Database
+import com.waz.db.migrate.{BackgroundMigration, MessageContentIndexMigration, MigrationCheckpoints}
+import com.waz.db.{BaseDao, DaoDB, Migration}
+import com.waz.model.MessageContentIndex.{MaxSearchResults, SnippetEnd, SnippetStart}
+import com.waz.model.MessageData.MessageDataDao
+import com.waz.threading.SerialDispatchQueue
+import com.waz.utils.wrappers.DB
+import org.robolectric.Robolectric
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers, RobolectricTests}
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+class MessageContentIndexDaoSpec extends FeatureSpec with Matchers with BeforeAndAfter with RobolectricTests {
+
+  implicit val tracking = DisabledTrackingService
+
+  var testDaoDb: DaoDB = _
+
+  implicit def db: DB = testDaoDb.getWritableDatabase
+
+  before {
+    testDaoDb = new DaoDB(Robolectric.application, "test_index", null, 1, Seq[BaseDao[_]](MessageDataDao, MessageContentIndexDao), Seq.empty[Migration], tracking)
+  }
+
+  after {
+    testDaoDb.close()
+    Robolectric.application.getDatabasePath(testDaoDb.getDatabaseName).delete()
+  }
+
+  val conv = ConvId("conv")
+  val otherConv = ConvId("other")
+
+  def entry(id: String, content: String, time: Long, convId: ConvId = conv) =
+    MessageContentIndexEntry(MessageId(id), convId, content, RemoteInstant.ofEpochMilli(time))
+
+  def search(query: String, convId: Option[ConvId] = None, limit: Int = 10) =
+    MessageContentIndexDao.findRanked(ContentSearchQuery(query), convId, limit)
+
+  feature("Ranked search") {
+
+    scenario("Best match is found even if it's older than the newest matches") {
+      val newer = (1 to MaxSearchResults + 10).map(i => entry(s"new_$i", s"meeting notes number $i with a lot of other words in it", 1000L + i))
+      MessageContentIndexDao.insertOrReplace(entry("old", "meeting meeting", 1L) +: newer)
+
+      val hits = search("meeting")
+      hits should have size 10
+      hits.head.messageId shouldEqual MessageId("old")
+      hits.map(_.rank) shouldEqual hits.map(_.rank).sorted.reverse
+    }
+
+    scenario("Matches are highlighted in snippets") {
+      MessageContentIndexDao.insertOrReplace(Seq(entry("1", "lunch at noon", 1L)))
+
+      search("lun").map(_.snippet) shouldEqual Seq(s"${SnippetStart}lunch$SnippetEnd at noon")
+    }
+
+    scenario("Search in a single conversation") {
+      MessageContentIndexDao.insertOrReplace(Seq(entry("1", "hello", 1L), entry("2", "hello", 2L, otherConv)))
+
+      search("hello", Some(conv)).map(_.messageId) shouldEqual Seq(MessageId("1"))
+      search("hello").map(_.messageId).toSet shouldEqual Set(MessageId("1"), MessageId("2"))
+      search("bye") shouldBe empty
+    }
+
+    scenario("Replacing an entry removes its previous content") {
+      MessageContentIndexDao.replaceAll(Seq(entry("1", "first version", 1L)))
+      MessageContentIndexDao.replaceAll(Seq(entry("1", "second version", 1L)))
+
+      search("first") shouldBe empty
+      search("second").map(_.messageId) shouldEqual Seq(MessageId("1"))
+    }
+  }
+
+  feature("Migration to v3") {
+
+    scenario("Recreate index and repopulate it from messages") {
+      db.execSQL(s"DROP TABLE ${MessageContentIndexDao.table.name}")
+      db.execSQL(s"CREATE VIRTUAL TABLE ${MessageContentIndexDao.table.name} USING fts4(message_id, conv_id, content, time)")
+      db.execSQL(s"INSERT INTO ${MessageContentIndexDao.table.name} VALUES ('stale', 'conv', 'stale content', 0)")
+      MessageDataDao.insertOrReplace(Seq(
+        MessageData(MessageId("1"), conv, Message.Type.TEXT, content = Seq(MessageContent(Message.Part.Type.TEXT, "indexed text"))),
+        MessageData(MessageId("2"), conv, Message.Type.KNOCK)
+      ))
+
+      MessageContentIndexMigration.v3(db)
+
+      val c = db.rawQuery("SELECT sql FROM sqlite_master WHERE name = ?", Array(MessageContentIndexDao.table.name))
+      try { c.moveToFirst() shouldEqual true; c.getString(0) should include("prefix") } finally c.close()
+      search("stale") shouldBe empty
+      MigrationCheckpoints.get(MessageContentIndexMigration.RebuildIndex.name) shouldEqual Some(MigrationCheckpoints.Start)
+
+      val storage = new Database {
+        override implicit val dispatcher: SerialDispatchQueue = new SerialDispatchQueue(name = "MessageContentIndexDaoSpec")
+        override val dbHelper: DaoDB = testDaoDb
+      }
+      Await.result(BackgroundMigration.runPending(storage, Seq(MessageContentIndexMigration.RebuildIndex)), 10.seconds)
+
+      search("indexed").map(_.messageId) shouldEqual Seq(MessageId("1"))
+      MigrationCheckpoints.all shouldBe empty
+    }
+  }
+}
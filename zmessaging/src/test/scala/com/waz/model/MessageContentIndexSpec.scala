@@ -0,0 +1,73 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.model
+
+import java.nio.{ByteBuffer, ByteOrder}
+
+import com.waz.api.ContentSearchQuery
+import com.waz.model.MessageContentIndex.{Fts4, Fts5, bm25}
+import com.waz.specs.AndroidFreeSpec
+
+class MessageContentIndexSpec extends AndroidFreeSpec {
+
+  // matchinfo 'pcnalx' for one phrase over the 4 index columns, only the content column has hits
+  def matchInfo(rows: Int, avgLength: Int, length: Int, hits: Int, docsWithHits: Int): Array[Byte] = {
+    val values = Seq(1, 4, rows) ++ Seq(0, 0, avgLength, 0) ++ Seq(0, 0, length, 0) ++
+      Seq(0, 0, 0) ++ Seq(0, 0, 0) ++ Seq(hits, hits * docsWithHits, docsWithHits) ++ Seq(0, 0, 0)
+    val buffer = ByteBuffer.allocate(values.size * 4).order(ByteOrder.nativeOrder())
+    values.foreach(buffer.putInt)
+    buffer.array()
+  }
+
+  feature("Match queries") {
+
+    scenario("Every term is matched as a prefix") {
+      val query = ContentSearchQuery("hello wor")
+      Fts5.matchQuery(query).split(" ").toSet shouldEqual Set("\"hello\"*", "\"wor\"*")
+      Fts4.matchQuery(query).split(" ").toSet shouldEqual Set("\"hello*\"", "\"wor*\"")
+    }
+
+    scenario("Quotes in terms don't break the query syntax") {
+      Fts5.matchQuery(ContentSearchQuery("say\"hi")) shouldEqual "\"say\"\"hi\"*"
+      Fts4.matchQuery(ContentSearchQuery("say\"hi")) shouldEqual "\"sayhi*\""
+    }
+  }
+
+  feature("FTS4 ranking") {
+
+    scenario("More hits rank higher") {
+      bm25(matchInfo(1000, 10, 10, hits = 3, docsWithHits = 10)) should be > bm25(matchInfo(1000, 10, 10, hits = 1, docsWithHits = 10))
+    }
+
+    scenario("Shorter content ranks higher for the same hits") {
+      bm25(matchInfo(1000, 10, 5, hits = 1, docsWithHits = 10)) should be > bm25(matchInfo(1000, 10, 50, hits = 1, docsWithHits = 10))
+    }
+
+    scenario("Rare terms rank higher than common ones") {
+      bm25(matchInfo(1000, 10, 10, hits = 1, docsWithHits = 2)) should be > bm25(matchInfo(1000, 10, 10, hits = 1, docsWithHits = 200))
+    }
+
+    scenario("Terms in most rows still get a positive score") {
+      bm25(matchInfo(1000, 10, 10, hits = 1, docsWithHits = 900)) should be > 0.0
+    }
+
+    scenario("Rows without hits score zero") {
+      bm25(matchInfo(1000, 10, 10, hits = 0, docsWithHits = 10)) shouldEqual 0.0
+    }
+  }
+}
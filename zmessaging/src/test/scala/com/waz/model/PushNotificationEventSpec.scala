@@ -0,0 +1,160 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.model
+
+import com.waz.model.GenericContent.Knock
+import com.waz.model.otr.ClientId
+import com.waz.service.push.PushNotificationEventsStorage.DecryptedRow
+import com.waz.service.push.{DecryptionLanes, PushService}
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import com.waz.threading.Threading
+import org.json.JSONObject
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+class PushNotificationEventSpec extends AndroidFreeSpec {
+  import EventSpec.{OtrMessageEvent => OtrMessageJson}
+
+  val pushId = Uid()
+
+  feature("Extracting events at ingest") {
+
+    scenario("Otr messages are stored as a binary envelope only") {
+      val row = PushNotificationEvent.fromJson(pushId, 1L, new JSONObject(OtrMessageJson), transient = false)
+
+      row.eventType shouldEqual PushNotificationEvent.OtrMessageAdd
+      row.isOtrMessage shouldEqual true
+      row.rawEvent shouldBe empty
+      row.envelope shouldBe defined
+
+      val ev = row.otrEvent.get
+      ev.convId shouldEqual RConvId("dd2d342a-0756-4710-a033-0544d2752570")
+      ev.from shouldEqual UserId("e9e837d6-a12c-492f-9938-7fe61af3971c")
+      ev.sender shouldEqual ClientId("44184d922af83522")
+      ev.recipient shouldEqual ClientId("b4ca17e659751527")
+    }
+
+    scenario("Envelope decodes to the same event as the json decoder") {
+      val fromJson = ConversationEvent.ConversationEventDecoder(new JSONObject(OtrMessageJson)).asInstanceOf[OtrMessageEvent]
+      val decoded = OtrEnvelope.decode(OtrEnvelope.encode(fromJson))
+
+      decoded.copy(ciphertext = Array.empty) shouldEqual fromJson.copy(ciphertext = Array.empty)
+      decoded.ciphertext.toSeq shouldEqual fromJson.ciphertext.toSeq
+      decoded.externalData shouldBe empty
+    }
+
+    scenario("External data survives the round trip") {
+      val ev = OtrMessageEvent(RConvId(), RemoteInstant.ofEpochMilli(1234567L), UserId(), ClientId("a"), ClientId("b"), Array[Byte](1, 2, 3), Some(Array[Byte](4, 5)))
+      val decoded = OtrEnvelope.decode(OtrEnvelope.encode(ev))
+
+      decoded.time shouldEqual ev.time
+      decoded.externalData.map(_.toSeq) shouldEqual Some(Seq[Byte](4, 5))
+    }
+
+    scenario("Envelope rows can still be read as json") {
+      val row = PushNotificationEvent.fromJson(pushId, 1L, new JSONObject(OtrMessageJson), transient = false)
+      val reparsed = ConversationEvent.ConversationEventDecoder(row.event).asInstanceOf[OtrMessageEvent]
+
+      reparsed.convId shouldEqual row.otrEvent.get.convId
+      reparsed.ciphertext.toSeq shouldEqual row.otrEvent.get.ciphertext.toSeq
+    }
+
+    scenario("Other events keep their json") {
+      val json = new JSONObject()
+        .put("type", "conversation.typing")
+        .put("conversation", RConvId().str)
+        .put("from", UserId().str)
+        .put("time", "2015-07-03T15:25:13.527Z")
+        .put("data", new JSONObject().put("status", "started"))
+      val row = PushNotificationEvent.fromJson(pushId, 1L, json, transient = false)
+
+      row.eventType shouldEqual "conversation.typing"
+      row.envelope shouldBe empty
+      row.otrEvent shouldBe empty
+      row.event.toString shouldEqual json.toString
+    }
+  }
+
+  feature("Decoding throughput") {
+
+    scenario("Envelope vs json decoding of stored otr messages", Slow) {
+      val count = 5000
+      val json = OtrMessageJson
+      val envelope = OtrEnvelope.encode(ConversationEvent.ConversationEventDecoder(new JSONObject(json)).asInstanceOf[OtrMessageEvent])
+
+      def measure(f: => OtrMessageEvent): Long = {
+        (0 until 500).foreach(_ => f) // warm up
+        val start = System.nanoTime()
+        (0 until count).foreach(_ => f)
+        (System.nanoTime() - start) / count
+      }
+
+      val jsonNs = measure(ConversationEvent.ConversationEventDecoder(new JSONObject(json)).asInstanceOf[OtrMessageEvent])
+      val envelopeNs = measure(OtrEnvelope.decode(envelope))
+
+      println(s"decoding $count stored otr messages: json ${jsonNs}ns/row, envelope ${envelopeNs}ns/row, stored size ${json.length}b vs ${envelope.length}b")
+      envelopeNs should be < jsonNs
+    }
+
+    scenario("Encrypted and decrypted pipeline stages of stored otr messages", Slow) {
+      import PushService.{decryptedOtrMessage, splitEncrypted}
+
+      val count = 5000
+      val envelope = PushNotificationEvent.fromJson(pushId, 0, new JSONObject(OtrMessageJson), transient = false).envelope
+      val plain = GenericMessage.toByteArray(GenericMessage(Uid(), Knock(false)))
+
+      // rows are created for every run, the way storage reads them, so that no lazily decoded event is reused
+      def envelopeRows = (0 until count).map(i => PushNotificationEvent(Uid(), i, eventType = PushNotificationEvent.OtrMessageAdd, rawEvent = None, envelope = envelope, transient = false))
+      // otr messages stored as json, like before v2
+      def jsonRows = (0 until count).map(i => PushNotificationEvent(Uid(), i, eventType = PushNotificationEvent.OtrMessageAdd, rawEvent = Some(OtrMessageJson), transient = false))
+
+      // processEncryptedRows, with decryption and storage replaced by in-memory writes
+      def encryptedStage(rows: Seq[PushNotificationEvent]): Int = {
+        val persisted = new java.util.concurrent.atomic.AtomicInteger()
+        val lanes = new DecryptionLanes(
+          (_, writer) => writer(plain).map(_ => Right(()))(Threading.Background),
+          (batch: Seq[DecryptedRow]) => { persisted.addAndGet(batch.size); Future.successful(()) },
+          _ => Future.successful(())
+        )
+        val (_, otrEvents) = splitEncrypted(rows)
+        Await.result(lanes(otrEvents), 30.seconds)
+        persisted.get
+      }
+
+      // processDecryptedRows, up to the event handed over to OtrService
+      def decryptedStage(rows: Seq[PushNotificationEvent]): Int =
+        rows.map(r => decryptedOtrMessage(r.copy(decrypted = true, plain = Some(plain)))).count(_._1.convId == RConvId("dd2d342a-0756-4710-a033-0544d2752570"))
+
+      def measure(rows: => Seq[PushNotificationEvent])(stage: Seq[PushNotificationEvent] => Int): Long = {
+        (0 until 3).foreach(_ => stage(rows)) // warm up
+        val input = rows
+        val start = System.nanoTime()
+        stage(input) shouldEqual count
+        (System.nanoTime() - start) / count
+      }
+
+      val encrypted = (measure(envelopeRows)(encryptedStage), measure(jsonRows)(encryptedStage))
+      val decrypted = (measure(envelopeRows)(decryptedStage), measure(jsonRows)(decryptedStage))
+
+      println(s"$count stored otr messages, envelope vs json rows: encrypted stage ${encrypted._1}ns/row vs ${encrypted._2}ns/row, decrypted stage ${decrypted._1}ns/row vs ${decrypted._2}ns/row")
+      encrypted._1 + decrypted._1 should be < encrypted._2 + decrypted._2
+    }
+  }
+}
@@ -17,10 +17,10 @@
  */
 package com.waz.service
 
-import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReference}
 
 import com.waz.model._
-import com.waz.service.EventScheduler.Stage
+import com.waz.service.EventScheduler.{Sequential, Stage}
 import com.waz.threading.Threading
 import com.waz.utils.compareAndSet
 import org.scalatest.{FeatureSpec, Matchers, OptionValues, RobolectricTests}
@@ -29,7 +29,7 @@ import com.waz.testutils.Implicits._
 import com.waz.testutils.Matchers._
 
 import scala.annotation.tailrec
-import scala.collection.breakOut
+import scala.collection.{breakOut, mutable}
 import scala.concurrent.Future
 import scala.concurrent.duration._
 import scala.util.Random.nextInt
@@ -143,6 +143,35 @@ class EventSchedulerSpec extends FeatureSpec with Matchers with OptionValues wit
     })
   }
 
+  feature("Processing conversations") {
+    scenario("Events of one conversation are processed in order, conversations run concurrently up to the limit")(withFixture { env => import env._
+      val running = new AtomicInteger(0)
+      val maxRunning = new AtomicInteger(0)
+      val byConv = mutable.Map.empty[RConvId, Vector[String]]
+
+      val stage = Stage[RenameConversationEvent] { (conv, es) =>
+        Future {
+          val r = running.incrementAndGet()
+          var m = maxRunning.get
+          while (r > m && !maxRunning.compareAndSet(m, r)) m = maxRunning.get
+          Thread.sleep(5)
+          byConv.synchronized(byConv(conv) = byConv.getOrElse(conv, Vector.empty) ++ es.map(_.name.str))
+          running.decrementAndGet()
+        }
+      }
+
+      val scheduler = new EventScheduler(Stage(Sequential)(stage), parallelism = 3)
+      val convs = (1 to 20).map(i => RConvId(s"conv_$i"))
+      def events(from: Int) = for (i <- from until from + 5; c <- convs) yield RenameConversationEvent(c, RemoteInstant(Instant.now()), UserId(), Name(i.toString))
+
+      Future.sequence(Seq(scheduler.enqueue(events(0)), scheduler.enqueue(events(5)))).await()
+
+      maxRunning.get should be <= 3
+      maxRunning.get should be > 1
+      convs foreach { c => byConv(c) shouldEqual (0 until 10).map(_.toString).toVector }
+    })
+  }
+
   feature("Defining event processing stages") {
     lazy val e1 = RenameConversationEvent(RConvId("R"), RemoteInstant(Instant.now()), UserId("u1"), Name("meep 1"))
     lazy val e2 = UnknownPropertyEvent("e2", "u1")
@@ -232,7 +261,7 @@ class EventSchedulerSpec extends FeatureSpec with Matchers with OptionValues wit
         case Stream.Empty => accu
         case h #:: t => h match {
           case EventScheduler.Leaf(_, events) => dfs(t, accu + events.size)
-          case EventScheduler.Branch(_, schedules) => dfs(schedules #::: t, accu)
+          case EventScheduler.Branch(_, schedules) => dfs(schedules.toStream #::: t, accu)
         }
       }
       dfs(Stream(schedule))
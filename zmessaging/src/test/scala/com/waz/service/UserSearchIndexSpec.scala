@@ -0,0 +1,97 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.service
+
+import com.waz.model.{EmailAddress, Handle, UserData, UserId}
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import com.waz.threading.LatencyHistogram
+
+import scala.util.Random
+
+class UserSearchIndexSpec extends AndroidFreeSpec {
+
+  val users = Seq(
+    UserData(UserId("a"), "Björn-Rodrigo Smith"),
+    UserData(UserId("b"), "John Smith"),
+    UserData(UserId("c"), "Jason-John Mercier"),
+    UserData(UserId("d"), "Captain Crunch").copy(handle = Some(Handle("john"))),
+    UserData(UserId("e"), "James gjohnjones"),
+    UserData(UserId("f"), "Liv Boeree").copy(handle = Some(Handle("testjohntest"))),
+    UserData(UserId("g"), "meep moop").copy(email = Some(EmailAddress("moop@meep.me"))),
+    UserData(UserId("h"), "Peter Pan").copy(remark = Some("my jo")),
+    UserData(UserId("i"), "Smoresare").copy(handle = Some(Handle("smores")))
+  )
+
+  def linear(us: Iterable[UserData], filter: String) = us.filter(_.matchesFilter(filter)).map(_.id).toSet
+
+  feature("Prefix search") {
+
+    scenario("Matches the same users as the linear filter") {
+      val index = UserSearchIndex(users)
+      Seq("jo", "john", "john sm", "smi", "bjo", "rod", "@jo", "@smo", "test", "MOOP@meep.me", "my", "j", "ohn", "x") foreach { filter =>
+        index.search(filter).map(_.id).toSet shouldEqual linear(users, filter)
+      }
+    }
+
+    scenario("Empty filter matches everyone") {
+      UserSearchIndex(users).search("").size shouldEqual users.size
+    }
+
+    scenario("Updated and removed users are reindexed") {
+      val renamed = UserData(UserId("b"), "Jane Doe")
+      val index = UserSearchIndex(users) + renamed - UserId("c")
+
+      index.search("john").map(_.id).toSet shouldEqual Set(UserId("d"))
+      index.search("jane").map(_.id).toSet shouldEqual Set(UserId("b"))
+      index.size shouldEqual users.size - 1
+    }
+  }
+
+  feature("Performance") {
+
+    scenario("Typed query latency over 20k contacts", Slow) {
+      val rnd = new Random(42)
+      val syllables = Seq("an", "ber", "cho", "da", "el", "fi", "go", "han", "ja", "ko", "li", "mar", "no", "pe", "ri", "sa", "to", "vi")
+      def word() = Seq.fill(2 + rnd.nextInt(2))(syllables(rnd.nextInt(syllables.size))).mkString.capitalize
+      val contacts = (0 until 20000).map { i =>
+        UserData(UserId(s"user-$i"), s"${word()} ${word()}").copy(handle = Some(Handle(s"${word().toLowerCase}$i")))
+      }
+      val index = UserSearchIndex(contacts)
+      val queries = Seq.fill(50)(contacts(rnd.nextInt(contacts.size)).name.str.toLowerCase)
+
+      def typing(search: String => Iterable[UserData]) = {
+        val h = new LatencyHistogram
+        queries foreach { q =>
+          (1 to q.length) foreach { n =>
+            val start = System.nanoTime()
+            search(q.take(n))
+            h.record((System.nanoTime() - start) / 1000)
+          }
+        }
+        h.snapshot
+      }
+
+      typing(index.search); typing(q => contacts.filter(_.matchesFilter(q))) // warm up
+      val indexed = typing(index.search)
+      val scanned = typing(q => contacts.filter(_.matchesFilter(q)))
+      println(f"20k contacts, µs per keystroke - linear p50: ${scanned.percentile(50)}%6d p99: ${scanned.percentile(99)}%6d | indexed p50: ${indexed.percentile(50)}%6d p99: ${indexed.percentile(99)}%6d")
+      indexed.percentile(50) should be < scanned.percentile(50)
+    }
+  }
+}
@@ -25,7 +25,7 @@ import com.waz.model.UserId
 import com.waz.specs.AndroidFreeSpec
 import com.waz.utils.IoUtils.withResource
 import com.waz.utils.Json.syntax._
-import com.waz.utils.crypto.LibSodiumUtils
+import com.waz.utils.crypto.{FakeSecretStream, LibSodiumUtils}
 import com.waz.utils.{IoUtils, returning}
 import org.scalatest._
 
@@ -86,7 +86,7 @@ class BackupManagerSpec extends AndroidFreeSpec with BeforeAndAfterAll with Befo
                                         targetDirectory: File = testDirectoryEncrypted): File = {
     import EncryptedBackupHeader._
     val unencryptedFakeBackup = createFakeBackup(targetDirectory = targetDirectory)
-    val encryptedHeader = EncryptedBackupHeader(currentVersion, salt, uuidHash, 3 ,3)
+    val encryptedHeader = EncryptedBackupHeader(legacyVersion, salt, uuidHash, 3 ,3)
     returning(new File(targetDirectory, "fake_backup_encrypted.wbu")) { encryptedBackupFile =>
       encryptedBackupFile.deleteOnExit()
 
@@ -122,6 +122,37 @@ class BackupManagerSpec extends AndroidFreeSpec with BeforeAndAfterAll with Befo
   private val libSodiumUtils = mock[LibSodiumUtils]
   private def getService() = new BackupManagerImpl(libSodiumUtils)
 
+  private val streamHeaderLength = 24
+  private val streamHeader = Array.fill[Byte](streamHeaderLength)(7)
+
+  private def mockStreamEncryption(): Unit = {
+    (libSodiumUtils.generateSalt _).expects().anyNumberOfTimes().returning(salt)
+    (libSodiumUtils.hash _).expects(*, *, *, *).anyNumberOfTimes().returning(Some(uuidHash))
+    (libSodiumUtils.getOpsLimit _).expects().anyNumberOfTimes().returning(3)
+    (libSodiumUtils.getMemLimit _).expects().anyNumberOfTimes().returning(3)
+    (libSodiumUtils.streamHeaderLength _).expects().anyNumberOfTimes().returning(streamHeaderLength)
+    (libSodiumUtils.streamEncryptor _).expects(*, *, *, *).anyNumberOfTimes().onCall { (_: Password, _: Array[Byte], _: Int, _: Int) =>
+      Some((streamHeader, new FakeSecretStream))
+    }
+    (libSodiumUtils.streamDecryptor _).expects(*, *, *, *, *).anyNumberOfTimes().onCall { (_: Password, _: Array[Byte], header: Array[Byte], _: Int, _: Int) =>
+      if (header.sameElements(streamHeader)) Some(new FakeSecretStream) else None
+    }
+  }
+
+  private def exportEncrypted(password: Password = Password("12345678")): File = {
+    val fakeDatabase = createFakeDatabase()
+    createFakeDatabaseWal()
+    returning(getService().exportDatabase(testUserId, "TEST", fakeDatabase.getParentFile, testDirectory, password).get) { _ =>
+      fakeDatabase.delete()
+      new File(testDirectory, getDbWalFileName(testUserId)).delete()
+    }
+  }
+
+  private def newTargetDirectory(): File =
+    returning(new File(testDirectory, "test_target_dir")) { dir =>
+      if (!dir.mkdir()) throw new RuntimeException("Cannot create target directory for test.")
+    }
+
   feature("Exporting database unencrypted") {
 
     scenario("create an export zip file with metadata and all database related files.") {
@@ -151,11 +182,7 @@ class BackupManagerSpec extends AndroidFreeSpec with BeforeAndAfterAll with Befo
 
       import EncryptedBackupHeader._
       val password = Password("12345678")
-      (libSodiumUtils.generateSalt _).expects().anyNumberOfTimes().returning(Array.ofDim[Byte](saltLength))
-      (libSodiumUtils.encrypt _).expects(*, *, *, *, *).anyNumberOfTimes().returning(Some(Array.ofDim[Byte](fakeDatabase.length().toInt)))
-      (libSodiumUtils.hash _).expects(*, *, *, *).anyNumberOfTimes().returning(Some(Array.ofDim[Byte](uuidHashLength)))
-      (libSodiumUtils.getOpsLimit _).expects().anyNumberOfTimes().returning(3)
-      (libSodiumUtils.getMemLimit _).expects().anyNumberOfTimes().returning(3)
+      mockStreamEncryption()
 
       val backup = getService().exportDatabase(testUserId, userHandle = "TEST", databaseDir = fakeDatabase.getParentFile, targetDir = testDirectory, backupPassword = Some(password)).get
 
@@ -164,13 +191,9 @@ class BackupManagerSpec extends AndroidFreeSpec with BeforeAndAfterAll with Befo
 
         /**
         since we can't test the hashing because we can't load libsodium dynamically in tests yet, the
-        next best thing is to check the size of the header manually.
+        next best thing is to check the header manually.
           **/
         val metadataHeaderBytes = Array.ofDim[Byte](EncryptedBackupHeader.totalHeaderLength)
-        withClue("encrypted backup should have right header length") {
-          backup.length() shouldEqual (metadataHeaderBytes.length + fakeDatabase.length())
-        }
-
         b.read(metadataHeaderBytes)
         val header = EncryptedBackupHeader.parse(metadataHeaderBytes)
 
@@ -185,9 +208,30 @@ class BackupManagerSpec extends AndroidFreeSpec with BeforeAndAfterAll with Befo
         withClue("version should match latest version") {
           header.get.version shouldEqual currentVersion
         }
+
+        val streamHeaderBytes = Array.ofDim[Byte](streamHeaderLength)
+        b.read(streamHeaderBytes)
+        withClue("stream header should follow the backup header") {
+          streamHeaderBytes should contain theSameElementsInOrderAs streamHeader
+        }
       }
     }
 
+    scenario("report progress until all database files are exported") {
+      val fakeDatabase = createFakeDatabase()
+      val fakeWal = createFakeDatabaseWal()
+      mockStreamEncryption()
+
+      val progress = Vector.newBuilder[BackupProgress]
+      getService().exportDatabase(testUserId, "TEST", fakeDatabase.getParentFile, testDirectory, Password("12345678"), progress += _).get
+
+      val reports = progress.result()
+      reports should not be empty
+      reports.map(_.processed) shouldEqual reports.map(_.processed).sorted
+      reports.last.processed shouldEqual reports.last.total
+      reports.last.total should be > fakeDatabase.length() + fakeWal.length()
+    }
+
   }
 
   feature("Importing database") {
@@ -291,4 +335,59 @@ class BackupManagerSpec extends AndroidFreeSpec with BeforeAndAfterAll with Befo
       }
     }
   }
+
+  feature("Importing chunked encrypted database") {
+
+    scenario("export and import round trip") {
+      mockStreamEncryption()
+      val password = Password("12345678")
+      val backup = exportEncrypted(password)
+      val targetDirectory = newTargetDirectory()
+
+      val progress = Vector.newBuilder[BackupProgress]
+      getService().importDatabase(testUserId, backup, targetDirectory, BackupMetadata.currentDbVersion, password, progress += _).get
+
+      getAllFileNames(targetDirectory) shouldEqual Set(getDbFileName(testUserId), getDbWalFileName(testUserId))
+      IoUtils.asString(new FileInputStream(new File(targetDirectory, getDbFileName(testUserId)))) shouldEqual "some content"
+      progress.result().last shouldEqual BackupProgress(backup.length(), backup.length())
+    }
+
+    scenario("fail on a modified backup and leave the target directory untouched") {
+      mockStreamEncryption()
+      val password = Password("12345678")
+      val backup = exportEncrypted(password)
+      val bytes = IoUtils.readFileBytes(backup)
+      val position = bytes.length - 10
+      bytes(position) = (bytes(position) ^ 0xff).toByte
+      IoUtils.writeBytesToFile(backup, bytes)
+
+      val targetDirectory = newTargetDirectory()
+      val existingDb = createFakeDatabase(targetDirectory)
+      withResource(new PrintWriter(existingDb)) { _.write("existing database") }
+
+      getService().importDatabase(testUserId, backup, targetDirectory, BackupMetadata.currentDbVersion, password).isFailure shouldEqual true
+      getAllFileNames(targetDirectory) shouldEqual Set(getDbFileName(testUserId))
+      IoUtils.asString(new FileInputStream(existingDb)) shouldEqual "existing database"
+    }
+
+    scenario("fail on a truncated backup") {
+      mockStreamEncryption()
+      val password = Password("12345678")
+      val backup = exportEncrypted(password)
+      val bytes = IoUtils.readFileBytes(backup)
+      IoUtils.writeBytesToFile(backup, bytes.take(bytes.length - 1))
+
+      val targetDirectory = newTargetDirectory()
+      getService().importDatabase(testUserId, backup, targetDirectory, BackupMetadata.currentDbVersion, password).isFailure shouldEqual true
+      getAllFileNames(targetDirectory) shouldEqual Set.empty
+    }
+
+    scenario("fail if the backup belongs to another user") {
+      mockStreamEncryption()
+      val password = Password("12345678")
+      val backup = exportEncrypted(password)
+
+      an [InvalidMetadata.UserId.type] should be thrownBy getService().importDatabase(UserId(), backup, newTargetDirectory(), BackupMetadata.currentDbVersion, password).get
+    }
+  }
 }
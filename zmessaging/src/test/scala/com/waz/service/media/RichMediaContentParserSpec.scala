@@ -17,8 +17,14 @@
  */
 package com.waz.service.media
 
+import java.util.regex.Pattern
+
+import com.waz.api.Message.Part
 import com.waz.api.Message.Part.Type._
 import com.waz.model.{Mention, MessageContent, UserId}
+import com.waz.sync.client.{SoundCloudClient, YouTubeClient}
+import com.waz.testutils.Slow
+import com.waz.utils.SecretLinkify
 import org.scalacheck.Gen
 import org.scalatest.prop.{GeneratorDrivenPropertyChecks, TableDrivenPropertyChecks}
 import RichMediaContentParser._
@@ -26,6 +32,7 @@ import com.waz.specs.AndroidFreeSpec
 import com.waz.utils.wrappers.URI
 
 import scala.io.{Codec, Source}
+import scala.util.Random
 
 class RichMediaContentParserSpec extends AndroidFreeSpec with TableDrivenPropertyChecks with GeneratorDrivenPropertyChecks {
 
@@ -83,6 +90,16 @@ class RichMediaContentParserSpec extends AndroidFreeSpec with TableDrivenPropert
       val link = "giphy.com"
       findMatches(link, weblinkEnabled = true).toList shouldBe empty
     }
+
+    scenario("match known domains only as whole domains or their subdomains") {
+      List(
+        "https://notyoutube.com/watch?v=c0KYU2j0TM4",
+        "https://youtube.com.example.org/watch?v=c0KYU2j0TM4"
+      ) foreach { link =>
+        findMatches(link, weblinkEnabled = true).toList shouldEqual List((0, link.length, WEB_LINK))
+      }
+      findMatches("https://M.YouTube.com/watch?v=c0KYU2j0TM4").toList.map(_._3) shouldEqual List(YOUTUBE)
+    }
   }
 
   feature("id parsing") {
@@ -107,6 +124,16 @@ class RichMediaContentParserSpec extends AndroidFreeSpec with TableDrivenPropert
   }
 
   feature("split content") {
+    scenario("text with dots but without links") {
+      splitContent("Sure. See you at 10.30 ...") shouldEqual List(MessageContent(TEXT, "Sure. See you at 10.30 ..."))
+    }
+
+    scenario("split the same content only once") {
+      val text = "Here is some text. https://www.youtube.com/watch?v=MWdG413nNkI"
+      splitContent(text) should be theSameInstanceAs splitContent(text)
+      splitContent(text, weblinkEnabled = true) should not be theSameInstanceAs(splitContent(text))
+    }
+
     scenario("single youtube link") {
       splitContent("https://www.youtube.com/watch?v=MWdG413nNkI") shouldEqual List(MessageContent(YOUTUBE, "https://www.youtube.com/watch?v=MWdG413nNkI"))
     }
@@ -274,4 +301,152 @@ class RichMediaContentParserSpec extends AndroidFreeSpec with TableDrivenPropert
       RichMediaContentParser.parseUriWithScheme(url).isInstanceOf[URI] shouldBe true
     }
   }
+
+  feature("Single pass parsing") {
+
+    /**
+      * Parser as it was implemented before the content was scanned once up front, for comparison.
+      */
+    object Legacy {
+
+      def findMatches(content: String, mentionsRanges: Seq[(Int, Int)] = Nil, weblinkEnabled: Boolean = false): Iterator[(Int, Int, Part.Type)] = {
+
+        val knownDomains = (YouTubeClient.DomainNames.map(_ -> YOUTUBE) ++
+          SoundCloudClient.domainNames.map(_ -> SOUNDCLOUD)
+          ).toMap
+
+        def validate(content: String, uri: URI, tpe: Part.Type): Boolean = tpe match {
+          case YOUTUBE     => youtubeVideoId(uri).isDefined
+          case SOUNDCLOUD  => Option(uri.getPath).exists(_.nonEmpty)
+          case TWITTER     => uri.toString.matches(TwitterRegex.regex)
+          case SPOTIFY     => SpotifyPathRegex.unapplySeq(uri.getPath).isDefined
+          case WEB_LINK    => weblinkEnabled && ! WebLinkBlackList(content)
+          case _           => false
+        }
+
+        def matchDomain(host: String): Part.Type = knownDomains.find(entry => host.contains(entry._1)).getOrElse(host, {
+          val dot = host.indexOf('.')
+          if (dot >= 0) matchDomain(host.substring(dot + 1))
+          else WEB_LINK
+        })._2
+
+        def uriAndType(content: String): Option[Part.Type] = {
+          val patterns = Pattern.compile("(https?|ftp|file)://[-A-Za-z+&@#/%?=~_|.]+[-A-Za-z0-9+&@#/%=~_|]")
+          val isWebUrl = patterns.matcher(parseContent(content)).find()
+
+          if(isWebUrl){
+            val uri = parseUriWithScheme(content)
+
+            Option(uri.getHost) map(_.toLowerCase) map matchDomain flatMap { tpe =>
+              if (validate(content, uri, tpe)) Some(tpe)
+              else None
+            }
+          }else None
+        }
+
+        val m = SecretLinkify.WEB_URL.matcher(content.replace("HTTP://", "http://"))
+        Iterator.continually(m.find()).takeWhile(identity).flatMap { _ =>
+          val start = m.start
+          val end = m.end
+          if (mentionsRanges.exists(r => r._1 <= start && r._2 >= end)) None
+          else {
+            val hardStart = mentionsRanges.find(r => r._1 < start && r._2 > start && r._2 < end).fold(start)(_._2)
+            val hardEnd = mentionsRanges.find(r => r._1 > start && r._1 < end).fold(end)(_._1)
+            if (hardStart < hardEnd && (hardStart == 0 || content(hardStart - 1) != '@'))
+              uriAndType(m.group()) map { tpe => (hardStart, hardEnd, tpe) }
+            else None
+          }
+        }
+      }
+
+      def splitContent(content: String, mentions: Seq[Mention] = Nil, offset: Int = 0, weblinkEnabled: Boolean = false): Seq[MessageContent] = {
+        val mentionsRanges = mentions.map(m => (m.start - offset, m.start + m.length - offset) -> m).toMap.filterKeys(_._1 >= 0)
+
+        def mentionsBetween(from: Int, to: Int): Seq[Mention] =
+          mentionsRanges.filterKeys(r => r._1 >= from && r._2 <= to).values.toSeq
+
+        try {
+          val res = new MessageContentBuilder
+
+          val end = findMatches(content, mentionsRanges.keys.toSeq, weblinkEnabled).foldLeft(0) {
+            case (start, (matchStart, matchEnd, tpe)) =>
+              if (start < matchStart)
+                res += (content.substring(start, matchStart), mentionsBetween(start, matchStart))
+              res += (tpe, content.substring(matchStart, matchEnd))
+              matchEnd
+          }
+
+          if (end < content.length)
+            res += (content.substring(end), mentionsBetween(end, content.length))
+
+          res.result()
+        } catch {
+          case _: Throwable => Seq(MessageContent(TEXT, content))
+        }
+      }
+    }
+
+    case class Msg(content: String, mentions: Seq[Mention], weblinkEnabled: Boolean)
+
+    def corpus(size: Int, seed: Long = 42): IndexedSeq[Msg] = {
+      val rnd = new Random(seed)
+      val words = ("ok so I think we should meet tomorrow at the office to go through the release notes lunch sounds " +
+        "good what time works for you thanks! see https can't wait.. sure, let's do it 10.30 v2.1 e.g. haha").split(' ')
+      val links = IndexedSeq(
+        "https://www.youtube.com/watch?v=c0KYU2j0TM4",
+        "youtu.be/MWdG413nNkI",
+        "https://soundcloud.com/majorlazer/major-lazer-dj-snake-lean-on-feat-mo",
+        "https://wire.com/en/download/",
+        "github.com/wireapp/wire-android/pull/1234",
+        "https://www.google.de/search?q=scala+futures&ie=UTF-8",
+        "HTTP://Example.org/a/b?c=d",
+        "192.168.0.1:8080/status",
+        "giphy.com"
+      )
+      val emojis = IndexedSeq("\uD83D\uDE00", "\uD83D\uDE4F", "\uD83C\uDF89", "\u2764\uFE0F", "\uD83D\uDC4D", "\uD83C\uDDF3\uD83C\uDDF4")
+      val replies = IndexedSeq("ok", "thanks!", "sure", "\uD83D\uDC4D", "see you", "haha")
+
+      def pick[A](xs: IndexedSeq[A]) = xs(rnd.nextInt(xs.length))
+      def sentence() = Seq.fill(3 + rnd.nextInt(20))(pick(words)).mkString(" ")
+
+      (1 to size) map { _ =>
+        val weblinks = rnd.nextBoolean()
+        rnd.nextInt(100) match {
+          case n if n < 20 => Msg(pick(replies), Nil, weblinks)
+          case n if n < 60 => Msg(Seq.fill(1 + rnd.nextInt(3))(sentence()).mkString("", ". ", "."), Nil, weblinks)
+          case n if n < 70 => Msg(Seq.fill(1 + rnd.nextInt(4))(pick(emojis)).mkString(if (rnd.nextBoolean()) " " else ""), Nil, weblinks)
+          case n if n < 88 => Msg(s"${sentence()} ${pick(links)} ${sentence()}", Nil, weblinks)
+          case _ =>
+            val name = "@" + pick(words)
+            val text = s"$name ${sentence()} ${if (rnd.nextBoolean()) pick(links) else ""}"
+            Msg(text, Seq(Mention(Some(UserId()), 0, name.length)), weblinks)
+        }
+      }
+    }
+
+    scenario("Split the same parts as the previous parser") {
+      corpus(2000) foreach { case Msg(content, mentions, weblinks) =>
+        parse(content, mentions, 0, weblinks) shouldEqual Legacy.splitContent(content, mentions, 0, weblinks)
+      }
+    }
+
+    scenario("Benchmark splitting 100k messages", Slow) {
+      val messages = corpus(100000)
+
+      def time(split: Msg => Seq[MessageContent]) = {
+        messages.take(10000) foreach split // warm up
+        val start = System.nanoTime()
+        val parts = messages.foldLeft(0)(_ + split(_).size)
+        ((System.nanoTime() - start) / 1000000, parts)
+      }
+
+      val (legacy, legacyParts) = time(m => Legacy.splitContent(m.content, m.mentions, 0, m.weblinkEnabled))
+      val (single, singleParts) = time(m => parse(m.content, m.mentions, 0, m.weblinkEnabled))
+      val (cached, cachedParts) = time(m => splitContent(m.content, m.mentions, 0, m.weblinkEnabled))
+      info(s"100k messages, legacy: $legacy ms, single pass: $single ms, single pass memoized: $cached ms")
+      singleParts shouldEqual legacyParts
+      cachedParts shouldEqual legacyParts
+      single should be < legacy
+    }
+  }
 }
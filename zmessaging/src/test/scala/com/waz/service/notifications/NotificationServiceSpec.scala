@@ -30,13 +30,14 @@ import com.waz.service.UserService
 import com.waz.service.push.{NotificationService, NotificationUiController, PushService}
 import com.waz.specs.AndroidFreeSpec
 import com.waz.sync.client.ConversationsClient.ConversationResponse
-import com.waz.threading.{SerialDispatchQueue, Threading}
+import com.waz.threading.SerialDispatchQueue
 import com.waz.utils.events.Signal
 import com.waz.utils._
 import org.threeten.bp.Duration
 
 import scala.collection.Seq
 import scala.concurrent.Future
+import scala.util.Try
 import scala.concurrent.duration._
 
 class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
@@ -45,13 +46,14 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
   val storage       = mock[NotificationStorage]
   val convs         = mock[ConversationStorage]
   val pushService   = mock[PushService]
-  val uiController  = mock[NotificationUiController]
+  val uiController  = new RecordingUi
+  val uiChanged     = mockFunction[UserId, Set[NotificationData], Future[Unit]]
   val userService   = mock[UserService]
 
   var self = UserData(account1Id, "")
 
   val beDrift = Signal(Duration.ZERO)
-  val uiNotificationsSourceVisible = Signal(Map.empty[UserId, Set[ConvId]])
+  val uiNotificationsSourceVisible = Signal(Map(account1Id -> true))
 
   val notificationsDispatcher = new SerialDispatchQueue()
   val storedNotifications = Signal(Set.empty[NotificationData])
@@ -87,14 +89,14 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
           )
         )
       ))
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 1
         nots.head.msg shouldEqual "abc"
         nots.head.hasBeenDisplayed shouldEqual false
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(event)))
     }
 
     scenario("Don't push notifications to UI when the user is away") {
@@ -111,12 +113,12 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
           )
         )
       ))
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 0
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(event)))
     }
 
     scenario("Don't push notifications to UI when the user is busy and the message is not a reply/mention") {
@@ -133,12 +135,12 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
           )
         )
       ))
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 0
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(event)))
     }
 
     scenario("Push notifications to UI when the user is busy and the message is a reply/mention") {
@@ -166,14 +168,14 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
       (messages.findMessagesFrom _).expects(conv.id, lastEventTime).returning(Future.successful(
         IndexedSeq(origMsg, reply)
       ))
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 1
         nots.head.msg shouldEqual "abc"
         nots.head.hasBeenDisplayed shouldEqual false
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(event)))
     }
 
     scenario("Notifications are only pushed to UI for conversations with correct mute states") {
@@ -205,12 +207,12 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
         )
       ))
 
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 2
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(event)))
     }
 
     scenario("Previous notifications that have not been dismissed are passed with notifications from new events") {
@@ -234,7 +236,7 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
           )
         )
       ))
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 3
         nots.exists(_.msg == "abc") shouldEqual true
         val (shown, toShow) = nots.partition(_.hasBeenDisplayed)
@@ -243,7 +245,7 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(event)))
     }
 
     scenario("Apply multiple message edit events to previous notifications") {
@@ -275,14 +277,14 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
 
       setup(Seq((conv, true)))
       (messages.findMessagesFrom _).expects(conv.id, edit1EventTime).returning(Future.successful(IndexedSeq.empty))
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         val not = nots.head
         not.id shouldEqual NotId(editContent2.messageId)
         not.msg shouldEqual "ghi"
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(editEvent1, editEvent2)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(editEvent1, editEvent2)))
     }
 
     scenario("Apply delete and recall (hide and delete) events to previous notifications in storage and stream") {
@@ -310,14 +312,14 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
       setup()
       (messages.findMessagesFrom _).expects(conv.id, *).returning(Future.successful(IndexedSeq.empty))
 
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         Future.successful {
           nots.size shouldEqual 1
           nots.head shouldEqual remainingNotif
         }
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(msgEvent, deleteEvent1, deleteEvent2)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(msgEvent, deleteEvent1, deleteEvent2)))
     }
 
     scenario("Multiple alternative likes and unlikes only ever apply the last event") {
@@ -357,7 +359,7 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
       setup(msg = Some(originalMessage))
       (messages.findMessagesFrom _).expects(conv.id, like1EventTime).returning(Future.successful(IndexedSeq.empty))
 
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 2
         nots.foreach { n =>
           n.msgType shouldEqual NotificationType.LIKE
@@ -367,7 +369,7 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(like1Event, unlikeEvent, otherLikeEvent, like2Event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(like1Event, unlikeEvent, otherLikeEvent, like2Event)))
     }
   }
 
@@ -392,7 +394,7 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
           )
         )
       ))
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
         nots.size shouldEqual 1
         nots.head.msg shouldEqual ""
         nots.head.msgType shouldEqual NotificationType.MEMBER_JOIN
@@ -400,7 +402,7 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
         Future.successful({})
       }
 
-      result(getService().messageNotificationEventsStage(rConvId, Vector(event)))
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(event)))
     }
 
   }
@@ -420,29 +422,36 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
       )
       storedNotifications ! previousNots
 
-      (convs.getAll _).expects(*).once().returning(Future.successful(Seq(Some(conv1), Some(conv2))))
-
-      val uiNotified = Signal(false)
-      (uiController.onNotificationsChanged _).expects(account1Id, *).onCall { (_, nots) =>
-        Future {
-          nots.size shouldEqual 1
-          nots.head.conv shouldEqual conv2.id
-          uiNotified ! true
-        } (Threading.Background)
+      uiChanged.expects(account1Id, *).onCall { (_, nots) =>
+        nots.size shouldEqual 1
+        nots.head.conv shouldEqual conv2.id
+        Future.successful({})
       }
 
-      getService()
-
-      uiNotificationsSourceVisible ! Map(account1Id -> Set(conv1.id))
-      result(uiNotified.filter(identity(_)).head)
+      result(getService().dismissNotifications(Some(Set(conv1.id))))
+      result(uiController.posts.head).map(_.get) shouldEqual Vector((Set(conv1.id), Set.empty))
     }
 
+    scenario("Last notification of a conversation removed") {
+      val shown = NotificationData(NotId("not-id-1"), hasBeenDisplayed = true, conv = conv.id, time = RemoteInstant(clock.instant))
+      storedNotifications ! Set(shown)
+
+      val deleteContent = GenericMessage(Uid(), MsgDeleted(rConvId, MessageId(shown.id.str)))
+      val deleteEvent = GenericMessageEvent(rConvId, RemoteInstant(clock.instant()), from, deleteContent)
+
+      setup()
+      (messages.findMessagesFrom _).expects(conv.id, *).returning(Future.successful(IndexedSeq.empty))
+      uiChanged.expects(account1Id, Set.empty[NotificationData]).returning(Future.successful({}))
+
+      processed(getService().messageNotificationEventsStage(rConvId, Vector(deleteEvent)))
+      // the conversation is posted with nothing left to show, so that the ui takes its notification down
+      result(uiController.posts.head).map(_.get) shouldEqual Vector((Set(conv.id), Set.empty))
+    }
   }
 
   def getService() = {
 
     (pushService.beDrift _).expects().anyNumberOfTimes().returning(beDrift)
-    (uiController.notificationsSourceVisible _).expects().anyNumberOfTimes().returning(uiNotificationsSourceVisible)
 
     implicit val ec = notificationsDispatcher
     (storage.insertAll _).expects(*).anyNumberOfTimes().onCall { (toAdd: Traversable[NotificationData]) =>
@@ -471,6 +480,30 @@ class NotificationServiceSpec extends AndroidFreeSpec with DerivedLogTag {
     new NotificationService(account1Id, messages, storage, convs, pushService, uiController, userService, clock)
   }
 
+  // the ui is posted to once the stage completed, failed expectations of the first post are rethrown here
+  private def processed(stage: Future[Unit]): Unit = {
+    result(stage)
+    result(uiController.posts.filter(_.nonEmpty).head).head.get
+  }
+
+  /**
+    * Records the posts to the ui, which happen after the stages completed, and forwards them to `uiChanged` through the
+    * default `onConversationNotificationsChanged`, as a controller without per conversation updates gets them.
+    */
+  class RecordingUi extends NotificationUiController {
+    val posts = Signal(Vector.empty[Try[(Set[ConvId], Set[NotificationData])]])
+
+    override def onNotificationsChanged(accountId: UserId, ns: Set[NotificationData]): Future[Unit] = uiChanged(accountId, ns)
+
+    override def onConversationNotificationsChanged(accountId: UserId, convs: Set[ConvId], ns: Set[NotificationData], all: => Set[NotificationData]): Future[Unit] = {
+      val posted = Try(super.onConversationNotificationsChanged(accountId, convs, ns, all)).map(_ => (convs, ns))
+      posts.mutate(_ :+ posted)
+      Future.successful({})
+    }
+
+    override def notificationsSourceVisible: Signal[Map[UserId, Boolean]] = uiNotificationsSourceVisible
+  }
+
   private def setup(cs: Seq[(ConversationData, Boolean)] = Seq((conv, true)),
                     msg: Option[MessageData] = None,
                     userAvailability: Availability = Availability.Available
@@ -0,0 +1,81 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.service.notifications
+
+import com.waz.model._
+import com.waz.service.push.NotificationService.NotificationState
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+
+class NotificationStateSpec extends AndroidFreeSpec {
+
+  val conv1 = ConvId("conv1")
+  val conv2 = ConvId("conv2")
+
+  def not(id: String, conv: ConvId, msg: String = "") = NotificationData(NotId(id), msg, conv)
+
+  feature("Notification state") {
+
+    scenario("Only conversations whose notifications changed are reported") {
+      val state = NotificationState(Seq(not("a", conv1), not("b", conv2)))
+
+      val (next, changed) = state.update(Seq(not("c", conv1)), Nil)
+      changed shouldEqual Set(conv1)
+      next.forConvs(Set(conv1)).map(_.id) shouldEqual Set(NotId("a"), NotId("c"))
+      next.size shouldEqual 3
+    }
+
+    scenario("Re-adding an unchanged notification is not a change") {
+      val state = NotificationState(Seq(not("a", conv1, "hi")))
+
+      state.update(Seq(not("a", conv1, "hi")), Nil)._2 shouldBe empty
+      state.update(Seq(not("a", conv1, "edited")), Nil)._2 shouldEqual Set(conv1)
+    }
+
+    scenario("Removing the last notification of a conversation drops it") {
+      val state = NotificationState(Seq(not("a", conv1), not("b", conv2)))
+
+      val (next, changed) = state.update(Nil, Seq(NotId("a"), NotId("unknown")))
+      changed shouldEqual Set(conv1)
+      next.byConv.keySet shouldEqual Set(conv2)
+      next.get(NotId("a")) shouldBe empty
+    }
+
+    scenario("Dismissing conversations removes their notifications only") {
+      val state = NotificationState(Seq(not("a", conv1), not("b", conv1), not("c", conv2)))
+
+      state.idsForConvs(Set(conv1)) shouldEqual Set(NotId("a"), NotId("b"))
+      state.ids.size shouldEqual 3
+    }
+
+    scenario("Adding to a backlog of thousands of pending notifications", Slow) {
+      val convs = (0 until 200).map(i => ConvId(s"conv-$i"))
+      val backlog = NotificationState((0 until 5000).map(i => not(s"n-$i", convs(i % convs.size))))
+
+      val start = System.nanoTime()
+      val (next, changed) = (0 until 1000).foldLeft((backlog, Set.empty[ConvId])) { case ((st, _), i) =>
+        st.update(Seq(not(s"new-$i", convs(i % 3))), Nil)
+      }
+      val perEvent = (System.nanoTime() - start) / 1000 / 1000
+      println(s"5000 pending notifications, µs per new notification: $perEvent")
+
+      next.size shouldEqual 6000
+      changed.size shouldEqual 1
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.service.otr
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import com.waz.utils.{Serialized, returning}
+
+import scala.concurrent.Future
+import scala.concurrent.duration._
+
+class SessionCacheSpec extends AndroidFreeSpec {
+  import SessionCacheSpec._
+  import com.waz.threading.Threading.Implicits.Background
+
+  feature("Caching sessions") {
+
+    scenario("Least recently used clean sessions are evicted") {
+      val box = new FakeBox()
+      val cache = new SessionCache[String, FakeSession](2, box.save)
+      cache.bindTo(box)
+
+      Seq("a", "b") foreach (id => cache.put(id, box.load(id)))
+      cache.get("a") shouldBe defined // a is now more recent than b
+      cache.put("c", box.load("c"))
+
+      cache.get("a") shouldBe defined
+      cache.get("b") shouldBe empty
+      cache.get("c") shouldBe defined
+    }
+
+    scenario("Dirty sessions are not evicted before they are flushed") {
+      val box = new FakeBox()
+      val cache = new SessionCache[String, FakeSession](1, box.save)
+      cache.bindTo(box)
+
+      Seq("a", "b", "c") foreach { id =>
+        val session = box.load(id)
+        cache.put(id, session)
+        cache.markDirty(id, session)
+      }
+      cache.size shouldEqual 3
+      box.saves.get shouldEqual 0
+
+      Seq("a", "b", "c") foreach cache.flush
+      box.saves.get shouldEqual 3
+      cache.size shouldEqual 1
+    }
+
+    scenario("Session evicted while in use is put back when marked dirty") {
+      val box = new FakeBox()
+      val cache = new SessionCache[String, FakeSession](1, box.save)
+      cache.bindTo(box)
+
+      val a = box.load("a")
+      cache.put("a", a)
+      cache.put("b", box.load("b"))
+      cache.get("a") shouldBe empty
+
+      cache.markDirty("a", a)
+      cache.isDirty("a") shouldEqual true
+      cache.flush("a")
+      box.saved.get("a") shouldEqual a.counter
+    }
+
+    scenario("Flushing a clean session doesn't save it") {
+      val box = new FakeBox()
+      val cache = new SessionCache[String, FakeSession](4, box.save)
+      cache.bindTo(box)
+      cache.put("a", box.load("a"))
+
+      cache.flush("a")
+      cache.flush("unknown")
+      box.saves.get shouldEqual 0
+    }
+
+    scenario("Failed save leaves the session dirty") {
+      val box = new FakeBox()
+      var fail = true
+      val cache = new SessionCache[String, FakeSession](4, s => if (fail) throw new IllegalStateException else box.save(s))
+      cache.bindTo(box)
+      val a = box.load("a")
+      cache.put("a", a)
+      cache.markDirty("a", a)
+
+      an[IllegalStateException] should be thrownBy cache.flush("a")
+      cache.isDirty("a") shouldEqual true
+
+      fail = false
+      cache.flush("a")
+      cache.isDirty("a") shouldEqual false
+      box.saves.get shouldEqual 1
+    }
+
+    scenario("Held sessions are neither flushed nor saved on clear until released") {
+      val box = new FakeBox()
+      val cache = new SessionCache[String, FakeSession](4, box.save)
+      cache.bindTo(box)
+      val a = box.load("a")
+      cache.put("a", a)
+      cache.hold("a", a)
+      cache.hold("a", a)
+      a.encrypt()
+      cache.markDirty("a", a)
+
+      cache.flush("a")
+      cache.release("a")
+      cache.flush("a")
+      box.saves.get shouldEqual 0
+      cache.isDirty("a") shouldEqual true
+
+      cache.release("a")
+      cache.flush("a")
+      box.saves.get shouldEqual 1
+
+      cache.hold("a", a)
+      cache.clear(saveDirty = true)
+      box.saves.get shouldEqual 1
+      cache.size shouldEqual 0
+    }
+
+    scenario("Sessions are dropped when the owner changes, dirty ones are saved on clear if requested") {
+      val box = new FakeBox()
+      val cache = new SessionCache[String, FakeSession](4, box.save)
+      cache.bindTo(box)
+      val a = box.load("a")
+      cache.put("a", a)
+
+      cache.bindTo(new FakeBox())
+      cache.get("a") shouldBe empty
+
+      cache.put("a", a)
+      cache.markDirty("a", a)
+      cache.clear(saveDirty = true)
+      box.saves.get shouldEqual 1
+      cache.size shouldEqual 0
+    }
+  }
+
+  feature("Encryption fan-out benchmark") {
+
+    scenario("Encrypt for a growing number of clients, with and without the cache", Slow) {
+      val ioCost = 200.micros
+
+      for (recipients <- Seq(10, 100, 500, 1000)) {
+        val ids = (1 to recipients).map(i => s"session_$i")
+
+        // what withSession did before: load and save for every client
+        val uncached = new FakeBox(ioCost)
+        val uncachedTime = time {
+          Seq(1, 2) foreach { _ =>
+            result(Future.traverse(ids) { id =>
+              Serialized.future(uncached, id)(Future {
+                val s = uncached.load(id)
+                s.encrypt()
+                uncached.save(s)
+              })
+            })
+          }
+        }
+
+        val cachedBox = new FakeBox(ioCost)
+        val cache = new SessionCache[String, FakeSession](CryptoSessionService.CacheSize, cachedBox.save)
+        cache.bindTo(cachedBox)
+        val cachedTime = time {
+          Seq(1, 2) foreach { _ =>
+            result(Future.traverse(ids) { id =>
+              Serialized.future(cachedBox, id)(Future {
+                val s = cache.get(id).getOrElse(returning(cachedBox.load(id))(cache.put(id, _)))
+                s.encrypt()
+                cache.markDirty(id, s)
+              })
+            })
+            result(Future.traverse(ids)(id => Serialized.future(cachedBox, id)(Future(cache.flush(id)))))
+          }
+        }
+
+        println(f"$recipients%5d clients, two messages: uncached ${uncachedTime.toMillis}%5d ms (${uncached.loads.get} loads, ${uncached.saves.get} saves), " +
+          f"cached ${cachedTime.toMillis}%5d ms (${cachedBox.loads.get} loads, ${cachedBox.saves.get} saves)")
+
+        uncached.loads.get shouldEqual 2 * recipients
+        cachedBox.loads.get shouldEqual math.min(recipients, CryptoSessionService.CacheSize) + math.max(0, recipients - CryptoSessionService.CacheSize) * 2
+        cachedBox.saves.get shouldEqual 2 * recipients
+        ids.foreach { id => cachedBox.saved.get(id) shouldEqual 2 }
+      }
+    }
+  }
+
+  private def time(f: => Unit): FiniteDuration = {
+    val start = System.nanoTime()
+    f
+    (System.nanoTime() - start).nanos
+  }
+}
+
+object SessionCacheSpec {
+
+  class FakeSession(val id: String, @volatile var counter: Int) {
+    def encrypt(): Unit = counter += 1
+  }
+
+  /**
+    * Stands in for the crypto box, which keeps every session in a file and can't be loaded in unit tests.
+    * Loading and saving a session cost `ioCost` each, about what reading or writing a small file does on a device.
+    */
+  class FakeBox(ioCost: FiniteDuration = Duration.Zero) {
+    val loads = new AtomicInteger(0)
+    val saves = new AtomicInteger(0)
+    val saved = new ConcurrentHashMap[String, Int]()
+
+    def load(id: String): FakeSession = {
+      loads.incrementAndGet()
+      io()
+      new FakeSession(id, if (saved.containsKey(id)) saved.get(id) else 0)
+    }
+
+    def save(session: FakeSession): Unit = {
+      saves.incrementAndGet()
+      io()
+      saved.put(session.id, session.counter)
+    }
+
+    private def io() = if (ioCost > Duration.Zero) LockSupport.parkNanos(ioCost.toNanos)
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.service.push
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.waz.model._
+import com.waz.model.otr.ClientId
+import com.waz.service.otr.OtrService.SessionId
+import com.waz.service.otr.{CryptoSessionService, SessionCache}
+import com.waz.service.push.PushNotificationEventsStorage.{DecryptedRow, EventIndex, PlainWriter}
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import com.waz.utils.{Serialized, returning}
+import org.threeten.bp.Instant
+
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.{Future, Promise}
+import scala.concurrent.duration._
+
+class DecryptionLanesSpec extends AndroidFreeSpec {
+  import DecryptionLanesSpec._
+  import com.waz.threading.Threading.Implicits.Background
+
+  feature("Decrypting stored rows in lanes") {
+
+    scenario("Rows of a session are decrypted in order, results are persisted in batches") {
+      val rows = interleaved(sessions = 3, perSession = 10)
+      val box = new FakeCryptoBox()
+      val db = new FakeStorage(box, rows)
+
+      result(db.lanes(parallelism = 3, batchSize = 4).apply(rows))
+
+      box.outOfOrder.get shouldEqual 0
+      db.rows.keySet shouldEqual rows.map(_._1).toSet
+      db.rows.values.forall(_.result.isRight) shouldEqual true
+      db.batches.get should be < rows.size
+    }
+
+    scenario("Decryption errors are stored as error events") {
+      val rows = interleaved(sessions = 1, perSession = 3)
+      val duplicate = Uid() -> rows.head._2
+      val box = new FakeCryptoBox()
+      val db = new FakeStorage(box, rows :+ duplicate)
+
+      result(db.lanes().apply(rows :+ duplicate))
+
+      db.rows(duplicate._1).result.left.map(_.error) shouldEqual Left(Duplicate)
+      rows.map(r => db.rows(r._1).result.isRight) shouldEqual Seq(true, true, true)
+    }
+
+    scenario("Sessions are only saved once all their rows are persisted") {
+      val rows = interleaved(sessions = 20, perSession = 25)
+      val box = new FakeCryptoBox()
+      val db = new FakeStorage(box, rows)
+
+      result(db.lanes(parallelism = 4, batchSize = 7).apply(rows))
+
+      box.savedAhead.get shouldEqual 0
+      box.saved.keySet shouldEqual rows.map(r => sessionOf(r._2)).toSet
+      box.saved.forall { case (id, n) => box.state(id) == n } shouldEqual true
+    }
+
+    scenario("Unexpected failure stops only its own lane") {
+      val rows = interleaved(sessions = 2, perSession = 10)
+      val broken = sessionOf(rows.head._2)
+      val box = new FakeCryptoBox(fail = (id, n) => id == broken && n == 5)
+      val db = new FakeStorage(box, rows)
+
+      result(db.lanes(parallelism = 2).apply(rows))
+
+      val (first, second) = rows.partition(r => sessionOf(r._2) == broken)
+      first.map(r => db.rows.contains(r._1)) shouldEqual (0 until 10).map(_ < 5)
+      second.forall(r => db.rows.contains(r._1)) shouldEqual true
+      box.savedAhead.get shouldEqual 0
+    }
+
+    scenario("Sessions held by unpersisted rows aren't saved by an unrelated flush") {
+      val rows = interleaved(sessions = 2, perSession = 4)
+      val ids = rows.map(r => sessionOf(r._2)).toSet
+      val box = new FakeCryptoBox()
+      val gate = Promise[Unit]()
+      val db = new FakeStorage(box, rows, gate = gate.future)
+
+      val decrypted = db.lanes(parallelism = 2, batchSize = 4).apply(rows)
+      result(db.started.future)
+      result(box.save(ids)) // what encrypting a message for these clients does meanwhile
+      box.saved shouldBe empty
+
+      gate.success(())
+      result(decrypted)
+      box.savedAhead.get shouldEqual 0
+      ids.map(box.saved) shouldEqual Set(4)
+    }
+
+    scenario("Sessions are reloaded from their saved state when persisting fails, the rows are decrypted on retry") {
+      val rows = interleaved(sessions = 3, perSession = 6)
+      val box = new FakeCryptoBox()
+      val db = new FakeStorage(box, rows, failures = 1)
+
+      an[Exception] should be thrownBy result(db.lanes(parallelism = 3, batchSize = 4).apply(rows))
+      db.rows shouldBe empty
+      box.saved shouldBe empty
+      rows.map(r => box.state(sessionOf(r._2))).toSet shouldEqual Set(0)
+
+      result(db.lanes(parallelism = 3, batchSize = 4).apply(rows))
+      db.rows.keySet shouldEqual rows.map(_._1).toSet
+      db.rows.values.forall(_.result.isRight) shouldEqual true
+      box.savedAhead.get shouldEqual 0
+    }
+
+    scenario("Catch-up throughput with a costly session state and transaction", Slow) {
+      val rows = interleaved(sessions = 40, perSession = 50)
+
+      def run(parallelism: Int, batchSize: Int) = {
+        val box = new FakeCryptoBox(work = 2000)
+        val db = new FakeStorage(box, rows, transactionCost = 1.milli)
+        val start = System.nanoTime()
+        result(db.lanes(parallelism, batchSize).apply(rows))(1.minute)
+        val elapsed = (System.nanoTime() - start).nanos
+        db.rows.size shouldEqual rows.size
+        println(s"${rows.size} rows, $parallelism lanes, batches of $batchSize: ${elapsed.toMillis} ms, ${db.batches.get} transactions")
+        elapsed
+      }
+
+      val rowByRow = run(parallelism = 1, batchSize = 1)
+      val lanes = run(DecryptionLanes.DefaultParallelism, DecryptionLanes.DefaultBatchSize)
+
+      lanes should be < rowByRow
+    }
+  }
+}
+
+object DecryptionLanesSpec {
+  import com.waz.threading.Threading.Implicits.Background
+
+  val self = ClientId("self")
+
+  def sessionOf(ev: OtrMessageEvent) = SessionId(ev.from, ev.sender)
+
+  def seqOf(ev: OtrMessageEvent) = ByteBuffer.wrap(ev.ciphertext).getInt
+
+  /**
+    * Rows as they come from a fetch, messages of all sessions mixed, in order within a session.
+    */
+  def interleaved(sessions: Int, perSession: Int): Seq[(EventIndex, OtrMessageEvent)] = {
+    val ids = (0 until sessions).map(i => (UserId(s"user-$i"), ClientId(s"client-$i")))
+    for {
+      n <- 0 until perSession
+      (user, client) <- ids
+    } yield Uid() -> OtrMessageEvent(RConvId("conv"), RemoteInstant(Instant.now()), user, client, self, ByteBuffer.allocate(4).putInt(n).array())
+  }
+
+  /**
+    * Stands in for CryptoBox and CryptoSessionService: a session's state is the next expected message number, it has
+    * to see its messages in order, and is kept in a real SessionCache, it's only written to "disk" when flushed.
+    * A save is counted as ahead if the session moved past messages whose plain text isn't persisted, per `persisted`.
+    */
+  class FakeCryptoBox(work: Int = 0, fail: (SessionId, Int) => Boolean = (_, _) => false) {
+    val saved = TrieMap[SessionId, Int]()
+    val outOfOrder = new AtomicInteger()
+    val savedAhead = new AtomicInteger()
+    @volatile var persisted: SessionId => Int = _ => Int.MaxValue
+
+    private val cache = new SessionCache[SessionId, FakeSession](CryptoSessionService.CacheSize, { s =>
+      if (s.next > persisted(s.id)) savedAhead.incrementAndGet()
+      saved(s.id) = s.next
+    })
+    cache.bindTo(this)
+
+    def state(id: SessionId): Int = cache.get(id).fold(saved.getOrElse(id, 0))(_.next)
+
+    def decrypt(ev: OtrMessageEvent, writer: PlainWriter): Future[Either[OtrError, Unit]] = {
+      val id = sessionOf(ev)
+      Serialized.future(id) {
+        val session = cache.get(id).getOrElse(returning(new FakeSession(id, saved.getOrElse(id, 0)))(cache.put(id, _)))
+        val n = seqOf(ev)
+        if (fail(id, n)) Future.failed(new Exception("crypto box missing"))
+        else if (n < session.next) Future.successful(Left(Duplicate))
+        else {
+          if (n > session.next) outOfOrder.incrementAndGet()
+          burn(work)
+          session.next = n + 1
+          cache.hold(id, session)
+          writer(ev.ciphertext).map(_ => Right(()))
+        }
+      }
+    }
+
+    def save(ids: Set[SessionId]): Future[Unit] = onSessions(ids)(cache.flush)
+
+    def release(ids: Seq[SessionId]): Unit = ids foreach cache.release
+
+    def drop(ids: Set[SessionId]): Future[Unit] = onSessions(ids)(cache.remove)
+
+    private def onSessions(ids: Set[SessionId])(f: SessionId => Unit) =
+      Future.traverse(ids)(id => Serialized.future(id)(Future(f(id)))).map(_ => ())
+
+    private def burn(rounds: Int) = {
+      var x = 0L
+      for (i <- 0 until rounds) x = x * 31 + i
+      x
+    }
+  }
+
+  class FakeSession(val id: SessionId, @volatile var next: Int)
+
+  /**
+    * Persists batches after `transactionCost`, the first `failures` batches fail, and none is written before `gate`.
+    */
+  class FakeStorage(box: FakeCryptoBox,
+                    input: Seq[(EventIndex, OtrMessageEvent)],
+                    transactionCost: FiniteDuration = Duration.Zero,
+                    failures: Int = 0,
+                    gate: Future[Unit] = Future.successful(())) {
+    val rows = TrieMap[EventIndex, DecryptedRow]()
+    val batches = new AtomicInteger()
+    val started = Promise[Unit]()
+
+    private val sessions = input.map { case (index, ev) => index -> sessionOf(ev) }.toMap
+    private val failing = new AtomicInteger(failures)
+
+    box.persisted = id => rows.values.count(r => r.result.isRight && sessions.get(r.index).contains(id))
+
+    def persist(batch: Seq[DecryptedRow]): Future[Unit] = {
+      started.trySuccess(())
+      gate.map { _ =>
+        if (transactionCost > Duration.Zero) Thread.sleep(transactionCost.toMillis)
+        if (failing.getAndDecrement() > 0) throw new Exception("disk full")
+        batch foreach { row => rows(row.index) = row }
+        batches.incrementAndGet()
+      }
+    }
+
+    def lanes(parallelism: Int = DecryptionLanes.DefaultParallelism, batchSize: Int = DecryptionLanes.DefaultBatchSize) =
+      new DecryptionLanes(box.decrypt, persist, box.save, box.release, box.drop, parallelism, batchSize)
+  }
+}
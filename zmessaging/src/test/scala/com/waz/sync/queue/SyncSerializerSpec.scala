@@ -0,0 +1,213 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.sync.queue
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.waz.api.impl.ErrorResponse
+import com.waz.model.ConvId
+import com.waz.model.sync.SyncJob.Priority
+import com.waz.specs.AndroidFreeSpec
+import com.waz.sync.SyncResult
+import com.waz.testutils.Slow
+import com.waz.threading.CancellableFuture
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.concurrent.duration._
+
+class SyncSerializerSpec extends AndroidFreeSpec {
+  import SyncSerializerSpec._
+  import com.waz.threading.Threading.Implicits.Background
+
+  feature("Adaptive concurrency") {
+
+    scenario("Limit grows by one for every limit's worth of fast completions") {
+      val clock = new FakeClock
+      val concurrency = new AdaptiveConcurrency(initial = 4, clock = clock)
+
+      (1 to 4) foreach { _ => concurrency.completed(clock.advance(10.millis), overloaded = false) }
+      concurrency.limit shouldEqual 4
+      concurrency.completed(clock.advance(10.millis), overloaded = false)
+      concurrency.limit shouldEqual 5
+    }
+
+    scenario("Overload halves the limit once per round") {
+      val clock = new FakeClock
+      val concurrency = new AdaptiveConcurrency(initial = 8, clock = clock)
+
+      val inFlight = Seq.fill(3)(concurrency.started())
+      clock.advance(10.millis)
+      inFlight foreach { concurrency.completed(_, overloaded = true) }
+      concurrency.limit shouldEqual 4
+
+      val next = concurrency.started()
+      clock.advance(10.millis)
+      concurrency.completed(next, overloaded = true)
+      concurrency.limit shouldEqual 2
+
+      Seq.fill(3)(concurrency.started()) foreach { s =>
+        clock.advance(10.millis)
+        concurrency.completed(s, overloaded = true)
+      }
+      concurrency.limit shouldEqual 1
+    }
+
+    scenario("Requests much slower than the fastest one count as overload") {
+      val clock = new FakeClock
+      val concurrency = new AdaptiveConcurrency(initial = 8, slowLatency = 100.millis, clock = clock)
+
+      concurrency.completed(clock.advance(20.millis), overloaded = false)
+      concurrency.completed(clock.advance(70.millis), overloaded = false)
+      concurrency.limit shouldEqual 8
+
+      concurrency.completed(clock.advance(150.millis), overloaded = false)
+      concurrency.limit shouldEqual 4
+    }
+
+    scenario("Rate limiting and server errors are overload, client errors are not") {
+      AdaptiveConcurrency.isOverloaded(SyncResult(ErrorResponse(503, "unavailable", ""))) shouldEqual true
+      AdaptiveConcurrency.isOverloaded(SyncResult(ErrorResponse(420, "too many", ""))) shouldEqual true
+      AdaptiveConcurrency.isOverloaded(SyncResult(ErrorResponse.timeout("timeout"))) shouldEqual true
+      AdaptiveConcurrency.isOverloaded(SyncResult(ErrorResponse(404, "not found", ""))) shouldEqual false
+      AdaptiveConcurrency.isOverloaded(SyncResult(ErrorResponse(ErrorResponse.ConnectionErrorCode, "offline", ""))) shouldEqual false
+      AdaptiveConcurrency.isOverloaded(SyncResult.Success) shouldEqual false
+    }
+  }
+
+  feature("Conversation locks") {
+
+    scenario("Waiters get the lock in the order they asked for it") {
+      val serializer = new SyncSerializer()
+      val conv = ConvId()
+      val order = new ConcurrentLinkedQueue[Int]()
+
+      val locks = (1 to 5) map { i =>
+        serializer.acquire(conv) flatMap { lock =>
+          order.add(i)
+          CancellableFuture.delay(5.millis).future.map(_ => lock.release())
+        }
+      }
+      val other = serializer.acquire(ConvId())
+
+      result(other).release()
+      result(Future.sequence(locks))
+      order.asScala.toList shouldEqual (1 to 5).toList
+      result(serializer.lockedConvs) shouldEqual 0
+    }
+  }
+
+  feature("Scheduling simulation") {
+
+    scenario("Thousands of queued jobs against a backend with limited capacity", Slow) {
+      val convs = (0 until 40).map(i => ConvId(s"conv-$i"))
+      val jobs = (0 until 2000).map(i => Job(convs(i % convs.size), if (i % 3 == 0) Priority.Low else Priority.Normal))
+
+      val fixed = simulate(jobs, new AdaptiveConcurrency(initial = 4, min = 4, max = 4))
+      val adaptive = simulate(jobs, new AdaptiveConcurrency(slowLatency = 50.millis))
+
+      Seq("fixed" -> fixed, "adaptive" -> adaptive) foreach { case (name, s) =>
+        println(f"$name: ${s.elapsed.toMillis} ms, ${s.throughput}%.0f jobs/s, ${s.rejected} rejected, fairness at half-time: ${s.fairness}%.3f")
+      }
+
+      adaptive.throughput should be > fixed.throughput
+      adaptive.fairness should be > 0.8
+    }
+  }
+}
+
+object SyncSerializerSpec {
+
+  class FakeClock extends (() => Long) {
+    @volatile private var now = 0L
+    def apply(): Long = now
+    /** @return the time before advancing, to be used as the start of a request which took `d` */
+    def advance(d: FiniteDuration): Long = {
+      val start = now
+      now += d.toNanos
+      start
+    }
+  }
+
+  case class Job(conv: ConvId, priority: Int)
+
+  /**
+    * Serves `capacity` requests at once at the base latency, gets proportionally slower beyond that, and rejects
+    * requests with 503 once twice as many are running.
+    */
+  class FakeBackend(capacity: Int = 8, latency: FiniteDuration = 5.millis) {
+    import com.waz.threading.Threading.Implicits.Background
+
+    private val inFlight = new AtomicInteger()
+    val rejected = new AtomicInteger()
+
+    def request(): Future[SyncResult] = {
+      val running = inFlight.incrementAndGet()
+      val overloaded = running > capacity * 2
+      CancellableFuture.delay(latency * math.max(1, running / capacity).toLong).future.map { _ =>
+        inFlight.decrementAndGet()
+        if (overloaded) {
+          rejected.incrementAndGet()
+          SyncResult(ErrorResponse(503, "overloaded", ""))
+        } else SyncResult.Success
+      }
+    }
+  }
+
+  case class Stats(elapsed: FiniteDuration, throughput: Double, rejected: Int, fairness: Double)
+
+  /**
+    * Runs all jobs the way SyncScheduler does: wait for a slot of the job's priority, then for the conversation,
+    * then do the request; a rejected job is retried.
+    */
+  def simulate(jobs: Seq[Job], concurrency: AdaptiveConcurrency): Stats = {
+    import com.waz.threading.Threading.Implicits.Background
+
+    val serializer = new SyncSerializer(concurrency)
+    val backend = new FakeBackend()
+    val completed = new ConcurrentLinkedQueue[ConvId]()
+
+    def run(job: Job): Future[Unit] =
+      serializer.acquire(job.priority).flatMap { _ =>
+        serializer.acquire(job.conv).flatMap { lock =>
+          val startedAt = concurrency.started()
+          backend.request().map { res =>
+            concurrency.completed(startedAt, res)
+            lock.release()
+            res
+          }
+        }.andThen { case _ => serializer.release() }
+      }.flatMap {
+        case SyncResult.Success =>
+          completed.add(job.conv)
+          Future.successful(())
+        case _                  => CancellableFuture.delay(10.millis).future.flatMap(_ => run(job))
+      }
+
+    val start = System.nanoTime()
+    scala.concurrent.Await.result(Future.traverse(jobs)(run), 2.minutes)
+    val elapsed = (System.nanoTime() - start).nanos
+
+    val firstHalf = completed.asScala.take(jobs.size / 2).toSeq
+    val perConv = jobs.map(_.conv).distinct.map(c => firstHalf.count(_ == c).toDouble)
+    val fairness = math.pow(perConv.sum, 2) / (perConv.size * perConv.map(x => x * x).sum) // Jain's index
+
+    Stats(elapsed, jobs.size / (elapsed.toMillis / 1000.0), backend.rejected.get, fairness)
+  }
+}
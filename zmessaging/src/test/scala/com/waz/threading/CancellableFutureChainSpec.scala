@@ -0,0 +1,405 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.threading
+
+import java.lang.management.ManagementFactory
+import java.util.TimerTask
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CountDownLatch, Executors, ThreadFactory, TimeUnit, TimeoutException}
+
+import com.waz.log.BasicLogging.LogTag
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.testutils.Slow
+import com.waz.threading.CancellableFuture.CancelException
+import org.scalatest._
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Promise}
+import scala.util.{Failure, Random, Success, Try}
+
+class CancellableFutureChainSpec extends FeatureSpec with Matchers with BeforeAndAfter with DerivedLogTag {
+  implicit val executor: ExecutionContext = Threading.Background
+
+  val CountingThreadName = "CountingExecutor"
+
+  class CountingExecutor extends ExecutionContext {
+    val executed = new AtomicInteger(0)
+    private val delegate = Executors.newSingleThreadExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, CountingThreadName)
+        thread.setDaemon(true)
+        thread
+      }
+    })
+
+    override def execute(runnable: Runnable): Unit = {
+      executed.incrementAndGet()
+      delegate.execute(runnable)
+    }
+
+    override def reportFailure(cause: Throwable): Unit = ()
+  }
+
+  def pending[A]: (Promise[A], CancellableFuture[A]) = {
+    val p = Promise[A]()
+    (p, new CancellableFuture(p))
+  }
+
+  def result[A](f: CancellableFuture[A]): Try[A] = Await.ready(f.future, 5.seconds).value.get
+
+  def isCancelled(res: Try[_]): Boolean = res match {
+    case Failure(_: CancelException) => true
+    case _ => false
+  }
+
+  def elapsedMillis(start: Long): Long = (System.nanoTime() - start) / 1000000
+
+  feature("Transformations") {
+
+    scenario("Map, flatMap, filter and recover compute their results") {
+      val (p, source) = pending[Int]
+      val res = source.map(_ + 1).flatMap(v => CancellableFuture(v * 2)).filter(_ > 0).recover { case _ => -1 }
+      p.success(1)
+      result(res) shouldEqual Success(4)
+
+      val recovered = CancellableFuture.failed[Int](new IllegalStateException).recoverWith {
+        case _: IllegalStateException => CancellableFuture.successful(5)
+      }
+      result(recovered) shouldEqual Success(5)
+      result(CancellableFuture.successful(0).filter(_ > 0)).failed.get shouldBe a[NoSuchElementException]
+    }
+
+    scenario("Exceptions thrown by transformations fail the resulting future") {
+      val ex = new IllegalArgumentException
+      result(CancellableFuture.successful(1).map(_ => throw ex)) shouldEqual Failure(ex)
+      result(CancellableFuture.successful(1).flatMap(_ => throw ex)) shouldEqual Failure(ex)
+      result(CancellableFuture.failed[Int](new IllegalStateException).recoverWith { case _ => throw ex }) shouldEqual Failure(ex)
+    }
+
+    scenario("Failures of completed sources pass through without being scheduled") {
+      val counting = new CountingExecutor
+      val ex = new IllegalStateException
+      val res = CancellableFuture.failed[Int](ex).map(_ + 1)(counting, logTag).flatMap(CancellableFuture.successful)(counting, logTag)
+      res.future.value shouldEqual Some(Failure(ex))
+      counting.executed.get shouldEqual 0
+    }
+
+    scenario("Transformations of completed sources still run on their executor") {
+      val counting = new CountingExecutor
+      val res = CancellableFuture.successful(1).map(_ => Thread.currentThread().getName)(counting, logTag)
+      result(res) shouldEqual Success(CountingThreadName)
+      counting.executed.get shouldEqual 1
+    }
+
+    scenario("Deep recursive flatMap chain completes") {
+      def sum(n: Int, acc: Long): CancellableFuture[Long] =
+        if (n == 0) CancellableFuture.successful(acc)
+        else CancellableFuture(n).flatMap(v => sum(n - 1, acc + v))
+
+      result(sum(100000, 0)) shouldEqual Success(5000050000L)
+    }
+  }
+
+  feature("Cancellation") {
+
+    scenario("Cancelling mapped future completes it immediately and cancels its source") {
+      val (_, source) = pending[Int]
+      val mapped = source.map(_ + 1)
+      mapped.cancel() shouldEqual true
+      isCancelled(mapped.future.value.get) shouldEqual true
+      isCancelled(result(source)) shouldEqual true
+    }
+
+    scenario("Cancellation propagates into the inner future of flatMap") {
+      val (p, source) = pending[Int]
+      val (_, inner) = pending[Int]
+      val called = new CountDownLatch(1)
+      val res = source.flatMap { _ =>
+        called.countDown()
+        inner
+      }
+      p.success(1)
+      called.await(5, TimeUnit.SECONDS) shouldEqual true
+      res.cancel() shouldEqual true
+      isCancelled(result(inner)) shouldEqual true
+    }
+
+    scenario("Cancelling a completed source doesn't affect derived futures") {
+      val (p, source) = pending[Int]
+      val mapped = source.map(_ + 1)
+      p.success(1)
+      result(mapped) shouldEqual Success(2)
+      source.cancel() shouldEqual false
+      mapped.cancel() shouldEqual false
+      result(mapped) shouldEqual Success(2)
+    }
+
+    scenario("Recover handles cancellation of its source, but not of itself") {
+      val (_, source) = pending[Int]
+      val recovered = source.recover { case _: CancelException => 0 }
+      source.cancel()
+      result(recovered) shouldEqual Success(0)
+
+      val (_, source1) = pending[Int]
+      val recovered1 = source1.recover { case _: CancelException => 0 }
+      recovered1.cancel() shouldEqual true
+      isCancelled(result(recovered1)) shouldEqual true
+      isCancelled(result(source1)) shouldEqual true
+    }
+
+    scenario("Custom cancel logic at the root of a chain is run") {
+      val cancelled = new CountDownLatch(1)
+      val source = CancellableFuture.lift(Promise[Int]().future, cancelled.countDown())
+      source.map(_ + 1).flatMap(CancellableFuture.successful).cancel()
+      cancelled.await(5, TimeUnit.SECONDS) shouldEqual true
+    }
+
+    scenario("Cancelling the end of a long chain cancels its root") {
+      val (_, root) = pending[Int]
+      val end = (1 to 10000).foldLeft(root)((f, _) => f.map(_ + 1))
+      end.cancel() shouldEqual true
+      isCancelled(root.future.value.get) shouldEqual true
+    }
+  }
+
+  feature("Timers") {
+
+    scenario("Delay doesn't complete before the requested time") {
+      val start = System.nanoTime()
+      Await.result(CancellableFuture.delay(100.millis), 5.seconds)
+      elapsedMillis(start) should be >= 100L
+    }
+
+    scenario("Cancelled delay fails immediately") {
+      val delay = CancellableFuture.delay(1.minute)
+      delay.cancel() shouldEqual true
+      isCancelled(delay.future.value.get) shouldEqual true
+    }
+
+    scenario("withTimeout fails slow futures with TimeoutException") {
+      val (_, slow) = pending[Int]
+      result(slow.withTimeout(50.millis)).failed.get shouldBe a[TimeoutException]
+      result(CancellableFuture(1).withTimeout(1.second)) shouldEqual Success(1)
+    }
+
+    scenario("Timeout is restarted while requested") {
+      val loops = new AtomicInteger(0)
+      val start = System.nanoTime()
+      Await.result(CancellableFuture.timeout(20.millis, shouldLoop = () => loops.incrementAndGet() < 3), 5.seconds)
+      loops.get shouldEqual 3
+      elapsedMillis(start) should be >= 60L
+    }
+
+    scenario("Timer wheel never runs tasks early, also across several rounds") {
+      val wheel = new TimerWheel("TestWheel", tickMillis = 1, wheelSize = 16)
+      val count = 200
+      val done = new CountDownLatch(count)
+      val early = new AtomicInteger(0)
+      (1 to count) foreach { _ =>
+        val delay = Random.nextInt(100).toLong
+        val deadline = System.nanoTime() + delay * 1000000L
+        wheel.schedule(new Runnable {
+          override def run(): Unit = {
+            if (System.nanoTime() < deadline) early.incrementAndGet()
+            done.countDown()
+          }
+        }, delay)
+      }
+      done.await(5, TimeUnit.SECONDS) shouldEqual true
+      early.get shouldEqual 0
+      wheel.pending shouldEqual 0
+    }
+
+    scenario("Timer wheel sleeps until the earliest deadline") {
+      val wheel = new TimerWheel("TestWheel", tickMillis = 10)
+      val long = wheel.schedule(new Runnable { override def run(): Unit = () }, 60000)
+      Thread.sleep(500)
+      wheel.wakeUps should be <= 2L // used to tick 50 times
+
+      val fired = new CountDownLatch(1)
+      val start = System.nanoTime()
+      wheel.schedule(new Runnable { override def run(): Unit = fired.countDown() }, 50)
+      fired.await(5, TimeUnit.SECONDS) shouldEqual true
+      elapsedMillis(start) should (be >= 50L and be < 1000L)
+      long.isExpired shouldEqual false
+      long.cancel() shouldEqual true
+    }
+
+    scenario("Cancelled timer tasks don't run and are removed from the wheel") {
+      val wheel = new TimerWheel("TestWheel", tickMillis = 1)
+      val ran = new AtomicInteger(0)
+      val task = new Runnable {
+        override def run(): Unit = ran.incrementAndGet()
+      }
+      val timeouts = (1 to 100) map (i => wheel.schedule(task, 20 + i))
+      timeouts.zipWithIndex foreach { case (t, i) => if (i % 2 == 0) t.cancel() shouldEqual true }
+
+      val start = System.nanoTime()
+      while (wheel.pending > 0 && elapsedMillis(start) < 5000) Thread.sleep(10)
+      wheel.pending shouldEqual 0
+      ran.get shouldEqual 50
+      timeouts.count(_.isExpired) shouldEqual 50
+      timeouts.head.cancel() shouldEqual false
+      timeouts.last.cancel() shouldEqual false
+    }
+  }
+
+  feature("Benchmarks") {
+
+    /**
+      * Combinators as they were implemented before chain nodes and the timer wheel, for comparison.
+      */
+    object Legacy {
+
+      def map[A, B](self: CancellableFuture[A])(f: A => B)(implicit executor: ExecutionContext): CancellableFuture[B] = {
+        val p = Promise[B]()
+        @volatile var cancelFunc = Option(self.cancel()(_: LogTag))
+        self.future.onComplete { v =>
+          cancelFunc = None
+          p.tryComplete(v.flatMap(res => Try(f(res))))
+        }
+        new CancellableFuture(p) {
+          override def cancel()(implicit tag: LogTag): Boolean = {
+            if (super.cancel()(tag)) {
+              scala.concurrent.Future(cancelFunc.foreach(_.apply(tag)))(CancellableFuture.internalExecutionContext)
+              true
+            } else false
+          }
+        }
+      }
+
+      def flatMap[A, B](self: CancellableFuture[A])(f: A => CancellableFuture[B])(implicit executor: ExecutionContext, tag: LogTag): CancellableFuture[B] = {
+        val p = Promise[B]()
+        @volatile var cancelFunc = Option(self.cancel()(_: LogTag))
+
+        self.future onComplete { res =>
+          cancelFunc = None
+          if (!p.isCompleted) res match {
+            case f: Failure[_] => p tryComplete f.asInstanceOf[Failure[B]]
+            case Success(v) =>
+              Try(f(v)) match {
+                case Success(fut) =>
+                  cancelFunc = Option(fut.cancel()(_: LogTag))
+                  fut onComplete { res =>
+                    cancelFunc = None
+                    p tryComplete res
+                  }
+                  if (p.isCompleted) fut.cancel()(tag)
+                case Failure(t) =>
+                  p tryFailure t
+              }
+          }
+        }
+
+        new CancellableFuture(p) {
+          override def cancel()(implicit tag: LogTag): Boolean = {
+            if (super.cancel()(tag)) {
+              scala.concurrent.Future(cancelFunc.foreach(_.apply(tag)))(CancellableFuture.internalExecutionContext)
+              true
+            } else false
+          }
+        }
+      }
+
+      def delay(d: FiniteDuration): CancellableFuture[Unit] = {
+        val p = Promise[Unit]()
+        val task = new TimerTask {
+          override def run(): Unit = p.trySuccess(())
+        }
+        Threading.Timer.schedule(task, d.toMillis)
+        new CancellableFuture(p) {
+          override def cancel()(implicit tag: LogTag): Boolean = {
+            task.cancel()
+            super.cancel()(tag)
+          }
+        }
+      }
+    }
+
+    lazy val threads = ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+
+    // summed over all threads, as callbacks run on the executor's workers
+    def allocatedBytes: Long = threads.getThreadAllocatedBytes(threads.getAllThreadIds).filter(_ > 0).sum
+
+    case class Result(bytes: Long, micros: Long) {
+      override def toString: String = s"${bytes}B, ${micros}us"
+    }
+
+    def measure(iterations: Int)(body: => Unit): Result = {
+      (1 to iterations / 10) foreach (_ => body) // warm up
+      System.gc()
+      val bytes = allocatedBytes
+      val start = System.nanoTime()
+      (1 to iterations) foreach (_ => body)
+      Result((allocatedBytes - bytes) / iterations, (System.nanoTime() - start) / iterations / 1000)
+    }
+
+    val Depth = 50
+    val Chains = 2000
+
+    def mapChain(step: CancellableFuture[Int] => CancellableFuture[Int]) = {
+      val (p, source) = pending[Int]
+      val end = (1 to Depth).foldLeft(source)((f, _) => step(f))
+      p.success(0)
+      Await.result(end, 5.seconds) shouldEqual Depth
+    }
+
+    scenario("Long map chain on a pending source", Slow) {
+      val legacy = measure(Chains)(mapChain(Legacy.map(_)(_ + 1)))
+      val nodes = measure(Chains)(mapChain(_.map(_ + 1)))
+      info(s"$Depth maps per chain, legacy: $legacy, chain nodes: $nodes")
+      nodes.bytes should be < legacy.bytes
+    }
+
+    scenario("Long flatMap chain with completed inner futures", Slow) {
+      val legacy = measure(Chains)(mapChain(Legacy.flatMap(_)(v => CancellableFuture.successful(v + 1))))
+      val nodes = measure(Chains)(mapChain(_.flatMap(v => CancellableFuture.successful(v + 1))))
+      info(s"$Depth flatMaps per chain, legacy: $legacy, chain nodes: $nodes")
+      nodes.bytes should be < legacy.bytes
+    }
+
+    scenario("Map chain on a completed source", Slow) {
+      def chain(step: CancellableFuture[Int] => CancellableFuture[Int]) =
+        Await.result((1 to Depth).foldLeft(CancellableFuture.successful(0))((f, _) => step(f)), 5.seconds)
+
+      val legacy = measure(Chains)(chain(Legacy.map(_)(_ + 1)))
+      val nodes = measure(Chains)(chain(_.map(_ + 1)))
+      info(s"$Depth maps on a completed source, legacy: $legacy, chain nodes: $nodes")
+      nodes.bytes should be < legacy.bytes
+    }
+
+    scenario("Cancelling long chains", Slow) {
+      def cancelChain(step: CancellableFuture[Int] => CancellableFuture[Int]) = {
+        val (_, source) = pending[Int]
+        (1 to Depth).foldLeft(source)((f, _) => step(f)).cancel()
+        Await.ready(source.future, 5.seconds)
+      }
+
+      val legacy = measure(Chains)(cancelChain(Legacy.map(_)(_ + 1)))
+      val nodes = measure(Chains)(cancelChain(_.map(_ + 1)))
+      info(s"cancelling $Depth maps, legacy: $legacy, chain nodes: $nodes")
+    }
+
+    scenario("Scheduling and cancelling delays", Slow) {
+      val legacy = measure(10000)(Legacy.delay(1.minute).cancel())
+      Threading.Timer.purge()
+      val wheel = measure(10000)(CancellableFuture.delay(1.minute).cancel())
+      info(s"delay + cancel, legacy: $legacy, timer wheel: $wheel")
+    }
+  }
+}
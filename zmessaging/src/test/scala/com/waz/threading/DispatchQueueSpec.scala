@@ -18,6 +18,7 @@
 package com.waz.threading
 
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
 import java.util.concurrent.atomic.AtomicInteger
 
 import com.waz.log.BasicLogging.LogTag.DerivedLogTag
@@ -127,6 +128,42 @@ class DispatchQueueSpec extends AndroidFreeSpec with DerivedLogTag {
     }
   }
 
+  feature("Work-stealing dispatch queue") {
+
+    scenario("Execute tasks submitted from outside and from within the pool") {
+      val queue = new WorkStealingDispatchQueue(2, "DispatchQueueSpec_ws1")
+      val latch = new CountDownLatch(200)
+
+      for (_ <- 1 to 100) queue {
+        latch.countDown()
+        queue(latch.countDown())
+      }
+
+      latch.await(5, SECONDS) shouldEqual true
+    }
+
+    scenario("Serial queue on top of work-stealing pool keeps task order") {
+      val pool = new WorkStealingDispatchQueue(4, "DispatchQueueSpec_ws2")
+      val queue = new SerialDispatchQueue(pool, name = "DispatchQueueSpec_ws2_serial")
+
+      @volatile var seen = Vector.empty[Int]
+      val tasks = (1 to 1000).map(i => queue(seen :+= i))
+
+      Await.result(tasks.last, 5.seconds)
+      seen shouldEqual (1 to 1000).toVector
+    }
+
+    scenario("Failing task doesn't prevent execution of following ones") {
+      val queue = new WorkStealingDispatchQueue(1, "DispatchQueueSpec_ws3")
+      val latch = new CountDownLatch(1)
+
+      queue.execute(new Runnable { override def run(): Unit = throw new IllegalStateException("failing task") })
+      queue.execute(new Runnable { override def run(): Unit = latch.countDown() })
+
+      latch.await(5, SECONDS) shouldEqual true
+    }
+  }
+
   feature("Unlimited dispatch queue") {
 
     //FIXME - test fails when run in full suite...
@@ -0,0 +1,155 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.threading
+
+import java.util.concurrent.CountDownLatch
+
+import com.waz.specs.AndroidFreeSpec
+
+import scala.concurrent.Future
+
+class DispatchQueueStatsSpec extends AndroidFreeSpec {
+  import LatencyHistogram._
+
+  feature("Latency histogram") {
+
+    scenario("Every value falls into a bucket whose bounds contain it, within the relative error") {
+      val values = (0L to 5000L) ++ Seq(65535L, 65536L, 1000000L, 123456789L, 1L << 40)
+      values foreach { v =>
+        val index = bucketIndex(v)
+        bucketUpperBound(index) should be >= v
+        if (index > 0) bucketUpperBound(index - 1) should be < v
+        (bucketUpperBound(index) - v).toDouble should be <= math.max(0.0, v.toDouble / SubBuckets)
+      }
+    }
+
+    scenario("Buckets are monotonic and huge values are clamped") {
+      (0L to 100000L).map(bucketIndex).sliding(2).forall { case Seq(a, b) => a <= b } shouldEqual true
+      bucketIndex(Long.MaxValue) shouldEqual BucketCount - 1
+    }
+
+    scenario("Percentiles of a uniform distribution") {
+      val h = new LatencyHistogram
+      (1 to 1000) foreach (h.record(_))
+
+      val s = h.snapshot
+      s.count shouldEqual 1000
+      s.total shouldEqual 500500
+      s.max shouldEqual 1000
+      s.mean shouldEqual 500
+      s.percentile(50).toDouble shouldEqual 500.0 +- 500.0 / SubBuckets
+      s.percentile(99).toDouble shouldEqual 990.0 +- 990.0 / SubBuckets
+      s.percentile(100) shouldEqual 1000
+    }
+
+    scenario("Empty histogram") {
+      val s = new LatencyHistogram().snapshot
+      s.count shouldEqual 0
+      s.mean shouldEqual 0
+      s.percentile(99) shouldEqual 0
+    }
+
+    scenario("Concurrent recording doesn't lose values") {
+      import Threading.Implicits.Background
+      val h = new LatencyHistogram
+      val start = new CountDownLatch(1)
+
+      result(Future.sequence((1 to 4).map { _ =>
+        Future {
+          start.await()
+          (1 to 10000) foreach (i => h.record(i % 100))
+        }
+      } :+ Future(start.countDown())))
+
+      h.count shouldEqual 40000
+      h.snapshot.counts.sum shouldEqual 40000
+      h.snapshot.max shouldEqual 99
+    }
+  }
+
+  feature("Queue stats") {
+
+    def withStats[A](enabled: Boolean = true)(body: => A): A = {
+      DispatchQueueStats.Enabled = enabled
+      try body finally {
+        DispatchQueueStats.Enabled = true
+        DispatchQueueStats.reset()
+      }
+    }
+
+    scenario("Stats are enabled by default") {
+      DispatchQueueStats.Enabled shouldEqual true
+    }
+
+    scenario("Tasks are not recorded when stats are disabled") {
+      withStats(enabled = false) {
+        val queue = new SerialDispatchQueue(Threading.Background, name = "DispatchQueueStatsSpecDisabled")
+        result(queue(()).future)
+        DispatchQueueStats.report(minTasks = 0).map(_.queue) should not contain "DispatchQueueStatsSpecDisabled"
+      }
+    }
+
+    scenario("Tasks executed on a queue are recorded") {
+      withStats() {
+        val queue = new SerialDispatchQueue(Threading.Background, name = "DispatchQueueStatsSpec")
+        result(Future.sequence((1 to 20).map(_ => queue(Thread.sleep(1)).future))(implicitly, Threading.Background))
+
+        val report = DispatchQueueStats.queueStats("DispatchQueueStatsSpec").report
+        report.count shouldEqual 20
+        report.execution.percentile(50) should be >= 1000L
+        report.totalExecution should be >= 20000L
+        report.toString should include("p99")
+      }
+    }
+
+    scenario("Each task is recorded once, by the queue it was dispatched to") {
+      withStats() {
+        val pool = new WorkStealingDispatchQueue(2, "StatsSpecPool")
+        val queue = new SerialDispatchQueue(pool, name = "StatsSpecSerial")
+        val unlimited = new UnlimitedDispatchQueue(pool, name = "StatsSpecUnlimited")
+        result(Future.sequence((1 to 20).map(_ => queue(()).future))(implicitly, Threading.Background))
+        result(Future.sequence((1 to 10).map(_ => unlimited(()).future))(implicitly, Threading.Background))
+
+        DispatchQueueStats.queueStats("StatsSpecSerial").count shouldEqual 20
+        DispatchQueueStats.queueStats("StatsSpecUnlimited").count shouldEqual 10
+        DispatchQueueStats.queueStats("StatsSpecPool").count shouldEqual 0
+      }
+    }
+
+    scenario("Queues are recorded per category, without their instance ids") {
+      DispatchQueueStats.category("serial_1f2e3d4c") shouldEqual "serial"
+      DispatchQueueStats.category("Database_readQueue_7a0b1c") shouldEqual "Database_readQueue"
+      DispatchQueueStats.category("ThrottledProcessingQueue_-12345") shouldEqual "ThrottledProcessingQueue"
+      DispatchQueueStats.category("UserVideoView-Participant(UserId(1),ClientId(2))") shouldEqual "UserVideoView"
+      DispatchQueueStats.category("CpuThreadPool") shouldEqual "CpuThreadPool"
+
+      withStats() {
+        (1 to 5) foreach { i => result(new SerialDispatchQueue(Threading.Background, name = s"serial_$i")(()).future) }
+        DispatchQueueStats.queueStats("serial").count shouldEqual 5
+      }
+    }
+
+    scenario("Number of recorded categories is bounded") {
+      withStats() {
+        (1 to DispatchQueueStats.MaxQueues + 10) foreach { i => DispatchQueueStats.add(s"queue$i", 0, 0, 1000) }
+        DispatchQueueStats.report(minTasks = 0).size should be <= DispatchQueueStats.MaxQueues + 1
+        DispatchQueueStats.queueStats(DispatchQueueStats.Other).count should be >= 10L
+      }
+    }
+  }
+}
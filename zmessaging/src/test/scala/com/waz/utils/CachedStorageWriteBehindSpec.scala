@@ -0,0 +1,234 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+import androidx.collection.LruCache
+import com.waz.content.Database
+import com.waz.db.DaoDB
+import com.waz.log.BasicLogging.LogTag
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import com.waz.threading.{CancellableFuture, SerialDispatchQueue}
+import com.waz.utils.CachedStorageImpl.WriteBehind
+import com.waz.utils.StorageTestData.TestObject
+import com.waz.utils.events.EventContext.Implicits.global
+import com.waz.utils.wrappers.DB
+
+import scala.collection.JavaConverters._
+import scala.collection.{GenTraversableOnce, Seq}
+import scala.concurrent.Future
+import scala.concurrent.duration._
+
+class CachedStorageWriteBehindSpec extends AndroidFreeSpec {
+  import CachedStorageWriteBehindSpec._
+  import com.waz.threading.Threading.Implicits.Background
+
+  val database = new CountingDatabase()
+  implicit val dao: TestDao = new TestDao
+
+  def storage(writeBehind: Option[WriteBehind], cacheSize: Int = 1024) =
+    new CachedStorageImpl[Int, TestObject](new LruCache(cacheSize), database, writeBehind)
+
+  feature("Write-behind") {
+
+    scenario("Buffered writes are persisted in a single transaction on flush") {
+      val st = storage(Some(WriteBehind(maxPending = 100, maxDelay = 1.minute)))
+
+      result(Future.sequence((1 to 10).map(i => st.insert(TestObject(i, s"obj $i")))))
+      dao.batches.get shouldEqual 0
+
+      result(st.flush())
+      dao.batches.get shouldEqual 1
+      dao.rows.get shouldEqual 10
+      database.transactions.get shouldEqual 1
+    }
+
+    scenario("Last write wins and events fire once per flush") {
+      val st = storage(Some(WriteBehind(maxPending = 100, maxDelay = 1.minute)))
+      val added = Seq.newBuilder[TestObject]
+      val updated = Seq.newBuilder[(TestObject, TestObject)]
+      st.onAdded(added ++= _)
+      st.onUpdated(updated ++= _)
+
+      result(st.insert(TestObject(1, "a")))
+      result(st.update(1, _.copy(title = "b")))
+      result(st.update(1, _.copy(title = "c")))
+      result(st.flush())
+
+      added.result() shouldEqual Seq(TestObject(1, "c"))
+      updated.result() shouldBe empty
+      dao.stored(1) shouldEqual TestObject(1, "c")
+
+      result(st.update(1, _.copy(title = "d")))
+      result(st.update(1, _.copy(title = "e")))
+      result(st.flush())
+
+      updated.result() shouldEqual Seq(TestObject(1, "c") -> TestObject(1, "e"))
+      dao.batches.get shouldEqual 2
+    }
+
+    scenario("Pending values are returned after they are evicted from the cache") {
+      val st = storage(Some(WriteBehind(maxPending = 100, maxDelay = 1.minute)), cacheSize = 1)
+
+      result(st.insert(TestObject(1, "a")))
+      result(st.insert(TestObject(2, "b")))
+      st.getRawCached(1) shouldEqual null
+
+      result(st.get(1)) shouldEqual Some(TestObject(1, "a"))
+      result(st.getAll(Seq(1, 2))) shouldEqual Seq(Some(TestObject(1, "a")), Some(TestObject(2, "b")))
+      dao.batches.get shouldEqual 0
+    }
+
+    scenario("Removing a key discards its pending write") {
+      val st = storage(Some(WriteBehind(maxPending = 100, maxDelay = 1.minute)))
+
+      result(st.insert(TestObject(1, "a")))
+      result(st.insert(TestObject(2, "b")))
+      result(st.remove(1))
+      result(st.flush())
+
+      dao.stored.keySet.asScala shouldEqual Set(2)
+    }
+
+    scenario("Bulk delete drops pending writes of deleted values") {
+      // mimics clearing a conversation while its message index entries are still buffered
+      val st = storage(Some(WriteBehind(maxPending = 100, maxDelay = 1.minute)))
+
+      result(st.insert(TestObject(1, "conv a")))
+      result(st.flush())
+      result(st.insert(TestObject(2, "conv a")))
+      result(st.insert(TestObject(3, "conv b")))
+
+      result(st.deleteWhere(_.title == "conv a") { implicit db =>
+        dao.deleteEvery(dao.list.filter(_.title == "conv a").map(_.id))
+      })
+      result(st.flush())
+
+      dao.stored.keySet.asScala shouldEqual Set(3)
+      result(st.get(2)) shouldEqual None
+    }
+
+    scenario("Reading the whole table flushes pending writes first") {
+      val st = storage(Some(WriteBehind(maxPending = 100, maxDelay = 1.minute)))
+
+      result(st.insert(TestObject(1, "a")))
+      result(st.list()) shouldEqual Seq(TestObject(1, "a"))
+    }
+
+    scenario("Flush is triggered by the size threshold") {
+      val st = storage(Some(WriteBehind(maxPending = 10, maxDelay = 1.minute)))
+
+      result(Future.sequence((1 to 10).map(i => st.insert(TestObject(i, s"obj $i")))))
+      dao.batches.get shouldEqual 1
+      dao.rows.get shouldEqual 10
+    }
+
+    scenario("Flush is triggered by the time threshold") {
+      val st = storage(Some(WriteBehind(maxPending = 100, maxDelay = 50.millis)))
+
+      result(st.insert(TestObject(1, "a")))
+      result(CancellableFuture.delay(500.millis))
+      dao.batches.get shouldEqual 1
+    }
+
+    scenario("Write-through mode saves every write in its own transaction") {
+      val st = storage(None)
+
+      result(st.insert(TestObject(1, "a")))
+      result(st.update(1, _.copy(title = "b")))
+      dao.batches.get shouldEqual 2
+      result(st.flush())
+      dao.batches.get shouldEqual 2
+    }
+
+    scenario("Benchmark: 5k event sync, write-through vs write-behind", Slow) {
+      val events = 5000
+      val pageSize = 100
+
+      //mimics a push fetch: events are stored page by page and then each one is marked separately while it's decrypted
+      def sync(st: CachedStorageImpl[Int, TestObject]): (Int, Long) = {
+        database.transactions.set(0)
+        val start = System.nanoTime()
+        (1 to events).grouped(pageSize).foreach { page =>
+          result(st.insertAll(page.map(i => TestObject(i, "encrypted"))))
+        }
+        result(Future.sequence((1 to events).map(i => st.update(i, _.copy(title = "decrypted")))))(30.seconds)
+        result(st.flush())
+        (database.transactions.get, (System.nanoTime() - start) / 1000000)
+      }
+
+      database.commitCost = 200.micros
+      val (writeThroughTransactions, writeThroughMillis) = sync(storage(None))
+      dao.stored.clear()
+      val (writeBehindTransactions, writeBehindMillis) = sync(storage(Some(WriteBehind())))
+
+      println(s"write-through: $writeThroughTransactions transactions in $writeThroughMillis ms")
+      println(s"write-behind:  $writeBehindTransactions transactions in $writeBehindMillis ms")
+
+      writeThroughTransactions shouldEqual events / pageSize + events
+      writeBehindTransactions should be < writeThroughTransactions / 10
+      dao.stored.values.asScala.forall(_.title == "decrypted") shouldEqual true
+    }
+  }
+}
+
+object CachedStorageWriteBehindSpec {
+
+  /**
+    * Runs transactions on a serial queue like the real database, but without SQLite underneath.
+    * `commitCost` simulates the fsync done at the end of every write transaction.
+    */
+  class CountingDatabase extends Database {
+    override implicit val dispatcher: SerialDispatchQueue = new SerialDispatchQueue(name = "CountingDatabase")
+    override val dbHelper: DaoDB = null
+
+    val transactions = new AtomicInteger(0)
+    @volatile var commitCost: FiniteDuration = Duration.Zero
+
+    override def apply[A](f: DB => A)(implicit logTag: LogTag): CancellableFuture[A] = dispatcher {
+      returning(f(null)) { _ =>
+        transactions.incrementAndGet()
+        if (commitCost > Duration.Zero) LockSupport.parkNanos(commitCost.toNanos)
+      }
+    }
+
+    override def read[A](f: DB => A): Future[A] = Future(f(null))(readExecutionContext)
+  }
+
+  class TestDao extends StorageDao[Int, TestObject] {
+    val stored  = new ConcurrentHashMap[Int, TestObject]()
+    val batches = new AtomicInteger(0)
+    val rows    = new AtomicInteger(0)
+
+    override def getById(key: Int)(implicit db: DB): Option[TestObject] = Option(stored.get(key))
+    override def getAll(keys: Set[Int])(implicit db: DB): Seq[TestObject] = keys.toSeq.flatMap(getById)
+    override def list(implicit db: DB): Seq[TestObject] = stored.values.asScala.toVector
+    override def deleteEvery(ids: GenTraversableOnce[Int])(implicit db: DB): Unit = ids.foreach(stored.remove)
+    override def insertOrReplace(items: GenTraversableOnce[TestObject])(implicit db: DB): Unit = {
+      batches.incrementAndGet()
+      items.foreach { item =>
+        rows.incrementAndGet()
+        stored.put(item.id, item)
+      }
+    }
+  }
+}
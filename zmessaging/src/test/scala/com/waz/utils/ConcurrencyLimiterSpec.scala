@@ -0,0 +1,86 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils
+
+import com.waz.specs.AndroidFreeSpec
+
+import scala.concurrent.{Future, Promise}
+
+class ConcurrencyLimiterSpec extends AndroidFreeSpec {
+  import com.waz.threading.Threading.Implicits.Background
+
+  feature("Limiting concurrent tasks") {
+
+    scenario("Tasks over the limit wait and are started in FIFO order") {
+      val limiter = new ConcurrencyLimiter(2)
+      val tasks = (1 to 5).map(_ => Promise[Int]())
+      @volatile var started = Vector.empty[Int]
+
+      val results = tasks.zipWithIndex.map { case (p, i) => limiter { started.synchronized(started :+= i); p.future } }
+
+      started shouldEqual Vector(0, 1)
+      limiter.running shouldEqual 2
+      limiter.waitingCount shouldEqual 3
+
+      tasks(1).success(1)
+      result(results(1)) shouldEqual 1
+      awaitAllTasks
+      started shouldEqual Vector(0, 1, 2)
+
+      tasks.zipWithIndex.foreach { case (p, i) => p.trySuccess(i) }
+      result(Future.sequence(results)) shouldEqual (0 to 4)
+      awaitAllTasks
+      limiter.running shouldEqual 0
+    }
+
+    scenario("Failing tasks release their slot") {
+      val limiter = new ConcurrencyLimiter(1)
+
+      an[IllegalStateException] should be thrownBy result(limiter(Future.failed[Int](new IllegalStateException)))
+      an[IllegalStateException] should be thrownBy result(limiter[Int](throw new IllegalStateException))
+      result(limiter(Future.successful(42))) shouldEqual 42
+    }
+
+    scenario("Raising the limit starts waiting tasks, lowering it holds back new ones") {
+      val limiter = new ConcurrencyLimiter(1)
+      val first, second, third = Promise[Unit]()
+
+      limiter(first.future)
+      val secondDone = limiter(second.future)
+      limiter.waitingCount shouldEqual 1
+
+      limiter.limit = 2
+      limiter.running shouldEqual 2
+      limiter.waitingCount shouldEqual 0
+
+      limiter.limit = 1
+      limiter(third.future)
+      limiter.waitingCount shouldEqual 1
+
+      first.success(())
+      awaitAllTasks
+      limiter.waitingCount shouldEqual 1 // one still running, that's the new limit
+
+      second.success(())
+      result(secondDone)
+      awaitAllTasks
+      limiter.waitingCount shouldEqual 0
+      limiter.running shouldEqual 1
+    }
+  }
+}
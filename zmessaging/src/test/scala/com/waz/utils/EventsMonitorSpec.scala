@@ -0,0 +1,121 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils
+
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.utils.events._
+import org.scalatest._
+
+class EventsMonitorSpec extends FeatureSpec with Matchers with BeforeAndAfter with DerivedLogTag {
+
+  before {
+    EventsMonitor.reset()
+    EventsMonitor.enabled = true
+    EventsMonitor.timingSampleInterval = 1
+  }
+
+  after {
+    EventsMonitor.enabled = false
+    EventsMonitor.timingSampleInterval = 8
+    EventsMonitor.reset()
+  }
+
+  def context() = returning(new EventContext {})(_.onContextStart())
+
+  feature("Signal statistics") {
+
+    scenario("Count recomputes, listeners and wiring depth") {
+      implicit val ctx = context()
+      val source = new SourceSignal[Int](Some(1))
+      val mapped = source.map(_ + 1)
+      val filtered = mapped.filter(_ > 0)
+      filtered { _ => () }
+      filtered { _ => () }
+
+      (2 to 10) foreach { source ! _ }
+
+      val signals = EventsMonitor.report().signals
+      val map = signals.find(_.name.endsWith("MapSignal")).get
+      map.recomputes shouldEqual 9
+      map.listeners shouldEqual 1
+      map.depth shouldEqual 1
+      map.wirings shouldEqual 1
+
+      val filter = signals.find(_.name.endsWith("FilterSignal")).get
+      filter.listeners shouldEqual 2
+      filter.depth shouldEqual 0
+
+      signals.find(_.name.endsWith("SourceSignal")).get.depth shouldEqual 2
+    }
+
+    scenario("Report most expensive signals first") {
+      implicit val ctx = context()
+      val source = new SourceSignal[Int](Some(0))
+      source.map(identity) { _ => () }
+      source.map { v => Thread.sleep(2); v } { _ => () }
+
+      (1 to 10) foreach { source ! _ }
+
+      val top = EventsMonitor.report(top = 1).signals
+      top should have size 1
+      top.head.recomputeMillis should be >= 20L
+    }
+
+    scenario("Untracked while disabled") {
+      EventsMonitor.enabled = false
+      implicit val ctx = context()
+      val source = new SourceSignal[Int](Some(0))
+      source.map(identity) { _ => () }
+      source ! 1
+
+      EventsMonitor.report().signals shouldBe empty
+      EventsMonitor.report().sites shouldBe empty
+    }
+  }
+
+  feature("Leaked subscriptions") {
+
+    scenario("Flag subscriptions still wired after their context is destroyed") {
+      val ctx = context()
+      val source = new SourceSignal[Int](Some(0))
+      source { _ => () } (ctx)
+      val leaked = source.map(_ + 1) { _ => () } (ctx)
+      ctx.unregister(leaked) // context lost track of it, so it won't be destroyed with the context
+
+      EventsMonitor.report().leaks shouldBe empty
+
+      ctx.onContextDestroy()
+      val leaks = EventsMonitor.report().leaks
+      leaks should have size 1
+      leaks.head.count shouldEqual 1
+      leaks.head.site should include("EventsMonitorSpec")
+    }
+
+    scenario("Group live subscriptions by creation site") {
+      val source = new SourceSignal[Int](Some(0))
+      def subscribe() = source { _ => () } (EventContext.Global)
+      (1 to 5) foreach { _ => subscribe() }
+      source { _ => () } (EventContext.Global)
+
+      val sites = EventsMonitor.report().sites
+      sites.map(_.count) shouldEqual Seq(5, 1)
+      sites.head.context should include("Global")
+      EventsMonitor.report().leaks shouldBe empty
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils
+
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch}
+
+import com.waz.specs.AndroidFreeSpec
+import com.waz.testutils.Slow
+import com.waz.threading.LatencyHistogram
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.concurrent.Future
+
+class PrefetchingPageLoaderSpec extends AndroidFreeSpec {
+  import PrefetchingPageLoaderSpec._
+  import com.waz.threading.Threading.Implicits.Background
+
+  feature("Loading ranges") {
+
+    scenario("Range spanning multiple pages") {
+      val source = new Source(1000, 10)
+      val loader = new PrefetchingPageLoader[Int]("test", 10, source.size, source.load, maxPrefetchPages = 0)
+
+      result(loader(15, 20)) shouldEqual (15 until 35)
+      source.loadedPages shouldEqual Seq(1, 2, 3)
+    }
+
+    scenario("Range is clipped to size") {
+      val source = new Source(25, 10)
+      val loader = new PrefetchingPageLoader[Int]("test", 10, source.size, source.load, maxPrefetchPages = 0)
+
+      result(loader(18, 20)) shouldEqual (18 until 25)
+      result(loader(30, 10)) shouldBe empty
+    }
+
+    scenario("Loaded pages are reused") {
+      val source = new Source(1000, 10)
+      val loader = new PrefetchingPageLoader[Int]("test", 10, source.size, source.load, maxPrefetchPages = 0)
+
+      result(loader(0, 10))
+      result(loader(5, 10))
+      source.loadedPages shouldEqual Seq(0, 1)
+    }
+
+    scenario("Failed pages are loaded again on next request") {
+      val source = new Source(100, 10, failOnce = Set(2))
+      val loader = new PrefetchingPageLoader[Int]("test", 10, source.size, source.load, maxPrefetchPages = 0)
+
+      an[Exception] should be thrownBy result(loader(20, 10))
+      result(loader(20, 10)) shouldEqual (20 until 30)
+    }
+  }
+
+  feature("Prefetching") {
+
+    scenario("Requested pages are loaded before prefetched ones") {
+      val source = new Source(1000, 10, blocked = true)
+      val loader = new PrefetchingPageLoader[Int]("test", 10, source.size, source.load)
+      loader.reportVelocity(200) // two seconds worth of pages ahead
+
+      val first = loader(0, 10)
+      val second = loader(100, 10)
+      source.unblock()
+      result(first)
+      result(second)
+
+      source.loadedPages.take(2) shouldEqual Seq(0, 10)
+    }
+
+    scenario("Prefetch distance follows scroll velocity") {
+      val source = new Source(10000, 50)
+      val loader = new PrefetchingPageLoader[Int]("test", 50, source.size, source.load, maxPrefetchPages = 8)
+
+      loader.prefetchDistance shouldEqual 1
+      loader.reportVelocity(200)
+      loader.prefetchDistance shouldEqual 5
+      loader.reportVelocity(-10000)
+      loader.prefetchDistance shouldEqual 8
+    }
+
+    scenario("Pages are prefetched in scroll direction") {
+      val source = new Source(1000, 10)
+      val loader = new PrefetchingPageLoader[Int]("test", 10, source.size, source.load, maxPrefetchPages = 8)
+
+      loader.reportVelocity(-20)
+      result(loader(500, 10))
+      waitUntil(source.loadedPages.size >= 4)
+      source.loadedPages shouldEqual Seq(50, 49, 48, 47)
+    }
+  }
+
+  feature("Synthetic conversation") {
+
+    scenario("Page latency while scrolling through 200k messages", Slow) {
+      val size = 200000
+      val pageSize = 50
+
+      def scroll(maxPrefetch: Int, itemsPerSecond: Int) = {
+        val source = new Source(size, pageSize, latency = (count: Int) => (2.millis + 20.micros * count).toNanos)
+        val loader = new PrefetchingPageLoader[Int]("bench", pageSize, source.size, source.load, maxPrefetchPages = maxPrefetch)
+        val histogram = new LatencyHistogram
+        val frame = (pageSize * 1000000000L / itemsPerSecond) / 4 // list asks for a quarter page per frame
+        loader.reportVelocity(itemsPerSecond)
+
+        (0 until 2000) foreach { i =>
+          val start = i * pageSize / 4
+          val requested = System.nanoTime()
+          result(loader(start, pageSize / 4))
+          histogram.record((System.nanoTime() - requested) / 1000)
+          LockSupport.parkNanos(frame)
+        }
+        histogram.snapshot
+      }
+
+      Seq(1000, 5000, 20000) foreach { velocity =>
+        val plain = scroll(0, velocity)
+        val prefetched = scroll(PrefetchingPageLoader.MaxPrefetchPages, velocity)
+        println(f"scrolling at $velocity%5d items/s, page latency µs - without prefetch p50: ${plain.percentile(50)}%6d p99: ${plain.percentile(99)}%6d max: ${plain.max}%6d | with prefetch p50: ${prefetched.percentile(50)}%6d p99: ${prefetched.percentile(99)}%6d max: ${prefetched.max}%6d")
+        prefetched.percentile(50) should be <= plain.percentile(50)
+      }
+    }
+  }
+}
+
+object PrefetchingPageLoaderSpec {
+
+  def waitUntil(cond: => Boolean, timeout: FiniteDuration = 5.seconds): Unit = {
+    val deadline = timeout.fromNow
+    while (!cond && deadline.hasTimeLeft()) LockSupport.parkNanos(1.milli.toNanos)
+  }
+
+  class Source(val size: Int, pageSize: Int, latency: Int => Long = _ => 0L, failOnce: Set[Int] = Set.empty, blocked: Boolean = false) {
+    private val loaded = new ConcurrentLinkedQueue[Int]()
+    private val failed = new ConcurrentLinkedQueue[Int]()
+    private val gate = new CountDownLatch(if (blocked) 1 else 0)
+
+    def unblock(): Unit = gate.countDown()
+
+    def loadedPages: Seq[Int] = loaded.asScala.toVector
+
+    def load(start: Int, count: Int): Future[Seq[Int]] = {
+      gate.await()
+      val page = start / pageSize
+      if (failOnce(page) && !failed.contains(page)) {
+        failed.add(page)
+        Future.failed(new Exception(s"page $page failed"))
+      } else {
+        loaded.add(page)
+        LockSupport.parkNanos(latency(count))
+        Future.successful(start until start + count)
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils.crypto
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, IOException}
+
+import com.waz.specs.AndroidFreeSpec
+import com.waz.utils.IoUtils
+
+import scala.util.Random
+
+class SecretStreamsSpec extends AndroidFreeSpec {
+
+  private def encrypt(data: Array[Byte], chunkSize: Int) = {
+    val out = new ByteArrayOutputStream()
+    val enc = new EncryptingOutputStream(out, new FakeSecretStream, chunkSize)
+    data.grouped(7).foreach(enc.write)
+    enc.close()
+    out.toByteArray
+  }
+
+  private def decrypt(data: Array[Byte]) = IoUtils.toByteArray(new DecryptingInputStream(new ByteArrayInputStream(data), new FakeSecretStream))
+
+  feature("Chunked encryption") {
+
+    scenario("Round trip for various sizes, including empty input and exact multiples of the chunk size") {
+      for (size <- Seq(0, 1, 15, 16, 17, 64, 1000)) {
+        val data = Array.fill(size)(Random.nextInt().toByte)
+        val encrypted = encrypt(data, chunkSize = 16)
+
+        val chunks = math.max(1, (size + 15) / 16)
+        encrypted.length shouldEqual size + chunks * (4 + 5)
+        decrypt(encrypted) shouldEqual data
+      }
+    }
+
+    scenario("Single byte writes") {
+      val out = new ByteArrayOutputStream()
+      val enc = new EncryptingOutputStream(out, new FakeSecretStream, 4)
+      (1 to 10).foreach(enc.write)
+      enc.close()
+
+      decrypt(out.toByteArray) shouldEqual (1 to 10).map(_.toByte).toArray
+    }
+
+    scenario("Modified chunk is rejected") {
+      val encrypted = encrypt(Array.fill(100)(1.toByte), 16)
+      encrypted(30) = (encrypted(30) ^ 1).toByte
+      an[IOException] should be thrownBy decrypt(encrypted)
+    }
+
+    scenario("Truncated stream is rejected, also when cut exactly between chunks") {
+      val encrypted = encrypt(Array.fill(100)(1.toByte), 16)
+      an[IOException] should be thrownBy decrypt(encrypted.take(encrypted.length - 3))
+      an[IOException] should be thrownBy decrypt(encrypted.take(2 * (16 + 4 + 5)))
+    }
+
+    scenario("Data after the final chunk is rejected") {
+      val encrypted = encrypt(Array.fill(20)(1.toByte), 16)
+      an[IOException] should be thrownBy decrypt(encrypted ++ Array[Byte](1, 2, 3))
+    }
+
+    scenario("Invalid chunk length is rejected without allocating it") {
+      an[IOException] should be thrownBy decrypt(Array[Byte](0x7f, 0, 0, 0, 1, 2, 3))
+    }
+  }
+}
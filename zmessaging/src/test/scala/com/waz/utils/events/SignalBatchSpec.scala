@@ -0,0 +1,189 @@
+/*
+ * Wire
+ * Copyright (C) 2016 Wire Swiss GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.waz.utils.events
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.waz.log.BasicLogging.LogTag.DerivedLogTag
+import com.waz.testutils.Slow
+import org.scalatest._
+
+import scala.util.Random
+
+class SignalBatchSpec extends FeatureSpec with Matchers with BeforeAndAfter with DerivedLogTag {
+  implicit val ec: EventContext = EventContext.Global
+
+  class Counted(sources: Signal[Int]*) extends ProxySignal[Int](sources: _*) {
+    val recomputed = new AtomicInteger(0)
+
+    override protected def computeValue(current: Option[Int]): Option[Int] = {
+      recomputed.incrementAndGet()
+      Some(sources.flatMap(_.value).sum)
+    }
+  }
+
+  feature("Glitch freedom") {
+
+    scenario("Zipped signal doesn't expose intermediate tuples") {
+      val a = Signal(1)
+      val b = Signal(10)
+      var received = Vector.empty[(Int, Int)]
+      (a zip b) { received :+= _ }
+
+      Signal.batch {
+        a ! 2
+        b ! 20
+      }
+      received shouldEqual Vector((1, 10), (2, 20))
+
+      a ! 3
+      b ! 30
+      received shouldEqual Vector((1, 10), (2, 20), (3, 20), (3, 30))
+    }
+
+    scenario("Diamond is recomputed once, with consistent inputs") {
+      val s = Signal(1)
+      val left = new Counted(s)
+      val right = s.map(_ * 10)
+      val join = new Counted(left, right)
+      var received = Vector.empty[Int]
+      join { received :+= _ }
+      left.recomputed.set(0)
+      join.recomputed.set(0)
+
+      Signal.batch {
+        s ! 2
+        s ! 3
+      }
+      left.recomputed.get shouldEqual 1
+      join.recomputed.get shouldEqual 1
+      received shouldEqual Vector(11, 33)
+    }
+
+    scenario("Subscribers are notified after the whole graph is updated") {
+      val a = Signal(1)
+      val b = a.map(_ + 1)
+      var seen = Vector.empty[(Int, Option[Int])]
+      a { v => seen :+= (v, b.currentValue) }
+
+      Signal.batch { a ! 5 }
+      seen.last shouldEqual (5, Some(6))
+    }
+
+    scenario("Switch flatMapped signal within a batch") {
+      val select = Signal(true)
+      val s1 = Signal(1)
+      val s2 = Signal(2)
+      var received = Vector.empty[Int]
+      select.flatMap(if (_) s1 else s2) { received :+= _ }
+
+      Signal.batch {
+        select ! false
+        s2 ! 20
+        s1 ! 10
+      }
+      received shouldEqual Vector(1, 20)
+    }
+
+    scenario("Nested batches are propagated once the outermost one completes") {
+      val a = Signal(1)
+      val b = Signal(1)
+      var received = Vector.empty[(Int, Int)]
+      (a zip b) { received :+= _ }
+
+      Signal.batch {
+        Signal.batch { a ! 2 }
+        received shouldEqual Vector((1, 1))
+        b ! 2
+      }
+      received shouldEqual Vector((1, 1), (2, 2))
+    }
+
+    scenario("Changes are propagated even if batch fails") {
+      val a = Signal(1)
+      var received = Vector.empty[Int]
+      a.map(_ * 2) { received :+= _ }
+
+      intercept[IllegalStateException] {
+        Signal.batch {
+          a ! 2
+          throw new IllegalStateException("test")
+        }
+      }
+      received shouldEqual Vector(2, 4)
+    }
+  }
+
+  feature("Signal graph") {
+
+    val SourcesCount = 10
+    val Layers = 5
+    val LayerWidth = 198
+    val FanIn = 3
+
+    // 10 sources and 990 derived nodes, each summing up 3 random nodes from the previous layer
+    def graph(seed: Int) = {
+      val rnd = new Random(seed)
+      val sources = Vector.fill(SourcesCount)(Signal(0))
+      val layers = (1 to Layers).scanLeft(sources: Vector[Signal[Int]]) { (prev, _) =>
+        Vector.fill(LayerWidth)(new Counted(Seq.fill(FanIn)(prev(rnd.nextInt(prev.size))): _*))
+      }
+      val nodes = layers.tail.flatten.map(_.asInstanceOf[Counted])
+      val results = layers.last.map { s =>
+        val v = new AtomicInteger(0)
+        s { v.set }
+        v
+      }
+      nodes.foreach(_.recomputed.set(0))
+      (sources, nodes, results)
+    }
+
+    def recomputes(nodes: Seq[Counted]) = nodes.map(_.recomputed.get).sum
+
+    scenario("Each derived signal recomputes at most once per batch") {
+      val (sources, nodes, results) = graph(1)
+      val (sources1, nodes1, results1) = graph(1)
+
+      sources.zipWithIndex foreach { case (s, i) => s ! i + 1 }
+      Signal.batch { sources1.zipWithIndex foreach { case (s, i) => s ! i + 1 } }
+
+      val unbatched = recomputes(nodes)
+      val batched = recomputes(nodes1)
+      info(s"recomputes for ${nodes.size + SourcesCount} nodes graph, unbatched: $unbatched, batched: $batched")
+
+      nodes1.forall(_.recomputed.get <= 1) shouldEqual true
+      batched should be < unbatched
+      results1.map(_.get) shouldEqual results.map(_.get)
+    }
+
+    scenario("Propagation time", Slow) {
+      val (sources, _, _) = graph(2)
+      val (sources1, _, _) = graph(2)
+
+      def time(update: Int => Unit) = {
+        val start = System.nanoTime()
+        (1 to 100) foreach update
+        (System.nanoTime() - start) / 100 / 1000
+      }
+
+      val unbatched = time(v => sources foreach (_ ! v))
+      val batched = time(v => Signal.batch { sources1 foreach (_ ! v) })
+      info(s"update of all sources, unbatched: $unbatched us, batched: $batched us")
+    }
+  }
+}